@@ -26,6 +26,7 @@ android {
             path("tools/CMakeLists.txt")
         }
     }
+    testOptions.unitTests.isReturnDefaultValues = true
     testOptions.unitTests.all {
         it.testLogging { events(TestLogEvent.PASSED, TestLogEvent.SKIPPED, TestLogEvent.FAILED) }
     }
@@ -33,7 +34,7 @@ android {
         all {
             externalNativeBuild {
                 cmake {
-                    targets("libwg-go.so", "libwg.so", "libwg-quick.so")
+                    targets("libwg-go.so", "libwg.so", "libwg-quick.so", "libwg-helper.so")
                     arguments("-DGRADLE_USER_HOME=${project.gradle.gradleUserHomeDir}")
                     arguments("-DANDROID_SUPPORT_FLEXIBLE_PAGE_SIZES=ON")
                 }
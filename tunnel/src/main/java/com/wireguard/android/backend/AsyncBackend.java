@@ -0,0 +1,83 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.config.Config;
+import com.wireguard.util.NonNullForAll;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import androidx.annotation.Nullable;
+
+/**
+ * A {@link Backend} that can also be driven without blocking the calling thread. Each method
+ * returns right away with a future that completes, on a thread owned by the backend, once the
+ * corresponding blocking method would have returned; failures complete the future exceptionally
+ * with the exception that method would have thrown. Calls that change state are carried out in
+ * the order they were made.
+ */
+@NonNullForAll
+public interface AsyncBackend extends Backend {
+    /**
+     * Register a listener to be told about every change of the state of a tunnel run by this
+     * backend, whatever caused it, including the system revoking the VPN. The listener is called
+     * after {@link Tunnel#onStateChange(Tunnel.State)}, on whichever thread made the change, and
+     * should not block.
+     *
+     * @param listener The listener to register.
+     */
+    void addStateListener(StateListener listener);
+
+    /**
+     * Asynchronously enumerate names of currently-running tunnels.
+     *
+     * @return A future for the set of running tunnel names.
+     */
+    CompletableFuture<Set<String>> getRunningTunnelNamesAsync();
+
+    /**
+     * Asynchronously get the state of a tunnel.
+     *
+     * @param tunnel The tunnel to examine the state of.
+     * @return A future for the state of the tunnel.
+     */
+    CompletableFuture<Tunnel.State> getStateAsync(Tunnel tunnel);
+
+    /**
+     * Asynchronously get statistics about traffic and errors on this tunnel.
+     *
+     * @param tunnel The tunnel to retrieve statistics for.
+     * @return A future for the statistics for the tunnel.
+     */
+    CompletableFuture<Statistics> getStatisticsAsync(Tunnel tunnel);
+
+    /**
+     * Unregister a listener registered with {@link #addStateListener(StateListener)}.
+     *
+     * @param listener The listener to unregister.
+     */
+    void removeStateListener(StateListener listener);
+
+    /**
+     * Asynchronously set the state of a tunnel, as with
+     * {@link #setState(Tunnel, Tunnel.State, Config)}.
+     *
+     * @param tunnel The tunnel to control the state of.
+     * @param state  The new state for this tunnel. Must be {@code UP}, {@code DOWN}, or
+     *               {@code TOGGLE}.
+     * @param config The configuration for this tunnel, may be null if state is {@code DOWN}.
+     * @return A future for the updated state of the tunnel.
+     */
+    CompletableFuture<Tunnel.State> setStateAsync(Tunnel tunnel, Tunnel.State state, @Nullable Config config);
+
+    /**
+     * Listener for changes of the state of the tunnels of an {@link AsyncBackend}.
+     */
+    interface StateListener {
+        void onStateChanged(Tunnel tunnel, Tunnel.State newState);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import android.os.SystemClock;
+
+import com.wireguard.android.backend.Tunnel.State;
+import com.wireguard.config.Config;
+import com.wireguard.util.NonNullForAll;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Runs the commands that change the state of a {@link Backend} one at a time, in the order they
+ * were submitted, on a thread of its own. Backends are not safe to change from several threads at
+ * once, so all changes should go through a single queue per backend.
+ *
+ * <p>A state change that is submitted while the previous command still waits in the queue and
+ * affects the same tunnel is merged into it rather than queued on its own: the later target state
+ * wins, a {@link State#TOGGLE} flips the earlier target, and the latest configuration replaces any
+ * earlier one, while a change of configuration alone keeps whatever target state is pending.
+ * Rapid taps therefore cost at most one transition, and every caller whose command was merged
+ * gets the outcome of the merged command. Commands are never merged across a command for another
+ * tunnel, so the overall order of transitions is preserved.
+ */
+@NonNullForAll
+public final class BackendCommandQueue {
+    private final Backend backend;
+    private final Executor executor;
+    private final Deque<Command<?>> queue = new ArrayDeque<>();
+    private long coalesced;
+    private long executed;
+    private long maxWaitNanos;
+    private long submitted;
+    private long totalWaitNanos;
+
+    /**
+     * Public constructor for BackendCommandQueue.
+     *
+     * @param backend The backend to run commands against.
+     */
+    public BackendCommandQueue(final Backend backend) {
+        this(backend, Executors.newSingleThreadExecutor());
+    }
+
+    /**
+     * Constructor for BackendCommandQueue that runs commands on a given executor.
+     *
+     * @param backend  The backend to run commands against.
+     * @param executor The executor on which to run commands. It is given one task per queued
+     *                 command, and it must run them one at a time.
+     */
+    public BackendCommandQueue(final Backend backend, final Executor executor) {
+        this.backend = backend;
+        this.executor = executor;
+    }
+
+    @Nullable
+    private static State flip(@Nullable final State state) {
+        if (state == null)
+            return State.TOGGLE;
+        return switch (state) {
+            case UP -> State.DOWN;
+            case DOWN -> State.UP;
+            case TOGGLE -> null;
+        };
+    }
+
+    public Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Get a snapshot of the queue's metrics.
+     *
+     * @return The current metrics.
+     */
+    public synchronized Metrics getMetrics() {
+        return new Metrics(queue.size(), submitted, coalesced, executed, totalWaitNanos, maxWaitNanos);
+    }
+
+    private void run() {
+        final Command<?> command;
+        synchronized (this) {
+            command = queue.poll();
+            if (command == null)
+                return;
+            final long waitNanos = SystemClock.elapsedRealtimeNanos() - command.enqueuedNanos;
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+            ++executed;
+        }
+        command.run();
+    }
+
+    /**
+     * Queue a change of the state of a tunnel, or of its configuration, as with
+     * {@link Backend#setState(Tunnel, State, Config)}.
+     *
+     * @param tunnel The tunnel to control the state of.
+     * @param state  The new state for this tunnel.
+     * @param config The configuration for this tunnel, may be null if state is {@code DOWN}.
+     * @return A future for the state of the tunnel once the command, or the one it was merged
+     * into, has run.
+     */
+    public CompletableFuture<State> setState(final Tunnel tunnel, final State state, @Nullable final Config config) {
+        return enqueue(tunnel, state, config);
+    }
+
+    /**
+     * Queue a change of the configuration of a tunnel that leaves its state as it is. If a change
+     * of its state is still waiting in the queue, that change is kept and made with the new
+     * configuration.
+     *
+     * @param tunnel The tunnel to change the configuration of.
+     * @param config The new configuration for this tunnel.
+     * @return A future for the state of the tunnel once the command, or the one it was merged
+     * into, has run.
+     */
+    public CompletableFuture<State> setConfig(final Tunnel tunnel, final Config config) {
+        return enqueue(tunnel, null, config);
+    }
+
+    // A null state leaves the target state of the tunnel as it is.
+    private CompletableFuture<State> enqueue(final Tunnel tunnel, @Nullable final State state,
+                                             @Nullable final Config config) {
+        final CompletableFuture<State> future = new CompletableFuture<>();
+        synchronized (this) {
+            ++submitted;
+            if (queue.peekLast() instanceof final StateCommand last && last.tunnel == tunnel) {
+                if (state != null)
+                    last.state = state == State.TOGGLE ? flip(last.state) : state;
+                if (config != null)
+                    last.config = config;
+                last.futures.add(future);
+                ++coalesced;
+                return future;
+            }
+            final StateCommand command = new StateCommand(tunnel, state, config);
+            command.futures.add(future);
+            queue.add(command);
+        }
+        executor.execute(this::run);
+        return future;
+    }
+
+    /**
+     * Queue an arbitrary command, which is never merged with any other. Use this for anything else
+     * that changes the backend, so that it is ordered with respect to state changes.
+     *
+     * @param callable The command to run.
+     * @param <T>      The type of the command's result.
+     * @return A future for the result of the command.
+     */
+    public <T> CompletableFuture<T> submit(final Callable<T> callable) {
+        final Command<T> command = new Command<>() {
+            @Override
+            T call() throws Exception {
+                return callable.call();
+            }
+        };
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        command.futures.add(future);
+        synchronized (this) {
+            ++submitted;
+            queue.add(command);
+        }
+        executor.execute(this::run);
+        return future;
+    }
+
+    /**
+     * Metrics of a {@link BackendCommandQueue}.
+     *
+     * @param depth          The number of commands waiting to run.
+     * @param submitted      The number of commands submitted so far.
+     * @param coalesced      How many of those were merged into a command that was already waiting.
+     * @param executed       The number of commands that have started to run.
+     * @param totalWaitNanos The total time commands spent waiting before they started to run.
+     * @param maxWaitNanos   The longest time any command spent waiting.
+     */
+    public record Metrics(int depth, long submitted, long coalesced, long executed, long totalWaitNanos,
+                          long maxWaitNanos) {
+        public long averageWaitNanos() {
+            return executed == 0 ? 0 : totalWaitNanos / executed;
+        }
+    }
+
+    private abstract static class Command<T> {
+        protected final long enqueuedNanos = SystemClock.elapsedRealtimeNanos();
+        protected final List<CompletableFuture<T>> futures = new ArrayList<>(1);
+
+        abstract T call() throws Exception;
+
+        private void run() {
+            try {
+                final T result = call();
+                for (final CompletableFuture<T> future : futures)
+                    future.complete(result);
+            } catch (final Throwable e) {
+                for (final CompletableFuture<T> future : futures)
+                    future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private final class StateCommand extends Command<State> {
+        private final Tunnel tunnel;
+        @Nullable private Config config;
+        // Null if only the configuration changes, or merged toggles cancelled each other out,
+        // leaving the state as it is.
+        @Nullable private State state;
+
+        private StateCommand(final Tunnel tunnel, @Nullable final State state, @Nullable final Config config) {
+            this.tunnel = tunnel;
+            this.state = state;
+            this.config = config;
+        }
+
+        @Override
+        State call() throws Exception {
+            final State target = state != null ? state : backend.getState(tunnel);
+            return backend.setState(tunnel, target, config);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.Log;
+
+import com.wireguard.util.NonNullForAll;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Watches the physical networks underneath a running VPN and reports when the path to the peers
+ * may have changed, such as when moving from Wi-Fi to cellular or when the current network gets a
+ * new address. The VPN itself is the default network of this process while it runs, so rather
+ * than following the default network, this tracks every non-VPN network with internet access
+ * together with its addresses.
+ *
+ * <p>Bursts of callbacks are coalesced into a single report, which is delivered on a background
+ * thread where it is fine to block, with the time of the first callback of the burst. The state
+ * seen right after {@link #start()} is taken as the baseline and not reported.
+ */
+@NonNullForAll
+final class ConnectivityWatcher extends ConnectivityManager.NetworkCallback {
+    private static final long SETTLE_MILLIS = 200;
+    private static final String TAG = "WireGuard/ConnectivityWatcher";
+
+    private final ConnectivityManager connectivityManager;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final LongConsumer listener;
+    private final Map<Network, List<LinkAddress>> networks = new HashMap<>();
+    private long pendingSinceEpochMillis;
+    private boolean registered;
+    @Nullable private Map<Network, List<LinkAddress>> reported;
+
+    /**
+     * Constructor for ConnectivityWatcher.
+     *
+     * @param connectivityManager The system connectivity service.
+     * @param listener            Called with the time of the change, in epoch milliseconds, every
+     *                            time the networks have changed.
+     */
+    ConnectivityWatcher(final ConnectivityManager connectivityManager, final LongConsumer listener) {
+        this.connectivityManager = connectivityManager;
+        this.listener = listener;
+    }
+
+    /**
+     * Find the network that traffic leaving the VPN most likely goes out on, since the default
+     * network of this process is the VPN itself while it runs. Of the non-VPN networks with
+     * internet access, a validated one is preferred, and then one that is not cellular, as the
+     * system does when it picks its default.
+     *
+     * @param connectivityManager The system connectivity service.
+     * @return The underlying network, or null if there is none.
+     */
+    @SuppressWarnings("deprecation")
+    @Nullable
+    static Network underlyingNetwork(final ConnectivityManager connectivityManager) {
+        Network best = null;
+        int bestScore = -1;
+        for (final Network network : connectivityManager.getAllNetworks()) {
+            final NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(network);
+            if (capabilities == null || !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    || !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN))
+                continue;
+            int score = 0;
+            if (capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED))
+                score += 2;
+            if (!capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR))
+                score += 1;
+            if (score > bestScore) {
+                best = network;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private void changed() {
+        if (!registered || pendingSinceEpochMillis != 0)
+            return;
+        pendingSinceEpochMillis = System.currentTimeMillis();
+        executor.schedule(this::check, SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void check() {
+        final long since;
+        synchronized (this) {
+            since = pendingSinceEpochMillis;
+            pendingSinceEpochMillis = 0;
+            if (!registered)
+                return;
+            final Map<Network, List<LinkAddress>> snapshot = new HashMap<>(networks);
+            final boolean baseline = reported == null;
+            if (snapshot.equals(reported))
+                return;
+            reported = snapshot;
+            // Without any network there is nothing to move to; wait for the next one to show up.
+            if (baseline || snapshot.isEmpty())
+                return;
+        }
+        Log.i(TAG, "Underlying networks changed");
+        try {
+            listener.accept(since);
+        } catch (final RuntimeException e) {
+            Log.e(TAG, "Unable to handle network change", e);
+        }
+    }
+
+    @Override
+    public synchronized void onAvailable(final Network network) {
+        networks.putIfAbsent(network, Collections.emptyList());
+        changed();
+    }
+
+    @Override
+    public synchronized void onLinkPropertiesChanged(final Network network, final LinkProperties linkProperties) {
+        networks.put(network, new ArrayList<>(linkProperties.getLinkAddresses()));
+        changed();
+    }
+
+    @Override
+    public synchronized void onLost(final Network network) {
+        networks.remove(network);
+        changed();
+    }
+
+    /**
+     * Start watching, if not already doing so.
+     */
+    synchronized void start() {
+        if (registered)
+            return;
+        networks.clear();
+        reported = null;
+        registered = true;
+        connectivityManager.registerNetworkCallback(new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)
+                .build(), this);
+        // Record the baseline even if no callback arrives.
+        changed();
+    }
+
+    /**
+     * Stop watching. Nothing is reported after this returns, although a report that is already
+     * being delivered may still be running.
+     */
+    synchronized void stop() {
+        if (!registered)
+            return;
+        registered = false;
+        try {
+            connectivityManager.unregisterNetworkCallback(this);
+        } catch (final IllegalArgumentException ignored) {
+        }
+    }
+}
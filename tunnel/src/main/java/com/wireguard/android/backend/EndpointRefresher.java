@@ -0,0 +1,301 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.wireguard.android.backend.Statistics.PeerStats;
+import com.wireguard.config.Config;
+import com.wireguard.config.InetAddresses;
+import com.wireguard.config.InetEndpoint;
+import com.wireguard.config.ParseException;
+import com.wireguard.config.Peer;
+import com.wireguard.util.NonNullForAll;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Keeps the hostname endpoints of running tunnels pointing at the right address, for servers
+ * behind dynamic DNS. Each host is looked up again once the TTL of its previous answer runs out,
+ * or early if a peer using it is being sent traffic but its handshake has gone stale. Hosts are
+ * shared by every peer of every tunnel that uses them, so there is only ever one lookup per host.
+ * When the address of a host changes, only the peers using it are updated, while their tunnels
+ * keep running.
+ */
+@NonNullForAll
+public final class EndpointRefresher {
+    /** Interval between lookups of a host whose TTL is unknown. */
+    public static final long DEFAULT_TTL_MILLIS = 5 * 60_000;
+    /** Longest interval between lookups of a host, whatever its TTL. */
+    public static final long MAX_INTERVAL_MILLIS = 60 * 60_000;
+    /** Shortest interval between lookups of a host, whatever its TTL or the state of its peers. */
+    public static final long MIN_INTERVAL_MILLIS = 30_000;
+    private static final String TAG = "WireGuard/EndpointRefresher";
+
+    private final ScheduledExecutorService executor;
+    private final Map<String, Host> hosts = new HashMap<>();
+    private final Resolver resolver;
+    private final Map<String, List<Registration>> tunnels = new HashMap<>();
+
+    /**
+     * Public constructor for EndpointRefresher.
+     *
+     * @param resolver The way in which to look up hosts.
+     */
+    public EndpointRefresher(final Resolver resolver) {
+        this(resolver, Executors.newSingleThreadScheduledExecutor());
+    }
+
+    EndpointRefresher(final Resolver resolver, final ScheduledExecutorService executor) {
+        this.resolver = resolver;
+        this.executor = executor;
+    }
+
+    private static boolean isNumeric(final String host) {
+        try {
+            InetAddresses.parse(host);
+            return true;
+        } catch (final ParseException ignored) {
+            return false;
+        }
+    }
+
+    private void apply(final Registration registration, final InetAddress address) {
+        final String host = address.getHostAddress();
+        try {
+            final InetEndpoint endpoint = InetEndpoint.parse((address instanceof Inet6Address ? '[' + host + ']' : host)
+                    + ':' + registration.port);
+            registration.updater.update(registration.tunnelName, registration.peer, endpoint);
+            synchronized (this) {
+                registration.current = address;
+            }
+            Log.i(TAG, "Moved peer of " + registration.tunnelName + " to " + endpoint);
+        } catch (final Exception e) {
+            Log.e(TAG, "Unable to update endpoint of " + registration.tunnelName, e);
+        }
+    }
+
+    private void lookup(final Host host) {
+        synchronized (this) {
+            if (hosts.get(host.name) != host)
+                return;
+            // Nothing is scheduled while the lookup is in flight.
+            host.next = null;
+        }
+        Resolution resolution = null;
+        try {
+            resolution = resolver.resolve(host.name);
+        } catch (final IOException e) {
+            Log.w(TAG, "Unable to resolve " + host.name, e);
+        }
+        final List<Registration> changed = new ArrayList<>();
+        final InetAddress address;
+        synchronized (this) {
+            if (hosts.get(host.name) != host)
+                return;
+            host.lastLookupMillis = SystemClock.elapsedRealtime();
+            long interval = MIN_INTERVAL_MILLIS;
+            if (resolution != null) {
+                host.address = resolution.address();
+                interval = resolution.ttlSeconds() < 0 ? DEFAULT_TTL_MILLIS : resolution.ttlSeconds() * 1000;
+                for (final Registration registration : host.registrations) {
+                    if (!host.address.equals(registration.current))
+                        changed.add(registration);
+                }
+            }
+            address = host.address;
+            schedule(host, Math.max(MIN_INTERVAL_MILLIS, Math.min(interval, MAX_INTERVAL_MILLIS)));
+        }
+        if (address != null) {
+            for (final Registration registration : changed)
+                apply(registration, address);
+        }
+    }
+
+    /**
+     * Check the latest statistics of a running tunnel for peers that are being sent traffic
+     * without having a valid session, and look up their hosts again early, as the server may
+     * have moved.
+     *
+     * @param tunnelName     The name of the tunnel.
+     * @param statistics     The statistics that were just read from the tunnel.
+     * @param nowEpochMillis The current wall clock time, in epoch milliseconds.
+     */
+    public synchronized void onStatistics(final String tunnelName, final Statistics statistics,
+                                          final long nowEpochMillis) {
+        final List<Registration> registrations = tunnels.get(tunnelName);
+        if (registrations == null)
+            return;
+        final long now = SystemClock.elapsedRealtime();
+        for (final Registration registration : registrations) {
+            final PeerStats stats = statistics.peer(registration.peer.getPublicKey());
+            if (stats == null)
+                continue;
+            final boolean sending = registration.lastTxBytes >= 0 && stats.txBytes() > registration.lastTxBytes;
+            registration.lastTxBytes = stats.txBytes();
+            final long handshake = stats.latestHandshakeEpochMillis();
+            final boolean stale = handshake == 0
+                    || nowEpochMillis - handshake > HandshakeMetrics.REJECT_AFTER_TIME_MILLIS;
+            final Host host = registration.host;
+            if (!sending || !stale || host.next == null || now - host.lastLookupMillis < MIN_INTERVAL_MILLIS)
+                continue;
+            Log.i(TAG, "Handshake with " + host.name + " is stale; resolving it again");
+            host.next.cancel(false);
+            schedule(host, 0);
+        }
+    }
+
+    private void schedule(final Host host, final long delayMillis) {
+        host.next = executor.schedule(() -> lookup(host), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start keeping the hostname endpoints of a tunnel that has just come up up to date. Any
+     * previous registration of the same tunnel is replaced.
+     *
+     * @param tunnelName The name of the tunnel.
+     * @param config     The configuration the tunnel is running with.
+     * @param updater    The way in which to change the endpoint of a peer of the running tunnel.
+     */
+    public synchronized void track(final String tunnelName, final Config config, final Updater updater) {
+        untrack(tunnelName);
+        final List<Registration> registrations = new ArrayList<>();
+        for (final Peer peer : config.getPeers()) {
+            final InetEndpoint endpoint = peer.getEndpoint().orElse(null);
+            if (endpoint == null || isNumeric(endpoint.getHost()))
+                continue;
+            Host host = hosts.get(endpoint.getHost());
+            final boolean created = host == null;
+            if (created) {
+                host = new Host(endpoint.getHost());
+                hosts.put(host.name, host);
+            }
+            // This was resolved just before the tunnel came up, so it is still cached.
+            final InetAddress current = endpoint.getResolved().map(resolved -> {
+                try {
+                    return InetAddresses.parse(resolved.getHost());
+                } catch (final ParseException e) {
+                    return null;
+                }
+            }).orElse(null);
+            final Registration registration = new Registration(tunnelName, peer, endpoint.getPort(), updater,
+                    host, current);
+            host.registrations.add(registration);
+            registrations.add(registration);
+            if (created) {
+                // Look it up right away to learn its TTL.
+                schedule(host, 0);
+            } else if (host.address != null && !host.address.equals(current)) {
+                final InetAddress address = host.address;
+                executor.execute(() -> apply(registration, address));
+            }
+        }
+        if (!registrations.isEmpty())
+            tunnels.put(tunnelName, registrations);
+    }
+
+    /**
+     * Stop keeping the endpoints of a tunnel up to date, once it has gone down.
+     *
+     * @param tunnelName The name of the tunnel.
+     */
+    public synchronized void untrack(final String tunnelName) {
+        final List<Registration> registrations = tunnels.remove(tunnelName);
+        if (registrations == null)
+            return;
+        for (final Registration registration : registrations) {
+            final Host host = registration.host;
+            host.registrations.remove(registration);
+            if (!host.registrations.isEmpty())
+                continue;
+            if (host.next != null)
+                host.next.cancel(false);
+            hosts.remove(host.name);
+        }
+    }
+
+    /**
+     * A way of looking up a host that also reports for how long the answer is valid.
+     */
+    public interface Resolver {
+        /**
+         * Look up a host. This is called from a worker thread, and may block.
+         *
+         * @param host The host name.
+         * @return The address of the host, or null if it does not exist.
+         */
+        @Nullable
+        Resolution resolve(String host) throws IOException;
+    }
+
+    /**
+     * A way of changing the endpoint of a peer of a running tunnel.
+     */
+    public interface Updater {
+        /**
+         * Point a peer at a new endpoint. This is called from a worker thread, and may block.
+         *
+         * @param tunnelName The name of the tunnel.
+         * @param peer       The peer, as configured.
+         * @param endpoint   The new, resolved endpoint of the peer.
+         */
+        void update(String tunnelName, Peer peer, InetEndpoint endpoint) throws Exception;
+    }
+
+    /**
+     * The answer to a lookup.
+     *
+     * @param address    The address of the host.
+     * @param ttlSeconds How long the answer may be cached, or -1 if unknown.
+     */
+    public record Resolution(InetAddress address, long ttlSeconds) {
+    }
+
+    private static final class Host {
+        private final String name;
+        private final List<Registration> registrations = new ArrayList<>();
+        @Nullable private InetAddress address;
+        private long lastLookupMillis;
+        @Nullable private ScheduledFuture<?> next;
+
+        private Host(final String name) {
+            this.name = name;
+        }
+    }
+
+    private static final class Registration {
+        private final Host host;
+        private final Peer peer;
+        private final int port;
+        private final String tunnelName;
+        private final Updater updater;
+        @Nullable private InetAddress current;
+        private long lastTxBytes = -1;
+
+        private Registration(final String tunnelName, final Peer peer, final int port, final Updater updater,
+                             final Host host, @Nullable final InetAddress current) {
+            this.tunnelName = tunnelName;
+            this.peer = peer;
+            this.port = port;
+            this.updater = updater;
+            this.host = host;
+            this.current = current;
+        }
+    }
+}
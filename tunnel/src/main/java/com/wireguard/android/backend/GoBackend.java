@@ -5,10 +5,14 @@
 
 package com.wireguard.android.backend;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.Network;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.system.OsConstants;
 import android.util.Log;
 
@@ -18,36 +22,88 @@ import com.wireguard.android.util.SharedLibraryLoader;
 import com.wireguard.config.Config;
 import com.wireguard.config.InetEndpoint;
 import com.wireguard.config.InetNetwork;
+import com.wireguard.config.Interface;
+import com.wireguard.config.ParseException;
 import com.wireguard.config.Peer;
+import com.wireguard.config.UapiWriter;
 import com.wireguard.crypto.Key;
 import com.wireguard.crypto.KeyFormatException;
 import com.wireguard.util.NonNullForAll;
 
+import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import androidx.annotation.Keep;
 import androidx.annotation.Nullable;
 import androidx.collection.ArraySet;
 
 /**
  * Implementation of {@link Backend} that uses the wireguard-go userspace implementation to provide
- * WireGuard tunnels.
+ * WireGuard tunnels. Every change to the running tunnel, whether requested synchronously, through
+ * the asynchronous methods, or by the network, its endpoints or the {@link VpnService} going away,
+ * is made on a thread of its own, which waits for the {@link VpnService} to start without holding
+ * on to that thread.
  */
 @NonNullForAll
-public final class GoBackend implements Backend {
+public final class GoBackend implements AsyncBackend {
+    private static final int CONFIG_BUFFER_CAPACITY = 4096;
+    private static final int DEFAULT_MTU = 1280;
     private static final int DNS_RESOLUTION_RETRIES = 10;
+    private static final int EVENT_IDLE_TIMEOUT_MILLIS = 30_000;
+    private static final int PATH_MTU_TIMEOUT_MILLIS = 1000;
+    private static final String[] PEER_STATISTICS_KEYS = {"public_key=", "rx_bytes=", "tx_bytes=",
+            "last_handshake_time_sec=", "last_handshake_time_nsec="};
+    // No longer than InetEndpoint keeps what it resolved, so that nothing older is used.
+    private static final long PREPARED_MAX_AGE_MILLIS = 60 * 1000;
     private static final String TAG = "WireGuard/GoBackend";
+    private static final long TRIM_RELAX_DELAY_MILLIS = 10 * 60 * 1000;
+    private static final long VPN_SERVICE_TIMEOUT_MILLIS = 2000;
     @Nullable private static AlwaysOnCallback alwaysOnCallback;
     private static CompletableFuture<VpnService> vpnService = new CompletableFuture<>();
     private final Context context;
-    @Nullable private Config currentConfig;
-    @Nullable private Tunnel currentTunnel;
-    private int currentTunnelHandle = -1;
+    private ByteBuffer configBuffer = ByteBuffer.allocateDirect(CONFIG_BUFFER_CAPACITY);
+    @Nullable private ConnectivityWatcher connectivityWatcher;
+    private final EndpointRefresher endpointRefresher;
+    private final Set<TunnelEvent.Listener> eventListeners = new CopyOnWriteArraySet<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final HandshakeMetrics handshakeMetrics = new HandshakeMetrics();
+    // Probes wait up to a timeout for each size, so they get a thread of their own rather than
+    // holding up state changes on the executor.
+    private final ExecutorService pathMtuExecutor = Executors.newSingleThreadExecutor();
+    private final Map<String, Integer> pathMtus = new ConcurrentHashMap<>();
+    private final Map<String, Prepared> prepared = new ConcurrentHashMap<>();
+    private final Set<StateListener> stateListeners = new CopyOnWriteArraySet<>();
+    private final TunnelTracer tracer = new TunnelTracer();
+    // The endpoints the running device was last given, by public key of their peer. Only used on
+    // the executor.
+    private final Map<Key, InetEndpoint> currentEndpoints = new HashMap<>();
+    // Only ever changed on the executor, but read from any thread.
+    @Nullable private volatile Config currentConfig;
+    @Nullable private volatile Tunnel currentTunnel;
+    private volatile int currentTunnelHandle = -1;
+    @Nullable private GoRuntimeLimits untrimmed;
+    @Nullable private ScheduledFuture<?> untrimTask;
+    @Nullable private Thread eventThread;
+    private CompletableFuture<?> lastStateChange = CompletableFuture.completedFuture(null);
 
     /**
      * Public constructor for GoBackend.
@@ -57,6 +113,7 @@ public final class GoBackend implements Backend {
     public GoBackend(final Context context) {
         SharedLibraryLoader.loadSharedLibrary(context, "wg-go");
         this.context = context;
+        endpointRefresher = new EndpointRefresher(new TtlResolver(context));
     }
 
     /**
@@ -69,15 +126,208 @@ public final class GoBackend implements Backend {
         alwaysOnCallback = cb;
     }
 
-    @Nullable private static native String wgGetConfig(int handle);
+    /**
+     * Get the {@link HandshakeMetrics} of the tunnels run by this backend. They are updated every
+     * time {@link #getStatistics(Tunnel)} is called.
+     *
+     * @return The handshake metrics for this backend.
+     */
+    public HandshakeMetrics getHandshakeMetrics() {
+        return handshakeMetrics;
+    }
+
+    /**
+     * Set a soft limit on the memory used by the Go runtime that runs the tunnel. The runtime
+     * collects garbage more often as it nears the limit.
+     *
+     * @param bytes The limit in bytes, or {@link Long#MAX_VALUE} for none.
+     * @return The previous limit.
+     */
+    public long setGoMemoryLimit(final long bytes) {
+        return wgSetMemoryLimit(bytes);
+    }
+
+    /**
+     * Set how much the Go heap may grow between collections, like the {@code GOGC} environment
+     * variable does.
+     *
+     * @param percent The growth as a percentage of the live heap, or a negative number to only
+     *                collect when nearing the memory limit.
+     * @return The previous percentage.
+     */
+    public int setGoGcPercent(final int percent) {
+        return wgSetGCPercent(percent);
+    }
+
+    /**
+     * Set how many threads may run Go code at once, like the {@code GOMAXPROCS} environment
+     * variable does.
+     *
+     * @param procs The number of threads, or zero to leave it as it is.
+     * @return The previous number.
+     */
+    public int setGoMaxProcs(final int procs) {
+        return wgSetMaxProcs(procs);
+    }
+
+    /**
+     * Read how much memory the Go runtime is using. This briefly stops the runtime, so it should
+     * not be called more than every few seconds.
+     *
+     * @return A snapshot of the runtime.
+     */
+    public GoRuntimeMetrics getGoRuntimeMetrics() {
+        final long[] metrics = new long[6];
+        wgGetRuntimeMetrics(metrics);
+        return new GoRuntimeMetrics(metrics[0], metrics[1], metrics[2], metrics[3], (int) metrics[4], metrics[5]);
+    }
+
+    /**
+     * Give memory back to the system when it is critically low, by tightening the limits of the Go
+     * runtime and returning what it has freed. The limits are relaxed again once the system has
+     * gone without asking for a while. Milder levels, such as the one that comes every time the UI
+     * goes to the background, are ignored until the limits have been measured against the packet
+     * path; they are set in the tuning package of libwg-go, next to the benchmark for them. Call
+     * this from {@link ComponentCallbacks2#onTrimMemory(int)}; the work is done on a background
+     * thread.
+     *
+     * @param level The level passed to {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void onTrimMemory(final int level) {
+        executor.execute(() -> trimMemory(level));
+    }
+
+    @SuppressWarnings("deprecation")
+    private void trimMemory(final int level) {
+        if (level != ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                && level != ComponentCallbacks2.TRIM_MEMORY_COMPLETE)
+            return;
+        final long[] previous = new long[2];
+        if (wgTrimMemory(previous) < previous.length)
+            return;
+        if (untrimmed == null)
+            untrimmed = new GoRuntimeLimits(previous[0], (int) previous[1]);
+        Log.i(TAG, "Trimming Go runtime memory at level " + level + ": " + getGoRuntimeMetrics());
+
+        if (untrimTask != null)
+            untrimTask.cancel(false);
+        untrimTask = executor.schedule(this::untrim, TRIM_RELAX_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void untrim() {
+        if (untrimmed == null)
+            return;
+        wgSetMemoryLimit(untrimmed.memoryLimitBytes);
+        wgSetGCPercent(untrimmed.gcPercent);
+        untrimmed = null;
+        untrimTask = null;
+    }
+
+    /**
+     * Set the lowest priority of the messages the Go side logs to logcat. Lower ones are dropped
+     * before they are even formatted, unless {@link #setLogBuffer(int, int)} keeps them. Each tag
+     * is also rate limited, and says how many messages it had to drop once it may log again.
+     *
+     * @param priority One of the priorities of {@link Log}, such as {@link Log#INFO}.
+     */
+    public void setLogLevel(final int priority) {
+        wgSetLogLevel(priority);
+    }
+
+    /**
+     * Keep the messages that the Go side does not log to logcat in a ring buffer in memory, where
+     * they cost no more than formatting them, until {@link #getLogBuffer()} reads them. The buffer
+     * is off until this is called, and has its own rate limit, so that what it keeps never
+     * suppresses messages meant for logcat.
+     *
+     * @param capacity The number of messages to keep, or zero to stop keeping them.
+     * @param priority The lowest priority of the messages to keep.
+     */
+    public void setLogBuffer(final int capacity, final int priority) {
+        wgSetLogBuffer(capacity, priority);
+    }
+
+    /**
+     * Read the messages kept since {@link #setLogBuffer(int, int)}.
+     *
+     * @return The messages, oldest first, in the format of {@code logcat -v threadtime}.
+     */
+    public String getLogBuffer() {
+        final String log = wgGetLogBuffer();
+        return log == null ? "" : log;
+    }
+
+    /**
+     * Get the {@link TunnelTracer} that records the timing of this backend's state transitions.
+     *
+     * @return The tracer for this backend.
+     */
+    public TunnelTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Register a listener to be told about handshakes, endpoint changes and the device coming up
+     * or going down, as soon as the running device reports them.
+     *
+     * @param listener The listener to register.
+     */
+    public void addEventListener(final TunnelEvent.Listener listener) {
+        eventListeners.add(listener);
+    }
+
+    /**
+     * Unregister a listener registered with {@link #addEventListener(TunnelEvent.Listener)}.
+     *
+     * @param listener The listener to unregister.
+     */
+    public void removeEventListener(final TunnelEvent.Listener listener) {
+        eventListeners.remove(listener);
+    }
+
+    @Override
+    public void addStateListener(final StateListener listener) {
+        stateListeners.add(listener);
+    }
+
+    @Override
+    public void removeStateListener(final StateListener listener) {
+        stateListeners.remove(listener);
+    }
+
+    private static native int wgDiscoverPathMtu(String endpoint, int timeoutMillis);
+
+    private static native int wgGetConfig(int handle, ByteBuffer config);
+
+    @Nullable private static native String wgGetLogBuffer();
+
+    private static native int wgGetRuntimeMetrics(long[] metrics);
+
+    @Nullable private static native String wgNextEvent(int timeoutMillis);
 
     private static native int wgGetSocketV4(int handle);
 
     private static native int wgGetSocketV6(int handle);
 
+    private static native int wgRebind(int handle, String settings);
+
+    private static native int wgSetConfig(int handle, String settings);
+
+    private static native int wgSetGCPercent(int percent);
+
+    private static native void wgSetLogBuffer(int capacity, int priority);
+
+    private static native void wgSetLogLevel(int priority);
+
+    private static native int wgSetMaxProcs(int procs);
+
+    private static native long wgSetMemoryLimit(long bytes);
+
+    private static native int wgTrimMemory(long[] previous);
+
     private static native void wgTurnOff(int handle);
 
-    private static native int wgTurnOn(String ifName, int tunFd, String settings);
+    private static native int wgTurnOn(String ifName, int tunFd, ByteBuffer settings, int length);
 
     private static native String wgVersion();
 
@@ -96,6 +346,11 @@ public final class GoBackend implements Backend {
         return Collections.emptySet();
     }
 
+    @Override
+    public CompletableFuture<Set<String>> getRunningTunnelNamesAsync() {
+        return CompletableFuture.completedFuture(getRunningTunnelNames());
+    }
+
     /**
      * Get the associated {@link State} for a given {@link Tunnel}.
      *
@@ -107,6 +362,55 @@ public final class GoBackend implements Backend {
         return currentTunnel == tunnel ? State.UP : State.DOWN;
     }
 
+    @Override
+    public CompletableFuture<State> getStateAsync(final Tunnel tunnel) {
+        return CompletableFuture.completedFuture(getState(tunnel));
+    }
+
+    /**
+     * Read the lines about peer statistics from the configuration of a running tunnel. The
+     * configuration is read into a direct buffer, and only these lines become strings, so that the
+     * private and preshared keys it also holds never do.
+     */
+    @Nullable
+    private synchronized List<String> getPeerStatisticsLines(final int handle) {
+        int length;
+        while ((length = wgGetConfig(handle, configBuffer)) > configBuffer.capacity()) {
+            UapiWriter.wipe(configBuffer);
+            configBuffer = ByteBuffer.allocateDirect(length * 2);
+        }
+        if (length < 0)
+            return null;
+        final List<String> lines = new ArrayList<>();
+        for (int start = 0, end; start < length; start = end + 1) {
+            end = start;
+            while (end < length && configBuffer.get(end) != '\n')
+                ++end;
+            for (final String key : PEER_STATISTICS_KEYS) {
+                if (regionMatches(configBuffer, start, end, key)) {
+                    final char[] line = new char[end - start];
+                    for (int i = 0; i < line.length; ++i)
+                        line[i] = (char) configBuffer.get(start + i);
+                    lines.add(new String(line));
+                    break;
+                }
+            }
+        }
+        UapiWriter.wipe(configBuffer);
+        return lines;
+    }
+
+    private static boolean regionMatches(final ByteBuffer buffer, final int start, final int end,
+                                         final String prefix) {
+        if (end - start < prefix.length())
+            return false;
+        for (int i = 0; i < prefix.length(); ++i) {
+            if (buffer.get(start + i) != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Get the associated {@link Statistics} for a given {@link Tunnel}.
      *
@@ -116,16 +420,18 @@ public final class GoBackend implements Backend {
     @Override
     public Statistics getStatistics(final Tunnel tunnel) {
         final Statistics stats = new Statistics();
-        if (tunnel != currentTunnel || currentTunnelHandle == -1)
+        // A handle that goes stale meanwhile is refused by libwg-go rather than reaching another tunnel.
+        final int handle = currentTunnelHandle;
+        if (tunnel != currentTunnel || handle == -1)
             return stats;
-        final String config = wgGetConfig(currentTunnelHandle);
-        if (config == null)
+        final List<String> lines = getPeerStatisticsLines(handle);
+        if (lines == null)
             return stats;
         Key key = null;
         long rx = 0;
         long tx = 0;
         long latestHandshakeMSec = 0;
-        for (final String line : config.split("\\n")) {
+        for (final String line : lines) {
             if (line.startsWith("public_key=")) {
                 if (key != null)
                     stats.add(key, rx, tx, latestHandshakeMSec);
@@ -173,9 +479,24 @@ public final class GoBackend implements Backend {
         }
         if (key != null)
             stats.add(key, rx, tx, latestHandshakeMSec);
+        final long now = System.currentTimeMillis();
+        handshakeMetrics.observe(tunnel.getName(), stats, now);
+        endpointRefresher.onStatistics(tunnel.getName(), stats, now);
         return stats;
     }
 
+    /**
+     * Get the associated {@link Statistics} for a given {@link Tunnel}. The counters are read from
+     * the running device in memory, so this completes right away.
+     *
+     * @param tunnel The tunnel to retrieve statistics for.
+     * @return A completed future for the {@link Statistics} of the given tunnel.
+     */
+    @Override
+    public CompletableFuture<Statistics> getStatisticsAsync(final Tunnel tunnel) {
+        return CompletableFuture.completedFuture(getStatistics(tunnel));
+    }
+
     /**
      * Get the version of the underlying wireguard-go library.
      *
@@ -205,7 +526,74 @@ public final class GoBackend implements Backend {
     }
 
     /**
-     * Change the state of a given {@link Tunnel}, optionally applying a given {@link Config}.
+     * Do the work of bringing up a tunnel that does not need the VPN service ahead of time: resolve
+     * the endpoints of its peers and serialize its configuration. If the tunnel is then brought up
+     * with the same {@link Config} instance within a minute, on the same network, it goes straight
+     * to creating the TUN device. Because this function may perform network I/O, it must not be called from the
+     * main thread.
+     *
+     * @param tunnel The tunnel that is likely to be brought up soon.
+     * @param config The configuration it would be brought up with.
+     */
+    public void prepare(final Tunnel tunnel, final Config config) {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        try {
+            resolveEndpoints(config, 1);
+        } catch (final Exception e) {
+            discard(prepared.remove(tunnel.getName()));
+            return;
+        }
+        final ByteBuffer goConfig = UapiWriter.encode(config);
+        discard(prepared.put(tunnel.getName(), new Prepared(config, goConfig, activeNetworkKey(),
+                SystemClock.elapsedRealtime(), SystemClock.elapsedRealtimeNanos() - startNanos)));
+    }
+
+    private static void discard(@Nullable final Prepared stale) {
+        if (stale != null)
+            UapiWriter.wipe(stale.goConfig);
+    }
+
+    // Pre-resolve IPs so they're cached when building the userspace string
+    private static void resolveEndpoints(final Config config, final int attempts) throws Exception {
+        dnsRetry: for (int i = 0; i < attempts; ++i) {
+            for (final Peer peer : config.getPeers()) {
+                final InetEndpoint ep = peer.getEndpoint().orElse(null);
+                if (ep == null)
+                    continue;
+                if (ep.getResolved().orElse(null) == null) {
+                    if (i < attempts - 1) {
+                        Log.w(TAG, "DNS host \"" + ep.getHost() + "\" failed to resolve; trying again");
+                        Thread.sleep(1000);
+                        continue dnsRetry;
+                    } else
+                        throw new BackendException(Reason.DNS_RESOLUTION_FAILURE, ep.getHost());
+                }
+            }
+            break;
+        }
+    }
+
+    /**
+     * Keep a socket out of the VPN, if one is running, so that it reaches the network directly.
+     *
+     * @param fd The file descriptor of the socket.
+     * @return false if a VPN is running and the socket could not be protected from it.
+     */
+    @Keep // Also called from native code.
+    static boolean protectSocket(final int fd) {
+        final VpnService service;
+        try {
+            service = vpnService.getNow(null);
+        } catch (final Exception e) {
+            return false;
+        }
+        return service == null || service.protect(fd);
+    }
+
+    /**
+     * Change the state of a given {@link Tunnel}, optionally applying a given {@link Config}. The
+     * change is made on the backend's thread, in order with those requested through
+     * {@link #setStateAsync(Tunnel, State, Config)}, and this waits for it.
      *
      * @param tunnel The tunnel to control the state of.
      * @param state  The new state for this tunnel. Must be {@code UP}, {@code DOWN}, or
@@ -215,7 +603,17 @@ public final class GoBackend implements Backend {
      * @throws Exception Exception raised while changing tunnel state.
      */
     @Override
-    public State setState(final Tunnel tunnel, State state, @Nullable final Config config) throws Exception {
+    public State setState(final Tunnel tunnel, final State state, @Nullable final Config config) throws Exception {
+        try {
+            return setStateAsync(tunnel, state, config).get();
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof final Exception cause)
+                throw cause;
+            throw e;
+        }
+    }
+
+    private State changeState(final Tunnel tunnel, State state, @Nullable final Config config) throws Exception {
         final State originalState = getState(tunnel);
 
         if (state == State.TOGGLE)
@@ -240,60 +638,152 @@ public final class GoBackend implements Backend {
         return getState(tunnel);
     }
 
+    /**
+     * Change the state of a given {@link Tunnel} without blocking the calling thread. State changes
+     * are applied one after another in the order they were requested. When the tunnel is to come
+     * up and the {@link VpnService} is not running yet, the service is started first, and the
+     * change is only handed to the backend's thread once the service is up, without holding up
+     * anything else meanwhile.
+     *
+     * @param tunnel The tunnel to control the state of.
+     * @param state  The new state for this tunnel. Must be {@code UP}, {@code DOWN}, or
+     *               {@code TOGGLE}.
+     * @param config The configuration for this tunnel, may be null if state is {@code DOWN}.
+     * @return A future for the {@link State} of the tunnel after state changes are applied.
+     */
+    @Override
+    public CompletableFuture<State> setStateAsync(final Tunnel tunnel, final State state,
+                                                  @Nullable final Config config) {
+        final CompletableFuture<State> future = new CompletableFuture<>();
+        // No tunnel can be up while the service is not running, so anything but DOWN may need it.
+        final CompletableFuture<VpnService> service = vpnService;
+        CompletableFuture<?> ready = CompletableFuture.completedFuture(null);
+        if (state != State.DOWN && config != null && !service.isDone()) {
+            if (VpnService.prepare(context) != null) {
+                future.completeExceptionally(new BackendException(Reason.VPN_NOT_AUTHORIZED));
+                return future;
+            }
+            Log.d(TAG, "Requesting to start VpnService");
+            context.startService(new Intent(context, VpnService.class));
+            ready = startedWithin(service, VPN_SERVICE_TIMEOUT_MILLIS);
+        }
+        final CompletableFuture<?> previous;
+        synchronized (this) {
+            previous = lastStateChange;
+            lastStateChange = future.handle((result, e) -> null);
+        }
+        CompletableFuture.allOf(previous, ready).whenCompleteAsync((ignored, e) -> {
+            if (e != null) {
+                future.completeExceptionally(e.getCause() != null ? e.getCause() : e);
+                return;
+            }
+            try {
+                future.complete(changeState(tunnel, state, config));
+            } catch (final Exception ex) {
+                future.completeExceptionally(ex);
+            }
+        }, executor);
+        return future;
+    }
+
+    private CompletableFuture<Void> startedWithin(final CompletableFuture<VpnService> service,
+                                                  final long timeoutMillis) {
+        final CompletableFuture<Void> started = new CompletableFuture<>();
+        final ScheduledFuture<?> timeout = executor.schedule(() -> {
+            final Exception e = new BackendException(Reason.UNABLE_TO_START_VPN);
+            e.initCause(new TimeoutException());
+            started.completeExceptionally(e);
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        service.thenRun(() -> {
+            timeout.cancel(false);
+            started.complete(null);
+        });
+        return started;
+    }
+
+
+    private void notifyStateChange(final Tunnel tunnel, final State state) {
+        tunnel.onStateChange(state);
+        for (final StateListener listener : stateListeners)
+            listener.onStateChanged(tunnel, state);
+    }
+
     private void setStateInternal(final Tunnel tunnel, @Nullable final Config config, final State state)
             throws Exception {
         Log.i(TAG, "Bringing tunnel " + tunnel.getName() + ' ' + state);
 
-        if (state == State.UP) {
-            if (config == null)
-                throw new BackendException(Reason.TUNNEL_MISSING_CONFIG);
+        final long startEpochMillis = System.currentTimeMillis();
+        final TunnelTracer.Span span = tracer.begin(tunnel, state);
+        try {
+            final boolean changed = state == State.UP ? bringUp(tunnel, config, span) : bringDown(span);
+            span.finish();
+            if (!changed)
+                return;
+        } catch (final Exception e) {
+            span.fail(e);
+            throw e;
+        }
 
-            if (VpnService.prepare(context) != null)
-                throw new BackendException(Reason.VPN_NOT_AUTHORIZED);
+        if (state == State.UP)
+            handshakeMetrics.onTunnelUp(tunnel.getName(), startEpochMillis);
 
-            final VpnService service;
-            if (!vpnService.isDone()) {
-                Log.d(TAG, "Requesting to start VpnService");
-                context.startService(new Intent(context, VpnService.class));
-            }
+        notifyStateChange(tunnel, state);
+    }
 
-            try {
-                service = vpnService.get(2, TimeUnit.SECONDS);
-            } catch (final TimeoutException e) {
-                final Exception be = new BackendException(Reason.UNABLE_TO_START_VPN);
-                be.initCause(e);
-                throw be;
-            }
-            service.setOwner(this);
+    private boolean bringUp(final Tunnel tunnel, @Nullable final Config config, final TunnelTracer.Span span)
+            throws Exception {
+        if (config == null)
+            throw new BackendException(Reason.TUNNEL_MISSING_CONFIG);
 
-            if (currentTunnelHandle != -1) {
-                Log.w(TAG, "Tunnel already up");
-                return;
-            }
+        if (VpnService.prepare(context) != null)
+            throw new BackendException(Reason.VPN_NOT_AUTHORIZED);
 
+        span.phase(TunnelTracer.Phase.VPN_SERVICE_START);
+        final VpnService service;
+        if (!vpnService.isDone()) {
+            Log.d(TAG, "Requesting to start VpnService");
+            context.startService(new Intent(context, VpnService.class));
+        }
 
-            dnsRetry: for (int i = 0; i < DNS_RESOLUTION_RETRIES; ++i) {
-                // Pre-resolve IPs so they're cached when building the userspace string
-                for (final Peer peer : config.getPeers()) {
-                    final InetEndpoint ep = peer.getEndpoint().orElse(null);
-                    if (ep == null)
-                        continue;
-                    if (ep.getResolved().orElse(null) == null) {
-                        if (i < DNS_RESOLUTION_RETRIES - 1) {
-                            Log.w(TAG, "DNS host \"" + ep.getHost() + "\" failed to resolve; trying again");
-                            Thread.sleep(1000);
-                            continue dnsRetry;
-                        } else
-                            throw new BackendException(Reason.DNS_RESOLUTION_FAILURE, ep.getHost());
-                    }
-                }
-                break;
-            }
+        try {
+            service = vpnService.get(2, TimeUnit.SECONDS);
+        } catch (final TimeoutException e) {
+            final Exception be = new BackendException(Reason.UNABLE_TO_START_VPN);
+            be.initCause(e);
+            throw be;
+        }
+        service.setOwner(this);
+
+        if (currentTunnelHandle != -1) {
+            Log.w(TAG, "Tunnel already up");
+            return false;
+        }
+
+        // Once the tunnel is established it becomes the active network, so look at the real one now.
+        final String networkKey = activeNetworkKey();
+        final ByteBuffer goConfig;
+        // Whatever was prepared is used at most once, as its buffer is wiped after being handed over.
+        // Endpoints resolved on another network may not be reachable from this one.
+        final Prepared warm = prepared.remove(tunnel.getName());
+        if (warm != null && warm.config == config && warm.networkKey.equals(networkKey)
+                && SystemClock.elapsedRealtime() - warm.preparedAtMillis < PREPARED_MAX_AGE_MILLIS) {
+            span.prepared(warm.durationNanos);
+            goConfig = warm.goConfig;
+        } else {
+            discard(warm);
+            span.phase(TunnelTracer.Phase.DNS_RESOLUTION);
+            resolveEndpoints(config, DNS_RESOLUTION_RETRIES);
 
             // Build config
-            final String goConfig = config.toWgUserspaceString();
+            span.phase(TunnelTracer.Phase.CONFIG_SERIALIZATION);
+            goConfig = UapiWriter.encode(config);
+        }
 
+        // The encoded private key must not outlive this attempt, however it ends.
+        try {
             // Create the vpn tunnel with android API
+            span.phase(TunnelTracer.Phase.TUN_ESTABLISH);
+
             final VpnService.Builder builder = service.getBuilder();
             builder.setSession(tunnel.getName());
 
@@ -327,7 +817,7 @@ public final class GoBackend implements Backend {
                 builder.allowFamily(OsConstants.AF_INET6);
             }
 
-            builder.setMtu(config.getInterface().getMtu().orElse(1280));
+            builder.setMtu(mtuFor(config, networkKey));
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
                 builder.setMetered(false);
@@ -338,32 +828,330 @@ public final class GoBackend implements Backend {
                 if (tun == null)
                     throw new BackendException(Reason.TUN_CREATION_ERROR);
                 Log.d(TAG, "Go backend " + wgVersion());
-                currentTunnelHandle = wgTurnOn(tunnel.getName(), tun.detachFd(), goConfig);
+                span.phase(TunnelTracer.Phase.DEVICE_START);
+                currentTunnelHandle = wgTurnOn(tunnel.getName(), tun.detachFd(), goConfig, goConfig.limit());
             }
-            if (currentTunnelHandle < 0)
-                throw new BackendException(Reason.GO_ACTIVATION_ERROR_CODE, currentTunnelHandle);
+        } finally {
+            UapiWriter.wipe(goConfig);
+        }
+        if (currentTunnelHandle < 0)
+            throw new BackendException(Reason.GO_ACTIVATION_ERROR_CODE, currentTunnelHandle);
 
-            currentTunnel = tunnel;
-            currentConfig = config;
+        currentTunnel = tunnel;
+        currentConfig = config;
+        // These were resolved just before the configuration was encoded, so they are still cached.
+        for (final Peer peer : config.getPeers())
+            peer.getEndpoint().flatMap(InetEndpoint::getResolved)
+                    .ifPresent(endpoint -> currentEndpoints.put(peer.getPublicKey(), endpoint));
 
-            service.protect(wgGetSocketV4(currentTunnelHandle));
-            service.protect(wgGetSocketV6(currentTunnelHandle));
-        } else {
-            if (currentTunnelHandle == -1) {
-                Log.w(TAG, "Tunnel already down");
-                return;
+        span.phase(TunnelTracer.Phase.SOCKET_PROTECT);
+        service.protect(wgGetSocketV4(currentTunnelHandle));
+        service.protect(wgGetSocketV6(currentTunnelHandle));
+
+        if (config.getInterface().isMtuAuto())
+            discoverPathMtus(config, networkKey);
+
+        if (connectivityWatcher == null) {
+            final ConnectivityManager connectivityManager = context.getSystemService(ConnectivityManager.class);
+            if (connectivityManager != null)
+                connectivityWatcher = new ConnectivityWatcher(connectivityManager, this::onNetworkChanged);
+        }
+        if (connectivityWatcher != null)
+            connectivityWatcher.start();
+        endpointRefresher.track(tunnel.getName(), config, this::updateEndpoint);
+        startEvents();
+        return true;
+    }
+
+    /**
+     * Make sure a thread is picking up the events of the running device. Events posted before it
+     * starts wait in libwg-go, so none are lost.
+     */
+    private synchronized void startEvents() {
+        if (eventThread != null)
+            return;
+        eventThread = new Thread(this::pumpEvents, "WireGuard/GoBackend/Events");
+        eventThread.setDaemon(true);
+        eventThread.start();
+    }
+
+    /**
+     * Deliver the events of the devices in order, until none has been running for a while.
+     */
+    private void pumpEvents() {
+        for (;;) {
+            final String line = wgNextEvent(EVENT_IDLE_TIMEOUT_MILLIS);
+            if (line == null) {
+                synchronized (this) {
+                    if (currentTunnelHandle == -1) {
+                        eventThread = null;
+                        return;
+                    }
+                }
+                continue;
+            }
+            final TunnelEvent event = TunnelEvent.parse(line);
+            if (event == null) {
+                Log.w(TAG, "Ignoring malformed event: " + line);
+                continue;
+            }
+            final Tunnel tunnel = currentTunnel;
+            // Fold the new handshake into the metrics now rather than at the next poll.
+            if (event.type() == TunnelEvent.Type.HANDSHAKE_COMPLETED && tunnel != null
+                    && tunnel.getName().equals(event.tunnelName()))
+                getStatistics(tunnel);
+            for (final TunnelEvent.Listener listener : eventListeners) {
+                try {
+                    listener.onTunnelEvent(event);
+                } catch (final RuntimeException e) {
+                    Log.e(TAG, "Unable to deliver event", e);
+                }
             }
-            int handleToClose = currentTunnelHandle;
-            currentTunnel = null;
-            currentTunnelHandle = -1;
-            currentConfig = null;
-            wgTurnOff(handleToClose);
-            try {
-                vpnService.get(0, TimeUnit.NANOSECONDS).stopSelf();
-            } catch (final TimeoutException ignored) { }
         }
+    }
 
-        tunnel.onStateChange(state);
+    /**
+     * Move the running tunnel over to a new underlying network without tearing it down. The device
+     * first reopens and protects its sockets and initiates a fresh handshake with every peer that
+     * has an endpoint, using the endpoints it already has, so that recovery does not wait on DNS.
+     * Hostname endpoints are then resolved again on the new network, as they may resolve
+     * differently there, and only the peers whose address changed are moved. Called from the
+     * {@link ConnectivityWatcher}'s thread, where it is fine to block; the device itself is only
+     * touched on the executor.
+     */
+    private void onNetworkChanged(final long changeEpochMillis) {
+        // Whatever was prepared was resolved for the old network.
+        for (final String name : prepared.keySet())
+            discard(prepared.remove(name));
+        final Config config = currentConfig;
+        final int handle = currentTunnelHandle;
+        if (config == null || handle == -1)
+            return;
+        executor.execute(() -> rebind(handle, changeEpochMillis));
+
+        // The default network is the VPN itself, so look the hosts up on the one underneath it.
+        final ConnectivityManager connectivityManager = context.getSystemService(ConnectivityManager.class);
+        final Network network = connectivityManager == null ? null
+                : ConnectivityWatcher.underlyingNetwork(connectivityManager);
+        if (network == null)
+            return;
+        final Map<Key, InetEndpoint> resolved = new HashMap<>();
+        for (final Peer peer : config.getPeers()) {
+            final InetEndpoint endpoint = peer.getEndpoint().map(ep -> resolveOn(network, ep)).orElse(null);
+            if (endpoint != null)
+                resolved.put(peer.getPublicKey(), endpoint);
+        }
+        executor.execute(() -> moveEndpoints(handle, resolved));
+    }
+
+    @Nullable
+    private static InetEndpoint resolveOn(final Network network, final InetEndpoint endpoint) {
+        try {
+            // Prefer v4 endpoints over v6 to work around DNS64 and IPv6 NAT issues, like InetEndpoint.
+            final InetAddress[] candidates = network.getAllByName(endpoint.getHost());
+            InetAddress address = candidates[0];
+            for (final InetAddress candidate : candidates) {
+                if (candidate instanceof Inet4Address) {
+                    address = candidate;
+                    break;
+                }
+            }
+            final String host = address.getHostAddress();
+            return InetEndpoint.parse((address instanceof Inet6Address ? '[' + host + ']' : host) + ':'
+                    + endpoint.getPort());
+        } catch (final UnknownHostException | ParseException e) {
+            Log.w(TAG, "Unable to resolve " + endpoint.getHost() + " on the new network", e);
+            return null;
+        }
+    }
+
+    private void rebind(final int handle, final long changeEpochMillis) {
+        final Tunnel tunnel = currentTunnel;
+        if (tunnel == null || handle != currentTunnelHandle)
+            return;
+        final StringBuilder sb = new StringBuilder();
+        for (final Map.Entry<Key, InetEndpoint> entry : currentEndpoints.entrySet()) {
+            sb.append("public_key=").append(entry.getKey().toHex()).append('\n');
+            sb.append("update_only=true\n");
+            sb.append("endpoint=").append(entry.getValue()).append('\n');
+        }
+        final int ret = wgRebind(handle, sb.toString());
+        if (ret != 0) {
+            Log.e(TAG, "Unable to move tunnel " + tunnel.getName() + " to the new network: " + ret);
+            return;
+        }
+        handshakeMetrics.onNetworkChange(tunnel.getName(), changeEpochMillis);
+        Log.i(TAG, "Moved tunnel " + tunnel.getName() + " to the new network in "
+                + (System.currentTimeMillis() - changeEpochMillis) + " ms");
+    }
+
+    private void moveEndpoints(final int handle, final Map<Key, InetEndpoint> resolved) {
+        final Tunnel tunnel = currentTunnel;
+        if (tunnel == null || handle != currentTunnelHandle)
+            return;
+        final StringBuilder sb = new StringBuilder();
+        for (final Map.Entry<Key, InetEndpoint> entry : resolved.entrySet()) {
+            if (entry.getValue().equals(currentEndpoints.get(entry.getKey())))
+                continue;
+            sb.append("public_key=").append(entry.getKey().toHex()).append('\n');
+            sb.append("update_only=true\n");
+            sb.append("endpoint=").append(entry.getValue()).append('\n');
+        }
+        if (sb.length() == 0)
+            return;
+        final int ret = wgSetConfig(handle, sb.toString());
+        if (ret != 0) {
+            Log.e(TAG, "Unable to update endpoints of " + tunnel.getName() + " on the new network: " + ret);
+            return;
+        }
+        currentEndpoints.putAll(resolved);
+        Log.i(TAG, "Moved peers of " + tunnel.getName() + " to their addresses on the new network");
+    }
+
+    private void updateEndpoint(final String tunnelName, final Peer peer, final InetEndpoint endpoint)
+            throws Exception {
+        try {
+            executor.submit(() -> {
+                final Tunnel tunnel = currentTunnel;
+                final int handle = currentTunnelHandle;
+                if (tunnel == null || handle == -1 || !tunnel.getName().equals(tunnelName))
+                    return null;
+                final int ret = wgSetConfig(handle, "public_key=" + peer.getPublicKey().toHex()
+                        + "\nupdate_only=true\nendpoint=" + endpoint + '\n');
+                if (ret != 0)
+                    throw new BackendException(Reason.GO_ACTIVATION_ERROR_CODE, ret);
+                currentEndpoints.put(peer.getPublicKey(), endpoint);
+                return null;
+            }).get();
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof final Exception cause)
+                throw cause;
+            throw e;
+        }
+    }
+
+    private String activeNetworkKey() {
+        final ConnectivityManager connectivityManager = context.getSystemService(ConnectivityManager.class);
+        final Network network = connectivityManager == null ? null : connectivityManager.getActiveNetwork();
+        return network == null ? "none" : Long.toString(network.getNetworkHandle());
+    }
+
+    /**
+     * Get the MTU with which to bring up a tunnel. For an MTU of "auto", that is the smallest one
+     * previously discovered for the endpoints of the peers on the current network, and the safe
+     * minimum as long as any of them is still unknown.
+     */
+    private int mtuFor(final Config config, final String networkKey) {
+        final Interface iface = config.getInterface();
+        if (!iface.isMtuAuto())
+            return iface.getMtu().orElse(DEFAULT_MTU);
+        int mtu = Integer.MAX_VALUE;
+        for (final Peer peer : config.getPeers()) {
+            final InetEndpoint endpoint = peer.getEndpoint().flatMap(InetEndpoint::getResolved).orElse(null);
+            if (endpoint == null)
+                continue;
+            final Integer known = pathMtus.get(networkKey + '/' + endpoint);
+            if (known == null)
+                return DEFAULT_MTU;
+            mtu = Math.min(mtu, known);
+        }
+        return mtu == Integer.MAX_VALUE ? DEFAULT_MTU : mtu;
+    }
+
+    /**
+     * Discover the path MTU to every endpoint of a tunnel that is not yet known on the current
+     * network, in the background. The results take effect the next time the tunnel comes up, as
+     * the MTU of a running tunnel cannot be changed. Only sizes that the endpoint echoes back count
+     * as confirmed, so an endpoint that echoes nothing keeps the safe minimum.
+     */
+    private void discoverPathMtus(final Config config, final String networkKey) {
+        for (final Peer peer : config.getPeers()) {
+            final InetEndpoint endpoint = peer.getEndpoint().flatMap(InetEndpoint::getResolved).orElse(null);
+            if (endpoint == null)
+                continue;
+            final String key = networkKey + '/' + endpoint;
+            if (pathMtus.containsKey(key))
+                continue;
+            pathMtuExecutor.execute(() -> {
+                if (pathMtus.containsKey(key))
+                    return;
+                final int mtu = wgDiscoverPathMtu(endpoint.toString(), PATH_MTU_TIMEOUT_MILLIS);
+                if (mtu <= 0)
+                    return;
+                Log.i(TAG, "Discovered MTU " + mtu + " for " + endpoint);
+                pathMtus.put(key, mtu);
+            });
+        }
+    }
+
+    private boolean bringDown(final TunnelTracer.Span span) throws Exception {
+        if (currentTunnelHandle == -1) {
+            Log.w(TAG, "Tunnel already down");
+            return false;
+        }
+        final int handleToClose = detachTunnel();
+        span.phase(TunnelTracer.Phase.DEVICE_STOP);
+        wgTurnOff(handleToClose);
+        try {
+            vpnService.get(0, TimeUnit.NANOSECONDS).stopSelf();
+        } catch (final TimeoutException ignored) { }
+        return true;
+    }
+
+    /**
+     * Forget the running tunnel and stop watching the network, its endpoints and its handshakes,
+     * whether it is being brought down or the {@link VpnService} went away underneath it. Turning it
+     * off is left to the caller. Called on the executor.
+     *
+     * @return The handle of the tunnel that was running, or -1 if there was none.
+     */
+    private int detachTunnel() {
+        final int handle = currentTunnelHandle;
+        if (currentTunnel != null) {
+            endpointRefresher.untrack(currentTunnel.getName());
+            handshakeMetrics.onTunnelDown(currentTunnel.getName());
+        }
+        currentTunnel = null;
+        currentTunnelHandle = -1;
+        currentConfig = null;
+        currentEndpoints.clear();
+        if (connectivityWatcher != null)
+            connectivityWatcher.stop();
+        return handle;
+    }
+
+    /**
+     * Turn off the tunnel that was running when the {@link VpnService} went away underneath it,
+     * unless it has been replaced since.
+     */
+    private void onServiceDestroyed(final int handle) {
+        final Tunnel tunnel = currentTunnel;
+        if (tunnel == null || handle != currentTunnelHandle)
+            return;
+        wgTurnOff(detachTunnel());
+        notifyStateChange(tunnel, State.DOWN);
+    }
+
+    /**
+     * A snapshot of the Go runtime that runs the tunnel.
+     *
+     * @param heapInUseBytes    Memory occupied by heap objects.
+     * @param footprintBytes    Memory obtained from the system and not yet returned to it, which is
+     *                          roughly what the memory limit applies to.
+     * @param gcCycles          Number of completed garbage collections.
+     * @param gcPauseTotalNanos Time the runtime has been stopped for garbage collection.
+     * @param goroutines        Number of goroutines.
+     * @param memoryLimitBytes  Soft memory limit in effect, or {@link Long#MAX_VALUE} for none.
+     */
+    public record GoRuntimeMetrics(long heapInUseBytes, long footprintBytes, long gcCycles,
+                                   long gcPauseTotalNanos, int goroutines, long memoryLimitBytes) {
+    }
+
+    private record GoRuntimeLimits(long memoryLimitBytes, int gcPercent) {
+    }
+
+    private record Prepared(Config config, ByteBuffer goConfig, String networkKey, long preparedAtMillis,
+                            long durationNanos) {
     }
 
     /**
@@ -392,16 +1180,11 @@ public final class GoBackend implements Backend {
 
         @Override
         public void onDestroy() {
-            if (owner != null) {
-                final Tunnel tunnel = owner.currentTunnel;
-                if (tunnel != null) {
-                    if (owner.currentTunnelHandle != -1)
-                        wgTurnOff(owner.currentTunnelHandle);
-                    owner.currentTunnel = null;
-                    owner.currentTunnelHandle = -1;
-                    owner.currentConfig = null;
-                    tunnel.onStateChange(State.DOWN);
-                }
+            final GoBackend backend = owner;
+            if (backend != null) {
+                final int handle = backend.currentTunnelHandle;
+                if (handle != -1)
+                    backend.executor.execute(() -> backend.onServiceDestroyed(handle));
             }
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S)
                 vpnService = vpnService.newIncompleteFuture();
@@ -0,0 +1,244 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.android.backend.Statistics.PeerStats;
+import com.wireguard.crypto.Key;
+import com.wireguard.util.NonNullForAll;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Tracks the handshake behaviour of every peer of every running tunnel, derived from the
+ * {@link Statistics} a {@link Backend} reports. For each peer it records how long the first
+ * handshake took after the tunnel came up, a histogram of the intervals between handshakes, how
+ * many rekeys were missed, for how long the peer was used without a valid session, and how long
+ * it took to get a new handshake through after the underlying network changed.
+ *
+ * <p>Handshake timestamps are absolute, so observations may be sparse: an interval spanning
+ * several unobserved handshakes is recorded as one long interval. Time only counts as stale while
+ * traffic is being sent to the peer, since an idle peer without a persistent keepalive
+ * legitimately lets its session expire, and a rekey only counts as missed if traffic was held up
+ * for longer than a single handshake attempt takes.
+ */
+@NonNullForAll
+public final class HandshakeMetrics {
+    /**
+     * Number of buckets in each histogram. Bucket 0 holds intervals shorter than one second, bucket
+     * {@code i} holds intervals from {@code 2^(i-1)} up to {@code 2^i} seconds, and the last
+     * bucket holds everything longer.
+     */
+    public static final int HISTOGRAM_BUCKETS = 12;
+    /** Age after which WireGuard refuses to use a session at all. */
+    public static final long REJECT_AFTER_TIME_MILLIS = 180_000;
+    /** Time after which WireGuard retries a handshake that got no response. */
+    public static final long REKEY_TIMEOUT_MILLIS = 5_000;
+
+    private final Map<String, TunnelState> tunnels = new HashMap<>();
+
+    /**
+     * Get the histogram bucket that an interval falls into.
+     *
+     * @param millis The length of the interval, in milliseconds.
+     * @return The index of the bucket, between 0 and {@link #HISTOGRAM_BUCKETS} - 1.
+     */
+    public static int bucketFor(final long millis) {
+        final long seconds = millis / 1000;
+        if (seconds <= 0)
+            return 0;
+        return Math.min(64 - Long.numberOfLeadingZeros(seconds), HISTOGRAM_BUCKETS - 1);
+    }
+
+    /**
+     * Get the metrics of every peer of a tunnel.
+     *
+     * @param tunnelName The name of the tunnel.
+     * @return A snapshot of the metrics of each peer that has been observed since the tunnel came up.
+     */
+    public synchronized Map<Key, PeerMetrics> getMetrics(final String tunnelName) {
+        final TunnelState tunnel = tunnels.get(tunnelName);
+        if (tunnel == null)
+            return Collections.emptyMap();
+        final Map<Key, PeerMetrics> metrics = new HashMap<>(tunnel.peers.size());
+        for (final Map.Entry<Key, PeerState> entry : tunnel.peers.entrySet())
+            metrics.put(entry.getKey(), entry.getValue().snapshot());
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * Get the metrics of a single peer of a tunnel.
+     *
+     * @param tunnelName The name of the tunnel.
+     * @param peer       The public key of the peer.
+     * @return A snapshot of the metrics of the peer, or null if it has not been observed.
+     */
+    @Nullable
+    public synchronized PeerMetrics getMetrics(final String tunnelName, final Key peer) {
+        final TunnelState tunnel = tunnels.get(tunnelName);
+        if (tunnel == null)
+            return null;
+        final PeerState state = tunnel.peers.get(peer);
+        return state == null ? null : state.snapshot();
+    }
+
+    /**
+     * Fold the latest statistics of a running tunnel into its metrics.
+     *
+     * @param tunnelName     The name of the tunnel.
+     * @param statistics     The statistics that were just read from the tunnel.
+     * @param nowEpochMillis The current wall clock time, in epoch milliseconds.
+     */
+    public synchronized void observe(final String tunnelName, final Statistics statistics, final long nowEpochMillis) {
+        final TunnelState tunnel = tunnels.get(tunnelName);
+        if (tunnel == null)
+            return;
+        for (final Key key : statistics.peers()) {
+            final PeerStats stats = statistics.peer(key);
+            if (stats == null)
+                continue;
+            PeerState state = tunnel.peers.get(key);
+            if (state == null) {
+                state = new PeerState(tunnel.upEpochMillis);
+                tunnel.peers.put(key, state);
+            }
+            state.observe(stats, nowEpochMillis);
+        }
+    }
+
+    /**
+     * Note that a running tunnel has just been moved to a different underlying network. The next
+     * handshake of each peer that is seen after this time completes its recovery.
+     *
+     * @param tunnelName     The name of the tunnel.
+     * @param nowEpochMillis The time at which the network changed, in epoch milliseconds.
+     */
+    public synchronized void onNetworkChange(final String tunnelName, final long nowEpochMillis) {
+        final TunnelState tunnel = tunnels.get(tunnelName);
+        if (tunnel == null)
+            return;
+        for (final PeerState state : tunnel.peers.values())
+            state.networkChangeEpochMillis = nowEpochMillis;
+    }
+
+    /**
+     * Forget the metrics of a tunnel once it has gone down.
+     *
+     * @param tunnelName The name of the tunnel.
+     */
+    public synchronized void onTunnelDown(final String tunnelName) {
+        tunnels.remove(tunnelName);
+    }
+
+    /**
+     * Start tracking a tunnel that has just come up, discarding anything recorded for a previous
+     * session of the same tunnel.
+     *
+     * @param tunnelName     The name of the tunnel.
+     * @param nowEpochMillis The time at which the tunnel came up, in epoch milliseconds.
+     */
+    public synchronized void onTunnelUp(final String tunnelName, final long nowEpochMillis) {
+        tunnels.put(tunnelName, new TunnelState(nowEpochMillis));
+    }
+
+    /**
+     * The handshake metrics of a single peer.
+     *
+     * @param timeToFirstHandshakeMillis Time from the tunnel coming up until the first handshake
+     *                                   completed, or -1 if there has not been one yet.
+     * @param latestHandshakeAgeMillis   Age of the latest handshake at the last observation, or -1
+     *                                   if there has not been one yet.
+     * @param rekeyIntervalHistogram     Counts of intervals between consecutive handshakes, bucketed
+     *                                   as described by {@link #bucketFor(long)}.
+     * @param rekeys                     Number of handshakes after the first one.
+     * @param missedRekeys               Number of times a session in use expired and was not
+     *                                   replaced within {@link #REKEY_TIMEOUT_MILLIS}.
+     * @param staleMillis                Total time the peer was sent traffic without a valid session.
+     * @param networkRecoveryMillis      Time from the latest change of the underlying network until
+     *                                   the next handshake completed, or -1 if there has not been
+     *                                   one yet.
+     */
+    public record PeerMetrics(long timeToFirstHandshakeMillis, long latestHandshakeAgeMillis,
+                              long[] rekeyIntervalHistogram, long rekeys, long missedRekeys,
+                              long staleMillis, long networkRecoveryMillis) {
+    }
+
+    private static final class TunnelState {
+        private final Map<Key, PeerState> peers = new HashMap<>();
+        private final long upEpochMillis;
+
+        private TunnelState(final long upEpochMillis) {
+            this.upEpochMillis = upEpochMillis;
+        }
+    }
+
+    private static final class PeerState {
+        private final long[] histogram = new long[HISTOGRAM_BUCKETS];
+        private final long upEpochMillis;
+        private long firstHandshakeMillis = -1;
+        private long lastHandshakeEpochMillis;
+        private long lastObservationEpochMillis;
+        private long lastTxBytes = -1;
+        private long gapStaleMillis;
+        private long latestAgeMillis = -1;
+        private long missedRekeys;
+        private long networkChangeEpochMillis;
+        private long networkRecoveryMillis = -1;
+        private long rekeys;
+        private long staleMillis;
+
+        private PeerState(final long upEpochMillis) {
+            this.upEpochMillis = upEpochMillis;
+            lastObservationEpochMillis = upEpochMillis;
+        }
+
+        private void observe(final PeerStats stats, final long nowEpochMillis) {
+            final long handshake = stats.latestHandshakeEpochMillis();
+            final boolean sending = lastTxBytes >= 0 && stats.txBytes() > lastTxBytes;
+            lastTxBytes = stats.txBytes();
+
+            // Until the first handshake there is no session at all; after that, each session is
+            // usable until it expires or a newer handshake replaces it.
+            final long validUntil = lastHandshakeEpochMillis == 0 ? upEpochMillis
+                    : lastHandshakeEpochMillis + REJECT_AFTER_TIME_MILLIS;
+            final long staleFrom = Math.max(validUntil, lastObservationEpochMillis);
+            final long staleTo = handshake > lastHandshakeEpochMillis ? Math.min(handshake, nowEpochMillis) : nowEpochMillis;
+            if (sending && staleTo > staleFrom) {
+                staleMillis += staleTo - staleFrom;
+                gapStaleMillis += staleTo - staleFrom;
+            }
+
+            if (handshake > lastHandshakeEpochMillis) {
+                if (lastHandshakeEpochMillis == 0) {
+                    firstHandshakeMillis = Math.max(handshake - upEpochMillis, 0);
+                } else {
+                    final long interval = handshake - lastHandshakeEpochMillis;
+                    ++histogram[bucketFor(interval)];
+                    ++rekeys;
+                    if (gapStaleMillis > REKEY_TIMEOUT_MILLIS)
+                        ++missedRekeys;
+                }
+                lastHandshakeEpochMillis = handshake;
+                gapStaleMillis = 0;
+            }
+            if (networkChangeEpochMillis != 0 && lastHandshakeEpochMillis >= networkChangeEpochMillis) {
+                networkRecoveryMillis = lastHandshakeEpochMillis - networkChangeEpochMillis;
+                networkChangeEpochMillis = 0;
+            }
+            latestAgeMillis = lastHandshakeEpochMillis == 0 ? -1 : Math.max(nowEpochMillis - lastHandshakeEpochMillis, 0);
+            lastObservationEpochMillis = nowEpochMillis;
+        }
+
+        private PeerMetrics snapshot() {
+            return new PeerMetrics(firstHandshakeMillis, latestAgeMillis, Arrays.copyOf(histogram, histogram.length),
+                    rekeys, missedRekeys, staleMillis, networkRecoveryMillis);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import android.content.Context;
+
+import com.wireguard.android.util.SharedLibraryLoader;
+import com.wireguard.config.Config;
+import com.wireguard.config.InetEndpoint;
+import com.wireguard.config.Peer;
+import com.wireguard.config.UapiWriter;
+import com.wireguard.util.NonNullForAll;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link LatencyProber.Probe} that measures the time a real WireGuard handshake with a peer
+ * takes. Each probe runs on its own short-lived wireguard-go device whose sockets are kept out of
+ * any running VPN, so it works with either backend. Since the peer roams to the probe's socket, it
+ * must not be used on tunnels that are running.
+ */
+@NonNullForAll
+public final class HandshakeProbe implements LatencyProber.Probe {
+    public HandshakeProbe(final Context context) {
+        SharedLibraryLoader.loadSharedLibrary(context, "wg-go");
+    }
+
+    private static native long wgProbeHandshake(ByteBuffer settings, int settingsLength, int timeoutMillis);
+
+    @Override
+    public long probe(final Config config, final Peer peer, final int timeoutMillis) {
+        final InetEndpoint endpoint = peer.getEndpoint().flatMap(InetEndpoint::getResolved).orElse(null);
+        if (endpoint == null)
+            return LatencyProber.UNREACHABLE;
+        final ByteBuffer settings = UapiWriter.encodeHandshake(config, peer);
+        final long nanos;
+        try {
+            nanos = wgProbeHandshake(settings, settings.limit(), timeoutMillis);
+        } finally {
+            UapiWriter.wipe(settings);
+        }
+        return nanos < 0 ? LatencyProber.UNREACHABLE : nanos;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.wireguard.config.Config;
+import com.wireguard.config.Peer;
+import com.wireguard.util.NonNullForAll;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Measures the latency of the peers of several tunnels in parallel, in order to pick the fastest
+ * one. Every peer with an endpoint is probed, with no more than a fixed number of probes in flight
+ * at once, and a tunnel's latency is that of its fastest peer. Results are cached per tunnel for a
+ * while, as long as its configuration does not change.
+ */
+@NonNullForAll
+public final class LatencyProber {
+    /**
+     * Latency reported for tunnels that could not be reached at all.
+     */
+    public static final long UNREACHABLE = -1;
+    private static final String TAG = "WireGuard/LatencyProber";
+
+    private final Map<String, CacheEntry> cache = new HashMap<>();
+    private final long cacheMillis;
+    private final int maxConcurrency;
+    private final Probe probe;
+
+    /**
+     * Public constructor for LatencyProber.
+     *
+     * @param probe          The way in which to measure the latency of a single peer.
+     * @param maxConcurrency The maximum number of probes to run at the same time.
+     * @param cacheMillis    How long a measurement stays valid.
+     */
+    public LatencyProber(final Probe probe, final int maxConcurrency, final long cacheMillis) {
+        if (maxConcurrency <= 0)
+            throw new IllegalArgumentException("Concurrency must be positive");
+        this.probe = probe;
+        this.maxConcurrency = maxConcurrency;
+        this.cacheMillis = cacheMillis;
+    }
+
+    /**
+     * Pick the candidate with the lowest latency.
+     *
+     * @param candidates    The configurations of the tunnels to choose from, by tunnel name.
+     * @param timeoutMillis How long to wait for each peer to answer.
+     * @param excluded      Names of candidates that must not be probed now, for instance because
+     *                      they are running. They are still considered if they have a cached result.
+     * @return The name of the fastest reachable candidate, or null if none could be reached.
+     */
+    @Nullable
+    public String fastest(final Map<String, Config> candidates, final int timeoutMillis,
+                          final Collection<String> excluded) throws InterruptedException {
+        String fastest = null;
+        long fastestNanos = Long.MAX_VALUE;
+        for (final Map.Entry<String, Long> entry : probeAll(candidates, timeoutMillis, excluded).entrySet()) {
+            final long nanos = entry.getValue();
+            if (nanos != UNREACHABLE && nanos < fastestNanos) {
+                fastest = entry.getKey();
+                fastestNanos = nanos;
+            }
+        }
+        return fastest;
+    }
+
+    /**
+     * Forget every cached measurement.
+     */
+    public synchronized void invalidate() {
+        cache.clear();
+    }
+
+    /**
+     * Measure the latency of several tunnels, reusing cached measurements where possible.
+     *
+     * @param candidates    The configurations of the tunnels to measure, by tunnel name.
+     * @param timeoutMillis How long to wait for each peer to answer.
+     * @param excluded      Names of candidates that must not be probed now. They are only included
+     *                      in the result if they have a cached measurement.
+     * @return The round trip time of each tunnel in nanoseconds, or {@link #UNREACHABLE}.
+     */
+    public Map<String, Long> probeAll(final Map<String, Config> candidates, final int timeoutMillis,
+                                      final Collection<String> excluded) throws InterruptedException {
+        final Map<String, Long> results = new HashMap<>(candidates.size());
+        final List<PeerProbe> pending = new ArrayList<>();
+        synchronized (this) {
+            final long now = SystemClock.elapsedRealtime();
+            for (final Map.Entry<String, Config> candidate : candidates.entrySet()) {
+                final CacheEntry cached = cache.get(candidate.getKey());
+                if (cached != null && cached.expiresAt > now && cached.config.equals(candidate.getValue())) {
+                    results.put(candidate.getKey(), cached.nanos);
+                    continue;
+                }
+                if (excluded.contains(candidate.getKey()))
+                    continue;
+                for (final Peer peer : candidate.getValue().getPeers()) {
+                    if (peer.getEndpoint().isPresent())
+                        pending.add(new PeerProbe(candidate.getKey(), candidate.getValue(), peer, timeoutMillis));
+                }
+                results.put(candidate.getKey(), UNREACHABLE);
+            }
+        }
+        if (pending.isEmpty())
+            return results;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxConcurrency, pending.size()));
+        final List<Future<Long>> futures;
+        try {
+            futures = executor.invokeAll(pending);
+        } finally {
+            executor.shutdownNow();
+        }
+        for (int i = 0; i < pending.size(); ++i) {
+            final String name = pending.get(i).tunnelName;
+            long nanos;
+            try {
+                nanos = futures.get(i).get();
+            } catch (final ExecutionException e) {
+                Log.w(TAG, "Unable to probe " + name, e.getCause());
+                nanos = UNREACHABLE;
+            }
+            final long best = results.get(name);
+            if (nanos != UNREACHABLE && (best == UNREACHABLE || nanos < best))
+                results.put(name, nanos);
+        }
+
+        synchronized (this) {
+            final long expiresAt = SystemClock.elapsedRealtime() + cacheMillis;
+            for (final Map.Entry<String, Long> result : results.entrySet()) {
+                final Config config = candidates.get(result.getKey());
+                if (config != null && !excluded.contains(result.getKey()))
+                    cache.put(result.getKey(), new CacheEntry(config, result.getValue(), expiresAt));
+            }
+        }
+        return Collections.unmodifiableMap(results);
+    }
+
+    /**
+     * A way of measuring the latency of a single peer.
+     */
+    public interface Probe {
+        /**
+         * Measure the round trip time to a peer. This is called from worker threads, and may block.
+         *
+         * @param config        The configuration of the tunnel the peer belongs to.
+         * @param peer          The peer to probe, which has an endpoint.
+         * @param timeoutMillis How long to wait for an answer.
+         * @return The round trip time in nanoseconds, or {@link #UNREACHABLE} if the peer did not
+         * answer in time.
+         */
+        long probe(Config config, Peer peer, int timeoutMillis) throws Exception;
+    }
+
+    private record CacheEntry(Config config, long nanos, long expiresAt) {
+    }
+
+    private final class PeerProbe implements Callable<Long> {
+        private final Config config;
+        private final Peer peer;
+        private final String tunnelName;
+        private final int timeoutMillis;
+
+        private PeerProbe(final String tunnelName, final Config config, final Peer peer, final int timeoutMillis) {
+            this.tunnelName = tunnelName;
+            this.config = config;
+            this.peer = peer;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public Long call() throws Exception {
+            return probe.probe(config, peer, timeoutMillis);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.android.backend.Statistics.PeerStats;
+import com.wireguard.crypto.Key;
+import com.wireguard.crypto.KeyFormatException;
+import com.wireguard.util.NonNullForAll;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Persistent history of the traffic of each tunnel and each of its peers.
+ *
+ * <p>Every series lives in its own fixed-size, memory-mapped file holding one ring of slots per
+ * {@link Resolution}. A slot is addressed directly by its period number modulo the ring size and
+ * remembers which period it holds, so recording a sample writes three slots in place without any
+ * allocation, and stale slots are simply overwritten once the ring wraps around. The last counters
+ * seen are kept in the file too, so deltas stay correct across process restarts while the tunnel
+ * keeps running. They are cleared by {@link #startSession(String)} whenever the tunnel comes up
+ * again, and counters that go backwards anyway are treated as a fresh start from zero.
+ *
+ * <p>Writes go to the page cache and survive the process dying; they are only forced to storage by
+ * {@link #flush()} and {@link #close()}. Periods are aligned to UTC.
+ */
+@NonNullForAll
+public final class TrafficHistory implements Closeable {
+    private static final int HEADER_RX = 8;
+    private static final int HEADER_SIZE = 32;
+    private static final int HEADER_TX = 16;
+    private static final int MAGIC = 0x57475448; // "WGTH"
+    private static final int SLOT_SIZE = 24;
+    private static final String TOTAL_SERIES = "total";
+    private static final int VERSION = 1;
+    private final File directory;
+    private final Map<String, TunnelSeries> tunnels = new HashMap<>();
+
+    /**
+     * Public constructor for TrafficHistory.
+     *
+     * @param directory The directory in which to keep the history files. It is created on demand.
+     */
+    public TrafficHistory(final File directory) {
+        this.directory = directory;
+    }
+
+    private static long fileSize() {
+        long size = HEADER_SIZE;
+        for (final Resolution resolution : Resolution.values())
+            size += (long) resolution.slots * SLOT_SIZE;
+        return size;
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+        tunnels.clear();
+    }
+
+    /**
+     * Forget the whole history of a tunnel.
+     *
+     * @param tunnelName The name of the tunnel.
+     */
+    public synchronized void delete(final String tunnelName) {
+        tunnels.remove(tunnelName);
+        final File dir = directoryFor(tunnelName);
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files)
+                // noinspection ResultOfMethodCallIgnored
+                file.delete();
+        }
+        // noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    private File directoryFor(final String tunnelName) {
+        return new File(directory, tunnelName + ".history");
+    }
+
+    /**
+     * Force all recorded samples out to storage.
+     */
+    public synchronized void flush() {
+        for (final TunnelSeries tunnel : tunnels.values()) {
+            tunnel.total.buffer.force();
+            for (final Series series : tunnel.peers.values())
+                series.buffer.force();
+        }
+    }
+
+    /**
+     * Get the traffic of a tunnel or one of its peers, one sample per period of the given
+     * resolution. Periods in which nothing was recorded, or that have already been overwritten,
+     * are left out.
+     *
+     * @param tunnelName      The name of the tunnel.
+     * @param peer            The peer to query, or null for the tunnel as a whole.
+     * @param resolution      The length of each period.
+     * @param fromEpochMillis The start of the range, inclusive.
+     * @param toEpochMillis   The end of the range, exclusive.
+     * @return The samples in the range, oldest first.
+     */
+    public synchronized List<Sample> range(final String tunnelName, @Nullable final Key peer,
+                                           final Resolution resolution, final long fromEpochMillis,
+                                           final long toEpochMillis) throws IOException {
+        final Series series = seriesFor(tunnelName, peer, false);
+        if (series == null)
+            return Collections.emptyList();
+        final List<Sample> samples = new ArrayList<>();
+        final long last = (toEpochMillis - 1) / resolution.periodMillis;
+        for (long period = firstPeriod(resolution, fromEpochMillis, last); period <= last; ++period) {
+            final int slot = series.slotOffset(resolution, period);
+            if (series.buffer.getLong(slot) != period + 1)
+                continue;
+            samples.add(new Sample(period * resolution.periodMillis, series.buffer.getLong(slot + 8),
+                    series.buffer.getLong(slot + 16)));
+        }
+        return samples;
+    }
+
+    private static long firstPeriod(final Resolution resolution, final long fromEpochMillis, final long last) {
+        return Math.max(Math.max(fromEpochMillis, 0) / resolution.periodMillis, last - resolution.slots + 1);
+    }
+
+    /**
+     * Fold the latest statistics of a running tunnel into its history.
+     *
+     * @param tunnelName     The name of the tunnel.
+     * @param statistics     The statistics that were just read from the tunnel.
+     * @param nowEpochMillis The current wall clock time, in epoch milliseconds.
+     */
+    public synchronized void record(final String tunnelName, final Statistics statistics,
+                                    final long nowEpochMillis) throws IOException {
+        final Key[] peers = statistics.peers();
+        if (peers.length == 0)
+            return;
+        long rx = 0;
+        long tx = 0;
+        for (final Key key : peers) {
+            final PeerStats stats = statistics.peer(key);
+            final Series series = seriesFor(tunnelName, key, true);
+            if (stats == null || series == null)
+                continue;
+            final long peerRx = series.advance(HEADER_RX, stats.rxBytes());
+            final long peerTx = series.advance(HEADER_TX, stats.txBytes());
+            series.add(peerRx, peerTx, nowEpochMillis);
+            rx += peerRx;
+            tx += peerTx;
+        }
+        // The tunnel total is the sum of the peers' deltas, so that peers coming and going never
+        // look like a counter reset.
+        final Series total = seriesFor(tunnelName, null, true);
+        if (total != null && (rx != 0 || tx != 0))
+            total.add(rx, tx, nowEpochMillis);
+    }
+
+    /**
+     * Move the history of a tunnel to a new name.
+     *
+     * @param name        The current name of the tunnel.
+     * @param replacement The new name of the tunnel.
+     */
+    public synchronized void rename(final String name, final String replacement) throws IOException {
+        tunnels.remove(name);
+        final File dir = directoryFor(name);
+        if (dir.exists() && !dir.renameTo(directoryFor(replacement)))
+            throw new IOException("Unable to rename traffic history of " + name);
+    }
+
+    /**
+     * Forget the last counters seen for a tunnel and all of its peers, so that the first reading
+     * after the tunnel comes up again counts in full instead of against counters of an earlier
+     * session.
+     *
+     * @param tunnelName The name of the tunnel that is coming up.
+     */
+    public synchronized void startSession(final String tunnelName) throws IOException {
+        final File[] files = directoryFor(tunnelName).listFiles();
+        if (files == null)
+            return;
+        for (final File file : files) {
+            final String name = file.getName();
+            if (!name.endsWith(".ring"))
+                continue;
+            final String series = name.substring(0, name.length() - ".ring".length());
+            final Key peer;
+            try {
+                peer = TOTAL_SERIES.equals(series) ? null : Key.fromHex(series);
+            } catch (final KeyFormatException ignored) {
+                continue;
+            }
+            final Series opened = seriesFor(tunnelName, peer, false);
+            if (opened != null)
+                opened.resetCounters();
+        }
+    }
+
+    @Nullable
+    private Series seriesFor(final String tunnelName, @Nullable final Key peer, final boolean create)
+            throws IOException {
+        TunnelSeries tunnel = tunnels.get(tunnelName);
+        if (tunnel == null) {
+            final File dir = directoryFor(tunnelName);
+            if (!create && !dir.isDirectory())
+                return null;
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Unable to create traffic history of " + tunnelName);
+            tunnel = new TunnelSeries(Series.open(new File(dir, TOTAL_SERIES + ".ring")));
+            tunnels.put(tunnelName, tunnel);
+        }
+        if (peer == null)
+            return tunnel.total;
+        Series series = tunnel.peers.get(peer);
+        if (series == null) {
+            final File file = new File(directoryFor(tunnelName), peer.toHex() + ".ring");
+            if (!create && !file.isFile())
+                return null;
+            series = Series.open(file);
+            tunnel.peers.put(peer, series);
+        }
+        return series;
+    }
+
+    /**
+     * Get the total traffic of a tunnel or one of its peers over a range, as recorded at the given
+     * resolution. Periods that are only partly inside the range count in full.
+     *
+     * @param tunnelName      The name of the tunnel.
+     * @param peer            The peer to query, or null for the tunnel as a whole.
+     * @param resolution      The resolution to add up. Coarser resolutions reach further back.
+     * @param fromEpochMillis The start of the range, inclusive.
+     * @param toEpochMillis   The end of the range, exclusive.
+     * @return The traffic in the range, with {@link Sample#startEpochMillis()} set to the start of
+     * the range.
+     */
+    public synchronized Sample total(final String tunnelName, @Nullable final Key peer,
+                                     final Resolution resolution, final long fromEpochMillis,
+                                     final long toEpochMillis) throws IOException {
+        long rx = 0;
+        long tx = 0;
+        final Series series = seriesFor(tunnelName, peer, false);
+        if (series != null) {
+            final long last = (toEpochMillis - 1) / resolution.periodMillis;
+            for (long period = firstPeriod(resolution, fromEpochMillis, last); period <= last; ++period) {
+                final int slot = series.slotOffset(resolution, period);
+                if (series.buffer.getLong(slot) != period + 1)
+                    continue;
+                rx += series.buffer.getLong(slot + 8);
+                tx += series.buffer.getLong(slot + 16);
+            }
+        }
+        return new Sample(fromEpochMillis, rx, tx);
+    }
+
+    /**
+     * The granularity at which traffic is kept, and for how long.
+     */
+    public enum Resolution {
+        /** One slot per minute, for a day. */
+        MINUTE(60_000L, 24 * 60),
+        /** One slot per hour, for 62 days. */
+        HOUR(60 * 60_000L, 62 * 24),
+        /** One slot per day, for four years. */
+        DAY(24 * 60 * 60_000L, 4 * 366);
+
+        private final long periodMillis;
+        private final int slots;
+
+        Resolution(final long periodMillis, final int slots) {
+            this.periodMillis = periodMillis;
+            this.slots = slots;
+        }
+
+        public long getPeriodMillis() {
+            return periodMillis;
+        }
+
+        public int getSlots() {
+            return slots;
+        }
+    }
+
+    /**
+     * Traffic recorded during a period.
+     *
+     * @param startEpochMillis The start of the period.
+     * @param rxBytes          The number of bytes received.
+     * @param txBytes          The number of bytes transmitted.
+     */
+    public record Sample(long startEpochMillis, long rxBytes, long txBytes) {
+    }
+
+    private static final class TunnelSeries {
+        private final Map<Key, Series> peers = new HashMap<>();
+        private final Series total;
+
+        private TunnelSeries(final Series total) {
+            this.total = total;
+        }
+    }
+
+    private static final class Series {
+        private final MappedByteBuffer buffer;
+        private final int[] ringOffsets = new int[Resolution.values().length];
+
+        private Series(final MappedByteBuffer buffer) {
+            this.buffer = buffer;
+            int offset = HEADER_SIZE;
+            for (final Resolution resolution : Resolution.values()) {
+                ringOffsets[resolution.ordinal()] = offset;
+                offset += resolution.slots * SLOT_SIZE;
+            }
+        }
+
+        private static Series open(final File file) throws IOException {
+            final long size = fileSize();
+            try (final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                 final FileChannel channel = raf.getChannel()) {
+                final boolean valid = channel.size() == size;
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                if (!valid || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                    for (int i = 0; i < size; i += 8)
+                        buffer.putLong(i, 0);
+                    buffer.putInt(0, MAGIC);
+                    buffer.putInt(4, VERSION);
+                }
+                return new Series(buffer);
+            }
+        }
+
+        private void add(final long rx, final long tx, final long nowEpochMillis) {
+            if (rx == 0 && tx == 0)
+                return;
+            for (final Resolution resolution : Resolution.values()) {
+                final long period = nowEpochMillis / resolution.periodMillis;
+                final int slot = slotOffset(resolution, period);
+                if (buffer.getLong(slot) != period + 1) {
+                    buffer.putLong(slot, period + 1);
+                    buffer.putLong(slot + 8, 0);
+                    buffer.putLong(slot + 16, 0);
+                }
+                buffer.putLong(slot + 8, buffer.getLong(slot + 8) + rx);
+                buffer.putLong(slot + 16, buffer.getLong(slot + 16) + tx);
+            }
+        }
+
+        private long advance(final int headerOffset, final long counter) {
+            final long last = buffer.getLong(headerOffset);
+            buffer.putLong(headerOffset, counter);
+            return counter >= last ? counter - last : counter;
+        }
+
+        private void resetCounters() {
+            buffer.putLong(HEADER_RX, 0);
+            buffer.putLong(HEADER_TX, 0);
+        }
+
+        private int slotOffset(final Resolution resolution, final long period) {
+            return ringOffsets[resolution.ordinal()] + (int) (period % resolution.slots) * SLOT_SIZE;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.DnsResolver;
+import android.net.Network;
+import android.os.Build;
+import android.os.CancellationSignal;
+
+import com.wireguard.android.backend.EndpointRefresher.Resolution;
+import com.wireguard.util.NonNullForAll;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import androidx.annotation.Nullable;
+
+/**
+ * An {@link EndpointRefresher.Resolver} that reports how long each answer may be cached. Since
+ * {@link InetAddress} hides the TTL, on Android 10 and later this sends raw queries through
+ * {@link DnsResolver} and reads the TTL from the answer, preferring IPv4 like
+ * {@link com.wireguard.config.InetEndpoint} does. Older versions fall back to {@link InetAddress}
+ * without a TTL. Hosts are looked up on the network underneath the VPN rather than the default
+ * network, which is the VPN itself, so that a server that has moved can still be found while the
+ * tunnel to it is dead.
+ */
+@NonNullForAll
+public final class TtlResolver implements EndpointRefresher.Resolver {
+    private static final int QUERY_TIMEOUT_SECONDS = 10;
+    private static final int TYPE_CNAME = 5;
+
+    @Nullable private final ConnectivityManager connectivityManager;
+
+    /**
+     * Public constructor for TtlResolver.
+     *
+     * @param context An Android {@link Context}
+     */
+    public TtlResolver(final Context context) {
+        connectivityManager = context.getSystemService(ConnectivityManager.class);
+    }
+
+    /**
+     * Read the first address of the given type out of a DNS response, along with the lowest TTL of
+     * the records leading to it.
+     *
+     * @param message The raw DNS response.
+     * @param type    The record type that was queried, {@link DnsResolver#TYPE_A} or
+     *                {@link DnsResolver#TYPE_AAAA}.
+     * @return The answer, or null if the response has no record of that type.
+     */
+    @Nullable
+    static Resolution parse(final byte[] message, final int type) throws IOException {
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(message);
+            final int questions = buffer.getShort(4) & 0xffff;
+            final int answers = buffer.getShort(6) & 0xffff;
+            buffer.position(12);
+            for (int i = 0; i < questions; ++i) {
+                skipName(buffer);
+                buffer.position(buffer.position() + 4);
+            }
+            InetAddress address = null;
+            long ttl = Long.MAX_VALUE;
+            for (int i = 0; i < answers; ++i) {
+                skipName(buffer);
+                final int recordType = buffer.getShort() & 0xffff;
+                buffer.getShort();
+                final long recordTtl = buffer.getInt() & 0xffffffffL;
+                final int length = buffer.getShort() & 0xffff;
+                final int end = buffer.position() + length;
+                if (recordType == type || recordType == TYPE_CNAME)
+                    ttl = Math.min(ttl, recordTtl);
+                if (recordType == type && address == null) {
+                    final byte[] raw = new byte[length];
+                    buffer.get(raw);
+                    address = InetAddress.getByAddress(raw);
+                }
+                buffer.position(end);
+            }
+            return address == null ? null : new Resolution(address, ttl);
+        } catch (final BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException |
+                       UnknownHostException e) {
+            throw new IOException("Malformed DNS response", e);
+        }
+    }
+
+    private static void skipName(final ByteBuffer buffer) {
+        for (;;) {
+            final int length = buffer.get() & 0xff;
+            if (length == 0)
+                return;
+            if ((length & 0xc0) == 0xc0) {
+                buffer.get();
+                return;
+            }
+            buffer.position(buffer.position() + length);
+        }
+    }
+
+    @Nullable
+    private static Resolution query(@Nullable final Network network, final String host, final int type)
+            throws IOException {
+        final CompletableFuture<Resolution> future = new CompletableFuture<>();
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        DnsResolver.getInstance().rawQuery(network, host, DnsResolver.CLASS_IN, type, DnsResolver.FLAG_EMPTY,
+                Runnable::run, cancellationSignal, new DnsResolver.Callback<byte[]>() {
+                    @Override
+                    public void onAnswer(final byte[] answer, final int rcode) {
+                        try {
+                            future.complete(rcode == 0 ? parse(answer, type) : null);
+                        } catch (final IOException e) {
+                            future.completeExceptionally(e);
+                        }
+                    }
+
+                    @Override
+                    public void onError(final DnsResolver.DnsException error) {
+                        future.completeExceptionally(error);
+                    }
+                });
+        try {
+            return future.get(QUERY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            cancellationSignal.cancel();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while resolving " + host, e);
+        } catch (final TimeoutException e) {
+            cancellationSignal.cancel();
+            throw new IOException("Timed out resolving " + host, e);
+        } catch (final ExecutionException e) {
+            throw new IOException("Unable to resolve " + host, e.getCause());
+        }
+    }
+
+    @Nullable
+    @Override
+    public Resolution resolve(final String host) throws IOException {
+        final Network network = connectivityManager == null ? null
+                : ConnectivityWatcher.underlyingNetwork(connectivityManager);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            final Resolution resolution = query(network, host, DnsResolver.TYPE_A);
+            return resolution != null ? resolution : query(network, host, DnsResolver.TYPE_AAAA);
+        }
+        final InetAddress[] candidates;
+        try {
+            candidates = network != null ? network.getAllByName(host) : InetAddress.getAllByName(host);
+        } catch (final UnknownHostException e) {
+            return null;
+        }
+        InetAddress address = candidates[0];
+        for (final InetAddress candidate : candidates) {
+            if (candidate instanceof Inet4Address) {
+                address = candidate;
+                break;
+            }
+        }
+        return new Resolution(address, -1);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.crypto.Key;
+import com.wireguard.crypto.KeyFormatException;
+import com.wireguard.util.NonNullForAll;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Something that happened to a running tunnel, as reported by the device itself the moment it
+ * happened.
+ *
+ * @param type        What happened.
+ * @param tunnelName  The name of the tunnel it happened to.
+ * @param epochMillis When it happened, in epoch milliseconds.
+ * @param peer        The peer it happened to, or null for events of the whole device.
+ * @param detail      For {@link Type#HANDSHAKE_FAILED}, the number of the next attempt or "giving
+ *                    up"; for {@link Type#ENDPOINT_CHANGED}, the new endpoint; otherwise empty.
+ */
+@NonNullForAll
+public record TunnelEvent(Type type, String tunnelName, long epochMillis, @Nullable Key peer, String detail) {
+    /**
+     * Parse an event in the form in which libwg-go hands it over: the type code, tunnel name,
+     * time, hex public key of the peer and detail, separated by tabs.
+     *
+     * @param line The event as a line of text.
+     * @return The event, or null if it is malformed or of an unknown type.
+     */
+    @Nullable
+    static TunnelEvent parse(final String line) {
+        final String[] parts = line.split("\t", 5);
+        if (parts.length != 5)
+            return null;
+        try {
+            final int code = Integer.parseInt(parts[0]);
+            if (code < 1 || code > Type.values().length)
+                return null;
+            final Key peer = parts[3].isEmpty() ? null : Key.fromHex(parts[3]);
+            return new TunnelEvent(Type.values()[code - 1], parts[1], Long.parseLong(parts[2]), peer, parts[4]);
+        } catch (final NumberFormatException | KeyFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The kinds of {@link TunnelEvent}, in the order of their codes in libwg-go.
+     */
+    public enum Type {
+        DEVICE_UP,
+        DEVICE_DOWN,
+        HANDSHAKE_COMPLETED,
+        HANDSHAKE_FAILED,
+        ENDPOINT_CHANGED
+    }
+
+    /**
+     * Listener for {@link TunnelEvent}s.
+     */
+    public interface Listener {
+        /**
+         * Called for every event, in the order in which they happened, on the single thread that
+         * delivers them. It should not block.
+         *
+         * @param event The event.
+         */
+        void onTunnelEvent(TunnelEvent event);
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+import com.wireguard.android.backend.Tunnel.State;
+import com.wireguard.util.NonNullForAll;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Records how long each phase of a tunnel state transition takes. Every transition performed by a
+ * {@link Backend} is split into {@link Phase}s, each of which is also emitted as an
+ * {@link android.os.Trace} section. A backend that changes the state of several tunnels in one go
+ * records them as a single transition, since its phases are not spent on any one tunnel alone.
+ * Completed transitions are handed to registered {@link Listener}s and the most recent ones are
+ * kept for later export.
+ */
+@NonNullForAll
+public final class TunnelTracer {
+    public static final int DEFAULT_CAPACITY = 32;
+    // Longer names make Trace.beginSection throw.
+    private static final int MAX_SECTION_NAME_LENGTH = 127;
+
+    private final Transition[] history;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Object lock = new Object();
+    private int count;
+    private int head;
+
+    public TunnelTracer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Public constructor for TunnelTracer.
+     *
+     * @param capacity The number of completed transitions to keep in the history.
+     */
+    public TunnelTracer(final int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+        history = new Transition[capacity];
+    }
+
+    public void addListener(final Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Get the most recently completed transitions.
+     *
+     * @return The retained transitions, oldest first.
+     */
+    public List<Transition> getHistory() {
+        synchronized (lock) {
+            final List<Transition> transitions = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i)
+                transitions.add(history[(head - count + i + history.length) % history.length]);
+            return Collections.unmodifiableList(transitions);
+        }
+    }
+
+    Span begin(final Tunnel tunnel, final State state) {
+        return new Span(Collections.singletonList(new Change(tunnel.getName(), state)));
+    }
+
+    Span begin(final List<Change> changes) {
+        return new Span(Collections.unmodifiableList(new ArrayList<>(changes)));
+    }
+
+    private void record(final Transition transition) {
+        synchronized (lock) {
+            history[head] = transition;
+            head = (head + 1) % history.length;
+            if (count < history.length)
+                ++count;
+        }
+        for (final Listener listener : listeners)
+            listener.onTransitionFinished(transition);
+    }
+
+    /**
+     * The distinct steps a {@link Backend} goes through while changing the state of a tunnel. Not
+     * every backend goes through every phase.
+     */
+    public enum Phase {
+        /** Waiting for the {@link android.net.VpnService} to be started by the system. */
+        VPN_SERVICE_START,
+        /** Resolving the hostnames of peer endpoints. */
+        DNS_RESOLUTION,
+        /** Serializing the configuration for the userspace implementation. */
+        CONFIG_SERIALIZATION,
+        /** Creating the TUN device through {@link android.net.VpnService.Builder#establish()}. */
+        TUN_ESTABLISH,
+        /** Starting the wireguard-go device. */
+        DEVICE_START,
+        /** Excluding the device's sockets from the tunnel. */
+        SOCKET_PROTECT,
+        /** Stopping the wireguard-go device. */
+        DEVICE_STOP,
+        /** Writing a temporary {@code wg-quick} configuration file. */
+        CONFIG_WRITE,
+        /** Running {@code wg-quick} in the root shell. */
+        WG_QUICK,
+    }
+
+    /**
+     * Callback for {@link TunnelTracer} that is invoked whenever a transition completes, whether or
+     * not it succeeded. It is called on the thread that performed the transition.
+     */
+    public interface Listener {
+        void onTransitionFinished(Transition transition);
+    }
+
+    /**
+     * A change of the state of one tunnel, as part of a transition.
+     *
+     * @param tunnelName The name of the tunnel.
+     * @param state      The state the tunnel was moving to.
+     */
+    public record Change(String tunnelName, State state) {
+        @Override
+        public String toString() {
+            return tunnelName + ' ' + state;
+        }
+    }
+
+    /**
+     * The time spent in a single {@link Phase} of a transition.
+     */
+    public record PhaseTiming(Phase phase, long durationNanos) {
+        @Override
+        public String toString() {
+            return phase.name().toLowerCase(Locale.ENGLISH) + '=' + TimeUnit.NANOSECONDS.toMicros(durationNanos) / 1000.0 + "ms";
+        }
+    }
+
+    /**
+     * A completed state transition of one tunnel, or of several tunnels changed together.
+     *
+     * @param changes            The changes made by the transition, at least one.
+     * @param startEpochMillis   Wall clock time at which the transition started.
+     * @param totalDurationNanos Time from start to finish of the transition.
+     * @param phases             The phases of the transition, in the order they happened.
+     * @param preparedNanos      Time spent preparing the transition ahead of time, which it was
+     *                           able to skip, or 0 if it was not prepared.
+     * @param failure            A description of the exception that aborted the transition, or
+     *                           null if it succeeded.
+     */
+    public record Transition(List<Change> changes, long startEpochMillis, long totalDurationNanos,
+                             List<PhaseTiming> phases, long preparedNanos, @Nullable String failure) {
+        @Nullable
+        public PhaseTiming phase(final Phase phase) {
+            for (final PhaseTiming timing : phases) {
+                if (timing.phase == phase)
+                    return timing;
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < changes.size(); ++i)
+                sb.append(i == 0 ? "" : ", ").append(changes.get(i));
+            sb.append(" @").append(startEpochMillis)
+                    .append(" total=").append(TimeUnit.NANOSECONDS.toMicros(totalDurationNanos) / 1000.0).append("ms");
+            for (final PhaseTiming timing : phases)
+                sb.append(' ').append(timing);
+            if (preparedNanos != 0)
+                sb.append(" prepared=").append(TimeUnit.NANOSECONDS.toMicros(preparedNanos) / 1000.0).append("ms");
+            if (failure != null)
+                sb.append(" failed: ").append(failure);
+            return sb.toString();
+        }
+    }
+
+    /**
+     * An in-progress transition. Calling {@link #phase(Phase)} ends the current phase, if any, and
+     * starts the next one. Exactly one of {@link #finish()} or {@link #fail(Throwable)} must be
+     * called, on the same thread that began the span.
+     */
+    final class Span {
+        private final List<PhaseTiming> phases = new ArrayList<>();
+        private final long startEpochMillis = System.currentTimeMillis();
+        private final long startNanos = SystemClock.elapsedRealtimeNanos();
+        private final List<Change> changes;
+        @Nullable private Phase currentPhase;
+        private long currentPhaseStartNanos;
+        private long preparedNanos;
+
+        private Span(final List<Change> changes) {
+            this.changes = changes;
+            final StringBuilder name = new StringBuilder("WireGuard");
+            for (final Change change : changes)
+                name.append(' ').append(change);
+            Trace.beginSection(name.length() > MAX_SECTION_NAME_LENGTH
+                    ? name.substring(0, MAX_SECTION_NAME_LENGTH) : name.toString());
+        }
+
+        void phase(final Phase phase) {
+            final long now = endPhase();
+            currentPhase = phase;
+            currentPhaseStartNanos = now;
+            Trace.beginSection(phase.name());
+        }
+
+        void prepared(final long nanos) {
+            preparedNanos = nanos;
+        }
+
+        void finish() {
+            end(null);
+        }
+
+        void fail(final Throwable throwable) {
+            end(throwable.toString());
+        }
+
+        void fail(final String failure) {
+            end(failure);
+        }
+
+        private long endPhase() {
+            final long now = SystemClock.elapsedRealtimeNanos();
+            if (currentPhase != null) {
+                phases.add(new PhaseTiming(currentPhase, now - currentPhaseStartNanos));
+                currentPhase = null;
+                Trace.endSection();
+            }
+            return now;
+        }
+
+        private void end(@Nullable final String failure) {
+            final long now = endPhase();
+            Trace.endSection();
+            record(new Transition(changes, startEpochMillis, now - startNanos,
+                    Collections.unmodifiableList(phases), preparedNanos, failure));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.android.backend.Statistics.PeerStats;
+import com.wireguard.android.util.RootHelper;
+import com.wireguard.crypto.Key;
+import com.wireguard.crypto.KeyFormatException;
+import com.wireguard.util.NonNullForAll;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The state of every WireGuard interface in the kernel at one point in time, as printed by
+ * {@code wg show all dump}. A single snapshot answers both which tunnels are running and the
+ * statistics of each of them, so that refreshing a whole list of tunnels costs one root command.
+ */
+@NonNullForAll
+final class WgDumpSnapshot {
+    private final Map<String, Map<Key, PeerStats>> interfaces;
+    private final long takenAtMillis;
+
+    private WgDumpSnapshot(final Map<String, Map<Key, PeerStats>> interfaces, final long takenAtMillis) {
+        this.interfaces = interfaces;
+        this.takenAtMillis = takenAtMillis;
+    }
+
+    /**
+     * Parse the output of {@code wg show all dump}. Each interface has a line of five fields,
+     * followed by a line of nine fields for each of its peers, all starting with the interface
+     * name. Lines that cannot be parsed are skipped.
+     *
+     * @param lines         The lines of output.
+     * @param takenAtMillis When the command was run, in {@link android.os.SystemClock#elapsedRealtime()}
+     *                      milliseconds.
+     * @return The snapshot.
+     */
+    static WgDumpSnapshot parse(final Iterable<String> lines, final long takenAtMillis) {
+        final Map<String, Map<Key, PeerStats>> interfaces = new LinkedHashMap<>();
+        for (final String line : lines) {
+            final String[] parts = line.split("\\t");
+            if (parts.length == 5) {
+                interfaces.computeIfAbsent(parts[0], name -> new HashMap<>());
+            } else if (parts.length == 9) {
+                try {
+                    final Key key = Key.fromBase64(parts[1]);
+                    final PeerStats stats = new PeerStats(Long.parseLong(parts[6]), Long.parseLong(parts[7]),
+                            Long.parseLong(parts[5]) * 1000);
+                    interfaces.computeIfAbsent(parts[0], name -> new HashMap<>()).put(key, stats);
+                } catch (final KeyFormatException | NumberFormatException ignored) {
+                }
+            }
+        }
+        return new WgDumpSnapshot(interfaces, takenAtMillis);
+    }
+
+    /**
+     * Build a snapshot from the interfaces read by the root helper.
+     *
+     * @param dump          The interfaces and their peers.
+     * @param takenAtMillis When they were read, in {@link android.os.SystemClock#elapsedRealtime()}
+     *                      milliseconds.
+     * @return The snapshot.
+     */
+    static WgDumpSnapshot of(final Iterable<RootHelper.InterfaceDump> dump, final long takenAtMillis) {
+        final Map<String, Map<Key, PeerStats>> interfaces = new LinkedHashMap<>();
+        for (final RootHelper.InterfaceDump iface : dump) {
+            final Map<Key, PeerStats> peers = new HashMap<>();
+            for (final RootHelper.PeerDump peer : iface.peers())
+                peers.put(peer.publicKey(), new PeerStats(peer.rxBytes(), peer.txBytes(),
+                        peer.latestHandshakeEpochSeconds() * 1000));
+            interfaces.put(iface.name(), peers);
+        }
+        return new WgDumpSnapshot(interfaces, takenAtMillis);
+    }
+
+    /**
+     * Get the names of the interfaces that were running.
+     *
+     * @return The set of interface names.
+     */
+    Set<String> getInterfaceNames() {
+        return Collections.unmodifiableSet(interfaces.keySet());
+    }
+
+    /**
+     * Get the statistics of an interface. They are empty if it was not running.
+     *
+     * @param name The name of the interface.
+     * @return A new {@link Statistics} for the interface.
+     */
+    Statistics getStatistics(final String name) {
+        final Statistics statistics = new Statistics();
+        final Map<Key, PeerStats> peers = interfaces.get(name);
+        if (peers == null)
+            return statistics;
+        for (final Map.Entry<Key, PeerStats> entry : peers.entrySet()) {
+            final PeerStats stats = entry.getValue();
+            statistics.add(entry.getKey(), stats.rxBytes(), stats.txBytes(), stats.latestHandshakeEpochMillis());
+        }
+        return statistics;
+    }
+
+    /**
+     * Check whether this snapshot is still recent enough to be used in place of a new one.
+     *
+     * @param nowMillis      The current time, in {@link android.os.SystemClock#elapsedRealtime()}
+     *                       milliseconds.
+     * @param validityMillis How long a snapshot stays usable.
+     * @return Whether the snapshot is still usable.
+     */
+    boolean isFresh(final long nowMillis, final long validityMillis) {
+        return nowMillis - takenAtMillis < validityMillis;
+    }
+}
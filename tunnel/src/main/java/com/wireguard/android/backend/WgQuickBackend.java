@@ -6,72 +6,101 @@
 package com.wireguard.android.backend;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
-import android.util.Pair;
 
 import com.wireguard.android.backend.BackendException.Reason;
 import com.wireguard.android.backend.Tunnel.State;
+import com.wireguard.android.util.RootHelper;
 import com.wireguard.android.util.RootShell;
 import com.wireguard.android.util.ToolsInstaller;
 import com.wireguard.config.Config;
-import com.wireguard.crypto.Key;
+import com.wireguard.config.InetEndpoint;
+import com.wireguard.config.Peer;
 import com.wireguard.util.NonNullForAll;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import androidx.annotation.Nullable;
 
 /**
  * Implementation of {@link Backend} that uses the kernel module and {@code wg-quick} to provide
- * WireGuard tunnels.
+ * WireGuard tunnels. Everything it does goes through the root shell, which runs one command at a
+ * time, so its asynchronous methods queue their work on a single thread of its own. Every change
+ * to the tunnels runs there too, including those made through the blocking methods.
  */
 
 @NonNullForAll
-public final class WgQuickBackend implements Backend {
+public final class WgQuickBackend implements AsyncBackend {
+    private static final long SNAPSHOT_VALIDITY_MILLIS = 1000;
     private static final String TAG = "WireGuard/WgQuickBackend";
     private final File localTemporaryDir;
     private final RootShell rootShell;
+    @Nullable private RootHelper rootHelper;
+    // Only touched on the executor.
     private final Map<Tunnel, Config> runningConfigs = new HashMap<>();
     private final ToolsInstaller toolsInstaller;
+    private final EndpointRefresher endpointRefresher;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Set<StateListener> stateListeners = new CopyOnWriteArraySet<>();
+    private final HandshakeMetrics handshakeMetrics = new HandshakeMetrics();
+    private final TunnelTracer tracer = new TunnelTracer();
     private boolean multipleTunnels;
+    @Nullable private WgDumpSnapshot snapshot;
 
     public WgQuickBackend(final Context context, final RootShell rootShell, final ToolsInstaller toolsInstaller) {
         localTemporaryDir = new File(context.getCacheDir(), "tmp");
+        endpointRefresher = new EndpointRefresher(new TtlResolver(context));
         this.rootShell = rootShell;
         this.toolsInstaller = toolsInstaller;
+        rootHelper = new RootHelper(toolsInstaller.getHelper());
     }
 
     public static boolean hasKernelSupport() {
         return new File("/sys/module/wireguard").exists();
     }
 
+    @Override
+    public void addStateListener(final StateListener listener) {
+        stateListeners.add(listener);
+    }
+
+    @Override
+    public void removeStateListener(final StateListener listener) {
+        stateListeners.remove(listener);
+    }
+
     @Override
     public Set<String> getRunningTunnelNames() {
-        final List<String> output = new ArrayList<>();
         // Don't throw an exception here or nothing will show up in the UI.
         try {
-            toolsInstaller.ensureToolsAvailable();
-            if (rootShell.run(output, "wg show interfaces") != 0 || output.isEmpty())
-                return Collections.emptySet();
+            return snapshot().getInterfaceNames();
         } catch (final Exception e) {
             Log.w(TAG, "Unable to enumerate running tunnels", e);
             return Collections.emptySet();
         }
-        // wg puts all interface names on the same line. Split them into separate elements.
-        return Set.of(output.get(0).split(" "));
+    }
+
+    @Override
+    public CompletableFuture<Set<String>> getRunningTunnelNamesAsync() {
+        return submit(this::getRunningTunnelNames);
     }
 
     @Override
@@ -79,32 +108,34 @@ public final class WgQuickBackend implements Backend {
         return getRunningTunnelNames().contains(tunnel.getName()) ? State.UP : State.DOWN;
     }
 
+    @Override
+    public CompletableFuture<State> getStateAsync(final Tunnel tunnel) {
+        return submit(() -> getState(tunnel));
+    }
+
     @Override
     public Statistics getStatistics(final Tunnel tunnel) {
-        final Statistics stats = new Statistics();
-        final Collection<String> output = new ArrayList<>();
+        final Statistics stats;
         try {
-            if (rootShell.run(output, String.format("wg show '%s' dump", tunnel.getName())) != 0)
-                return stats;
+            stats = snapshot().getStatistics(tunnel.getName());
         } catch (final Exception ignored) {
-            return stats;
-        }
-        for (final String line : output) {
-            final String[] parts = line.split("\\t");
-            if (parts.length != 8)
-                continue;
-            try {
-                stats.add(Key.fromBase64(parts[0]), Long.parseLong(parts[5]), Long.parseLong(parts[6]), Long.parseLong(parts[4]) * 1000);
-            } catch (final Exception ignored) {
-            }
+            return new Statistics();
         }
+        final long now = System.currentTimeMillis();
+        handshakeMetrics.observe(tunnel.getName(), stats, now);
+        endpointRefresher.onStatistics(tunnel.getName(), stats, now);
         return stats;
     }
 
+    @Override
+    public CompletableFuture<Statistics> getStatisticsAsync(final Tunnel tunnel) {
+        return submit(() -> getStatistics(tunnel));
+    }
+
     @Override
     public String getVersion() throws Exception {
         final List<String> output = new ArrayList<>();
-        if (rootShell.run(output, "cat /sys/module/wireguard/version") != 0 || output.isEmpty())
+        if (query(output, "cat /sys/module/wireguard/version") != 0 || output.isEmpty())
             throw new BackendException(Reason.UNKNOWN_KERNEL_MODULE_NAME);
         return output.get(0);
     }
@@ -119,88 +150,359 @@ public final class WgQuickBackend implements Backend {
         return false;
     }
 
+    /**
+     * Get the {@link HandshakeMetrics} of the tunnels run by this backend. They are updated every
+     * time {@link #getStatistics(Tunnel)} is called.
+     *
+     * @return The handshake metrics for this backend.
+     */
+    public HandshakeMetrics getHandshakeMetrics() {
+        return handshakeMetrics;
+    }
+
+    /**
+     * Get the {@link TunnelTracer} that records the timing of this backend's state transitions.
+     *
+     * @return The tracer for this backend.
+     */
+    public TunnelTracer getTracer() {
+        return tracer;
+    }
+
     public void setMultipleTunnels(final boolean on) {
         multipleTunnels = on;
     }
 
+    /**
+     * Get the root helper, starting it if needed. If it cannot be started, it is given up on for
+     * good and callers fall back to running {@code wg} through the root shell.
+     *
+     * @return The running helper, or null if it is not available.
+     */
+    @Nullable
+    private synchronized RootHelper rootHelper() throws Exception {
+        if (rootHelper == null)
+            return null;
+        toolsInstaller.ensureToolsAvailable();
+        try {
+            rootHelper.start();
+            return rootHelper;
+        } catch (final IOException e) {
+            Log.w(TAG, "Root helper unavailable, falling back to the root shell", e);
+            rootHelper.close();
+            rootHelper = null;
+            return null;
+        }
+    }
+
+    /**
+     * Get the state of all interfaces at once, reusing the last snapshot if it was taken less than
+     * {@link #SNAPSHOT_VALIDITY_MILLIS} ago and nothing has been changed through this backend since.
+     * Callers that come in while a snapshot is being taken wait for it rather than taking another.
+     */
+    private synchronized WgDumpSnapshot snapshot() throws Exception {
+        final long now = SystemClock.elapsedRealtime();
+        if (snapshot != null && snapshot.isFresh(now, SNAPSHOT_VALIDITY_MILLIS))
+            return snapshot;
+        final RootHelper helper = rootHelper();
+        if (helper != null) {
+            try {
+                snapshot = WgDumpSnapshot.of(helper.dump(), now);
+                return snapshot;
+            } catch (final IOException e) {
+                Log.w(TAG, "Unable to read interfaces through the root helper", e);
+            }
+        }
+        toolsInstaller.ensureToolsAvailable();
+        final List<String> output = new ArrayList<>();
+        final int result = query(output, "wg show all dump");
+        if (result != 0)
+            throw new IOException("Unable to read interfaces: " + result);
+        snapshot = WgDumpSnapshot.parse(output, now);
+        return snapshot;
+    }
+
+    /**
+     * Run a command that only reads state in the pipelined root shell, so that it does not wait
+     * behind a slow {@code wg-quick} run in the main one.
+     */
+    private int query(final List<String> output, final String command) throws Exception {
+        try {
+            return rootShell.runAsync(output, command).get();
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    private synchronized void invalidateSnapshot() {
+        snapshot = null;
+    }
+
     @Override
-    public State setState(final Tunnel tunnel, State state, @Nullable final Config config) throws Exception {
+    public State setState(final Tunnel tunnel, final State state, @Nullable final Config config) throws Exception {
+        return await(setStateAsync(tunnel, state, config));
+    }
+
+    private static <T> T await(final CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof final Exception cause)
+                throw cause;
+            throw e;
+        }
+    }
+
+    private State changeState(final Tunnel tunnel, State state, @Nullable final Config config) throws Exception {
         final State originalState = getState(tunnel);
         final Config originalConfig = runningConfigs.get(tunnel);
-        final Map<Tunnel, Config> runningConfigsSnapshot = new HashMap<>(runningConfigs);
 
         if (state == State.TOGGLE)
             state = originalState == State.UP ? State.DOWN : State.UP;
         if ((state == State.UP && originalState == State.UP && originalConfig != null && originalConfig == config) ||
                 (state == State.DOWN && originalState == State.DOWN))
             return originalState;
+        if (state == State.UP && originalState == State.UP && originalConfig != null && config != null
+                && updateLive(tunnel, originalConfig, config))
+            return state;
+        final List<WgQuickTransaction.Operation> operations = new ArrayList<>();
         if (state == State.UP) {
-            toolsInstaller.ensureToolsAvailable();
             if (!multipleTunnels && originalState == State.DOWN) {
-                final List<Pair<Tunnel, Config>> rewind = new LinkedList<>();
-                try {
-                    for (final Map.Entry<Tunnel, Config> entry : runningConfigsSnapshot.entrySet()) {
-                        setStateInternal(entry.getKey(), entry.getValue(), State.DOWN);
-                        rewind.add(Pair.create(entry.getKey(), entry.getValue()));
-                    }
-                } catch (final Exception e) {
-                    try {
-                        for (final Pair<Tunnel, Config> entry : rewind) {
-                            setStateInternal(entry.first, entry.second, State.UP);
-                        }
-                    } catch (final Exception ignored) {
-                    }
-                    throw e;
-                }
+                for (final Map.Entry<Tunnel, Config> entry : runningConfigs.entrySet())
+                    operations.add(new WgQuickTransaction.Operation(entry.getKey(), State.DOWN, entry.getValue()));
             }
             if (originalState == State.UP)
-                setStateInternal(tunnel, originalConfig == null ? config : originalConfig, State.DOWN);
+                operations.add(operation(tunnel, State.DOWN, originalConfig == null ? config : originalConfig));
+            operations.add(operation(tunnel, State.UP, config));
+        } else {
+            operations.add(operation(tunnel, State.DOWN, originalConfig == null ? config : originalConfig));
+        }
+        for (final WgQuickTransaction.Result result : applyTransaction(new WgQuickTransaction(operations))) {
+            if (result.status() == WgQuickTransaction.Status.FAILED)
+                throw new BackendException(Reason.WG_QUICK_CONFIG_ERROR_CODE, result.exitCode());
+        }
+        return state;
+    }
+
+    /**
+     * Move a running tunnel to a new configuration without restarting it, if the changes allow.
+     *
+     * @return Whether the tunnel now runs with the new configuration. If not, it has to be
+     * restarted, which also undoes whatever part of the update did get applied.
+     */
+    private boolean updateLive(final Tunnel tunnel, final Config originalConfig, final Config config)
+            throws Exception {
+        if (!WgQuickLiveUpdate.canUpdate(originalConfig, config))
+            return false;
+        toolsInstaller.ensureToolsAvailable();
+        Log.i(TAG, "Updating tunnel " + tunnel.getName() + " in place");
+        boolean peersSynced = false;
+        final RootHelper helper = rootHelper();
+        if (helper != null) {
             try {
-                setStateInternal(tunnel, config, State.UP);
-            } catch (final Exception e) {
+                helper.syncPeers(tunnel.getName(), config.getPeers());
+                peersSynced = true;
+            } catch (final IOException e) {
+                Log.w(TAG, "Unable to update peers through the root helper", e);
+            } finally {
+                invalidateSnapshot();
+            }
+        }
+        // The peers may have pre-shared keys, which must not end up in the logged script.
+        @Nullable File peersFile = null;
+        try {
+            if (!peersSynced) {
+                peersFile = File.createTempFile("syncconf-", ".conf", localTemporaryDir);
+                // noinspection ResultOfMethodCallIgnored
+                peersFile.setReadable(false, false);
+                // noinspection ResultOfMethodCallIgnored
+                peersFile.setReadable(true, true);
+                try (final FileOutputStream stream = new FileOutputStream(peersFile, false)) {
+                    stream.write(WgQuickLiveUpdate.peersConfig(config).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            final String script = Objects.requireNonNull(WgQuickLiveUpdate.script(tunnel.getName(),
+                    originalConfig, config, peersFile == null ? null : peersFile.getAbsolutePath()));
+            if (!script.isEmpty()) {
+                final int result;
                 try {
-                    if (originalState == State.UP && originalConfig != null) {
-                        setStateInternal(tunnel, originalConfig, State.UP);
-                    }
-                    if (!multipleTunnels && originalState == State.DOWN) {
-                        for (final Map.Entry<Tunnel, Config> entry : runningConfigsSnapshot.entrySet()) {
-                            setStateInternal(entry.getKey(), entry.getValue(), State.UP);
-                        }
-                    }
-                } catch (final Exception ignored) {
+                    result = rootShell.run(null, script);
+                } finally {
+                    invalidateSnapshot();
+                }
+                if (result != 0) {
+                    Log.w(TAG, "Unable to update tunnel " + tunnel.getName() + " in place: " + result);
+                    return false;
                 }
-                throw e;
             }
-        } else if (state == State.DOWN) {
-            setStateInternal(tunnel, originalConfig == null ? config : originalConfig, State.DOWN);
+        } finally {
+            if (peersFile != null)
+                // noinspection ResultOfMethodCallIgnored
+                peersFile.delete();
         }
-        return state;
+        runningConfigs.put(tunnel, config);
+        endpointRefresher.track(tunnel.getName(), config, this::updateEndpoint);
+        return true;
     }
 
-    private void setStateInternal(final Tunnel tunnel, @Nullable final Config config, final State state) throws Exception {
-        Log.i(TAG, "Bringing tunnel " + tunnel.getName() + ' ' + state);
-
+    private static WgQuickTransaction.Operation operation(final Tunnel tunnel, final State state,
+                                                          @Nullable final Config config) {
         Objects.requireNonNull(config, "Trying to set state up with a null config");
+        return new WgQuickTransaction.Operation(tunnel, state, config);
+    }
+
+    /**
+     * Apply a transaction of several tunnel operations with a single root command, rolling all of
+     * them back if any fails. Tunnels whose state changed for good are told so, as with
+     * {@link #setState(Tunnel, State, Config)}. The transaction runs on the backend's own thread,
+     * after any changes queued before it.
+     *
+     * @param transaction The operations to apply.
+     * @return The result of each operation, in order.
+     * @throws Exception Exception raised while writing the configurations or running the script;
+     *                   failures of the operations themselves are reported in the results.
+     */
+    public List<WgQuickTransaction.Result> apply(final WgQuickTransaction transaction) throws Exception {
+        return await(submit(() -> applyTransaction(transaction)));
+    }
 
-        final File tempFile = new File(localTemporaryDir, tunnel.getName() + ".conf");
-        try (final FileOutputStream stream = new FileOutputStream(tempFile, false)) {
-            stream.write(config.toWgQuickString().getBytes(StandardCharsets.UTF_8));
+    private List<WgQuickTransaction.Result> applyTransaction(final WgQuickTransaction transaction) throws Exception {
+        final List<WgQuickTransaction.Operation> operations = transaction.getOperations();
+        if (operations.isEmpty())
+            return Collections.emptyList();
+        toolsInstaller.ensureToolsAvailable();
+
+        final long startEpochMillis = System.currentTimeMillis();
+        // The operations share every phase, so they are traced as one transition.
+        final List<TunnelTracer.Change> changes = new ArrayList<>(operations.size());
+        for (final WgQuickTransaction.Operation operation : operations)
+            changes.add(new TunnelTracer.Change(operation.tunnel().getName(), operation.state()));
+        final TunnelTracer.Span span = tracer.begin(changes);
+        final List<File> directories = new ArrayList<>(operations.size() + 1);
+        final List<WgQuickTransaction.Result> results;
+        try {
+            // A fresh directory per transaction, so that nothing is left over from one that died.
+            final File root = File.createTempFile("transaction-", "", localTemporaryDir);
+            if (!root.delete() || !root.mkdir())
+                throw new IOException("Unable to create " + root);
+            directories.add(root);
+            final List<String> paths = new ArrayList<>(operations.size());
+            span.phase(TunnelTracer.Phase.CONFIG_WRITE);
+            for (int i = 0; i < operations.size(); ++i) {
+                final WgQuickTransaction.Operation operation = operations.get(i);
+                Log.i(TAG, "Bringing tunnel " + operation.tunnel().getName() + ' ' + operation.state());
+                // wg-quick names the interface after the file, so each operation gets a directory.
+                final File directory = new File(root, Integer.toString(i));
+                if (!directory.mkdir())
+                    throw new IOException("Unable to create " + directory);
+                directories.add(directory);
+                final File file = new File(directory, operation.tunnel().getName() + ".conf");
+                try (final FileOutputStream stream = new FileOutputStream(file, false)) {
+                    stream.write(operation.config().toWgQuickString(false).getBytes(StandardCharsets.UTF_8));
+                }
+                paths.add(file.getAbsolutePath());
+            }
+            span.phase(TunnelTracer.Phase.WG_QUICK);
+            final List<String> output = new ArrayList<>();
+            final int exitCode;
+            try {
+                exitCode = rootShell.run(output, "cat /sys/module/wireguard/version >/dev/null || exit 1\n"
+                        + transaction.script(paths));
+            } finally {
+                invalidateSnapshot();
+            }
+            results = transaction.parse(output, exitCode);
+        } catch (final Exception e) {
+            span.fail(e);
+            throw e;
+        } finally {
+            // Remove the directory of each operation before that of the transaction holding them.
+            for (int i = directories.size() - 1; i >= 0; --i) {
+                final File directory = directories.get(i);
+                final File[] files = directory.listFiles();
+                if (files != null) {
+                    for (final File file : files)
+                        // noinspection ResultOfMethodCallIgnored
+                        file.delete();
+                }
+                // noinspection ResultOfMethodCallIgnored
+                directory.delete();
+            }
         }
-        String command = String.format("wg-quick %s '%s'",
-                state.toString().toLowerCase(Locale.ENGLISH), tempFile.getAbsolutePath());
-        if (state == State.UP)
-            command = "cat /sys/module/wireguard/version && " + command;
-        final int result = rootShell.run(null, command);
-        // noinspection ResultOfMethodCallIgnored
-        tempFile.delete();
-        if (result != 0)
-            throw new BackendException(Reason.WG_QUICK_CONFIG_ERROR_CODE, result);
 
-        if (state == State.UP)
-            runningConfigs.put(tunnel, config);
+        final StringBuilder failures = new StringBuilder();
+        for (final WgQuickTransaction.Result result : results) {
+            if (result.status() == WgQuickTransaction.Status.APPLIED)
+                continue;
+            if (failures.length() > 0)
+                failures.append(", ");
+            failures.append(result.operation().tunnel().getName()).append(' ').append(result.status());
+            if (result.status() != WgQuickTransaction.Status.SKIPPED)
+                failures.append(" (exit code ").append(result.exitCode()).append(')');
+        }
+        if (failures.length() == 0)
+            span.finish();
         else
+            span.fail(failures.toString());
+        for (final WgQuickTransaction.Result result : results) {
+            if (result.status() == WgQuickTransaction.Status.APPLIED)
+                onStateApplied(result.operation(), startEpochMillis);
+        }
+        return results;
+    }
+
+    @Override
+    public CompletableFuture<State> setStateAsync(final Tunnel tunnel, final State state,
+                                                  @Nullable final Config config) {
+        return submit(() -> changeState(tunnel, state, config));
+    }
+
+    private <T> CompletableFuture<T> submit(final Callable<T> callable) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                future.complete(callable.call());
+            } catch (final Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private void onStateApplied(final WgQuickTransaction.Operation operation, final long startEpochMillis) {
+        final Tunnel tunnel = operation.tunnel();
+        final State state = operation.state();
+        if (state == State.UP) {
+            runningConfigs.put(tunnel, operation.config());
+            handshakeMetrics.onTunnelUp(tunnel.getName(), startEpochMillis);
+            endpointRefresher.track(tunnel.getName(), operation.config(), this::updateEndpoint);
+        } else {
             runningConfigs.remove(tunnel);
+            handshakeMetrics.onTunnelDown(tunnel.getName());
+            endpointRefresher.untrack(tunnel.getName());
+        }
 
         tunnel.onStateChange(state);
+        for (final StateListener listener : stateListeners)
+            listener.onStateChanged(tunnel, state);
+    }
+
+    private void updateEndpoint(final String tunnelName, final Peer peer, final InetEndpoint endpoint) throws Exception {
+        final RootHelper helper = rootHelper();
+        if (helper != null) {
+            try {
+                helper.setEndpoint(tunnelName, peer.getPublicKey(), endpoint);
+                invalidateSnapshot();
+                return;
+            } catch (final IOException e) {
+                Log.w(TAG, "Unable to update endpoint through the root helper", e);
+            }
+        }
+        final int result = rootShell.run(null, String.format("wg set '%s' peer '%s' endpoint '%s'",
+                tunnelName, peer.getPublicKey().toBase64(), endpoint));
+        invalidateSnapshot();
+        if (result != 0)
+            throw new BackendException(Reason.WG_QUICK_CONFIG_ERROR_CODE, result);
     }
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.config.Config;
+import com.wireguard.config.InetNetwork;
+import com.wireguard.config.Interface;
+import com.wireguard.config.Peer;
+import com.wireguard.util.NonNullForAll;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Changes the configuration of a running kernel tunnel in place, rather than by taking it down and
+ * bringing it back up with {@code wg-quick}. Peers are updated with {@code wg syncconf}, which
+ * leaves the sessions of unchanged peers alone, and the MTU through {@code ndc}. Addresses and
+ * routes belong to the network that {@code wg-quick} registered with netd, which has to set them
+ * up itself, so changing them requires a full restart, as does anything else that
+ * {@code wg-quick} sets up only once, such as the key pair, the listen port, DNS or the
+ * per-application rules.
+ */
+@NonNullForAll
+final class WgQuickLiveUpdate {
+    private WgQuickLiveUpdate() {
+        // Prevent instantiation.
+    }
+
+    private static boolean needsRestart(final Config running, final Config updated) {
+        return needsRestart(running.getInterface(), updated.getInterface())
+                || !routes(running).equals(routes(updated));
+    }
+
+    private static boolean needsRestart(final Interface running, final Interface updated) {
+        return !running.getKeyPair().getPrivateKey().equals(updated.getKeyPair().getPrivateKey())
+                || !running.getListenPort().equals(updated.getListenPort())
+                || !running.getAddresses().equals(updated.getAddresses())
+                || !running.getDnsServers().equals(updated.getDnsServers())
+                || !running.getDnsSearchDomains().equals(updated.getDnsSearchDomains())
+                || !running.getExcludedApplications().equals(updated.getExcludedApplications())
+                || !running.getIncludedApplications().equals(updated.getIncludedApplications())
+                || running.isMtuAuto() != updated.isMtuAuto()
+                // wg-quick works out the MTU when none is given, which ip cannot redo.
+                || (!updated.getMtu().isPresent() && running.getMtu().isPresent());
+    }
+
+    private static Set<InetNetwork> routes(final Config config) {
+        final Set<InetNetwork> routes = new LinkedHashSet<>();
+        for (final Peer peer : config.getPeers())
+            routes.addAll(peer.getAllowedIps());
+        return routes;
+    }
+
+    /**
+     * Check whether a running tunnel can be moved from one configuration to another in place.
+     *
+     * @param running The configuration the tunnel is running with.
+     * @param updated The configuration it should run with.
+     * @return Whether it can, or whether it has to be restarted instead.
+     */
+    static boolean canUpdate(final Config running, final Config updated) {
+        return !needsRestart(running, updated);
+    }
+
+    /**
+     * Generate the configuration that {@code wg syncconf} reads the peers from. The key pair and
+     * listen port are unchanged, so the interface section stays empty, which also keeps the
+     * private key out of it. It still holds any pre-shared keys, so it belongs in a file that only
+     * its owner can read.
+     *
+     * @param updated The configuration the tunnel should run with.
+     * @return The configuration of the peers.
+     */
+    static String peersConfig(final Config updated) {
+        final StringBuilder sb = new StringBuilder("[Interface]\n");
+        for (final Peer peer : updated.getPeers())
+            sb.append("[Peer]\n").append(peer.toWgQuickString());
+        return sb.toString();
+    }
+
+    /**
+     * Generate the script that moves a running tunnel from one configuration to another.
+     *
+     * @param interfaceName The name of the interface, which is also the name of the tunnel.
+     * @param running       The configuration the tunnel is running with.
+     * @param updated       The configuration it should run with.
+     * @param peersPath     The file holding {@link #peersConfig(Config)} for the script to update
+     *                      the peers from, or null to leave them to the caller.
+     * @return The script, to be run in a subshell, or null if the tunnel has to be restarted. It
+     * is empty if there is nothing for it to do.
+     */
+    @Nullable
+    static String script(final String interfaceName, final Config running, final Config updated,
+                         @Nullable final String peersPath) {
+        if (needsRestart(running, updated))
+            return null;
+        final Interface from = running.getInterface();
+        final Interface to = updated.getInterface();
+
+        final StringBuilder sb = new StringBuilder();
+        if (peersPath != null) {
+            if (peersPath.contains("'"))
+                throw new IllegalArgumentException("Path contains a single quote");
+            sb.append("wg syncconf '").append(interfaceName).append("' '").append(peersPath).append("'\n");
+        }
+        if (!from.getMtu().equals(to.getMtu()) && to.getMtu().isPresent())
+            sb.append("ndc interface setmtu '").append(interfaceName).append("' ").append(to.getMtu().get()).append('\n');
+        return sb.length() == 0 ? "" : "set -e\n" + sb;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.android.backend.Tunnel.State;
+import com.wireguard.config.Config;
+import com.wireguard.util.NonNullForAll;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A series of {@code wg-quick} operations on several tunnels that is applied as a whole, by a
+ * single root script. The operations run in order; as soon as one fails, those that already
+ * succeeded are undone in reverse order, and the rest are skipped. Either every operation takes
+ * effect, or, as far as {@code wg-quick} is able to undo them, none does.
+ */
+@NonNullForAll
+public final class WgQuickTransaction {
+    private static final String MARKER = "wg-transaction";
+    private static final String UNDO_MARKER = "wg-transaction-undo";
+
+    private final List<Operation> operations;
+
+    /**
+     * Constructor for WgQuickTransaction.
+     *
+     * @param operations The operations to apply, in order.
+     */
+    public WgQuickTransaction(final List<Operation> operations) {
+        for (final Operation operation : operations) {
+            if (operation.state() == State.TOGGLE)
+                throw new IllegalArgumentException("Transactions cannot toggle tunnels");
+        }
+        this.operations = Collections.unmodifiableList(new ArrayList<>(operations));
+    }
+
+    private static String command(final State state, final String path) {
+        return String.format("wg-quick %s '%s'", state.toString().toLowerCase(Locale.ENGLISH), path);
+    }
+
+    private static State inverse(final State state) {
+        return state == State.UP ? State.DOWN : State.UP;
+    }
+
+    public List<Operation> getOperations() {
+        return operations;
+    }
+
+    /**
+     * Match the output of the script to the operations.
+     *
+     * @param output   The lines the script wrote to stdout.
+     * @param exitCode The exit code of the script. If it failed before reporting the failure of
+     *                 any operation, the first operation it did not get to is taken to have failed.
+     * @return The result of each operation, in order.
+     */
+    List<Result> parse(final Iterable<String> output, final int exitCode) {
+        final Status[] statuses = new Status[operations.size()];
+        final int[] exitCodes = new int[operations.size()];
+        for (final String line : output) {
+            final String[] parts = line.split(" ");
+            if (parts.length != 3 || !(MARKER.equals(parts[0]) || UNDO_MARKER.equals(parts[0])))
+                continue;
+            try {
+                final int index = Integer.parseInt(parts[1]);
+                final int code = Integer.parseInt(parts[2]);
+                if (index < 0 || index >= statuses.length)
+                    continue;
+                if (MARKER.equals(parts[0])) {
+                    statuses[index] = code == 0 ? Status.APPLIED : Status.FAILED;
+                    exitCodes[index] = code;
+                } else if (statuses[index] == Status.APPLIED) {
+                    statuses[index] = code == 0 ? Status.ROLLED_BACK : Status.ROLLBACK_FAILED;
+                    exitCodes[index] = code;
+                }
+            } catch (final NumberFormatException ignored) {
+            }
+        }
+        boolean failed = false;
+        for (final Status status : statuses)
+            failed |= status == Status.FAILED;
+        for (int i = 0; i < statuses.length && exitCode != 0 && !failed; ++i) {
+            if (statuses[i] == null) {
+                statuses[i] = Status.FAILED;
+                exitCodes[i] = exitCode;
+                failed = true;
+            }
+        }
+        final List<Result> results = new ArrayList<>(statuses.length);
+        for (int i = 0; i < statuses.length; ++i)
+            results.add(new Result(operations.get(i), statuses[i] == null ? Status.SKIPPED : statuses[i], exitCodes[i]));
+        return results;
+    }
+
+    /**
+     * Generate the script that applies the transaction. It reports the outcome of each operation
+     * and of each undo on stdout, and exits with the code of the failed operation, if any.
+     *
+     * @param configPaths The paths of the {@code wg-quick} configuration files of the operations,
+     *                    in the same order. Each must be named after the tunnel.
+     * @return The script, to be run in a subshell.
+     */
+    String script(final List<String> configPaths) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < operations.size(); ++i) {
+            sb.append(command(operations.get(i).state(), configPaths.get(i)))
+                    .append("; r=$?; echo ").append(MARKER).append(' ').append(i).append(" $r\n");
+            sb.append("if [ $r -ne 0 ]; then\n");
+            for (int j = i - 1; j >= 0; --j) {
+                sb.append(command(inverse(operations.get(j).state()), configPaths.get(j)))
+                        .append("; echo ").append(UNDO_MARKER).append(' ').append(j).append(" $?\n");
+            }
+            sb.append("exit $r\nfi\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * What became of an operation.
+     */
+    public enum Status {
+        /** The operation took effect and remains in effect. */
+        APPLIED,
+        /** The operation itself failed; the transaction was rolled back. */
+        FAILED,
+        /** The operation took effect, but was undone because a later one failed. */
+        ROLLED_BACK,
+        /** The operation took effect, and undoing it after a later one failed did not work. */
+        ROLLBACK_FAILED,
+        /** The operation was never attempted, because an earlier one failed. */
+        SKIPPED
+    }
+
+    /**
+     * A single operation of a transaction.
+     *
+     * @param tunnel The tunnel to bring up or down.
+     * @param state  {@code UP} or {@code DOWN}.
+     * @param config The configuration to bring the tunnel up with, or that it is running with when
+     *               bringing it down.
+     */
+    public record Operation(Tunnel tunnel, State state, Config config) {
+    }
+
+    /**
+     * The outcome of a single operation of a transaction.
+     *
+     * @param operation The operation.
+     * @param status    What became of it.
+     * @param exitCode  The exit code of {@code wg-quick} for the operation, or for undoing it if it
+     *                  was rolled back.
+     */
+    public record Result(Operation operation, Status status, int exitCode) {
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.util;
+
+import android.util.Log;
+
+import com.wireguard.util.NonNullForAll;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import androidx.annotation.Nullable;
+
+/**
+ * A long-running shell that accepts new commands while earlier ones are still running. Commands
+ * are written to the shell as soon as they are submitted and run one after another, in order, so
+ * a caller never waits for a round trip to the shell before sending the next one.
+ *
+ * <p>Every line a command writes is wrapped in a frame that starts with a header line holding the
+ * id of the command, the stream and the length of the line in bytes, so that no output can be
+ * mistaken for anything else. Standard output and standard error are framed separately and read
+ * by a thread each, which keeps a command that writes a lot to one of them from stalling on a full
+ * pipe while the other is being read. Commands read from {@code /dev/null}, so they cannot consume
+ * the commands queued after them.
+ */
+@NonNullForAll
+public final class PipelinedShell implements Closeable {
+    // Frames each line read from stdin as "<id> <stream> <length>\n<line>\n", then ends the
+    // stream with "<id> <stream> -1\n". LC_ALL=C is exported again, in case su dropped it from
+    // the environment, so that lengths are in bytes.
+    private static final String FRAMER = "export LC_ALL=C\n__wg_frame() { while IFS= read -r __wg_line || [ -n \"$__wg_line\" ]; do "
+            + "printf '%s %s %d\\n%s\\n' \"$1\" \"$2\" \"${#__wg_line}\" \"$__wg_line\"; done; "
+            + "printf '%s %s -1\\n' \"$1\" \"$2\"; }\n";
+    private static final char STATUS_PREFIX = '\001';
+    private static final String TAG = "WireGuard/PipelinedShell";
+
+    private final List<String> command;
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+    private final String preamble;
+    private long nextId;
+    @Nullable private Process process;
+    @Nullable private OutputStream stdin;
+
+    /**
+     * Constructor for PipelinedShell.
+     *
+     * @param command  The command that starts the shell, such as {@code su} or {@code sh}.
+     * @param preamble Commands to run once when the shell starts. They must not write anything.
+     */
+    public PipelinedShell(final List<String> command, final String preamble) {
+        this.command = command;
+        this.preamble = preamble;
+    }
+
+    private static String readHeader(final DataInputStream in) throws IOException {
+        final ByteArrayOutputStream header = new ByteArrayOutputStream(32);
+        for (;;) {
+            final int b = in.read();
+            if (b == -1) {
+                if (header.size() == 0)
+                    return "";
+                throw new EOFException("Truncated frame header");
+            }
+            if (b == '\n')
+                return header.toString(StandardCharsets.UTF_8.name());
+            header.write(b);
+        }
+    }
+
+    /**
+     * Stop the shell. Commands that have not finished yet fail.
+     */
+    @Override
+    public synchronized void close() {
+        if (process != null) {
+            process.destroy();
+            process = null;
+            stdin = null;
+        }
+        failAll(new IOException("Shell closed"));
+    }
+
+    private void failAll(final IOException e) {
+        for (final Long id : pending.keySet()) {
+            final Pending command = pending.remove(id);
+            if (command != null)
+                command.future.completeExceptionally(e);
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        if (process == null)
+            return false;
+        try {
+            process.exitValue();
+            return false;
+        } catch (final IllegalThreadStateException ignored) {
+            return true;
+        }
+    }
+
+    private void read(final Process owner, final InputStream stream, final boolean isStderr) {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        try {
+            for (;;) {
+                final String header = readHeader(in);
+                if (header.isEmpty())
+                    break;
+                final String[] parts = header.split(" ");
+                if (parts.length != 3 || parts[1].length() != 1 || (parts[1].charAt(0) == 'e') != isStderr)
+                    throw new IOException("Malformed frame header: " + header);
+                final long id = Long.parseLong(parts[0]);
+                final int length = Integer.parseInt(parts[2]);
+                String line = null;
+                if (length >= 0) {
+                    final byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    if (in.read() != '\n')
+                        throw new IOException("Malformed frame for command " + id);
+                    line = new String(payload, StandardCharsets.UTF_8);
+                }
+                final Pending command = pending.get(id);
+                if (command == null)
+                    throw new IOException("Frame for unknown command " + id);
+                if (isStderr ? command.onStderr(line) : command.onStdout(line))
+                    pending.remove(id);
+            }
+            shutDown(owner, new EOFException("Shell exited"));
+        } catch (final IOException | NumberFormatException e) {
+            Log.w(TAG, "Unable to read from shell", e);
+            shutDown(owner, e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+    }
+
+    // Readers of a shell that has since been replaced must leave the new one alone.
+    private synchronized void shutDown(final Process owner, final IOException e) {
+        if (process != owner)
+            return;
+        process.destroy();
+        process = null;
+        stdin = null;
+        failAll(e);
+    }
+
+    /**
+     * Start the shell, if it is not already running.
+     */
+    public synchronized void start() throws IOException {
+        if (isRunning())
+            return;
+        final ProcessBuilder builder = new ProcessBuilder().command(command);
+        builder.environment().put("LC_ALL", "C");
+        final Process started = builder.start();
+        process = started;
+        stdin = started.getOutputStream();
+        try {
+            stdin.write((preamble + FRAMER).getBytes(StandardCharsets.UTF_8));
+            stdin.flush();
+        } catch (final IOException e) {
+            close();
+            throw e;
+        }
+        startReader(started, started.getInputStream(), false);
+        startReader(started, started.getErrorStream(), true);
+    }
+
+    private void startReader(final Process owner, final InputStream stream, final boolean isStderr) {
+        final Thread thread = new Thread(() -> read(owner, stream, isStderr),
+                TAG + (isStderr ? "/stderr" : "/stdout"));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a command to run after those already submitted.
+     *
+     * @param command  The command to run.
+     * @param listener Told about each line of output as it arrives, on one of the shell's reader
+     *                 threads, or null if the output is not important.
+     * @return A future for the exit value of the command.
+     * @throws IOException if the shell is not running or the command cannot be sent to it.
+     */
+    public CompletableFuture<Integer> submit(final String command, @Nullable final OutputListener listener)
+            throws IOException {
+        final Pending pendingCommand = new Pending(listener);
+        synchronized (this) {
+            if (stdin == null)
+                throw new IOException("Shell not running");
+            final long id = nextId++;
+            final String script = "{ { (" + command + "\n) </dev/null 2>&1 1>&3 3>&-; printf '\\n\\001%d\\n' $? >&3; } | "
+                    + "__wg_frame " + id + " e >&2; } 3>&1 | __wg_frame " + id + " o\n";
+            pending.put(id, pendingCommand);
+            try {
+                stdin.write(script.getBytes(StandardCharsets.UTF_8));
+                stdin.flush();
+            } catch (final IOException e) {
+                pending.remove(id);
+                throw e;
+            }
+        }
+        return pendingCommand.future;
+    }
+
+    /**
+     * Queue a command to run after those already submitted, collecting its standard output.
+     *
+     * @param output  Lines read from stdout are appended to this collection, before the future
+     *                completes. Pass null if the output is not important.
+     * @param command The command to run.
+     * @return A future for the exit value of the command.
+     * @throws IOException if the shell is not running or the command cannot be sent to it.
+     */
+    public CompletableFuture<Integer> submit(@Nullable final Collection<String> output, final String command)
+            throws IOException {
+        return submit(command, output == null ? null : output::add);
+    }
+
+    /**
+     * Receives the output of a command as it runs.
+     */
+    public interface OutputListener {
+        void onStdout(String line);
+
+        default void onStderr(final String line) {
+        }
+    }
+
+    private static final class Pending {
+        private final CompletableFuture<Integer> future = new CompletableFuture<>();
+        // The exit status arrives as the last line of stdout, after an empty line that has to be
+        // dropped unless the output was missing its final newline, so the latest two lines are held back.
+        private final ArrayDeque<String> held = new ArrayDeque<>(3);
+        @Nullable private final OutputListener listener;
+        private boolean stderrDone;
+        private boolean stdoutDone;
+        @Nullable private Integer status;
+
+        private Pending(@Nullable final OutputListener listener) {
+            this.listener = listener;
+        }
+
+        private synchronized boolean finish() {
+            if (!stdoutDone || !stderrDone)
+                return false;
+            if (status == null)
+                future.completeExceptionally(new IOException("Missing exit status"));
+            else
+                future.complete(status);
+            return true;
+        }
+
+        private boolean onStderr(@Nullable final String line) {
+            if (line != null) {
+                if (listener != null)
+                    listener.onStderr(line);
+                return false;
+            }
+            synchronized (this) {
+                stderrDone = true;
+            }
+            return finish();
+        }
+
+        private boolean onStdout(@Nullable final String line) {
+            if (line != null) {
+                held.add(line);
+                if (held.size() > 2) {
+                    final String ready = held.poll();
+                    if (listener != null)
+                        listener.onStdout(ready);
+                }
+                return false;
+            }
+            final String last = held.pollLast();
+            if (last != null && !last.isEmpty() && last.charAt(0) == STATUS_PREFIX) {
+                try {
+                    status = Integer.parseInt(last.substring(1));
+                } catch (final NumberFormatException ignored) {
+                }
+            }
+            final String beforeLast = held.poll();
+            if (beforeLast != null && !beforeLast.isEmpty() && listener != null)
+                listener.onStdout(beforeLast);
+            synchronized (this) {
+                stdoutDone = true;
+            }
+            return finish();
+        }
+    }
+}
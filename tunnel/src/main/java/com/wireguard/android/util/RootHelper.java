@@ -0,0 +1,346 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.util;
+
+import android.util.Log;
+
+import com.wireguard.config.InetEndpoint;
+import com.wireguard.config.InetNetwork;
+import com.wireguard.config.Peer;
+import com.wireguard.crypto.Key;
+import com.wireguard.crypto.KeyFormatException;
+import com.wireguard.util.NonNullForAll;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Client for {@code wg-helper}, a root process that stays running alongside the app and talks to
+ * the kernel's WireGuard interfaces over generic netlink. It takes the place of running {@code wg}
+ * through {@link RootShell} for the operations it supports: each request is a single binary frame
+ * over the helper's stdin and stdout, with no process to start and no text to parse.
+ *
+ * <p>See {@code tools/wg-helper/wg-helper.c} for the protocol.
+ */
+@NonNullForAll
+public final class RootHelper implements Closeable {
+    private static final int DEV_SYNC_PEERS = 1 << 2;
+    private static final int MAX_FRAME = 1 << 20;
+    private static final int OP_DUMP = 2;
+    private static final int OP_PING = 1;
+    private static final int OP_SET = 3;
+    private static final int PEER_ENDPOINT = 1 << 1;
+    private static final int PEER_KEEPALIVE = 1 << 2;
+    private static final int PEER_PRESHARED_KEY = 1;
+    private static final int PEER_REPLACE_ALLOWED_IPS = 1 << 3;
+    private static final String SU = "su";
+    private static final String TAG = "WireGuard/RootHelper";
+
+    @Nullable private final File helper;
+    @Nullable private DataInputStream in;
+    private long maxNanos;
+    private int nextId;
+    @Nullable private DataOutputStream out;
+    @Nullable private Process process;
+    private long requests;
+    private long totalNanos;
+
+    /**
+     * Constructor for RootHelper. The helper is started by {@link #start()}.
+     *
+     * @param helper The helper executable, which is run through {@code su}.
+     */
+    public RootHelper(final File helper) {
+        this.helper = helper;
+    }
+
+    /**
+     * Constructor for a RootHelper that is already connected to a helper, for instance over a
+     * socket pair. It cannot be restarted once closed.
+     */
+    RootHelper(final InputStream in, final OutputStream out) {
+        helper = null;
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    private static void writeAddress(final DataOutputStream out, final InetAddress address) throws IOException {
+        out.writeByte(address instanceof Inet4Address ? 4 : 6);
+        out.write(address.getAddress());
+    }
+
+    private static void writePeer(final DataOutputStream out, final Peer peer) throws IOException {
+        out.write(peer.getPublicKey().getBytes());
+        // Always send the preshared key and keepalive, so that removing them from the
+        // configuration also removes them from the interface.
+        final Optional<InetEndpoint> endpoint = peer.getEndpoint().flatMap(InetEndpoint::getResolved);
+        int flags = PEER_PRESHARED_KEY | PEER_KEEPALIVE | PEER_REPLACE_ALLOWED_IPS;
+        if (endpoint.isPresent())
+            flags |= PEER_ENDPOINT;
+        out.writeByte(flags);
+        out.write(peer.getPreSharedKey().map(Key::getBytes).orElseGet(() -> new byte[Key.Format.BINARY.getLength()]));
+        if (endpoint.isPresent()) {
+            writeAddress(out, InetAddress.getByName(endpoint.get().getHost()));
+            out.writeShort(endpoint.get().getPort());
+        }
+        out.writeShort(peer.getPersistentKeepalive().orElse(0));
+        out.writeShort(peer.getAllowedIps().size());
+        for (final InetNetwork network : peer.getAllowedIps()) {
+            writeAddress(out, network.getAddress());
+            out.writeByte(network.getMask());
+        }
+    }
+
+    /**
+     * Stop the helper.
+     */
+    @Override
+    public synchronized void close() {
+        if (process != null)
+            process.destroy();
+        process = null;
+        in = null;
+        out = null;
+    }
+
+    /**
+     * Read the state of every WireGuard interface, like {@code wg show all dump}.
+     *
+     * @return The interfaces and their peers.
+     * @throws IOException if the helper is not running or the request fails.
+     */
+    public List<InterfaceDump> dump() throws IOException {
+        final DataInputStream response = new DataInputStream(new ByteArrayInputStream(request(OP_DUMP, new byte[0])));
+        try {
+            final int interfaceCount = response.readUnsignedShort();
+            final List<InterfaceDump> interfaces = new ArrayList<>(interfaceCount);
+            for (int i = 0; i < interfaceCount; ++i) {
+                final byte[] name = new byte[response.readUnsignedByte()];
+                response.readFully(name);
+                final Key publicKey = readKey(response);
+                final int listenPort = response.readUnsignedShort();
+                final int peerCount = response.readUnsignedShort();
+                final List<PeerDump> peers = new ArrayList<>(peerCount);
+                for (int j = 0; j < peerCount; ++j) {
+                    final Key peerKey = readKey(response);
+                    final InetSocketAddress endpoint = readEndpoint(response);
+                    peers.add(new PeerDump(peerKey, endpoint, response.readLong(), response.readLong(),
+                            response.readLong(), response.readUnsignedShort()));
+                }
+                interfaces.add(new InterfaceDump(new String(name, StandardCharsets.UTF_8), publicKey, listenPort,
+                        Collections.unmodifiableList(peers)));
+            }
+            return interfaces;
+        } catch (final KeyFormatException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Get the latency of the requests made so far, for comparison with the root shell.
+     *
+     * @return The metrics.
+     */
+    public synchronized Metrics getMetrics() {
+        return new Metrics(requests, totalNanos, maxNanos);
+    }
+
+    public synchronized boolean isRunning() {
+        if (out == null)
+            return false;
+        if (process == null)
+            return true;
+        try {
+            process.exitValue();
+            return false;
+        } catch (final IllegalThreadStateException ignored) {
+            return true;
+        }
+    }
+
+    @Nullable
+    private static InetSocketAddress readEndpoint(final DataInputStream in) throws IOException {
+        final int family = in.readUnsignedByte();
+        if (family == 0)
+            return null;
+        final byte[] address = new byte[family == 4 ? 4 : 16];
+        in.readFully(address);
+        return new InetSocketAddress(InetAddress.getByAddress(address), in.readUnsignedShort());
+    }
+
+    private static Key readKey(final DataInputStream in) throws IOException, KeyFormatException {
+        final byte[] key = new byte[Key.Format.BINARY.getLength()];
+        in.readFully(key);
+        return Key.fromBytes(key);
+    }
+
+    private synchronized byte[] request(final int op, final byte[] payload) throws IOException {
+        if (in == null || out == null)
+            throw new IOException("Helper not running");
+        final long start = System.nanoTime();
+        final int id = nextId++;
+        final byte[] response;
+        final int status;
+        try {
+            out.writeInt(payload.length + 5);
+            out.writeInt(id);
+            out.writeByte(op);
+            out.write(payload);
+            out.flush();
+            final int length = in.readInt();
+            if (length < 8 || length > MAX_FRAME)
+                throw new IOException("Malformed response of " + length + " bytes");
+            if (in.readInt() != id)
+                throw new IOException("Response out of order");
+            status = in.readInt();
+            response = new byte[length - 8];
+            in.readFully(response);
+        } catch (final IOException e) {
+            // The stream can no longer be trusted to be at a frame boundary.
+            close();
+            throw e;
+        }
+        final long elapsed = System.nanoTime() - start;
+        ++requests;
+        totalNanos += elapsed;
+        maxNanos = Math.max(maxNanos, elapsed);
+        if (status < 0)
+            throw new IOException("Helper request " + op + " failed with errno " + -status);
+        return response;
+    }
+
+    /**
+     * Update a single peer's endpoint, like {@code wg set <interface> peer <key> endpoint <endpoint>}.
+     *
+     * @param interfaceName The interface of the peer.
+     * @param publicKey     The public key of the peer.
+     * @param endpoint      The new endpoint, with a numeric host.
+     * @throws IOException if the helper is not running or the request fails.
+     */
+    public void setEndpoint(final String interfaceName, final Key publicKey, final InetEndpoint endpoint)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream payload = new DataOutputStream(bytes);
+        writeName(payload, interfaceName);
+        payload.writeByte(0);
+        payload.writeShort(1);
+        payload.write(publicKey.getBytes());
+        payload.writeByte(PEER_ENDPOINT);
+        writeAddress(payload, InetAddress.getByName(endpoint.getHost()));
+        payload.writeShort(endpoint.getPort());
+        payload.writeShort(0);
+        request(OP_SET, bytes.toByteArray());
+    }
+
+    /**
+     * Bring the peers of an interface in line with a configuration, like {@code wg syncconf}:
+     * peers that are not listed are removed, and the sessions of the others are kept.
+     *
+     * @param interfaceName The interface to update.
+     * @param peers         Every peer the interface should have. Endpoints are resolved here, so
+     *                      this must not be called from the main thread.
+     * @throws IOException if the helper is not running or the request fails.
+     */
+    public void syncPeers(final String interfaceName, final Collection<Peer> peers) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream payload = new DataOutputStream(bytes);
+        writeName(payload, interfaceName);
+        payload.writeByte(DEV_SYNC_PEERS);
+        payload.writeShort(peers.size());
+        for (final Peer peer : peers)
+            writePeer(payload, peer);
+        request(OP_SET, bytes.toByteArray());
+    }
+
+    /**
+     * Start the helper as root, if it is not already running.
+     *
+     * @throws IOException if the helper cannot be started or is not running as root.
+     */
+    public synchronized void start() throws IOException {
+        if (isRunning())
+            return;
+        if (helper == null)
+            throw new IOException("Helper connection closed");
+        final Process started = new ProcessBuilder().command(SU).start();
+        process = started;
+        in = new DataInputStream(new BufferedInputStream(started.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(started.getOutputStream()));
+        try {
+            // su runs a shell, which replaces itself with the helper and hands it its pipes.
+            out.write(("exec '" + helper.getAbsolutePath() + "'\n").getBytes(StandardCharsets.UTF_8));
+            request(OP_PING, new byte[0]);
+        } catch (final IOException e) {
+            close();
+            throw e;
+        }
+        Log.i(TAG, "Started root helper");
+    }
+
+    private static void writeName(final DataOutputStream out, final String interfaceName) throws IOException {
+        final byte[] name = interfaceName.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(name.length);
+        out.write(name);
+    }
+
+    /**
+     * One WireGuard interface, as read by {@link #dump()}.
+     *
+     * @param name       The name of the interface.
+     * @param publicKey  Its public key.
+     * @param listenPort The port it listens on.
+     * @param peers      Its peers.
+     */
+    public record InterfaceDump(String name, Key publicKey, int listenPort, List<PeerDump> peers) {
+    }
+
+    /**
+     * Latency of the requests made to the helper.
+     *
+     * @param requests   The number of requests that got a response.
+     * @param totalNanos The total time between sending them and reading their response.
+     * @param maxNanos   The longest time any of them took.
+     */
+    public record Metrics(long requests, long totalNanos, long maxNanos) {
+        public long averageNanos() {
+            return requests == 0 ? 0 : totalNanos / requests;
+        }
+    }
+
+    /**
+     * One peer of a WireGuard interface, as read by {@link #dump()}.
+     *
+     * @param publicKey                   The public key of the peer.
+     * @param endpoint                    Its current endpoint, or null if it has none.
+     * @param rxBytes                     The number of bytes received from it.
+     * @param txBytes                     The number of bytes sent to it.
+     * @param latestHandshakeEpochSeconds When the latest handshake with it completed, or 0.
+     * @param persistentKeepalive         Its persistent keepalive interval in seconds, or 0.
+     */
+    public record PeerDump(Key publicKey, @Nullable InetSocketAddress endpoint, long rxBytes, long txBytes,
+                           long latestHandshakeEpochSeconds, int persistentKeepalive) {
+    }
+}
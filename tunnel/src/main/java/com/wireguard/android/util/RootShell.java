@@ -15,10 +15,20 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import androidx.annotation.Nullable;
 
@@ -28,6 +38,7 @@ import androidx.annotation.Nullable;
 
 @NonNullForAll
 public class RootShell {
+    private static final int PIPELINED_START_TIMEOUT_SECONDS = 30;
     private static final String SU = "su";
     private static final String TAG = "WireGuard/RootShell";
 
@@ -35,6 +46,14 @@ public class RootShell {
     private final File localTemporaryDir;
     private final Object lock = new Object();
     private final String preamble;
+    private final String setup;
+    // Drains stderr while run() reads stdout, so that neither pipe can fill up and stall the shell.
+    private final ExecutorService stderrReader = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, TAG + "/stderr");
+        thread.setDaemon(true);
+        return thread;
+    });
+    @Nullable private PipelinedShell pipelined;
     @Nullable private Process process;
     @Nullable private BufferedReader stderr;
     @Nullable private OutputStreamWriter stdin;
@@ -46,8 +65,32 @@ public class RootShell {
         final String packageName = context.getPackageName();
         if (packageName.contains("'"))
             throw new RuntimeException("Impossibly invalid package name contains a single quote");
-        preamble = String.format("export CALLING_PACKAGE='%s' PATH=\"%s:$PATH\" TMPDIR='%s'; magisk --sqlite \"UPDATE policies SET notification=0, logging=0 WHERE uid=%d\" >/dev/null 2>&1; id -u\n",
+        setup = String.format("export CALLING_PACKAGE='%s' LC_ALL=C PATH=\"%s:$PATH\" TMPDIR='%s'; magisk --sqlite \"UPDATE policies SET notification=0, logging=0 WHERE uid=%d\" >/dev/null 2>&1\n",
                 packageName, localBinaryDir, localTemporaryDir, android.os.Process.myUid());
+        preamble = setup + "id -u\n";
+    }
+
+    /**
+     * Read lines up to and including the marker carrying the exit status of a command, collecting
+     * those after the first marker.
+     */
+    private static Drained drain(final BufferedReader reader, final String marker,
+                                 @Nullable final Collection<String> output, final String label,
+                                 final int defaultStatus) throws IOException {
+        String line;
+        int markersSeen = 0;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith(marker)) {
+                ++markersSeen;
+                if (line.length() > marker.length() + 1)
+                    return new Drained(markersSeen, Integer.valueOf(line.substring(marker.length() + 1)));
+            } else if (markersSeen > 0) {
+                if (output != null)
+                    output.add(line);
+                Log.v(TAG, label + line);
+            }
+        }
+        return new Drained(markersSeen, defaultStatus);
     }
 
     private static boolean isExecutableInPath(final String name) {
@@ -91,45 +134,110 @@ public class RootShell {
             final String script = "echo " + marker + "; echo " + marker + " >&2; (" + command +
                     "); ret=$?; echo " + marker + " $ret; echo " + marker + " $ret >&2\n";
             Log.v(TAG, "executing: " + command);
-            stdin.write(script);
-            stdin.flush();
-            String line;
-            int errnoStdout = Integer.MIN_VALUE;
-            int errnoStderr = Integer.MAX_VALUE;
-            int markersSeen = 0;
-            while ((line = stdout.readLine()) != null) {
-                if (line.startsWith(marker)) {
-                    ++markersSeen;
-                    if (line.length() > marker.length() + 1) {
-                        errnoStdout = Integer.valueOf(line.substring(marker.length() + 1));
-                        break;
-                    }
-                } else if (markersSeen > 0) {
-                    if (output != null)
-                        output.add(line);
-                    Log.v(TAG, "stdout: " + line);
-                }
+            final BufferedReader stderr = this.stderr;
+            final Future<Drained> fromStderr = stderrReader.submit(() ->
+                    drain(stderr, marker, null, "stderr: ", Integer.MAX_VALUE));
+            final Drained fromStdout;
+            try {
+                stdin.write(script);
+                stdin.flush();
+                fromStdout = drain(stdout, marker, output, "stdout: ", Integer.MIN_VALUE);
+            } catch (final IOException e) {
+                // Kill the shell, so that the stderr reader does not wait on it forever.
+                stop();
+                throw e;
             }
-            while ((line = stderr.readLine()) != null) {
-                if (line.startsWith(marker)) {
-                    ++markersSeen;
-                    if (line.length() > marker.length() + 1) {
-                        errnoStderr = Integer.valueOf(line.substring(marker.length() + 1));
-                        break;
-                    }
-                } else if (markersSeen > 2) {
-                    Log.v(TAG, "stderr: " + line);
-                }
+            final Drained drainedStderr;
+            try {
+                drainedStderr = fromStderr.get();
+            } catch (final ExecutionException e) {
+                stop();
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            } catch (final InterruptedException e) {
+                stop();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
             }
+            final int markersSeen = fromStdout.markersSeen + drainedStderr.markersSeen;
             if (markersSeen != 4)
                 throw new RootShellException(Reason.SHELL_MARKER_COUNT_ERROR, markersSeen);
-            if (errnoStdout != errnoStderr)
+            if (fromStdout.status != drainedStderr.status)
                 throw new RootShellException(Reason.SHELL_EXIT_STATUS_READ_ERROR);
-            Log.v(TAG, "exit: " + errnoStdout);
-            return errnoStdout;
+            Log.v(TAG, "exit: " + fromStdout.status);
+            return fromStdout.status;
         }
     }
 
+    /**
+     * Run a command in a second, pipelined root shell, without waiting for commands submitted
+     * before it to finish. Commands submitted this way still run in order, but are not ordered
+     * with respect to {@link #run(Collection, String)}.
+     *
+     * @param listener Told about each line of output as it arrives, or null if the output from
+     *                 the shell is not important.
+     * @param command  Command to run as root.
+     * @return A future for the exit value of the command.
+     */
+    public CompletableFuture<Integer> runAsync(@Nullable final PipelinedShell.OutputListener listener,
+                                               final String command) throws IOException, RootShellException {
+        final PipelinedShell shell;
+        synchronized (lock) {
+            if (pipelined == null || !pipelined.isRunning())
+                pipelined = startPipelined();
+            shell = pipelined;
+        }
+        return shell.submit(command, listener);
+    }
+
+    /**
+     * Run a command in a second, pipelined root shell, as with
+     * {@link #runAsync(PipelinedShell.OutputListener, String)}, collecting its output.
+     *
+     * @param output  Lines read from stdout are appended to this list. Pass null if the output
+     *                from the shell is not important.
+     * @param command Command to run as root.
+     * @return A future for the exit value of the command.
+     */
+    public CompletableFuture<Integer> runAsync(@Nullable final Collection<String> output,
+                                               final String command) throws IOException, RootShellException {
+        return runAsync(output == null ? null : output::add, command);
+    }
+
+    private PipelinedShell startPipelined() throws IOException, RootShellException {
+        if (!isExecutableInPath(SU))
+            throw new RootShellException(Reason.NO_ROOT_ACCESS);
+        if (!localBinaryDir.isDirectory() && !localBinaryDir.mkdirs())
+            throw new RootShellException(Reason.CREATE_BIN_DIR_ERROR);
+        if (!localTemporaryDir.isDirectory() && !localTemporaryDir.mkdirs())
+            throw new RootShellException(Reason.CREATE_TEMP_DIR_ERROR);
+        final PipelinedShell shell = new PipelinedShell(List.of(SU), setup);
+        try {
+            shell.start();
+        } catch (final IOException e) {
+            final RootShellException rse = new RootShellException(Reason.NO_ROOT_ACCESS);
+            rse.initCause(e);
+            throw rse;
+        }
+        // Check that the shell started successfully.
+        final List<String> output = new ArrayList<>();
+        try {
+            shell.submit(output, "id -u").get(PIPELINED_START_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (final ExecutionException | InterruptedException | TimeoutException e) {
+            shell.close();
+            final RootShellException rse = new RootShellException(Reason.SHELL_START_ERROR, -1);
+            rse.initCause(e);
+            throw rse;
+        }
+        if (output.size() != 1 || !"0".equals(output.get(0))) {
+            Log.w(TAG, "Root check did not return correct UID: " + output);
+            shell.close();
+            throw new RootShellException(Reason.NO_ROOT_ACCESS);
+        }
+        return shell;
+    }
+
     public void start() throws IOException, RootShellException {
         if (!isExecutableInPath(SU))
             throw new RootShellException(Reason.NO_ROOT_ACCESS);
@@ -186,6 +294,20 @@ public class RootShell {
                 process.destroy();
                 process = null;
             }
+            if (pipelined != null) {
+                pipelined.close();
+                pipelined = null;
+            }
+        }
+    }
+
+    private static final class Drained {
+        final int markersSeen;
+        final int status;
+
+        Drained(final int markersSeen, final int status) {
+            this.markersSeen = markersSeen;
+            this.status = status;
         }
     }
 
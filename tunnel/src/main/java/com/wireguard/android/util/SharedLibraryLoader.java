@@ -11,13 +11,24 @@ import android.util.Log;
 
 import com.wireguard.util.NonNullForAll;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -32,13 +43,75 @@ public final class SharedLibraryLoader {
     private SharedLibraryLoader() {
     }
 
-    public static boolean extractLibrary(final Context context, final String libName, final File destination) throws IOException {
+    private static Collection<String> getApks(final Context context) {
         final Collection<String> apks = new HashSet<>();
         if (context.getApplicationInfo().sourceDir != null)
             apks.add(context.getApplicationInfo().sourceDir);
         if (context.getApplicationInfo().splitSourceDirs != null)
             apks.addAll(Arrays.asList(context.getApplicationInfo().splitSourceDirs));
+        return apks;
+    }
+
+    private static File getKeyFile(final File destination) {
+        return new File(destination.getParentFile(), '.' + destination.getName() + ".key");
+    }
+
+    /**
+     * Check whether {@code destination} already holds the library that {@link #extractLibrary}
+     * would extract there. This only takes a few stat calls: the key written next to the library
+     * when it was extracted records the APK it came from, along with the size and modification
+     * time of both, and those are compared rather than the contents.
+     *
+     * @param context     The context of the app whose APKs hold the library.
+     * @param destination Where the library would be extracted to.
+     * @return Whether the library is there and up to date.
+     */
+    public static boolean isExtracted(final Context context, final File destination) {
+        final File keyFile = getKeyFile(destination);
+        if (!keyFile.isFile() || !destination.isFile())
+            return false;
+        final List<String> key = new ArrayList<>(6);
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(keyFile),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null)
+                key.add(line);
+        } catch (final IOException ignored) {
+            return false;
+        }
+        try {
+            if (key.size() != 6 || !getApks(context).contains(key.get(0)))
+                return false;
+            final File apk = new File(key.get(0));
+            return apk.length() == Long.parseLong(key.get(1)) && apk.lastModified() == Long.parseLong(key.get(2))
+                    && destination.length() == Long.parseLong(key.get(4))
+                    && destination.lastModified() == Long.parseLong(key.get(5));
+        } catch (final NumberFormatException ignored) {
+            return false;
+        }
+    }
 
+    public static boolean extractLibrary(final Context context, final String libName, final File destination) throws IOException {
+        return extractLibrary(context, libName, destination, false);
+    }
+
+    /**
+     * Extract a library from the APK, unless {@code destination} already holds the same copy of
+     * it, see {@link #isExtracted}. The copy is checked against the CRC-32 that the zip directory
+     * of the APK lists for the library, computed when the APK was built, before it replaces the
+     * destination.
+     *
+     * @param context     The context of the app whose APKs hold the library.
+     * @param libName     The name of the library, without the "lib" prefix or ".so" suffix.
+     * @param destination Where to extract the library to.
+     * @param executable  Whether to make the extracted file executable.
+     * @return Whether the library was found for any of the supported ABIs.
+     */
+    public static boolean extractLibrary(final Context context, final String libName, final File destination,
+                                         final boolean executable) throws IOException {
+        if (isExtracted(context, destination))
+            return true;
+        final Collection<String> apks = getApks(context);
         for (final String abi : Build.SUPPORTED_ABIS) {
             for (final String apk : apks) {
                 try (final ZipFile zipFile = new ZipFile(new File(apk), ZipFile.OPEN_READ)) {
@@ -48,15 +121,10 @@ public final class SharedLibraryLoader {
                     if (zipEntry == null)
                         continue;
                     Log.d(TAG, "Extracting apk:/" + libZipPath + " to " + destination.getAbsolutePath());
-                    try (final FileOutputStream out = new FileOutputStream(destination);
-                         final InputStream in = zipFile.getInputStream(zipEntry)) {
-                        int len;
-                        final byte[] buffer = new byte[1024 * 32];
-                        while ((len = in.read(buffer)) != -1) {
-                            out.write(buffer, 0, len);
-                        }
-                        out.getFD().sync();
-                    }
+                    extractEntry(zipFile, zipEntry, destination, executable);
+                    final File apkFile = new File(apk);
+                    writeKey(getKeyFile(destination), apk + '\n' + apkFile.length() + '\n' + apkFile.lastModified() + '\n'
+                            + zipEntry.getCrc() + '\n' + destination.length() + '\n' + destination.lastModified() + '\n');
                 }
                 return true;
             }
@@ -64,6 +132,50 @@ public final class SharedLibraryLoader {
         return false;
     }
 
+    private static void extractEntry(final ZipFile zipFile, final ZipEntry zipEntry, final File destination,
+                                     final boolean executable) throws IOException {
+        final File temp = new File(destination.getParentFile(), destination.getName() + ".tmp");
+        final CRC32 crc = new CRC32();
+        try (final InputStream in = new CheckedInputStream(zipFile.getInputStream(zipEntry), crc);
+             final FileOutputStream out = new FileOutputStream(temp);
+             final FileChannel channel = out.getChannel()) {
+            // Let the channel pull the inflated bytes straight into the file, rather than
+            // shuttling them through a buffer of our own.
+            final ReadableByteChannel source = Channels.newChannel(in);
+            final long size = zipEntry.getSize();
+            long position = 0;
+            while (size < 0 || position < size) {
+                final long transferred = channel.transferFrom(source, position, size < 0 ? Integer.MAX_VALUE : size - position);
+                if (transferred <= 0)
+                    break;
+                position += transferred;
+            }
+            if ((size >= 0 && position != size) || crc.getValue() != zipEntry.getCrc())
+                throw new IOException("Corrupt copy of apk:/" + zipEntry.getName());
+            channel.force(true);
+        } catch (final IOException e) {
+            // noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw e;
+        }
+        if (executable && !temp.setExecutable(true, false))
+            throw new IOException("Unable to mark " + temp.getAbsolutePath() + " as executable");
+        // Drop the old key first, so that a crash cannot leave it vouching for a different copy.
+        // noinspection ResultOfMethodCallIgnored
+        getKeyFile(destination).delete();
+        if (!temp.renameTo(destination))
+            throw new IOException("Unable to rename " + temp.getAbsolutePath() + " to " + destination.getAbsolutePath());
+    }
+
+    private static void writeKey(final File keyFile, final String key) throws IOException {
+        final File temp = new File(keyFile.getParentFile(), keyFile.getName() + ".tmp");
+        try (final FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(key.getBytes(StandardCharsets.UTF_8));
+        }
+        if (!temp.renameTo(keyFile))
+            throw new IOException("Unable to rename " + temp.getAbsolutePath() + " to " + keyFile.getAbsolutePath());
+    }
+
     public static void loadSharedLibrary(final Context context, final String libName) {
         Throwable noAbiException;
         try {
@@ -73,9 +185,12 @@ public final class SharedLibraryLoader {
             Log.d(TAG, "Failed to load library normally, so attempting to extract from apk", e);
             noAbiException = e;
         }
-        File f = null;
         try {
-            f = File.createTempFile("lib", ".so", context.getCodeCacheDir());
+            // Extracted libraries are kept, so that later loads only have to check them.
+            final File dir = new File(context.getCodeCacheDir(), "lib");
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Unable to create " + dir);
+            final File f = new File(dir, System.mapLibraryName(libName));
             if (extractLibrary(context, libName, f)) {
                 System.load(f.getAbsolutePath());
                 return;
@@ -83,10 +198,6 @@ public final class SharedLibraryLoader {
         } catch (final Exception e) {
             Log.d(TAG, "Failed to load library apk:/" + libName, e);
             noAbiException = e;
-        } finally {
-            if (f != null)
-                // noinspection ResultOfMethodCallIgnored
-                f.delete();
         }
         if (noAbiException instanceof RuntimeException)
             throw (RuntimeException) noAbiException;
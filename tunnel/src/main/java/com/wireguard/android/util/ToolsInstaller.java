@@ -12,9 +12,14 @@ import android.util.Log;
 import com.wireguard.android.util.RootShell.RootShellException;
 import com.wireguard.util.NonNullForAll;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 
@@ -34,11 +39,15 @@ public final class ToolsInstaller {
     public static final int SYSTEM = 0x8;
     public static final int YES = 0x1;
     private static final String[] EXECUTABLES = {"wg", "wg-quick"};
+    // Only extracted for the app's own use, never installed system-wide.
+    private static final String HELPER = "wg-helper";
+    private static final String[] EXTRACTED = {"wg", "wg-quick", HELPER};
     private static final File[] INSTALL_DIRS = {
             new File("/system/xbin"),
             new File("/system/bin"),
     };
     @Nullable private static final File INSTALL_DIR = getInstallDir();
+    private static final String INSTALLED_MANIFEST = ".installed";
     private static final String TAG = "WireGuard/ToolsInstaller";
 
     private final Context context;
@@ -70,6 +79,9 @@ public final class ToolsInstaller {
     public int areInstalled() throws RootShellException {
         if (INSTALL_DIR == null)
             return ERROR;
+        final Integer installed = readInstalledManifest();
+        if (installed != null)
+            return installed;
         final StringBuilder script = new StringBuilder();
         for (final String name : EXECUTABLES) {
             script.append(String.format("cmp -s '%s' '%s' && ",
@@ -79,10 +91,12 @@ public final class ToolsInstaller {
         script.append("exit ").append(OsConstants.EALREADY).append(';');
         try {
             final int ret = rootShell.run(null, script.toString());
-            if (ret == OsConstants.EALREADY)
-                return willInstallAsMagiskModule() ? YES | MAGISK : YES | SYSTEM;
-            else
-                return willInstallAsMagiskModule() ? NO | MAGISK : NO | SYSTEM;
+            if (ret == OsConstants.EALREADY) {
+                final int result = willInstallAsMagiskModule() ? YES | MAGISK : YES | SYSTEM;
+                writeInstalledManifest(result);
+                return result;
+            }
+            return willInstallAsMagiskModule() ? NO | MAGISK : NO | SYSTEM;
         } catch (final IOException ignored) {
             return ERROR;
         } catch (final RootShellException e) {
@@ -109,33 +123,91 @@ public final class ToolsInstaller {
         }
     }
 
+    /**
+     * Get the root helper for the kernel backend. It is only there once the tools have been
+     * extracted, see {@link #ensureToolsAvailable()}.
+     *
+     * @return The path of the helper executable.
+     */
+    public File getHelper() {
+        return new File(localBinaryDir, HELPER);
+    }
+
     public boolean extract() throws IOException {
         localBinaryDir.mkdirs();
-        final File[] files = new File[EXECUTABLES.length];
-        final File[] tempFiles = new File[EXECUTABLES.length];
-        boolean allExist = true;
-        for (int i = 0; i < files.length; ++i) {
-            files[i] = new File(localBinaryDir, EXECUTABLES[i]);
-            tempFiles[i] = new File(localBinaryDir, EXECUTABLES[i] + ".tmp");
-            allExist &= files[i].exists();
+        boolean extracted = false;
+        for (final String name : EXTRACTED) {
+            final File file = new File(localBinaryDir, name);
+            if (SharedLibraryLoader.isExtracted(context, file))
+                continue;
+            if (!SharedLibraryLoader.extractLibrary(context, name, file, true))
+                throw new FileNotFoundException("Unable to find " + name);
+            extracted = true;
+        }
+        return extracted;
+    }
+
+    /**
+     * Describe the installed tools and the local copies they were compared with, by the size and
+     * modification time of each, so that a change to any of them can be noticed without root.
+     * Returns null if the installed tools cannot be looked at without root.
+     */
+    @Nullable
+    private String describeInstalled() {
+        final StringBuilder sb = new StringBuilder();
+        for (final String name : EXECUTABLES) {
+            final File local = new File(localBinaryDir, name);
+            final File installed = new File(INSTALL_DIR, name);
+            if (installed.lastModified() == 0)
+                return null;
+            sb.append(name).append('\t').append(local.length()).append('\t').append(local.lastModified())
+                    .append('\t').append(installed.length()).append('\t').append(installed.lastModified()).append('\n');
         }
-        if (allExist)
-            return false;
-        for (int i = 0; i < files.length; ++i) {
-            if (!SharedLibraryLoader.extractLibrary(context, EXECUTABLES[i], tempFiles[i]))
-                throw new FileNotFoundException("Unable to find " + EXECUTABLES[i]);
-            if (!tempFiles[i].setExecutable(true, false))
-                throw new IOException("Unable to mark " + tempFiles[i].getAbsolutePath() + " as executable");
-            if (!tempFiles[i].renameTo(files[i]))
-                throw new IOException("Unable to rename " + tempFiles[i].getAbsolutePath() + " to " + files[i].getAbsolutePath());
+        return sb.toString();
+    }
+
+    /**
+     * Get the result of the last successful {@link #areInstalled()} check, if neither the installed
+     * tools nor their local copies have changed since.
+     */
+    @Nullable
+    private Integer readInstalledManifest() {
+        final File manifest = new File(localBinaryDir, INSTALLED_MANIFEST);
+        if (!manifest.isFile())
+            return null;
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest),
+                StandardCharsets.UTF_8))) {
+            final String result = reader.readLine();
+            final StringBuilder description = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null)
+                description.append(line).append('\n');
+            if (result == null || !description.toString().equals(describeInstalled()))
+                return null;
+            return Integer.valueOf(result);
+        } catch (final IOException | NumberFormatException ignored) {
+            return null;
+        }
+    }
+
+    private void writeInstalledManifest(final int result) {
+        final String description = describeInstalled();
+        if (description == null)
+            return;
+        final File manifest = new File(localBinaryDir, INSTALLED_MANIFEST);
+        try (final FileOutputStream out = new FileOutputStream(manifest)) {
+            out.write((result + "\n" + description).getBytes(StandardCharsets.UTF_8));
+        } catch (final IOException e) {
+            Log.w(TAG, "Unable to record installed tools", e);
         }
-        return true;
     }
 
     @RestrictTo(Scope.LIBRARY_GROUP)
     public int install() throws RootShellException, IOException {
         if (!context.getPackageName().startsWith("com.wireguard."))
             throw new SecurityException("The tools may only be installed system-wide from the main WireGuard app.");
+        // noinspection ResultOfMethodCallIgnored
+        new File(localBinaryDir, INSTALLED_MANIFEST).delete();
         return willInstallAsMagiskModule() ? installMagisk() : installSystem();
     }
 
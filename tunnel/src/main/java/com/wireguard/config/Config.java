@@ -161,8 +161,19 @@ public final class Config {
      * @return the {@code Config} represented as one [Interface] and zero or more [Peer] sections
      */
     public String toWgQuickString() {
+        return toWgQuickString(true);
+    }
+
+    /**
+     * Converts the {@code Config} into a string suitable for use as a {@code wg-quick}
+     * configuration file, optionally leaving out values that only this application understands.
+     *
+     * @param extended Whether to include values that {@code wg-quick} itself would reject
+     * @return the {@code Config} represented as one [Interface] and zero or more [Peer] sections
+     */
+    public String toWgQuickString(final boolean extended) {
         final StringBuilder sb = new StringBuilder();
-        sb.append("[Interface]\n").append(interfaze.toWgQuickString());
+        sb.append("[Interface]\n").append(interfaze.toWgQuickString(extended));
         for (final Peer peer : peers)
             sb.append("\n[Peer]\n").append(peer.toWgQuickString());
         return sb.toString();
@@ -113,6 +113,27 @@ public final class InetEndpoint {
         }
     }
 
+    /**
+     * Resolve the host again right away, regardless of when it was last resolved, for instance
+     * because the network has changed. If the lookup fails, the previous result is kept. Because
+     * this function performs network I/O, it must not be called from the main thread.
+     *
+     * @return the resolved endpoint, or {@link Optional#empty()}
+     */
+    public Optional<InetEndpoint> refreshResolved() {
+        if (isResolved)
+            return Optional.of(this);
+        synchronized (lock) {
+            lastResolution = Instant.EPOCH;
+            final InetEndpoint previous = resolved;
+            final Optional<InetEndpoint> result = getResolved();
+            if (result.isPresent() || previous == null)
+                return result;
+            resolved = previous;
+            return Optional.of(previous);
+        }
+    }
+
     @Override
     public int hashCode() {
         return host.hashCode() ^ port;
@@ -46,6 +46,7 @@ public final class Interface {
     private final KeyPair keyPair;
     private final Optional<Integer> listenPort;
     private final Optional<Integer> mtu;
+    private final boolean mtuAuto;
 
     private Interface(final Builder builder) {
         // Defensively copy to ensure immutability even if the Builder is reused.
@@ -57,6 +58,7 @@ public final class Interface {
         keyPair = Objects.requireNonNull(builder.keyPair, "Interfaces must have a private key");
         listenPort = builder.listenPort;
         mtu = builder.mtu;
+        mtuAuto = builder.mtuAuto;
     }
 
     /**
@@ -115,7 +117,8 @@ public final class Interface {
                 && includedApplications.equals(other.includedApplications)
                 && keyPair.equals(other.keyPair)
                 && listenPort.equals(other.listenPort)
-                && mtu.equals(other.mtu);
+                && mtu.equals(other.mtu)
+                && mtuAuto == other.mtuAuto;
     }
 
     /**
@@ -195,6 +198,16 @@ public final class Interface {
         return mtu;
     }
 
+    /**
+     * Returns whether the MTU should be discovered from the path to the peers rather than being
+     * configured. This is only honored by userspace tunnels; {@link #getMtu()} is always empty then.
+     *
+     * @return true if the MTU is set to "auto"
+     */
+    public boolean isMtuAuto() {
+        return mtuAuto;
+    }
+
     @Override
     public int hashCode() {
         int hash = 1;
@@ -205,6 +218,7 @@ public final class Interface {
         hash = 31 * hash + keyPair.hashCode();
         hash = 31 * hash + listenPort.hashCode();
         hash = 31 * hash + mtu.hashCode();
+        hash = 31 * hash + Boolean.hashCode(mtuAuto);
         return hash;
     }
 
@@ -230,6 +244,18 @@ public final class Interface {
      * @return The {@code Interface} represented as a series of "Key = Value" lines
      */
     public String toWgQuickString() {
+        return toWgQuickString(true);
+    }
+
+    /**
+     * Converts the {@code Interface} into a string suitable for inclusion in a {@code wg-quick}
+     * configuration file, optionally leaving out values that only this application understands.
+     *
+     * @param extended Whether to include values that {@code wg-quick} itself would reject, such as
+     *                 an MTU of "auto"
+     * @return The {@code Interface} represented as a series of "Key = Value" lines
+     */
+    public String toWgQuickString(final boolean extended) {
         final StringBuilder sb = new StringBuilder();
         if (!addresses.isEmpty())
             sb.append("Address = ").append(Attribute.join(addresses)).append('\n');
@@ -244,6 +270,8 @@ public final class Interface {
             sb.append("IncludedApplications = ").append(Attribute.join(includedApplications)).append('\n');
         listenPort.ifPresent(lp -> sb.append("ListenPort = ").append(lp).append('\n'));
         mtu.ifPresent(m -> sb.append("MTU = ").append(m).append('\n'));
+        if (mtuAuto && extended)
+            sb.append("MTU = auto\n");
         sb.append("PrivateKey = ").append(keyPair.getPrivateKey().toBase64()).append('\n');
         return sb.toString();
     }
@@ -279,6 +307,8 @@ public final class Interface {
         private Optional<Integer> listenPort = Optional.empty();
         // Defaults to not present.
         private Optional<Integer> mtu = Optional.empty();
+        // Defaults to false.
+        private boolean mtuAuto;
 
         public Builder addAddress(final InetNetwork address) {
             addresses.add(address);
@@ -384,6 +414,8 @@ public final class Interface {
         }
 
         public Builder parseMtu(final String mtu) throws BadConfigException {
+            if ("auto".equalsIgnoreCase(mtu))
+                return setMtuAuto(true);
             try {
                 return setMtu(Integer.parseInt(mtu));
             } catch (final NumberFormatException e) {
@@ -417,6 +449,14 @@ public final class Interface {
                 throw new BadConfigException(Section.INTERFACE, Location.LISTEN_PORT,
                         Reason.INVALID_VALUE, String.valueOf(mtu));
             this.mtu = mtu == 0 ? Optional.empty() : Optional.of(mtu);
+            mtuAuto = false;
+            return this;
+        }
+
+        public Builder setMtuAuto(final boolean mtuAuto) {
+            this.mtuAuto = mtuAuto;
+            if (mtuAuto)
+                mtu = Optional.empty();
             return this;
         }
     }
@@ -0,0 +1,117 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.config;
+
+import com.wireguard.crypto.Key;
+import com.wireguard.util.NonNullForAll;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes a {@link Config} in the userspace configuration format straight into a direct
+ * {@link ByteBuffer}, producing exactly the bytes of {@link Config#toWgUserspaceString()}. Keys are
+ * hex-encoded into the buffer without going through a {@link String}, so the only copy of the
+ * encoded private key lives outside the Java heap, where {@link #wipe(ByteBuffer)} can zero it
+ * once the buffer has been handed to native code.
+ */
+@NonNullForAll
+public final class UapiWriter {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private ByteBuffer buffer;
+
+    private UapiWriter(final int capacity) {
+        buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Encode a configuration in the userspace configuration format.
+     *
+     * @param config The configuration to encode.
+     * @return A direct buffer holding the encoded configuration between position zero and its limit.
+     */
+    public static ByteBuffer encode(final Config config) {
+        final UapiWriter writer = new UapiWriter(INITIAL_CAPACITY);
+        final Interface interfaze = config.getInterface();
+        writer.key("private_key=", interfaze.getKeyPair().getPrivateKey());
+        interfaze.getListenPort().ifPresent(lp -> writer.line("listen_port=", String.valueOf(lp)));
+        writer.line("replace_peers=", "true");
+        for (final Peer peer : config.getPeers()) {
+            // The order here is important: public_key signifies the beginning of a new peer.
+            writer.key("public_key=", peer.getPublicKey());
+            for (final InetNetwork allowedIp : peer.getAllowedIps())
+                writer.line("allowed_ip=", allowedIp.toString());
+            peer.getEndpoint().flatMap(InetEndpoint::getResolved)
+                    .ifPresent(ep -> writer.line("endpoint=", ep.toString()));
+            peer.getPersistentKeepalive()
+                    .ifPresent(pk -> writer.line("persistent_keepalive_interval=", String.valueOf(pk)));
+            peer.getPreSharedKey().ifPresent(psk -> writer.key("preshared_key=", psk));
+        }
+        writer.buffer.flip();
+        return writer.buffer;
+    }
+
+    /**
+     * Encode just enough for a device to shake hands with one peer of a configuration: the private
+     * key of the interface, followed by the public key, resolved endpoint and pre-shared key of the
+     * peer.
+     *
+     * @param config The configuration whose private key to use.
+     * @param peer   The peer to shake hands with.
+     * @return A direct buffer holding the encoded settings between position zero and its limit.
+     */
+    public static ByteBuffer encodeHandshake(final Config config, final Peer peer) {
+        final UapiWriter writer = new UapiWriter(INITIAL_CAPACITY);
+        writer.key("private_key=", config.getInterface().getKeyPair().getPrivateKey());
+        writer.key("public_key=", peer.getPublicKey());
+        peer.getEndpoint().flatMap(InetEndpoint::getResolved)
+                .ifPresent(ep -> writer.line("endpoint=", ep.toString()));
+        peer.getPreSharedKey().ifPresent(psk -> writer.key("preshared_key=", psk));
+        writer.buffer.flip();
+        return writer.buffer;
+    }
+
+    /**
+     * Zero the whole of a buffer, such as one returned by {@link #encode(Config)}, and clear it.
+     *
+     * @param buffer The buffer to wipe.
+     */
+    public static void wipe(final ByteBuffer buffer) {
+        buffer.clear();
+        while (buffer.hasRemaining())
+            buffer.put((byte) 0);
+        buffer.clear();
+    }
+
+    private void ensure(final int length) {
+        if (buffer.remaining() >= length)
+            return;
+        final ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + length));
+        buffer.flip();
+        grown.put(buffer);
+        wipe(buffer);
+        buffer = grown;
+    }
+
+    private void key(final String name, final Key key) {
+        ensure(name.length() + Key.Format.HEX.getLength() + 1);
+        put(name);
+        key.toHex(buffer);
+        buffer.put((byte) '\n');
+    }
+
+    private void line(final String name, final String value) {
+        ensure(name.length() + value.length() + 1);
+        put(name);
+        put(value);
+        buffer.put((byte) '\n');
+    }
+
+    private void put(final String ascii) {
+        for (int i = 0; i < ascii.length(); ++i)
+            buffer.put((byte) ascii.charAt(i));
+    }
+}
@@ -8,6 +8,7 @@ package com.wireguard.crypto;
 import com.wireguard.crypto.KeyFormatException.Type;
 import com.wireguard.util.NonNullForAll;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.util.Arrays;
@@ -268,6 +269,20 @@ public final class Key {
         return new String(output);
     }
 
+    /**
+     * Encodes the key to hexadecimal ASCII characters, writing them to a buffer at its current
+     * position. Unlike {@link #toHex()}, this leaves no copy of the encoded key on the heap when
+     * the buffer is direct.
+     *
+     * @param dest a buffer with room for the encoded key
+     */
+    public void toHex(final ByteBuffer dest) {
+        for (final byte b : key) {
+            dest.put((byte) (87 + (b >> 4 & 0xf) + ((((b >> 4 & 0xf) - 10) >> 8) & ~38)));
+            dest.put((byte) (87 + (b & 0xf) + ((((b & 0xf) - 10) >> 8) & ~38)));
+        }
+    }
+
     /**
      * The supported formats for encoding a WireGuard key.
      */
@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.android.backend.Tunnel.State;
+import com.wireguard.config.Config;
+import com.wireguard.crypto.KeyPair;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import androidx.annotation.Nullable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BackendCommandQueueTest {
+    private static Tunnel tunnel(final String name) {
+        return new Tunnel() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public void onStateChange(final State newState) {
+            }
+        };
+    }
+
+    @Test
+    public void collapses_up_down_up_to_up() throws Exception {
+        final FakeBackend backend = new FakeBackend();
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+        final BackendCommandQueue queue = new BackendCommandQueue(backend, tasks::add);
+        final Tunnel tunnel = tunnel("a");
+        final List<CompletableFuture<State>> futures = new ArrayList<>();
+        futures.add(queue.setState(tunnel, State.UP, null));
+        futures.add(queue.setState(tunnel, State.DOWN, null));
+        futures.add(queue.setState(tunnel, State.UP, null));
+        assertEquals(1, queue.getMetrics().depth());
+        while (!tasks.isEmpty())
+            tasks.poll().run();
+        assertEquals(Collections.singletonList("a UP"), backend.calls);
+        for (final CompletableFuture<State> future : futures)
+            assertEquals(State.UP, future.getNow(null));
+        final BackendCommandQueue.Metrics metrics = queue.getMetrics();
+        assertEquals(0, metrics.depth());
+        assertEquals(3, metrics.submitted());
+        assertEquals(2, metrics.coalesced());
+        assertEquals(1, metrics.executed());
+    }
+
+    @Test
+    public void keeps_order_across_tunnels_and_cancels_double_toggles() throws Exception {
+        final FakeBackend backend = new FakeBackend();
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+        final BackendCommandQueue queue = new BackendCommandQueue(backend, tasks::add);
+        final Tunnel a = tunnel("a");
+        final Tunnel b = tunnel("b");
+        queue.setState(a, State.UP, null);
+        queue.setState(b, State.UP, null);
+        queue.setState(a, State.DOWN, null);
+        final CompletableFuture<State> toggled = queue.setState(b, State.TOGGLE, null);
+        queue.setState(b, State.TOGGLE, null);
+        while (!tasks.isEmpty())
+            tasks.poll().run();
+        assertEquals(List.of("a UP", "b UP", "a DOWN", "b UP"), backend.calls);
+        assertEquals(State.UP, toggled.getNow(null));
+    }
+
+    @Test
+    public void keeps_a_pending_state_when_only_the_config_changes() throws Exception {
+        final FakeBackend backend = new FakeBackend();
+        backend.states.put("a", State.UP);
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+        final BackendCommandQueue queue = new BackendCommandQueue(backend, tasks::add);
+        final Tunnel tunnel = tunnel("a");
+        final Config config = Config.parse(new BufferedReader(new StringReader(
+                "[Interface]\nPrivateKey = " + new KeyPair().getPrivateKey().toBase64() + '\n')));
+        queue.setState(tunnel, State.DOWN, null);
+        final CompletableFuture<State> saved = queue.setConfig(tunnel, config);
+        while (!tasks.isEmpty())
+            tasks.poll().run();
+        assertEquals(Collections.singletonList("a DOWN"), backend.calls);
+        assertSame(config, backend.lastConfig);
+        assertEquals(State.DOWN, saved.getNow(null));
+    }
+
+    @Test
+    public void fails_every_merged_caller() {
+        final FakeBackend backend = new FakeBackend();
+        backend.failing = true;
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+        final BackendCommandQueue queue = new BackendCommandQueue(backend, tasks::add);
+        final Tunnel tunnel = tunnel("a");
+        final CompletableFuture<State> first = queue.setState(tunnel, State.UP, null);
+        final CompletableFuture<State> second = queue.setState(tunnel, State.UP, null);
+        while (!tasks.isEmpty())
+            tasks.poll().run();
+        assertTrue(first.isCompletedExceptionally());
+        assertTrue(second.isCompletedExceptionally());
+    }
+
+    private static final class FakeBackend implements Backend {
+        private final List<String> calls = new ArrayList<>();
+        private final Map<String, State> states = new HashMap<>();
+        private boolean failing;
+        @Nullable private Config lastConfig;
+
+        @Override
+        public Set<String> getRunningTunnelNames() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public State getState(final Tunnel tunnel) {
+            return states.getOrDefault(tunnel.getName(), State.DOWN);
+        }
+
+        @Override
+        public Statistics getStatistics(final Tunnel tunnel) {
+            return new Statistics();
+        }
+
+        @Override
+        public String getVersion() {
+            return "fake";
+        }
+
+        @Override
+        public boolean isAlwaysOn() {
+            return false;
+        }
+
+        @Override
+        public boolean isLockdownEnabled() {
+            return false;
+        }
+
+        @Override
+        public State setState(final Tunnel tunnel, final State state, @Nullable final Config config) throws Exception {
+            if (failing)
+                throw new BackendException(BackendException.Reason.TUNNEL_MISSING_CONFIG);
+            final State target = state == State.TOGGLE ? (getState(tunnel) == State.UP ? State.DOWN : State.UP) : state;
+            calls.add(tunnel.getName() + ' ' + target);
+            lastConfig = config;
+            states.put(tunnel.getName(), target);
+            return target;
+        }
+    }
+}
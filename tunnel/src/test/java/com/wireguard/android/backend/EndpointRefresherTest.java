@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.android.backend.EndpointRefresher.Resolution;
+import com.wireguard.config.Config;
+import com.wireguard.config.InetEndpoint;
+import com.wireguard.crypto.KeyPair;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EndpointRefresherTest {
+    private static Config config(final String endpoint) throws Exception {
+        final String text = "[Interface]\nPrivateKey = " + new KeyPair().getPrivateKey().toBase64()
+                + "\n\n[Peer]\nPublicKey = " + new KeyPair().getPublicKey().toBase64()
+                + "\nEndpoint = " + endpoint + '\n';
+        return Config.parse(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void drain(final ScheduledExecutorService executor) throws Exception {
+        executor.submit(() -> { }).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void coalesces_lookups_and_updates_every_tunnel() throws Exception {
+        final InetAddress moved = InetAddress.getByAddress(new byte[]{(byte) 192, 0, 2, 1});
+        final AtomicInteger lookups = new AtomicInteger();
+        final EndpointRefresher refresher = new EndpointRefresher(host -> {
+            lookups.incrementAndGet();
+            return new Resolution(moved, 60);
+        });
+        final Map<String, InetEndpoint> updates = new ConcurrentHashMap<>();
+        final CountDownLatch updated = new CountDownLatch(2);
+        final EndpointRefresher.Updater updater = (tunnelName, peer, endpoint) -> {
+            updates.put(tunnelName, endpoint);
+            updated.countDown();
+        };
+        refresher.track("a", config("localhost:51820"), updater);
+        refresher.track("b", config("localhost:51821"), updater);
+        assertTrue(updated.await(5, TimeUnit.SECONDS));
+        assertEquals(1, lookups.get());
+        assertEquals("192.0.2.1:51820", String.valueOf(updates.get("a")));
+        assertEquals("192.0.2.1:51821", String.valueOf(updates.get("b")));
+    }
+
+    @Test
+    public void leaves_unchanged_and_numeric_endpoints_alone() throws Exception {
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        final AtomicInteger lookups = new AtomicInteger();
+        final EndpointRefresher refresher = new EndpointRefresher(host -> {
+            lookups.incrementAndGet();
+            return new Resolution(InetAddress.getByName("localhost"), 60);
+        }, executor);
+        final AtomicInteger updates = new AtomicInteger();
+        refresher.track("a", config("localhost:51820"), (tunnelName, peer, endpoint) -> updates.incrementAndGet());
+        refresher.track("b", config("192.0.2.1:51820"), (tunnelName, peer, endpoint) -> updates.incrementAndGet());
+        drain(executor);
+        drain(executor);
+        assertEquals(1, lookups.get());
+        assertEquals(0, updates.get());
+        executor.shutdownNow();
+    }
+}
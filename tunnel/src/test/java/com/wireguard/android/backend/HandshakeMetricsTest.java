@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.android.backend.HandshakeMetrics.PeerMetrics;
+import com.wireguard.crypto.Key;
+import com.wireguard.crypto.KeyPair;
+
+import org.junit.Test;
+
+import java.util.Objects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HandshakeMetricsTest {
+    private static final Key PEER = new KeyPair().getPublicKey();
+    private static final long UP = 1_700_000_000_000L;
+
+    private static void observe(final HandshakeMetrics metrics, final long tx, final long handshake, final long now) {
+        final Statistics statistics = new Statistics();
+        statistics.add(PEER, 0, tx, handshake);
+        metrics.observe("wg0", statistics, now);
+    }
+
+    @Test
+    public void buckets_are_log2_seconds() {
+        assertEquals(0, HandshakeMetrics.bucketFor(999));
+        assertEquals(1, HandshakeMetrics.bucketFor(1_000));
+        assertEquals(7, HandshakeMetrics.bucketFor(120_000));
+        assertEquals(HandshakeMetrics.HISTOGRAM_BUCKETS - 1, HandshakeMetrics.bucketFor(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void records_first_handshake_and_rekeys() {
+        final HandshakeMetrics metrics = new HandshakeMetrics();
+        metrics.onTunnelUp("wg0", UP);
+        observe(metrics, 0, 0, UP + 100);
+        observe(metrics, 100, UP + 350, UP + 1_000);
+        observe(metrics, 200, UP + 350 + 121_000, UP + 125_000);
+        observe(metrics, 300, UP + 350 + 242_000, UP + 250_000);
+
+        final PeerMetrics peer = Objects.requireNonNull(metrics.getMetrics("wg0", PEER));
+        assertEquals(350, peer.timeToFirstHandshakeMillis());
+        assertEquals(2, peer.rekeys());
+        assertEquals(2, peer.rekeyIntervalHistogram()[HandshakeMetrics.bucketFor(121_000)]);
+        assertEquals(0, peer.missedRekeys());
+        // Traffic waited for the first handshake, but never after that.
+        assertEquals(250, peer.staleMillis());
+        assertEquals(250_000 - 350 - 242_000, peer.latestHandshakeAgeMillis());
+    }
+
+    @Test
+    public void counts_missed_rekey_and_stale_time_while_sending() {
+        final HandshakeMetrics metrics = new HandshakeMetrics();
+        metrics.onTunnelUp("wg0", UP);
+        observe(metrics, 100, UP, UP);
+        observe(metrics, 200, UP, UP + 190_000);
+        observe(metrics, 300, UP + 200_000, UP + 205_000);
+
+        final PeerMetrics peer = Objects.requireNonNull(metrics.getMetrics("wg0", PEER));
+        assertEquals(1, peer.missedRekeys());
+        // The first session expired at 180s and was only replaced at 200s.
+        assertEquals(20_000, peer.staleMillis());
+    }
+
+    @Test
+    public void idle_peer_is_only_stale_while_sending() {
+        final HandshakeMetrics metrics = new HandshakeMetrics();
+        metrics.onTunnelUp("wg0", UP);
+        observe(metrics, 100, UP, UP);
+        observe(metrics, 100, UP, UP + 600_000);
+        observe(metrics, 200, UP + 600_500, UP + 601_000);
+
+        final PeerMetrics peer = Objects.requireNonNull(metrics.getMetrics("wg0", PEER));
+        assertEquals(0, peer.missedRekeys());
+        // Only the wait for the new handshake once traffic resumed at 600s counts.
+        assertEquals(500, peer.staleMillis());
+    }
+
+    @Test
+    public void measures_recovery_after_network_change() {
+        final HandshakeMetrics metrics = new HandshakeMetrics();
+        metrics.onTunnelUp("wg0", UP);
+        observe(metrics, 100, UP + 50, UP + 100);
+        metrics.onNetworkChange("wg0", UP + 60_000);
+        observe(metrics, 200, UP + 50, UP + 61_000);
+        assertEquals(-1, Objects.requireNonNull(metrics.getMetrics("wg0", PEER)).networkRecoveryMillis());
+        observe(metrics, 300, UP + 60_400, UP + 62_000);
+        assertEquals(400, Objects.requireNonNull(metrics.getMetrics("wg0", PEER)).networkRecoveryMillis());
+    }
+
+    @Test
+    public void forgets_tunnel_when_down() {
+        final HandshakeMetrics metrics = new HandshakeMetrics();
+        metrics.onTunnelUp("wg0", UP);
+        observe(metrics, 0, UP + 10, UP + 20);
+        metrics.onTunnelDown("wg0");
+        observe(metrics, 0, UP + 10, UP + 30);
+        assertNull(metrics.getMetrics("wg0", PEER));
+        assertEquals(0, metrics.getMetrics("wg0").size());
+    }
+}
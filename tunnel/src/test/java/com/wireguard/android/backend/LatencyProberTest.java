@@ -0,0 +1,151 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.config.Config;
+import com.wireguard.config.InetEndpoint;
+import com.wireguard.crypto.KeyPair;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyProberTest {
+    private final List<DatagramSocket> servers = new ArrayList<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final AtomicInteger probes = new AtomicInteger();
+
+    // Sends a datagram to the peer and waits for any answer, standing in for a handshake.
+    private final LatencyProber.Probe udpProbe = (config, peer, timeoutMillis) -> {
+        probes.incrementAndGet();
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try (final DatagramSocket socket = new DatagramSocket()) {
+            final InetEndpoint endpoint = peer.getEndpoint().orElseThrow();
+            socket.setSoTimeout(timeoutMillis);
+            final long start = System.nanoTime();
+            socket.send(new DatagramPacket(new byte[1], 1, InetAddress.getByName(endpoint.getHost()), endpoint.getPort()));
+            socket.receive(new DatagramPacket(new byte[1], 1));
+            return System.nanoTime() - start;
+        } catch (final SocketTimeoutException e) {
+            return LatencyProber.UNREACHABLE;
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    };
+
+    // Starts a stand-in server that answers every datagram after the given delay, or never if negative.
+    private int server(final long delayMillis) throws Exception {
+        final DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        servers.add(socket);
+        final Thread thread = new Thread(() -> {
+            final byte[] buffer = new byte[16];
+            while (!socket.isClosed()) {
+                try {
+                    final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    socket.receive(packet);
+                    if (delayMillis < 0)
+                        continue;
+                    Thread.sleep(delayMillis);
+                    socket.send(new DatagramPacket(new byte[1], 1, packet.getSocketAddress()));
+                } catch (final Exception ignored) {
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return socket.getLocalPort();
+    }
+
+    private static Config config(final int... ports) throws Exception {
+        final StringBuilder sb = new StringBuilder("[Interface]\nPrivateKey = ")
+                .append(new KeyPair().getPrivateKey().toBase64()).append('\n');
+        for (final int port : ports) {
+            sb.append("[Peer]\nPublicKey = ").append(new KeyPair().getPublicKey().toBase64())
+                    .append("\nAllowedIPs = 0.0.0.0/0\nEndpoint = 127.0.0.1:").append(port).append('\n');
+        }
+        return Config.parse(new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @After
+    public void tearDown() {
+        for (final DatagramSocket socket : servers)
+            socket.close();
+    }
+
+    @Test
+    public void picks_fastest_reachable_tunnel() throws Exception {
+        final Map<String, Config> candidates = new HashMap<>();
+        candidates.put("slow", config(server(150)));
+        candidates.put("fast", config(server(5)));
+        candidates.put("silent", config(server(-1)));
+        // A tunnel is as fast as its fastest peer.
+        candidates.put("mixed", config(server(-1), server(60)));
+
+        final LatencyProber prober = new LatencyProber(udpProbe, 2, 60_000);
+        final Map<String, Long> results = prober.probeAll(candidates, 500, Collections.emptySet());
+        assertEquals(LatencyProber.UNREACHABLE, (long) Objects.requireNonNull(results.get("silent")));
+        assertTrue(results.get("mixed") > 0 && results.get("mixed") < results.get("slow"));
+        assertEquals("fast", prober.fastest(candidates, 500, Collections.emptySet()));
+        assertTrue(maxInFlight.get() <= 2);
+    }
+
+    @Test
+    public void caches_until_config_changes() throws Exception {
+        final int port = server(5);
+        final Map<String, Config> candidates = new HashMap<>();
+        candidates.put("wg0", config(port));
+        final LatencyProber prober = new LatencyProber(udpProbe, 4, 60_000);
+
+        assertEquals("wg0", prober.fastest(candidates, 500, Collections.emptySet()));
+        assertEquals("wg0", prober.fastest(candidates, 500, Collections.emptySet()));
+        assertEquals(1, probes.get());
+
+        candidates.put("wg0", config(port));
+        prober.fastest(candidates, 500, Collections.emptySet());
+        assertEquals(2, probes.get());
+
+        prober.invalidate();
+        prober.fastest(candidates, 500, Collections.emptySet());
+        assertEquals(3, probes.get());
+    }
+
+    @Test
+    public void never_probes_excluded_tunnels() throws Exception {
+        final Map<String, Config> candidates = new HashMap<>();
+        candidates.put("running", config(server(5)));
+        final LatencyProber prober = new LatencyProber(udpProbe, 4, 60_000);
+        assertNull(prober.fastest(candidates, 500, Collections.singleton("running")));
+        assertEquals(0, probes.get());
+    }
+
+    @Test
+    public void expired_results_are_probed_again() throws Exception {
+        final Map<String, Config> candidates = new HashMap<>();
+        candidates.put("wg0", config(server(5)));
+        final LatencyProber prober = new LatencyProber(udpProbe, 4, 0);
+        prober.fastest(candidates, 500, Collections.emptySet());
+        prober.fastest(candidates, 500, Collections.emptySet());
+        assertEquals(2, probes.get());
+    }
+}
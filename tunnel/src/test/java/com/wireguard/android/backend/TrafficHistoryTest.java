@@ -0,0 +1,130 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.android.backend.TrafficHistory.Resolution;
+import com.wireguard.android.backend.TrafficHistory.Sample;
+import com.wireguard.crypto.Key;
+import com.wireguard.crypto.KeyPair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TrafficHistoryTest {
+    private static final long MINUTE = Resolution.MINUTE.getPeriodMillis();
+    private static final long DAY = Resolution.DAY.getPeriodMillis();
+    private static final long NOW = 20_000 * DAY;
+    private final Key peerA = new KeyPair().getPublicKey();
+    private final Key peerB = new KeyPair().getPublicKey();
+    private File directory;
+
+    private static Statistics statistics(final Key peer, final long rx, final long tx) {
+        final Statistics statistics = new Statistics();
+        statistics.add(peer, rx, tx, 0);
+        return statistics;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("traffic").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] dirs = directory.listFiles();
+        if (dirs != null) {
+            for (final File dir : dirs) {
+                final File[] files = dir.listFiles();
+                if (files != null) {
+                    for (final File file : files)
+                        file.delete();
+                }
+                dir.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void records_deltas_at_every_resolution() throws IOException {
+        final TrafficHistory history = new TrafficHistory(directory);
+        history.record("wg0", statistics(peerA, 100, 10), NOW);
+        history.record("wg0", statistics(peerA, 250, 30), NOW + MINUTE);
+        history.record("wg0", statistics(peerA, 300, 35), NOW + 2 * MINUTE);
+
+        final List<Sample> minutes = history.range("wg0", null, Resolution.MINUTE, NOW, NOW + 3 * MINUTE);
+        assertEquals(3, minutes.size());
+        assertEquals(new Sample(NOW + MINUTE, 150, 20), minutes.get(1));
+        assertEquals(new Sample(NOW, 300, 35), history.total("wg0", null, Resolution.DAY, NOW, NOW + DAY));
+        assertEquals(new Sample(NOW, 300, 35), history.total("wg0", peerA, Resolution.HOUR, NOW, NOW + DAY));
+    }
+
+    @Test
+    public void reconnect_counts_the_first_reading_in_full() throws IOException {
+        TrafficHistory history = new TrafficHistory(directory);
+        history.record("wg0", statistics(peerA, 100, 10), NOW);
+        history.close();
+        // The process restarts while the tunnel is down, and the new session overtakes the old
+        // counters before the first reading, which must not be mistaken for a delta.
+        history = new TrafficHistory(directory);
+        history.startSession("wg0");
+        history.record("wg0", statistics(peerA, 150, 20), NOW + MINUTE);
+        assertEquals(new Sample(NOW, 250, 30), history.total("wg0", null, Resolution.DAY, NOW, NOW + DAY));
+        assertEquals(new Sample(NOW, 250, 30), history.total("wg0", peerA, Resolution.DAY, NOW, NOW + DAY));
+        history.record("wg0", statistics(peerA, 160, 20), NOW + 2 * MINUTE);
+        assertEquals(new Sample(NOW, 260, 30), history.total("wg0", null, Resolution.DAY, NOW, NOW + DAY));
+    }
+
+    @Test
+    public void counter_reset_starts_from_zero() throws IOException {
+        final TrafficHistory history = new TrafficHistory(directory);
+        history.record("wg0", statistics(peerA, 1_000, 1_000), NOW);
+        history.record("wg0", statistics(peerA, 40, 60), NOW + MINUTE);
+        assertEquals(new Sample(NOW, 1_040, 1_060), history.total("wg0", null, Resolution.DAY, NOW, NOW + DAY));
+    }
+
+    @Test
+    public void survives_reopening() throws IOException {
+        TrafficHistory history = new TrafficHistory(directory);
+        history.record("wg0", statistics(peerA, 100, 100), NOW);
+        history.record("wg0", statistics(peerB, 7, 8), NOW);
+        history.close();
+
+        history = new TrafficHistory(directory);
+        history.record("wg0", statistics(peerA, 150, 120), NOW + MINUTE);
+        assertEquals(new Sample(NOW, 157, 128), history.total("wg0", null, Resolution.MINUTE, NOW, NOW + 2 * MINUTE));
+        assertEquals(new Sample(NOW, 7, 8), history.total("wg0", peerB, Resolution.MINUTE, NOW, NOW + 2 * MINUTE));
+    }
+
+    @Test
+    public void old_slots_are_overwritten() throws IOException {
+        final TrafficHistory history = new TrafficHistory(directory);
+        history.record("wg0", statistics(peerA, 100, 0), NOW);
+        history.record("wg0", statistics(peerA, 300, 0), NOW + DAY);
+        assertTrue(history.range("wg0", null, Resolution.MINUTE, NOW, NOW + 1).isEmpty());
+        assertEquals(2, history.range("wg0", null, Resolution.DAY, NOW, NOW + 2 * DAY).size());
+    }
+
+    @Test
+    public void rename_and_delete() throws IOException {
+        final TrafficHistory history = new TrafficHistory(directory);
+        history.record("wg0", statistics(peerA, 100, 0), NOW);
+        history.rename("wg0", "wg1");
+        assertEquals(100, history.total("wg1", null, Resolution.DAY, NOW, NOW + DAY).rxBytes());
+        assertEquals(0, history.total("wg0", null, Resolution.DAY, NOW, NOW + DAY).rxBytes());
+        history.delete("wg1");
+        assertEquals(0, history.total("wg1", null, Resolution.DAY, NOW, NOW + DAY).rxBytes());
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.android.backend.EndpointRefresher.Resolution;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TtlResolverTest {
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+
+    // A response to "vpn.example A" that goes through a CNAME first.
+    private static byte[] response() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(new byte[]{0, 0, (byte) 0x81, (byte) 0x80, 0, 1, 0, 2, 0, 0, 0, 0});
+        out.writeBytes(new byte[]{3, 'v', 'p', 'n', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 0, 0, 1, 0, 1});
+        out.writeBytes(new byte[]{(byte) 0xc0, 12, 0, 5, 0, 1, 0, 0, 1, 44, 0, 4, 1, 'x', (byte) 0xc0, 16});
+        out.writeBytes(new byte[]{1, 'x', (byte) 0xc0, 16, 0, 1, 0, 1, 0, 0, 0, 60, 0, 4, (byte) 192, 0, 2, 7});
+        return out.toByteArray();
+    }
+
+    @Test
+    public void reads_address_and_lowest_ttl() throws IOException {
+        final Resolution resolution = Objects.requireNonNull(TtlResolver.parse(response(), TYPE_A));
+        assertEquals("192.0.2.7", resolution.address().getHostAddress());
+        assertEquals(60, resolution.ttlSeconds());
+    }
+
+    @Test
+    public void ignores_other_record_types() throws IOException {
+        assertNull(TtlResolver.parse(response(), TYPE_AAAA));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejects_truncated_response() throws IOException {
+        final byte[] response = response();
+        TtlResolver.parse(Arrays.copyOf(response, response.length - 3), TYPE_A);
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.crypto.KeyPair;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TunnelEventTest {
+    @Test
+    public void parses_peer_and_device_events() {
+        final String peer = new KeyPair().getPublicKey().toHex();
+        final TunnelEvent changed = TunnelEvent.parse("5\twg0\t1700000000000\t" + peer + "\t192.0.2.1:51820");
+        assertEquals(TunnelEvent.Type.ENDPOINT_CHANGED, changed.type());
+        assertEquals("wg0", changed.tunnelName());
+        assertEquals(1700000000000L, changed.epochMillis());
+        assertEquals(peer, changed.peer().toHex());
+        assertEquals("192.0.2.1:51820", changed.detail());
+
+        final TunnelEvent up = TunnelEvent.parse("1\twg0\t1700000000000\t\t");
+        assertEquals(TunnelEvent.Type.DEVICE_UP, up.type());
+        assertNull(up.peer());
+        assertEquals("", up.detail());
+    }
+
+    @Test
+    public void rejects_malformed_events() {
+        assertNull(TunnelEvent.parse("9\twg0\t0\t\t"));
+        assertNull(TunnelEvent.parse("3\twg0\t0\tnot-a-key\t"));
+        assertNull(TunnelEvent.parse("3\twg0\t0"));
+    }
+}
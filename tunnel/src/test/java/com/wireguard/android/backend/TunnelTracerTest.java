@@ -0,0 +1,125 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.android.backend.Tunnel.State;
+import com.wireguard.android.backend.TunnelTracer.Change;
+import com.wireguard.android.backend.TunnelTracer.Phase;
+import com.wireguard.android.backend.TunnelTracer.PhaseTiming;
+import com.wireguard.android.backend.TunnelTracer.Transition;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TunnelTracerTest {
+    private static final Tunnel TUNNEL = new Tunnel() {
+        @Override
+        public String getName() {
+            return "wg0";
+        }
+
+        @Override
+        public void onStateChange(final State newState) {
+        }
+    };
+
+    private static List<Phase> phases(final Transition transition) {
+        final List<Phase> phases = new ArrayList<>();
+        for (final PhaseTiming timing : transition.phases())
+            phases.add(timing.phase());
+        return phases;
+    }
+
+    @Test
+    public void records_each_phase_once_in_order() {
+        final TunnelTracer tracer = new TunnelTracer();
+        final List<Transition> finished = new ArrayList<>();
+        tracer.addListener(finished::add);
+        final TunnelTracer.Span span = tracer.begin(TUNNEL, State.UP);
+        span.phase(Phase.DNS_RESOLUTION);
+        span.phase(Phase.CONFIG_SERIALIZATION);
+        span.phase(Phase.DEVICE_START);
+        span.finish();
+
+        assertEquals(1, finished.size());
+        final Transition transition = finished.get(0);
+        assertEquals(Collections.singletonList(new Change("wg0", State.UP)), transition.changes());
+        assertEquals(Arrays.asList(Phase.DNS_RESOLUTION, Phase.CONFIG_SERIALIZATION, Phase.DEVICE_START),
+                phases(transition));
+        long phaseNanos = 0;
+        for (final PhaseTiming timing : transition.phases()) {
+            assertTrue(timing.durationNanos() >= 0);
+            phaseNanos += timing.durationNanos();
+        }
+        assertTrue(phaseNanos <= transition.totalDurationNanos());
+        assertNull(transition.phase(Phase.TUN_ESTABLISH));
+        assertEquals(0, transition.preparedNanos());
+        assertNull(transition.failure());
+        assertEquals(finished, tracer.getHistory());
+    }
+
+    @Test
+    public void credits_the_prepared_work_without_adding_a_phase() {
+        final TunnelTracer tracer = new TunnelTracer();
+        final TunnelTracer.Span span = tracer.begin(TUNNEL, State.UP);
+        span.prepared(42_000_000);
+        span.phase(Phase.TUN_ESTABLISH);
+        span.finish();
+
+        final Transition transition = tracer.getHistory().get(0);
+        assertEquals(42_000_000, transition.preparedNanos());
+        assertEquals(Collections.singletonList(Phase.TUN_ESTABLISH), phases(transition));
+        assertTrue(transition.toString().contains(" prepared=42.0ms"));
+    }
+
+    @Test
+    public void failure_ends_the_current_phase() {
+        final TunnelTracer tracer = new TunnelTracer();
+        final TunnelTracer.Span span = tracer.begin(TUNNEL, State.UP);
+        span.phase(Phase.DNS_RESOLUTION);
+        span.fail(new BackendException(BackendException.Reason.DNS_RESOLUTION_FAILURE));
+
+        final Transition transition = tracer.getHistory().get(0);
+        assertEquals(Collections.singletonList(Phase.DNS_RESOLUTION), phases(transition));
+        assertTrue(transition.failure() != null && transition.failure().contains("BackendException"));
+        assertTrue(transition.toString().contains(" failed: "));
+    }
+
+    @Test
+    public void batch_is_one_transition() {
+        final TunnelTracer tracer = new TunnelTracer();
+        final TunnelTracer.Span span = tracer.begin(Arrays.asList(new Change("wg0", State.DOWN),
+                new Change("wg1", State.UP)));
+        span.phase(Phase.CONFIG_WRITE);
+        span.phase(Phase.WG_QUICK);
+        span.fail("wg1 FAILED (exit code 1)");
+
+        assertEquals(1, tracer.getHistory().size());
+        final Transition transition = tracer.getHistory().get(0);
+        assertEquals(Arrays.asList(Phase.CONFIG_WRITE, Phase.WG_QUICK), phases(transition));
+        assertEquals("wg1 FAILED (exit code 1)", transition.failure());
+        assertTrue(transition.toString().startsWith("wg0 DOWN, wg1 UP @"));
+    }
+
+    @Test
+    public void keeps_only_the_most_recent_transitions() {
+        final TunnelTracer tracer = new TunnelTracer(2);
+        for (final State state : new State[]{State.UP, State.DOWN, State.UP})
+            tracer.begin(TUNNEL, state).finish();
+        final List<Transition> history = tracer.getHistory();
+        assertEquals(2, history.size());
+        assertEquals(State.DOWN, history.get(0).changes().get(0).state());
+        assertEquals(State.UP, history.get(1).changes().get(0).state());
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.android.backend.Statistics.PeerStats;
+import com.wireguard.crypto.Key;
+import com.wireguard.crypto.KeyPair;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WgDumpSnapshotTest {
+    private static String iface(final String name) {
+        final KeyPair keyPair = new KeyPair();
+        return name + '\t' + keyPair.getPrivateKey().toBase64() + '\t' + keyPair.getPublicKey().toBase64()
+                + "\t51820\toff";
+    }
+
+    private static String peer(final String name, final Key key, final long handshake, final long rx, final long tx) {
+        return name + '\t' + key.toBase64() + "\t(none)\t192.0.2.1:51820\t0.0.0.0/0\t" + handshake + '\t' + rx
+                + '\t' + tx + "\toff";
+    }
+
+    @Test
+    public void parses_every_interface_and_peer() {
+        final Key a = new KeyPair().getPublicKey();
+        final Key b = new KeyPair().getPublicKey();
+        final WgDumpSnapshot snapshot = WgDumpSnapshot.parse(List.of(
+                iface("home"),
+                peer("home", a, 1700000000, 100, 200),
+                iface("idle"),
+                iface("work"),
+                peer("work", b, 0, 0, 0),
+                "garbage"), 0);
+        assertEquals(Set.of("home", "idle", "work"), snapshot.getInterfaceNames());
+
+        final PeerStats home = snapshot.getStatistics("home").peer(a);
+        assertEquals(new PeerStats(100, 200, 1700000000000L), home);
+        assertEquals(0, snapshot.getStatistics("idle").peers().length);
+        assertEquals(1, snapshot.getStatistics("work").peers().length);
+        assertEquals(0, snapshot.getStatistics("missing").peers().length);
+    }
+
+    @Test
+    public void expires_after_validity_window() {
+        final WgDumpSnapshot snapshot = WgDumpSnapshot.parse(List.of(), 1000);
+        assertTrue(snapshot.getInterfaceNames().isEmpty());
+        assertTrue(snapshot.isFresh(1999, 1000));
+        assertFalse(snapshot.isFresh(2000, 1000));
+    }
+}
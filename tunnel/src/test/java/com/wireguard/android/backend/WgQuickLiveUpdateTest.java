@@ -0,0 +1,63 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.config.Config;
+import com.wireguard.crypto.KeyPair;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WgQuickLiveUpdateTest {
+    private static final String PRIVATE_KEY = new KeyPair().getPrivateKey().toBase64();
+    private static final String PEER_KEY = new KeyPair().getPublicKey().toBase64();
+
+    private static Config config(final String interfaceLines, final String allowedIps) throws Exception {
+        final String text = "[Interface]\nPrivateKey = " + PRIVATE_KEY + '\n' + interfaceLines
+                + "[Peer]\nPublicKey = " + PEER_KEY + "\nAllowedIPs = " + allowedIps + "\nEndpoint = 192.0.2.1:51820\n";
+        return Config.parse(new BufferedReader(new StringReader(text)));
+    }
+
+    @Test
+    public void syncs_peers_from_a_file_and_sets_the_mtu_through_netd() throws Exception {
+        final Config running = config("Address = 10.0.0.2/32\nMTU = 1420\n", "10.0.0.0/24");
+        final Config updated = config("Address = 10.0.0.2/32\nMTU = 1280\n", "10.0.0.0/24");
+        final String script = WgQuickLiveUpdate.script("wg0", running, updated, "/data/tmp/peers.conf");
+        assertNotNull(script);
+        assertTrue(script.contains("wg syncconf 'wg0' '/data/tmp/peers.conf'\n"));
+        assertFalse(script.contains(PEER_KEY));
+        assertTrue(script.contains("ndc interface setmtu 'wg0' 1280\n"));
+        final String peers = WgQuickLiveUpdate.peersConfig(updated);
+        assertTrue(peers.contains("PublicKey = " + PEER_KEY));
+        assertFalse(peers.contains(PRIVATE_KEY));
+        assertEquals("", WgQuickLiveUpdate.script("wg0", running, running, null));
+    }
+
+    @Test
+    public void restarts_when_interface_identity_or_dns_changes() throws Exception {
+        final Config running = config("Address = 10.0.0.2/32\n", "10.0.0.0/24");
+        assertNull(WgQuickLiveUpdate.script("wg0", running, config("Address = 10.0.0.2/32\nListenPort = 51820\n", "10.0.0.0/24"), null));
+        assertNull(WgQuickLiveUpdate.script("wg0", running, config("Address = 10.0.0.2/32\nDNS = 192.0.2.53\n", "10.0.0.0/24"), null));
+        final Config rekeyed = Config.parse(new BufferedReader(new StringReader(running.toWgQuickString()
+                .replace(PRIVATE_KEY, new KeyPair().getPrivateKey().toBase64()))));
+        assertNull(WgQuickLiveUpdate.script("wg0", running, rekeyed, null));
+    }
+
+    @Test
+    public void restarts_when_addresses_or_routes_change() throws Exception {
+        final Config running = config("Address = 10.0.0.2/32\n", "10.0.0.0/24");
+        assertNull(WgQuickLiveUpdate.script("wg0", running, config("Address = 10.0.0.3/32\n", "10.0.0.0/24"), null));
+        assertNull(WgQuickLiveUpdate.script("wg0", running, config("Address = 10.0.0.2/32\n", "10.0.0.0/24, 10.1.0.0/16"), null));
+    }
+}
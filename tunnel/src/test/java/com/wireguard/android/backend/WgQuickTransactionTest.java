@@ -0,0 +1,107 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.android.backend.Tunnel.State;
+import com.wireguard.android.backend.WgQuickTransaction.Operation;
+import com.wireguard.android.backend.WgQuickTransaction.Result;
+import com.wireguard.android.backend.WgQuickTransaction.Status;
+import com.wireguard.config.Config;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WgQuickTransactionTest {
+    // Stands in for wg-quick, logging each call and failing for any configuration named "bad".
+    private static final String FAKE_WG_QUICK = "#!/bin/sh\necho \"call $1 $2\"\n[ \"$2\" != bad ]\n";
+
+    private static Operation operation(final String name, final State state) throws Exception {
+        final Config config;
+        try (final InputStream is = Objects.requireNonNull(WgQuickTransactionTest.class.getClassLoader())
+                .getResourceAsStream("working.conf")) {
+            config = Config.parse(is);
+        }
+        return new Operation(new Tunnel() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public void onStateChange(final State newState) {
+            }
+        }, state, config);
+    }
+
+    private static List<Result> run(final WgQuickTransaction transaction, final List<String> output) throws Exception {
+        final List<String> paths = transaction.getOperations().stream()
+                .map(operation -> operation.tunnel().getName())
+                .collect(Collectors.toList());
+        final File bin = Files.createTempDirectory("wg-transaction").toFile();
+        final File wgQuick = new File(bin, "wg-quick");
+        Files.write(wgQuick.toPath(), FAKE_WG_QUICK.getBytes(StandardCharsets.UTF_8));
+        assertTrue(wgQuick.setExecutable(true));
+        final ProcessBuilder builder = new ProcessBuilder("sh", "-c", transaction.script(paths));
+        builder.environment().put("PATH", bin + File.pathSeparator + System.getenv("PATH"));
+        final Process process = builder.start();
+        try (final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null)
+                output.add(line);
+        }
+        final int exitCode = process.waitFor();
+        assertTrue(wgQuick.delete() && bin.delete());
+        return transaction.parse(output, exitCode);
+    }
+
+    private static List<Status> statuses(final List<Result> results) {
+        return results.stream().map(Result::status).collect(Collectors.toList());
+    }
+
+    @Test
+    public void applies_every_operation_in_order() throws Exception {
+        final List<String> output = new ArrayList<>();
+        final List<Result> results = run(new WgQuickTransaction(List.of(
+                operation("a", State.DOWN), operation("b", State.UP))), output);
+        assertEquals(List.of(Status.APPLIED, Status.APPLIED), statuses(results));
+        assertEquals(List.of("call down a", "call up b"),
+                output.stream().filter(line -> line.startsWith("call")).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void rolls_back_in_reverse_order_on_failure() throws Exception {
+        final List<String> output = new ArrayList<>();
+        final List<Result> results = run(new WgQuickTransaction(List.of(
+                operation("a", State.DOWN), operation("b", State.UP), operation("bad", State.UP),
+                operation("c", State.UP))), output);
+        assertEquals(List.of(Status.ROLLED_BACK, Status.ROLLED_BACK, Status.FAILED, Status.SKIPPED),
+                statuses(results));
+        assertEquals(1, results.get(2).exitCode());
+        assertEquals(List.of("call down a", "call up b", "call up bad", "call down b", "call up a"),
+                output.stream().filter(line -> line.startsWith("call")).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void blames_first_operation_when_script_aborts_early() throws Exception {
+        final WgQuickTransaction transaction = new WgQuickTransaction(List.of(
+                operation("a", State.UP), operation("b", State.UP)));
+        assertEquals(List.of(Status.FAILED, Status.SKIPPED), statuses(transaction.parse(List.of(), 1)));
+    }
+}
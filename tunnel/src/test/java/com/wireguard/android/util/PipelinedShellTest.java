@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PipelinedShellTest {
+    private static PipelinedShell shell() throws Exception {
+        final PipelinedShell shell = new PipelinedShell(List.of("sh"), "");
+        shell.start();
+        return shell;
+    }
+
+    @Test
+    public void runs_pipelined_commands_in_order() throws Exception {
+        try (final PipelinedShell shell = shell()) {
+            final List<String> first = new ArrayList<>();
+            final List<String> second = new ArrayList<>();
+            final List<String> third = new ArrayList<>();
+            final CompletableFuture<Integer> a = shell.submit(first, "echo one; echo two");
+            final CompletableFuture<Integer> b = shell.submit(second, "printf 'no newline'; exit 3");
+            final CompletableFuture<Integer> c = shell.submit(third, "echo '0 o 99'; echo; echo; read x; echo \"[$x]\"");
+            assertEquals(0, (int) a.get(5, TimeUnit.SECONDS));
+            assertEquals(3, (int) b.get(5, TimeUnit.SECONDS));
+            assertEquals(0, (int) c.get(5, TimeUnit.SECONDS));
+            assertEquals(List.of("one", "two"), first);
+            assertEquals(List.of("no newline"), second);
+            // Output that looks like a frame stays output, and commands cannot read the ones after them.
+            assertEquals(List.of("0 o 99", "", "", "[]"), third);
+        }
+    }
+
+    @Test
+    public void drains_large_stderr_while_reading_stdout() throws Exception {
+        try (final PipelinedShell shell = shell()) {
+            final AtomicInteger stderrLines = new AtomicInteger();
+            final List<String> stdout = new ArrayList<>();
+            final CompletableFuture<Integer> future = shell.submit(
+                    "i=0; while [ $i -lt 2000 ]; do echo \"error line $i with some padding to fill the pipe\" >&2; i=$((i+1)); done; echo done",
+                    new PipelinedShell.OutputListener() {
+                        @Override
+                        public void onStdout(final String line) {
+                            stdout.add(line);
+                        }
+
+                        @Override
+                        public void onStderr(final String line) {
+                            stderrLines.incrementAndGet();
+                        }
+                    });
+            assertEquals(0, (int) future.get(30, TimeUnit.SECONDS));
+            assertEquals(2000, stderrLines.get());
+            assertEquals(List.of("done"), stdout);
+        }
+    }
+
+    @Test
+    public void fails_pending_commands_when_shell_exits() throws Exception {
+        final PipelinedShell shell = shell();
+        final CompletableFuture<Integer> exiting = shell.submit((List<String>) null, "sleep 0.2");
+        shell.close();
+        assertFalse(shell.isRunning());
+        try {
+            exiting.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.util;
+
+import com.wireguard.config.Config;
+import com.wireguard.crypto.Key;
+import com.wireguard.crypto.KeyPair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RootHelperTest {
+    private static final int ENOENT = 2;
+    private static final Key INTERFACE = new KeyPair().getPublicKey();
+    private static final Key PEER = new KeyPair().getPublicKey();
+
+    private final AtomicReference<byte[]> lastSet = new AtomicReference<>();
+    private RootHelper helper;
+    private ServerSocket server;
+    private Socket socket;
+
+    // Answers requests the way wg-helper does, for a single interface with a single peer.
+    private void serve(final Socket client) {
+        try (final DataInputStream in = new DataInputStream(client.getInputStream());
+             final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()))) {
+            for (;;) {
+                final byte[] request = new byte[in.readInt()];
+                in.readFully(request);
+                final DataInputStream frame = new DataInputStream(new ByteArrayInputStream(request));
+                final int id = frame.readInt();
+                final int op = frame.readUnsignedByte();
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                final DataOutputStream payload = new DataOutputStream(bytes);
+                int status = 0;
+                if (op == 2) {
+                    payload.writeShort(1);
+                    payload.writeByte(3);
+                    payload.writeBytes("wg0");
+                    payload.write(INTERFACE.getBytes());
+                    payload.writeShort(51820);
+                    payload.writeShort(1);
+                    payload.write(PEER.getBytes());
+                    payload.writeByte(4);
+                    payload.write(new byte[]{(byte) 192, 0, 2, 1});
+                    payload.writeShort(51820);
+                    payload.writeLong(100);
+                    payload.writeLong(200);
+                    payload.writeLong(1700000000);
+                    payload.writeShort(25);
+                } else if (op == 3) {
+                    lastSet.set(Arrays.copyOfRange(request, 5, request.length));
+                    if (request[6] == 'x')
+                        status = -ENOENT;
+                } else if (op != 1) {
+                    status = -38;
+                }
+                out.writeInt(payload.size() + 8);
+                out.writeInt(id);
+                out.writeInt(status);
+                out.write(bytes.toByteArray());
+                out.flush();
+            }
+        } catch (final IOException ignored) {
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final Thread thread = new Thread(() -> {
+            try {
+                serve(server.accept());
+            } catch (final IOException ignored) {
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        socket.setTcpNoDelay(true);
+        helper = new RootHelper(socket.getInputStream(), socket.getOutputStream());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        helper.close();
+        socket.close();
+        server.close();
+    }
+
+    @Test
+    public void dump_decodes_interfaces_and_peers() throws IOException {
+        final List<RootHelper.InterfaceDump> dump = helper.dump();
+        assertEquals(1, dump.size());
+        assertEquals("wg0", dump.get(0).name());
+        assertEquals(51820, dump.get(0).listenPort());
+        final RootHelper.PeerDump peer = dump.get(0).peers().get(0);
+        assertEquals(PEER, peer.publicKey());
+        assertEquals(new InetSocketAddress("192.0.2.1", 51820), peer.endpoint());
+        assertEquals(100, peer.rxBytes());
+        assertEquals(200, peer.txBytes());
+        assertEquals(1700000000, peer.latestHandshakeEpochSeconds());
+        assertEquals(25, peer.persistentKeepalive());
+    }
+
+    @Test
+    public void sync_peers_sends_every_peer_and_survives_errors() throws Exception {
+        final Config config = Config.parse(new BufferedReader(new StringReader("[Interface]\nPrivateKey = "
+                + new KeyPair().getPrivateKey().toBase64() + "\n[Peer]\nPublicKey = " + PEER.toBase64()
+                + "\nAllowedIPs = 10.0.0.0/24\nEndpoint = 192.0.2.1:51820\n")));
+        helper.syncPeers("wg0", config.getPeers());
+        final DataInputStream sent = new DataInputStream(new ByteArrayInputStream(lastSet.get()));
+        assertEquals(3, sent.readUnsignedByte());
+        sent.skipBytes(3);
+        assertEquals(1 << 2, sent.readUnsignedByte());
+        assertEquals(1, sent.readUnsignedShort());
+        final byte[] key = new byte[32];
+        sent.readFully(key);
+        assertArrayEquals(PEER.getBytes(), key);
+
+        try {
+            helper.syncPeers("x", config.getPeers());
+            fail("Request for a missing interface should fail");
+        } catch (final IOException expected) {
+        }
+        assertTrue(helper.isRunning());
+        assertEquals(1, helper.dump().size());
+    }
+
+    @Test
+    public void metrics_time_every_round_trip() throws IOException {
+        final int iterations = 100;
+        for (int i = 0; i < iterations; ++i)
+            helper.dump();
+        final RootHelper.Metrics metrics = helper.getMetrics();
+        assertEquals(iterations, metrics.requests());
+        assertTrue(metrics.maxNanos() > 0);
+        assertTrue(metrics.averageNanos() <= metrics.maxNanos());
+    }
+}
@@ -5,16 +5,21 @@
 
 package com.wireguard.config;
 
+import com.wireguard.crypto.KeyPair;
+
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Objects;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -46,4 +51,16 @@ public class ConfigTest {
         assertEquals("Test config's allowed IPs are 0.0.0.0/0 and ::0/0", config.getPeers().get(0).getAllowedIps(), expectedAllowedIps);
         assertEquals("Test config has one DNS server", 1, config.getInterface().getDnsServers().size());
     }
+
+    @Test
+    public void mtu_auto_round_trips() throws IOException, BadConfigException {
+        final String text = "[Interface]\nPrivateKey = " + new KeyPair().getPrivateKey().toBase64()
+                + "\nMTU = Auto\n";
+        final Config config = Config.parse(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+        assertTrue(config.getInterface().isMtuAuto());
+        assertFalse(config.getInterface().getMtu().isPresent());
+        assertTrue(config.toWgQuickString().contains("MTU = auto\n"));
+        assertFalse("wg-quick does not understand an MTU of auto", config.toWgQuickString(false).contains("MTU"));
+        assertTrue(Config.parse(new ByteArrayInputStream(config.toWgQuickString().getBytes(StandardCharsets.UTF_8))).getInterface().isMtuAuto());
+    }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.config;
+
+import com.wireguard.crypto.KeyPair;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UapiWriterTest {
+    private static Config config(final int peers) throws Exception {
+        final StringBuilder sb = new StringBuilder("[Interface]\nPrivateKey = ")
+                .append(new KeyPair().getPrivateKey().toBase64()).append("\nListenPort = 51820\n");
+        for (int i = 0; i < peers; ++i) {
+            sb.append("[Peer]\nPublicKey = ").append(new KeyPair().getPublicKey().toBase64())
+                    .append("\nPresharedKey = ").append(new KeyPair().getPrivateKey().toBase64())
+                    .append("\nAllowedIPs = 10.0.").append(i).append(".0/24, fd00::").append(i + 1).append("/128")
+                    .append("\nEndpoint = [2001:db8::").append(i + 1).append("]:51820")
+                    .append("\nPersistentKeepalive = 25\n");
+        }
+        return Config.parse(new BufferedReader(new StringReader(sb.toString())));
+    }
+
+    @Test
+    public void encodes_the_same_bytes_as_the_userspace_string() throws Exception {
+        for (final int peers : new int[]{0, 1, 20}) {
+            final Config config = config(peers);
+            final ByteBuffer buffer = UapiWriter.encode(config);
+            assertTrue(buffer.isDirect());
+            final byte[] encoded = new byte[buffer.remaining()];
+            buffer.duplicate().get(encoded);
+            assertArrayEquals(config.toWgUserspaceString().getBytes(StandardCharsets.US_ASCII), encoded);
+        }
+    }
+
+    @Test
+    public void encodes_only_what_a_handshake_needs() throws Exception {
+        final Config config = config(2);
+        final Peer peer = config.getPeers().get(1);
+        final ByteBuffer buffer = UapiWriter.encodeHandshake(config, peer);
+        final byte[] encoded = new byte[buffer.remaining()];
+        buffer.duplicate().get(encoded);
+        assertEquals("private_key=" + config.getInterface().getKeyPair().getPrivateKey().toHex() + '\n'
+                        + "public_key=" + peer.getPublicKey().toHex() + '\n'
+                        + "endpoint=" + peer.getEndpoint().flatMap(InetEndpoint::getResolved).get() + '\n'
+                        + "preshared_key=" + peer.getPreSharedKey().get().toHex() + '\n',
+                new String(encoded, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void wipe_zeroes_the_buffer() throws Exception {
+        final ByteBuffer buffer = UapiWriter.encode(config(1));
+        UapiWriter.wipe(buffer);
+        for (int i = 0; i < buffer.capacity(); ++i)
+            assertEquals(0, buffer.get(i));
+    }
+}
@@ -7,9 +7,11 @@ package main
 
 // #cgo LDFLAGS: -llog
 // #include <android/log.h>
+// extern int wgProtectSocket(int fd);
 import "C"
 
 import (
+	"errors"
 	"fmt"
 	"math"
 	"net"
@@ -18,6 +20,8 @@ import (
 	"runtime"
 	"runtime/debug"
 	"strings"
+	"sync"
+	"time"
 	"unsafe"
 
 	"golang.org/x/sys/unix"
@@ -25,13 +29,32 @@ import (
 	"golang.zx2c4.com/wireguard/device"
 	"golang.zx2c4.com/wireguard/ipc"
 	"golang.zx2c4.com/wireguard/tun"
+
+	"golang.zx2c4.com/wireguard/android/handles"
+	"golang.zx2c4.com/wireguard/android/logging"
+	"golang.zx2c4.com/wireguard/android/pmtu"
+	"golang.zx2c4.com/wireguard/android/probe"
+	"golang.zx2c4.com/wireguard/android/tuning"
 )
 
 type AndroidLogger struct {
-	level C.int
-	tag   *C.char
+	level logging.Level
+	tag   string
+	ctag  *C.char
+}
+
+func newAndroidLogger(level logging.Level, tag string) AndroidLogger {
+	return AndroidLogger{level: level, tag: tag, ctag: cstring(tag)}
 }
 
+// Debug output, which includes every handshake, only reaches logcat once Java asks for it.
+var logGate = logging.NewGate(logging.Debug, logging.NewLimiter(20, 100), logging.NewLimiter(20, 100))
+
+var logBuffers = sync.Pool{New: func() any {
+	buf := make([]byte, 0, 256)
+	return &buf
+}}
+
 func cstring(s string) *C.char {
 	b, err := unix.BytePtrFromString(s)
 	if err != nil {
@@ -42,18 +65,37 @@ func cstring(s string) *C.char {
 }
 
 func (l AndroidLogger) Printf(format string, args ...interface{}) {
-	C.__android_log_write(l.level, l.tag, cstring(fmt.Sprintf(format, args...)))
+	// Decide before formatting, as most verbose messages are dropped.
+	dest, suppressed := logGate.Admit(l.level, l.tag)
+	if dest == logging.Drop {
+		return
+	}
+	bufp := logBuffers.Get().(*[]byte)
+	buf := fmt.Appendf((*bufp)[:0], format, args...)
+	if suppressed > 0 {
+		buf = fmt.Appendf(buf, " (%d earlier messages suppressed)", suppressed)
+	}
+	if dest == logging.Ring {
+		logGate.Ring().Add(l.level, l.tag, buf)
+	} else {
+		buf = append(buf, 0)
+		C.__android_log_write(C.int(l.level), l.ctag, (*C.char)(unsafe.Pointer(&buf[0])))
+	}
+	*bufp = buf
+	logBuffers.Put(bufp)
 }
 
 type TunnelHandle struct {
 	device *device.Device
+	events *eventSource
+	logger *device.Logger
 	uapi   net.Listener
 }
 
-var tunnelHandles map[int32]TunnelHandle
+// The JNI entry points are called from whichever Java thread happens to need them.
+var tunnelHandles = handles.New[TunnelHandle]()
 
 func init() {
-	tunnelHandles = make(map[int32]TunnelHandle)
 	signals := make(chan os.Signal)
 	signal.Notify(signals, unix.SIGUSR2)
 	go func() {
@@ -74,10 +116,13 @@ func init() {
 
 //export wgTurnOn
 func wgTurnOn(interfaceName string, tunFd int32, settings string) int32 {
-	tag := cstring("WireGuard/GoBackend/" + interfaceName)
+	// Both strings point into memory owned by Java, which is reclaimed or wiped once this returns.
+	interfaceName = strings.Clone(interfaceName)
+	tag := "WireGuard/GoBackend/" + interfaceName
+	events := newEventSource(interfaceName)
 	logger := &device.Logger{
-		Verbosef: AndroidLogger{level: C.ANDROID_LOG_DEBUG, tag: tag}.Printf,
-		Errorf:   AndroidLogger{level: C.ANDROID_LOG_ERROR, tag: tag}.Printf,
+		Verbosef: events.verbosef(newAndroidLogger(logging.Debug, tag).Printf),
+		Errorf:   newAndroidLogger(logging.Error, tag).Printf,
 	}
 
 	tun, name, err := tun.CreateUnmonitoredTUNFromFD(int(tunFd))
@@ -96,6 +141,7 @@ func wgTurnOn(interfaceName string, tunFd int32, settings string) int32 {
 		logger.Errorf("IpcSet: %v", err)
 		return -1
 	}
+	events.learnPeers(device, settings)
 	device.DisableSomeRoamingForBrokenMobileSemantics()
 
 	var uapi net.Listener
@@ -130,38 +176,96 @@ func wgTurnOn(interfaceName string, tunFd int32, settings string) int32 {
 	}
 	logger.Verbosef("Device started")
 
-	var i int32
-	for i = 0; i < math.MaxInt32; i++ {
-		if _, exists := tunnelHandles[i]; !exists {
-			break
-		}
-	}
-	if i == math.MaxInt32 {
+	i, err := tunnelHandles.Insert(TunnelHandle{device: device, events: events, logger: logger, uapi: uapi})
+	if err != nil {
 		logger.Errorf("Unable to find empty handle")
 		uapiFile.Close()
 		device.Close()
 		return -1
 	}
-	tunnelHandles[i] = TunnelHandle{device: device, uapi: uapi}
+	go events.watch(device)
+	postEvent(eventDeviceUp, interfaceName, "", "")
 	return i
 }
 
 //export wgTurnOff
 func wgTurnOff(tunnelHandle int32) {
-	handle, ok := tunnelHandles[tunnelHandle]
+	handle, ok := tunnelHandles.Remove(tunnelHandle)
 	if !ok {
 		return
 	}
-	delete(tunnelHandles, tunnelHandle)
+	handle.events.close()
 	if handle.uapi != nil {
 		handle.uapi.Close()
 	}
 	handle.device.Close()
+	postEvent(eventDeviceDown, handle.events.tunnel, "", "")
+}
+
+//export wgSetConfig
+func wgSetConfig(tunnelHandle int32, settings string) int32 {
+	handle, ok := tunnelHandles.Get(tunnelHandle)
+	if !ok {
+		return -1
+	}
+	err := handle.device.IpcSet(settings)
+	if err != nil {
+		handle.logger.Errorf("Unable to set config: %v", err)
+		return -1
+	}
+	handle.events.learnPeers(handle.device, settings)
+	handle.events.postEndpointChanges(settings)
+	return 0
+}
+
+//export wgRebind
+func wgRebind(tunnelHandle int32, settings string) int32 {
+	handle, ok := tunnelHandles.Get(tunnelHandle)
+	if !ok {
+		return -1
+	}
+	if len(settings) > 0 {
+		err := handle.device.IpcSet(settings)
+		if err != nil {
+			handle.logger.Errorf("Unable to update endpoints: %v", err)
+			return -1
+		}
+	}
+	err := handle.device.BindUpdate()
+	if err != nil {
+		handle.logger.Errorf("Unable to update bind: %v", err)
+		return -1
+	}
+	// The new sockets have to bypass the VPN before anything is sent on them.
+	if bind, ok := handle.device.Bind().(conn.PeekLookAtSocketFd); ok {
+		for _, lookup := range []func() (int, error){bind.PeekLookAtSocketFd4, bind.PeekLookAtSocketFd6} {
+			if fd, err := lookup(); err == nil && fd >= 0 && C.wgProtectSocket(C.int(fd)) == 0 {
+				handle.logger.Errorf("Unable to protect socket %d", fd)
+			}
+		}
+	}
+	handle.events.postEndpointChanges(settings)
+	// Rather than waiting for the next keepalive or rekey to notice that the old path is gone,
+	// handshake over the new one right away, which also lets the peers learn our new address.
+	for _, line := range strings.Split(settings, "\n") {
+		key, value, ok := strings.Cut(line, "=")
+		if !ok || key != "public_key" {
+			continue
+		}
+		var publicKey device.NoisePublicKey
+		if publicKey.FromHex(value) != nil {
+			continue
+		}
+		if peer := handle.device.LookupPeer(publicKey); peer != nil {
+			peer.SendHandshakeInitiation(false)
+		}
+	}
+	return 0
 }
 
 //export wgGetSocketV4
 func wgGetSocketV4(tunnelHandle int32) int32 {
-	handle, ok := tunnelHandles[tunnelHandle]
+	handle, ok := tunnelHandles.Get(tunnelHandle)
 	if !ok {
 		return -1
 	}
@@ -178,7 +282,7 @@ func wgGetSocketV4(tunnelHandle int32) int32 {
 
 //export wgGetSocketV6
 func wgGetSocketV6(tunnelHandle int32) int32 {
-	handle, ok := tunnelHandles[tunnelHandle]
+	handle, ok := tunnelHandles.Get(tunnelHandle)
 	if !ok {
 		return -1
 	}
@@ -193,17 +297,124 @@ func wgGetSocketV6(tunnelHandle int32) int32 {
 	return int32(fd)
 }
 
+// fixedWriter writes into a buffer of fixed size, counting but dropping what does not fit.
+type fixedWriter struct {
+	buf []byte
+	n   int
+}
+
+func (w *fixedWriter) Write(p []byte) (int, error) {
+	if w.n < len(w.buf) {
+		copy(w.buf[w.n:], p)
+	}
+	w.n += len(p)
+	return len(p), nil
+}
+
 //export wgGetConfig
-func wgGetConfig(tunnelHandle int32) *C.char {
-	handle, ok := tunnelHandles[tunnelHandle]
+func wgGetConfig(tunnelHandle int32, buffer unsafe.Pointer, capacity int32) int32 {
+	handle, ok := tunnelHandles.Get(tunnelHandle)
 	if !ok {
-		return nil
+		return -1
+	}
+	w := &fixedWriter{buf: unsafe.Slice((*byte)(buffer), capacity)}
+	err := handle.device.IpcGetOperation(w)
+	if err != nil || w.n > math.MaxInt32 {
+		return -1
+	}
+	return int32(w.n)
+}
+
+//export wgProbeHandshake
+func wgProbeHandshake(settings string, timeoutMillis int32) int64 {
+	// The settings point into a direct buffer owned by Java, which wipes it once this returns.
+	logger := &device.Logger{
+		Verbosef: device.DiscardLogf,
+		Errorf:   newAndroidLogger(logging.Error, "WireGuard/HandshakeProbe").Printf,
+	}
+	bind := &probe.ProtectedBind{
+		Bind: conn.NewStdNetBind(),
+		Protect: func(fd int) bool {
+			return C.wgProtectSocket(C.int(fd)) != 0
+		},
+	}
+	rtt, err := probe.Handshake(settings, time.Duration(timeoutMillis)*time.Millisecond, bind, logger)
+	if err == probe.ErrTimeout {
+		return -1
+	} else if err != nil {
+		logger.Errorf("Probe: %v", err)
+		return -1
 	}
-	settings, err := handle.device.IpcGet()
+	return rtt.Nanoseconds()
+}
+
+//export wgDiscoverPathMtu
+func wgDiscoverPathMtu(endpoint string, timeoutMillis int32) int32 {
+	logger := newAndroidLogger(logging.Error, "WireGuard/GoBackend/PathMTU")
+	addr, err := net.ResolveUDPAddr("udp", endpoint)
 	if err != nil {
-		return nil
+		logger.Printf("Unable to parse endpoint %s: %v", endpoint, err)
+		return -1
 	}
-	return C.CString(settings)
+	// Only a probe that comes back proves that it got there. A path that silently drops large
+	// packets would otherwise look like one that takes the largest, so when nothing is echoed
+	// this fails and the tunnel keeps the safe minimum.
+	pathMTU, err := pmtu.Discover(addr, pmtu.Options{
+		Timeout:    time.Duration(timeoutMillis) * time.Millisecond,
+		ExpectEcho: true,
+		Control: func(fd int) error {
+			if C.wgProtectSocket(C.int(fd)) == 0 {
+				return errors.New("unable to protect socket")
+			}
+			return nil
+		},
+	})
+	if err != nil {
+		logger.Printf("Unable to discover path MTU to %s: %v", endpoint, err)
+		return -1
+	}
+	return int32(pmtu.TunnelMTU(pathMTU, addr))
+}
+
+//export wgSetMemoryLimit
+func wgSetMemoryLimit(limit int64) int64 {
+	return debug.SetMemoryLimit(limit)
+}
+
+//export wgSetGCPercent
+func wgSetGCPercent(percent int32) int32 {
+	return int32(debug.SetGCPercent(int(percent)))
+}
+
+//export wgSetMaxProcs
+func wgSetMaxProcs(procs int32) int32 {
+	return int32(runtime.GOMAXPROCS(int(procs)))
+}
+
+//export wgTrimMemory
+func wgTrimMemory(previous unsafe.Pointer, count int32) int32 {
+	memoryLimit, gcPercent := tuning.Trim()
+	return int32(copy(unsafe.Slice((*int64)(previous), count), []int64{memoryLimit, int64(gcPercent)}))
+}
+
+//export wgGetRuntimeMetrics
+func wgGetRuntimeMetrics(metrics unsafe.Pointer, count int32) int32 {
+	return int32(tuning.Read().Fill(unsafe.Slice((*int64)(metrics), count)))
+}
+
+//export wgSetLogLevel
+func wgSetLogLevel(level int32) {
+	logGate.SetLogcatLevel(logging.Level(level))
+}
+
+//export wgSetLogBuffer
+func wgSetLogBuffer(capacity int32, level int32) {
+	logGate.SetRing(int(capacity), logging.Level(level))
+}
+
+//export wgGetLogBuffer
+func wgGetLogBuffer() *C.char {
+	return C.CString(logGate.Ring().Dump())
 }
 
 //export wgVersion
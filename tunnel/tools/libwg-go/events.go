@@ -0,0 +1,246 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ */
+
+package main
+
+// #include <android/log.h>
+import "C"
+
+import (
+	"bytes"
+	"fmt"
+	"strconv"
+	"strings"
+	"sync"
+	"sync/atomic"
+	"time"
+
+	"golang.zx2c4.com/wireguard/device"
+
+	"golang.zx2c4.com/wireguard/android/logging"
+)
+
+const (
+	eventDeviceUp           = 1
+	eventDeviceDown         = 2
+	eventHandshakeCompleted = 3
+	eventHandshakeFailed    = 4
+	eventEndpointChanged    = 5
+)
+
+type tunnelEvent struct {
+	kind      int
+	tunnel    string
+	whenMilli int64
+	peer      string
+	detail    string
+}
+
+// Events wait here until Java picks them up; when nobody does, the newest ones are dropped
+// rather than ever blocking the device.
+var (
+	events        = make(chan tunnelEvent, 256)
+	droppedEvents atomic.Uint64
+)
+
+const (
+	// How long to let a device settle after it logs something before looking at its handshakes,
+	// which also bounds how often a chatty device is looked at.
+	handshakeSettleTime = 100 * time.Millisecond
+	// How often to look at the handshakes of a device that logs nothing.
+	handshakeCheckInterval = 2 * time.Minute
+)
+
+func postEvent(kind int, tunnel, peer, detail string) {
+	postEventAt(kind, tunnel, time.Now().UnixMilli(), peer, detail)
+}
+
+func postEventAt(kind int, tunnel string, whenMilli int64, peer, detail string) {
+	select {
+	case events <- tunnelEvent{kind: kind, tunnel: tunnel, whenMilli: whenMilli, peer: peer, detail: detail}:
+	default:
+		droppedEvents.Add(1)
+	}
+}
+
+// eventSource turns the state of a device and what it logs about its peers into events.
+// wireguard-go has no hooks for handshakes, so completed ones are found by watching the last
+// handshake time of every peer change, which catches them whichever side initiated them. Failed
+// ones leave no trace in the state, so they are recognized from the log, which names the peer by
+// an abbreviation of its key.
+type eventSource struct {
+	tunnel     string
+	mu         sync.RWMutex
+	peers      map[string]string // peer.String() to hex public key
+	activity   chan struct{}
+	stop       chan struct{}
+	handshakes map[string]int64 // hex public key to last handshake time, only used by watch
+}
+
+func newEventSource(tunnel string) *eventSource {
+	return &eventSource{
+		tunnel:     tunnel,
+		peers:      make(map[string]string),
+		activity:   make(chan struct{}, 1),
+		stop:       make(chan struct{}),
+		handshakes: make(map[string]int64),
+	}
+}
+
+// watch posts an event for every handshake that dev completes, until close is called. Every
+// handshake makes the device log something, so it is looked at shortly after it does, whatever
+// the message says, and at least every handshakeCheckInterval in case it stops logging them.
+func (s *eventSource) watch(dev *device.Device) {
+	ticker := time.NewTicker(handshakeCheckInterval)
+	defer ticker.Stop()
+	for {
+		select {
+		case <-s.stop:
+			return
+		case <-ticker.C:
+		case <-s.activity:
+			select {
+			case <-s.stop:
+				return
+			case <-time.After(handshakeSettleTime):
+			}
+		}
+		s.checkHandshakes(dev)
+	}
+}
+
+func (s *eventSource) close() {
+	close(s.stop)
+}
+
+// checkHandshakes posts an event for every peer whose last handshake time has changed.
+func (s *eventSource) checkHandshakes(dev *device.Device) {
+	var buf bytes.Buffer
+	if dev.IpcGetOperation(&buf) != nil {
+		return
+	}
+	state := buf.Bytes()
+	// The state also holds the private key, which should not linger in memory.
+	defer clear(state)
+	var peer string
+	var sec, nsec int64
+	observe := func() {
+		when := sec*int64(time.Second) + nsec
+		if peer == "" || when == 0 || when == s.handshakes[peer] {
+			return
+		}
+		s.handshakes[peer] = when
+		postEventAt(eventHandshakeCompleted, s.tunnel, when/int64(time.Millisecond), peer, "")
+	}
+	for _, line := range bytes.Split(state, []byte("\n")) {
+		key, value, ok := bytes.Cut(line, []byte("="))
+		if !ok {
+			continue
+		}
+		switch string(key) {
+		case "public_key":
+			observe()
+			peer, sec, nsec = string(value), 0, 0
+		case "last_handshake_time_sec":
+			sec, _ = strconv.ParseInt(string(value), 10, 64)
+		case "last_handshake_time_nsec":
+			nsec, _ = strconv.ParseInt(string(value), 10, 64)
+		}
+	}
+	observe()
+}
+
+// learnPeers records the abbreviations of the peers named in a UAPI configuration.
+func (s *eventSource) learnPeers(dev *device.Device, settings string) {
+	s.mu.Lock()
+	defer s.mu.Unlock()
+	for _, line := range strings.Split(settings, "\n") {
+		key, value, ok := strings.Cut(line, "=")
+		if !ok || key != "public_key" {
+			continue
+		}
+		var publicKey device.NoisePublicKey
+		if publicKey.FromHex(value) != nil {
+			continue
+		}
+		if peer := dev.LookupPeer(publicKey); peer != nil {
+			s.peers[peer.String()] = strings.Clone(value)
+		}
+	}
+}
+
+// postEndpointChanges posts an event for every peer whose endpoint a UAPI configuration sets.
+func (s *eventSource) postEndpointChanges(settings string) {
+	var peer string
+	for _, line := range strings.Split(settings, "\n") {
+		key, value, ok := strings.Cut(line, "=")
+		if !ok {
+			continue
+		}
+		switch key {
+		case "public_key":
+			peer = value
+		case "endpoint":
+			if peer != "" {
+				postEvent(eventEndpointChanged, s.tunnel, strings.Clone(peer), strings.Clone(value))
+			}
+		}
+	}
+}
+
+// verbosef wraps a device's verbose logger. Every message has the device looked at for completed
+// handshakes, and failed ones are recognized by their format string alone, so the many messages
+// that are not of interest cost next to nothing.
+func (s *eventSource) verbosef(next func(string, ...any)) func(string, ...any) {
+	return func(format string, args ...any) {
+		next(format, args...)
+		select {
+		case s.activity <- struct{}{}:
+		default:
+		}
+		var kind int
+		var detail string
+		switch {
+		case strings.HasSuffix(format, " seconds, retrying (try %d)") && len(args) == 3:
+			kind = eventHandshakeFailed
+			detail = fmt.Sprint(args[2])
+		case strings.HasSuffix(format, " - Handshake did not complete after %d attempts, giving up"):
+			kind = eventHandshakeFailed
+			detail = "giving up"
+		default:
+			return
+		}
+		if len(args) == 0 {
+			return
+		}
+		s.mu.RLock()
+		peer := s.peers[fmt.Sprint(args[0])]
+		s.mu.RUnlock()
+		if peer == "" {
+			return
+		}
+		postEvent(kind, s.tunnel, peer, detail)
+	}
+}
+
+//export wgNextEvent
+func wgNextEvent(timeoutMillis int32) *C.char {
+	var event tunnelEvent
+	if timeoutMillis < 0 {
+		event = <-events
+	} else {
+		timer := time.NewTimer(time.Duration(timeoutMillis) * time.Millisecond)
+		defer timer.Stop()
+		select {
+		case event = <-events:
+		case <-timer.C:
+			return nil
+		}
+	}
+	if dropped := droppedEvents.Swap(0); dropped > 0 {
+		newAndroidLogger(logging.Warn, "WireGuard/GoBackend/Events").Printf("Dropped %d events", dropped)
+	}
+	return C.CString(fmt.Sprintf("%d\t%s\t%d\t%s\t%s", event.kind, event.tunnel, event.whenMilli, event.peer, event.detail))
+}
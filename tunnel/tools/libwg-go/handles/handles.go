@@ -0,0 +1,124 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ */
+
+// Package handles hands out the small integers by which Java refers to objects that live in Go.
+// Handles are allocated, looked up and released in constant time, from any thread. Each one
+// carries the generation of the slot it names, so that a handle kept after being released is
+// not mistaken for the one that later reuses its slot.
+package handles
+
+import (
+	"errors"
+	"math"
+	"sync"
+)
+
+const (
+	indexBits = 16
+	// MaxEntries is how many handles can be live at once.
+	MaxEntries = 1 << indexBits
+
+	indexMask = MaxEntries - 1
+	// Handles have to stay non-negative, as negative numbers are errors to the Java side.
+	generationMask = math.MaxInt32 >> indexBits
+)
+
+var ErrFull = errors.New("no free handle")
+
+type slot[T any] struct {
+	value      T
+	generation int32
+	used       bool
+	nextFree   int32
+}
+
+// Table maps handles to values of type T. The zero value is not usable; call New.
+type Table[T any] struct {
+	mu       sync.RWMutex
+	slots    []slot[T]
+	freeHead int32 // index of the first free slot, or -1
+	count    int
+}
+
+func New[T any]() *Table[T] {
+	return &Table[T]{freeHead: -1}
+}
+
+// Insert stores value and returns a new handle for it.
+func (t *Table[T]) Insert(value T) (int32, error) {
+	t.mu.Lock()
+	defer t.mu.Unlock()
+	var index int32
+	switch {
+	case t.freeHead >= 0:
+		index = t.freeHead
+		t.freeHead = t.slots[index].nextFree
+	case len(t.slots) < MaxEntries:
+		index = int32(len(t.slots))
+		t.slots = append(t.slots, slot[T]{})
+	default:
+		return -1, ErrFull
+	}
+	s := &t.slots[index]
+	s.value = value
+	s.used = true
+	t.count++
+	return s.generation<<indexBits | index, nil
+}
+
+// lookup returns the slot a handle names, or nil if it is not live. t.mu must be held.
+func (t *Table[T]) lookup(handle int32) *slot[T] {
+	if handle < 0 {
+		return nil
+	}
+	index := handle & indexMask
+	if int(index) >= len(t.slots) {
+		return nil
+	}
+	s := &t.slots[index]
+	if !s.used || s.generation != handle>>indexBits {
+		return nil
+	}
+	return s
+}
+
+// Get returns the value of a live handle.
+func (t *Table[T]) Get(handle int32) (T, bool) {
+	t.mu.RLock()
+	defer t.mu.RUnlock()
+	if s := t.lookup(handle); s != nil {
+		return s.value, true
+	}
+	var zero T
+	return zero, false
+}
+
+// Remove releases a handle and returns its value. Only the first of several concurrent calls to
+// Remove with the same handle gets the value; the others find the handle already gone.
+func (t *Table[T]) Remove(handle int32) (T, bool) {
+	var zero T
+	t.mu.Lock()
+	defer t.mu.Unlock()
+	s := t.lookup(handle)
+	if s == nil {
+		return zero, false
+	}
+	value := s.value
+	s.value = zero
+	s.used = false
+	// After this many reuses of one slot, a stale handle would name it again.
+	s.generation = (s.generation + 1) & generationMask
+	s.nextFree = t.freeHead
+	t.freeHead = handle & indexMask
+	t.count--
+	return value, true
+}
+
+// Len returns the number of live handles.
+func (t *Table[T]) Len() int {
+	t.mu.RLock()
+	defer t.mu.RUnlock()
+	return t.count
+}
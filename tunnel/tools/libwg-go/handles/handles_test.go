@@ -0,0 +1,131 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ */
+
+package handles
+
+import (
+	"sync"
+	"sync/atomic"
+	"testing"
+)
+
+func TestStaleHandles(t *testing.T) {
+	table := New[string]()
+	first, err := table.Insert("first")
+	if err != nil {
+		t.Fatal(err)
+	}
+	if value, ok := table.Remove(first); !ok || value != "first" {
+		t.Fatalf("Remove(%d) = %q, %v", first, value, ok)
+	}
+	second, err := table.Insert("second")
+	if err != nil {
+		t.Fatal(err)
+	}
+	if second&indexMask != first&indexMask || second == first {
+		t.Fatalf("slot of %d was not reused with a new generation by %d", first, second)
+	}
+	if _, ok := table.Get(first); ok {
+		t.Fatal("stale handle still resolves")
+	}
+	if _, ok := table.Remove(first); ok {
+		t.Fatal("stale handle removed the live one")
+	}
+	if value, ok := table.Get(second); !ok || value != "second" {
+		t.Fatalf("Get(%d) = %q, %v", second, value, ok)
+	}
+	for _, handle := range []int32{-1, 1 << 20, MaxEntries - 1} {
+		if _, ok := table.Get(handle); ok {
+			t.Fatalf("handle %d that was never handed out resolves", handle)
+		}
+	}
+}
+
+func TestFull(t *testing.T) {
+	table := New[int]()
+	for i := 0; i < MaxEntries; i++ {
+		handle, err := table.Insert(i)
+		if err != nil || handle < 0 {
+			t.Fatalf("Insert(%d) = %d, %v", i, handle, err)
+		}
+	}
+	if _, err := table.Insert(MaxEntries); err != ErrFull {
+		t.Fatalf("Insert into a full table returned %v", err)
+	}
+	if _, ok := table.Remove(MaxEntries - 1); !ok {
+		t.Fatal("Remove from a full table failed")
+	}
+	if handle, err := table.Insert(MaxEntries); err != nil || handle&indexMask != MaxEntries-1 {
+		t.Fatalf("Insert after Remove = %d, %v", handle, err)
+	}
+}
+
+// TestConcurrentTurnOnTurnOff mimics Java threads bringing tunnels up and down while others poll
+// them with whatever handle they last saw. Run it with -race.
+func TestConcurrentTurnOnTurnOff(t *testing.T) {
+	type tunnel struct {
+		id     int64
+		closed atomic.Bool
+	}
+	const workers = 16
+	const iterations = 5000
+	table := New[*tunnel]()
+	var lastHandle atomic.Int32
+	var nextID atomic.Int64
+	var wg sync.WaitGroup
+	for w := 0; w < workers; w++ {
+		wg.Add(2)
+		go func() {
+			defer wg.Done()
+			for i := 0; i < iterations; i++ {
+				tun := &tunnel{id: nextID.Add(1)}
+				handle, err := table.Insert(tun)
+				if err != nil {
+					t.Error(err)
+					return
+				}
+				lastHandle.Store(handle)
+				// A poller may turn the tunnel off first, but never hand back another one.
+				if got, ok := table.Get(handle); ok && got != tun {
+					t.Errorf("Get(%d) returned another tunnel", handle)
+					return
+				}
+				if removed, ok := table.Remove(handle); ok && (removed != tun || removed.closed.Swap(true)) {
+					t.Errorf("Remove(%d) did not return its tunnel exactly once", handle)
+					return
+				}
+			}
+		}()
+		go func() {
+			defer wg.Done()
+			for i := 0; i < iterations; i++ {
+				handle := lastHandle.Load()
+				if tun, ok := table.Get(handle); ok && tun == nil {
+					t.Errorf("Get(%d) returned an empty slot", handle)
+					return
+				}
+				// Racing turn-offs with stale handles must never close a tunnel twice.
+				if tun, ok := table.Remove(handle); ok && tun.closed.Swap(true) {
+					t.Errorf("tunnel %d was removed twice", tun.id)
+					return
+				}
+			}
+		}()
+	}
+	wg.Wait()
+	if n := table.Len(); n != 0 {
+		t.Fatalf("%d handles leaked", n)
+	}
+}
+
+func BenchmarkGetParallel(b *testing.B) {
+	table := New[int]()
+	handle, _ := table.Insert(1)
+	b.RunParallel(func(pb *testing.PB) {
+		for pb.Next() {
+			table.Get(handle)
+		}
+	})
+}
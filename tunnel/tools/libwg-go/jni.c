@@ -4,6 +4,7 @@
  */
 
 #include <jni.h>
+#include <limits.h>
 #include <stdlib.h>
 #include <string.h>
 
@@ -12,16 +13,60 @@ extern int wgTurnOn(struct go_string ifname, int tun_fd, struct go_string settin
 extern void wgTurnOff(int handle);
 extern int wgGetSocketV4(int handle);
 extern int wgGetSocketV6(int handle);
-extern char *wgGetConfig(int handle);
+extern int wgRebind(int handle, struct go_string settings);
+extern int wgSetConfig(int handle, struct go_string settings);
+extern int wgGetConfig(int handle, void *buffer, int capacity);
 extern char *wgVersion();
+extern long long wgProbeHandshake(struct go_string settings, int timeout_ms);
+extern int wgDiscoverPathMtu(struct go_string endpoint, int timeout_ms);
+extern char *wgNextEvent(int timeout_ms);
+extern long long wgSetMemoryLimit(long long limit);
+extern int wgSetGCPercent(int percent);
+extern int wgSetMaxProcs(int procs);
+extern int wgTrimMemory(void *previous, int count);
+extern int wgGetRuntimeMetrics(void *metrics, int count);
+extern void wgSetLogLevel(int level);
+extern void wgSetLogBuffer(int capacity, int level);
+extern char *wgGetLogBuffer();
 
-JNIEXPORT jint JNICALL Java_com_wireguard_android_backend_GoBackend_wgTurnOn(JNIEnv *env, jclass c, jstring ifname, jint tun_fd, jstring settings)
+static JavaVM *java_vm;
+static jclass backend_class;
+static jmethodID backend_protect;
+
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved)
 {
-	const char *ifname_str = (*env)->GetStringUTFChars(env, ifname, 0);
-	size_t ifname_len = (*env)->GetStringUTFLength(env, ifname);
-	const char *settings_str = (*env)->GetStringUTFChars(env, settings, 0);
-	size_t settings_len = (*env)->GetStringUTFLength(env, settings);
-	int ret = wgTurnOn((struct go_string){
+	JNIEnv *env;
+	jclass c;
+
+	java_vm = vm;
+	if ((*vm)->GetEnv(vm, (void **)&env, JNI_VERSION_1_6) != JNI_OK)
+		return JNI_ERR;
+	c = (*env)->FindClass(env, "com/wireguard/android/backend/GoBackend");
+	if (c) {
+		backend_protect = (*env)->GetStaticMethodID(env, c, "protectSocket", "(I)Z");
+		backend_class = (*env)->NewGlobalRef(env, c);
+		(*env)->DeleteLocalRef(env, c);
+	}
+	if ((*env)->ExceptionCheck(env)) {
+		(*env)->ExceptionClear(env);
+		backend_protect = NULL;
+	}
+	return JNI_VERSION_1_6;
+}
+
+JNIEXPORT jint JNICALL Java_com_wireguard_android_backend_GoBackend_wgTurnOn(JNIEnv *env, jclass c, jstring ifname, jint tun_fd, jobject settings, jint settings_len)
+{
+	/* The settings are read where they lie, so no copy of the private key is made here. */
+	const char *settings_str = (*env)->GetDirectBufferAddress(env, settings);
+	const char *ifname_str;
+	size_t ifname_len;
+	int ret;
+
+	if (!settings_str || settings_len < 0 || settings_len > (*env)->GetDirectBufferCapacity(env, settings))
+		return -1;
+	ifname_str = (*env)->GetStringUTFChars(env, ifname, 0);
+	ifname_len = (*env)->GetStringUTFLength(env, ifname);
+	ret = wgTurnOn((struct go_string){
 		.str = ifname_str,
 		.n = ifname_len
 	}, tun_fd, (struct go_string){
@@ -29,7 +74,6 @@ JNIEXPORT jint JNICALL Java_com_wireguard_android_backend_GoBackend_wgTurnOn(JNI
 		.n = settings_len
 	});
 	(*env)->ReleaseStringUTFChars(env, ifname, ifname_str);
-	(*env)->ReleaseStringUTFChars(env, settings, settings_str);
 	return ret;
 }
 
@@ -48,14 +92,110 @@ JNIEXPORT jint JNICALL Java_com_wireguard_android_backend_GoBackend_wgGetSocketV
 	return wgGetSocketV6(handle);
 }
 
-JNIEXPORT jstring JNICALL Java_com_wireguard_android_backend_GoBackend_wgGetConfig(JNIEnv *env, jclass c, jint handle)
+JNIEXPORT jint JNICALL Java_com_wireguard_android_backend_GoBackend_wgSetConfig(JNIEnv *env, jclass c, jint handle, jstring settings)
+{
+	const char *settings_str = (*env)->GetStringUTFChars(env, settings, 0);
+	size_t settings_len = (*env)->GetStringUTFLength(env, settings);
+	int ret = wgSetConfig(handle, (struct go_string){
+		.str = settings_str,
+		.n = settings_len
+	});
+	(*env)->ReleaseStringUTFChars(env, settings, settings_str);
+	return ret;
+}
+
+JNIEXPORT jint JNICALL Java_com_wireguard_android_backend_GoBackend_wgRebind(JNIEnv *env, jclass c, jint handle, jstring settings)
+{
+	const char *settings_str = (*env)->GetStringUTFChars(env, settings, 0);
+	size_t settings_len = (*env)->GetStringUTFLength(env, settings);
+	int ret = wgRebind(handle, (struct go_string){
+		.str = settings_str,
+		.n = settings_len
+	});
+	(*env)->ReleaseStringUTFChars(env, settings, settings_str);
+	return ret;
+}
+
+JNIEXPORT jint JNICALL Java_com_wireguard_android_backend_GoBackend_wgGetConfig(JNIEnv *env, jclass c, jint handle, jobject config)
+{
+	void *config_buf = (*env)->GetDirectBufferAddress(env, config);
+	jlong capacity = (*env)->GetDirectBufferCapacity(env, config);
+
+	if (!config_buf || capacity < 0)
+		return -1;
+	return wgGetConfig(handle, config_buf, capacity > INT_MAX ? INT_MAX : (int)capacity);
+}
+
+JNIEXPORT jstring JNICALL Java_com_wireguard_android_backend_GoBackend_wgNextEvent(JNIEnv *env, jclass c, jint timeout_ms)
+{
+	jstring ret;
+	char *event = wgNextEvent(timeout_ms);
+	if (!event)
+		return NULL;
+	ret = (*env)->NewStringUTF(env, event);
+	free(event);
+	return ret;
+}
+
+JNIEXPORT jlong JNICALL Java_com_wireguard_android_backend_GoBackend_wgSetMemoryLimit(JNIEnv *env, jclass c, jlong limit)
+{
+	return wgSetMemoryLimit(limit);
+}
+
+JNIEXPORT jint JNICALL Java_com_wireguard_android_backend_GoBackend_wgSetGCPercent(JNIEnv *env, jclass c, jint percent)
+{
+	return wgSetGCPercent(percent);
+}
+
+JNIEXPORT jint JNICALL Java_com_wireguard_android_backend_GoBackend_wgSetMaxProcs(JNIEnv *env, jclass c, jint procs)
+{
+	return wgSetMaxProcs(procs);
+}
+
+JNIEXPORT jint JNICALL Java_com_wireguard_android_backend_GoBackend_wgTrimMemory(JNIEnv *env, jclass c, jlongArray previous)
+{
+	jsize count = (*env)->GetArrayLength(env, previous);
+	jlong *values = (*env)->GetLongArrayElements(env, previous, NULL);
+	int ret;
+
+	if (!values)
+		return -1;
+	ret = wgTrimMemory(values, count);
+	(*env)->ReleaseLongArrayElements(env, previous, values, 0);
+	return ret;
+}
+
+JNIEXPORT jint JNICALL Java_com_wireguard_android_backend_GoBackend_wgGetRuntimeMetrics(JNIEnv *env, jclass c, jlongArray metrics)
+{
+	jsize count = (*env)->GetArrayLength(env, metrics);
+	jlong *values = (*env)->GetLongArrayElements(env, metrics, NULL);
+	int ret;
+
+	if (!values)
+		return -1;
+	ret = wgGetRuntimeMetrics(values, count);
+	(*env)->ReleaseLongArrayElements(env, metrics, values, 0);
+	return ret;
+}
+
+JNIEXPORT void JNICALL Java_com_wireguard_android_backend_GoBackend_wgSetLogLevel(JNIEnv *env, jclass c, jint level)
+{
+	wgSetLogLevel(level);
+}
+
+JNIEXPORT void JNICALL Java_com_wireguard_android_backend_GoBackend_wgSetLogBuffer(JNIEnv *env, jclass c, jint capacity, jint level)
+{
+	wgSetLogBuffer(capacity, level);
+}
+
+JNIEXPORT jstring JNICALL Java_com_wireguard_android_backend_GoBackend_wgGetLogBuffer(JNIEnv *env, jclass c)
 {
 	jstring ret;
-	char *config = wgGetConfig(handle);
-	if (!config)
+	char *log = wgGetLogBuffer();
+	if (!log)
 		return NULL;
-	ret = (*env)->NewStringUTF(env, config);
-	free(config);
+	ret = (*env)->NewStringUTF(env, log);
+	free(log);
 	return ret;
 }
 
@@ -69,3 +209,52 @@ JNIEXPORT jstring JNICALL Java_com_wireguard_android_backend_GoBackend_wgVersion
 	free(version);
 	return ret;
 }
+
+/* Called from Go, on whatever thread it runs on, for each socket that must bypass the VPN. */
+int wgProtectSocket(int fd)
+{
+	JNIEnv *env;
+	int attached = 0;
+	jboolean ret;
+
+	if (!backend_protect)
+		return 0;
+	if ((*java_vm)->GetEnv(java_vm, (void **)&env, JNI_VERSION_1_6) == JNI_EDETACHED) {
+		if ((*java_vm)->AttachCurrentThread(java_vm, &env, NULL) != JNI_OK)
+			return 0;
+		attached = 1;
+	}
+	ret = (*env)->CallStaticBooleanMethod(env, backend_class, backend_protect, fd);
+	if ((*env)->ExceptionCheck(env)) {
+		(*env)->ExceptionClear(env);
+		ret = JNI_FALSE;
+	}
+	if (attached)
+		(*java_vm)->DetachCurrentThread(java_vm);
+	return ret == JNI_TRUE;
+}
+
+JNIEXPORT jlong JNICALL Java_com_wireguard_android_backend_HandshakeProbe_wgProbeHandshake(JNIEnv *env, jclass c, jobject settings, jint settings_len, jint timeout_ms)
+{
+	/* As with wgTurnOn, the settings are read where they lie. */
+	const char *settings_str = (*env)->GetDirectBufferAddress(env, settings);
+
+	if (!settings_str || settings_len < 0 || settings_len > (*env)->GetDirectBufferCapacity(env, settings))
+		return -1;
+	return wgProbeHandshake((struct go_string){
+		.str = settings_str,
+		.n = settings_len
+	}, timeout_ms);
+}
+
+JNIEXPORT jint JNICALL Java_com_wireguard_android_backend_GoBackend_wgDiscoverPathMtu(JNIEnv *env, jclass c, jstring endpoint, jint timeout_ms)
+{
+	const char *endpoint_str = (*env)->GetStringUTFChars(env, endpoint, 0);
+	size_t endpoint_len = (*env)->GetStringUTFLength(env, endpoint);
+	int ret = wgDiscoverPathMtu((struct go_string){
+		.str = endpoint_str,
+		.n = endpoint_len
+	}, timeout_ms);
+	(*env)->ReleaseStringUTFChars(env, endpoint, endpoint_str);
+	return ret;
+}
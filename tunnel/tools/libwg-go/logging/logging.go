@@ -0,0 +1,211 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ */
+
+// Package logging decides what the library logs, and where, before anything is formatted. Messages
+// below the logcat level can still be kept in a ring buffer in memory, which costs no system call
+// and can be read back on demand, and every tag is rate limited, separately for each of them, so
+// that a busy device cannot flood either one, and chatter kept in the ring cannot silence logcat.
+package logging
+
+import (
+	"fmt"
+	"os"
+	"strings"
+	"sync"
+	"sync/atomic"
+	"time"
+
+	"golang.org/x/sys/unix"
+)
+
+// Level is a log priority, with the values Android uses.
+type Level int32
+
+const (
+	Verbose Level = 2
+	Debug   Level = 3
+	Info    Level = 4
+	Warn    Level = 5
+	Error   Level = 6
+)
+
+func (l Level) letter() byte {
+	if l < Verbose || l > Error {
+		return '?'
+	}
+	return "VDIWE"[l-Verbose]
+}
+
+// Destination is where a message goes, if anywhere.
+type Destination int
+
+const (
+	Drop Destination = iota
+	Logcat
+	Ring
+)
+
+type bucket struct {
+	tokens     float64
+	last       time.Time
+	suppressed int
+}
+
+// Limiter is a token bucket per tag.
+type Limiter struct {
+	mu      sync.Mutex
+	buckets map[string]*bucket
+	rate    float64
+	burst   float64
+	now     func() time.Time
+}
+
+// NewLimiter allows burst messages per tag at once, refilled at rate messages per second.
+func NewLimiter(rate float64, burst int) *Limiter {
+	return &Limiter{buckets: make(map[string]*bucket), rate: rate, burst: float64(burst), now: time.Now}
+}
+
+// Allow takes a token for tag. When it succeeds it also returns how many messages were
+// suppressed since the last one that was allowed.
+func (l *Limiter) Allow(tag string) (bool, int) {
+	l.mu.Lock()
+	defer l.mu.Unlock()
+	now := l.now()
+	b := l.buckets[tag]
+	if b == nil {
+		b = &bucket{tokens: l.burst, last: now}
+		l.buckets[tag] = b
+	}
+	b.tokens = min(l.burst, b.tokens+now.Sub(b.last).Seconds()*l.rate)
+	b.last = now
+	if b.tokens < 1 {
+		b.suppressed++
+		return false, 0
+	}
+	b.tokens--
+	suppressed := b.suppressed
+	b.suppressed = 0
+	return true, suppressed
+}
+
+type entry struct {
+	when  time.Time
+	tid   int
+	level Level
+	tag   string
+	msg   string
+}
+
+// RingBuffer keeps the last messages given to it.
+type RingBuffer struct {
+	mu      sync.Mutex
+	entries []entry
+	next    int
+	full    bool
+}
+
+func (r *RingBuffer) setCapacity(capacity int) {
+	r.mu.Lock()
+	defer r.mu.Unlock()
+	r.entries = make([]entry, max(capacity, 0))
+	r.next = 0
+	r.full = false
+}
+
+// Add appends a message, copying it, and drops the oldest one if the buffer is full.
+func (r *RingBuffer) Add(level Level, tag string, msg []byte) {
+	e := entry{when: time.Now(), tid: unix.Gettid(), level: level, tag: tag, msg: string(msg)}
+	r.mu.Lock()
+	defer r.mu.Unlock()
+	if len(r.entries) == 0 {
+		return
+	}
+	r.entries[r.next] = e
+	r.next++
+	if r.next == len(r.entries) {
+		r.next = 0
+		r.full = true
+	}
+}
+
+// Dump returns the buffered messages, oldest first, in the format of logcat -v threadtime.
+func (r *RingBuffer) Dump() string {
+	r.mu.Lock()
+	entries := append([]entry(nil), r.entries[r.next:]...)
+	if !r.full {
+		entries = entries[:0]
+	}
+	entries = append(entries, r.entries[:r.next]...)
+	r.mu.Unlock()
+
+	pid := os.Getpid()
+	var sb strings.Builder
+	for _, e := range entries {
+		header := fmt.Sprintf("%s %5d %5d %c %s: ", e.when.Format("01-02 15:04:05.000"), pid, e.tid, e.level.letter(), e.tag)
+		for _, line := range strings.Split(e.msg, "\n") {
+			sb.WriteString(header)
+			sb.WriteString(line)
+			sb.WriteByte('\n')
+		}
+	}
+	return sb.String()
+}
+
+// Gate decides, for each message, whether it is worth formatting and where it should go.
+type Gate struct {
+	logcatLevel   atomic.Int32
+	ringLevel     atomic.Int32 // Error+1 while the ring buffer is off
+	logcatLimiter *Limiter
+	ringLimiter   *Limiter
+	ring          RingBuffer
+}
+
+// NewGate sends messages at or above logcatLevel to logcat, and keeps the ring buffer off. Each
+// destination takes its tokens from a limiter of its own.
+func NewGate(logcatLevel Level, logcatLimiter, ringLimiter *Limiter) *Gate {
+	g := &Gate{logcatLimiter: logcatLimiter, ringLimiter: ringLimiter}
+	g.logcatLevel.Store(int32(logcatLevel))
+	g.ringLevel.Store(int32(Error + 1))
+	return g
+}
+
+func (g *Gate) SetLogcatLevel(level Level) {
+	g.logcatLevel.Store(int32(level))
+}
+
+// SetRing keeps up to capacity messages that are at or above level but not logged to logcat.
+// A capacity of zero turns the ring buffer off and empties it.
+func (g *Gate) SetRing(capacity int, level Level) {
+	g.ring.setCapacity(capacity)
+	if capacity <= 0 {
+		level = Error + 1
+	}
+	g.ringLevel.Store(int32(level))
+}
+
+func (g *Gate) Ring() *RingBuffer {
+	return &g.ring
+}
+
+// Admit returns where a message of the given level and tag should go, and how many earlier
+// messages with that tag were suppressed, so that the caller only formats what is kept. It only
+// takes a lock for messages that are not dropped for their level.
+func (g *Gate) Admit(level Level, tag string) (Destination, int) {
+	var dest Destination
+	var limiter *Limiter
+	switch {
+	case int32(level) >= g.logcatLevel.Load():
+		dest, limiter = Logcat, g.logcatLimiter
+	case int32(level) >= g.ringLevel.Load():
+		dest, limiter = Ring, g.ringLimiter
+	default:
+		return Drop, 0
+	}
+	ok, suppressed := limiter.Allow(tag)
+	if !ok {
+		return Drop, 0
+	}
+	return dest, suppressed
+}
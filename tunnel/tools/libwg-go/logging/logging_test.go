@@ -0,0 +1,102 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ */
+
+package logging
+
+import (
+	"regexp"
+	"strings"
+	"testing"
+	"time"
+)
+
+// The pattern LogViewerActivity parses logcat -v threadtime with.
+var threadtimeLine = regexp.MustCompile(`^(\d{2}-\d{2} \d{2}:\d{2}:\d{2}.\d{3})(?:\s+[0-9A-Za-z]+)?\s+(\d+)\s+(\d+)\s+([A-Z])\s+(.+?)\s*: (.*)$`)
+
+func TestLimiter(t *testing.T) {
+	now := time.Unix(0, 0)
+	limiter := NewLimiter(2, 3)
+	limiter.now = func() time.Time { return now }
+	for i := 0; i < 3; i++ {
+		if ok, _ := limiter.Allow("a"); !ok {
+			t.Fatalf("message %d of the burst was refused", i)
+		}
+	}
+	for i := 0; i < 5; i++ {
+		if ok, _ := limiter.Allow("a"); ok {
+			t.Fatal("message over the burst was allowed")
+		}
+	}
+	if ok, _ := limiter.Allow("b"); !ok {
+		t.Fatal("another tag was limited too")
+	}
+	now = now.Add(500 * time.Millisecond)
+	if ok, suppressed := limiter.Allow("a"); !ok || suppressed != 5 {
+		t.Fatalf("Allow after refill = %v, %d", ok, suppressed)
+	}
+}
+
+func TestGate(t *testing.T) {
+	gate := NewGate(Info, NewLimiter(1000, 1000), NewLimiter(1000, 1000))
+	if dest, _ := gate.Admit(Debug, "tag"); dest != Drop {
+		t.Fatalf("debug message went to %d with the ring buffer off", dest)
+	}
+	if dest, _ := gate.Admit(Warn, "tag"); dest != Logcat {
+		t.Fatalf("warning went to %d", dest)
+	}
+	gate.SetRing(16, Debug)
+	if dest, _ := gate.Admit(Debug, "tag"); dest != Ring {
+		t.Fatalf("debug message went to %d with the ring buffer on", dest)
+	}
+	if dest, _ := gate.Admit(Verbose, "tag"); dest != Drop {
+		t.Fatalf("verbose message went to %d", dest)
+	}
+	gate.SetRing(0, Debug)
+	if dest, _ := gate.Admit(Debug, "tag"); dest != Drop {
+		t.Fatalf("debug message went to %d after the ring buffer was turned off", dest)
+	}
+}
+
+func TestRingChatterDoesNotSilenceLogcat(t *testing.T) {
+	gate := NewGate(Info, NewLimiter(1, 1), NewLimiter(1, 1))
+	gate.SetRing(16, Debug)
+	for i := 0; i < 10; i++ {
+		gate.Admit(Debug, "tag")
+	}
+	if dest, _ := gate.Admit(Error, "tag"); dest != Logcat {
+		t.Fatalf("error went to %d after the ring used up its tokens", dest)
+	}
+}
+
+func TestRingBuffer(t *testing.T) {
+	gate := NewGate(Info, NewLimiter(1000, 1000), NewLimiter(1000, 1000))
+	gate.SetRing(3, Debug)
+	for _, msg := range []string{"one", "two", "three", "four\nfive"} {
+		gate.Ring().Add(Debug, "WireGuard/GoBackend/wg0", []byte(msg))
+	}
+	lines := strings.Split(strings.TrimSuffix(gate.Ring().Dump(), "\n"), "\n")
+	want := []string{"two", "three", "four", "five"}
+	if len(lines) != len(want) {
+		t.Fatalf("dumped %q", lines)
+	}
+	for i, line := range lines {
+		m := threadtimeLine.FindStringSubmatch(line)
+		if m == nil {
+			t.Fatalf("%q does not look like logcat", line)
+		}
+		if m[4] != "D" || m[5] != "WireGuard/GoBackend/wg0" || m[6] != want[i] {
+			t.Fatalf("line %d is %q", i, line)
+		}
+	}
+}
+
+func BenchmarkAdmitDropped(b *testing.B) {
+	gate := NewGate(Info, NewLimiter(20, 100), NewLimiter(20, 100))
+	b.RunParallel(func(pb *testing.PB) {
+		for pb.Next() {
+			gate.Admit(Debug, "WireGuard/GoBackend/wg0")
+		}
+	})
+}
@@ -0,0 +1,160 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ */
+
+// Package pmtu discovers the largest packet that can reach a UDP endpoint without being
+// fragmented, by sending probes with the don't-fragment bit set in decreasing sizes.
+package pmtu
+
+import (
+	"errors"
+	"net"
+	"syscall"
+	"time"
+
+	"golang.org/x/sys/unix"
+)
+
+const (
+	// MinMTU is the smallest MTU any tunnel is given, which is also the minimum IPv6 allows.
+	MinMTU = 1280
+	// MaxMTU is the largest MTU any tunnel is given, matching what wg-quick assumes by default.
+	MaxMTU = 1420
+
+	ipv4Overhead = 20 + 8 + 32
+	ipv6Overhead = 40 + 8 + 32
+)
+
+// Sizes of the IP packets that are tried, from the largest down. They cover Ethernet, PPPoE and
+// the usual tunnelling overheads seen on mobile and DSL links.
+var probeSizes = []int{1500, 1492, 1480, 1472, 1460, 1440, 1420, 1400, 1380, 1360, 1340, 1320, 1300, 1280}
+
+var ErrNoPath = errors.New("no probe size reached the endpoint")
+
+type Options struct {
+	// Timeout is how long to wait after each probe for an ICMP error or an echo.
+	Timeout time.Duration
+	// ExpectEcho makes a probe count only once the endpoint has echoed it. Otherwise a probe that
+	// draws no ICMP error within Timeout counts as having arrived.
+	ExpectEcho bool
+	// Control, if set, is called with the probe socket before it is connected.
+	Control func(fd int) error
+}
+
+// Discover returns the path MTU to endpoint: the size of the largest IP packet that got there.
+func Discover(endpoint *net.UDPAddr, options Options) (int, error) {
+	ipv6 := endpoint.IP.To4() == nil
+	network, headerSize := "udp4", 20+8
+	if ipv6 {
+		network, headerSize = "udp6", 40+8
+	}
+	dialer := net.Dialer{Control: func(network, address string, c syscall.RawConn) error {
+		var err error
+		controlErr := c.Control(func(fd uintptr) {
+			if ipv6 {
+				err = unix.SetsockoptInt(int(fd), unix.IPPROTO_IPV6, unix.IPV6_MTU_DISCOVER, unix.IPV6_PMTUDISC_DO)
+			} else {
+				err = unix.SetsockoptInt(int(fd), unix.IPPROTO_IP, unix.IP_MTU_DISCOVER, unix.IP_PMTUDISC_DO)
+			}
+			if err == nil && options.Control != nil {
+				err = options.Control(int(fd))
+			}
+		})
+		if controlErr != nil {
+			return controlErr
+		}
+		return err
+	}}
+	conn, err := dialer.Dial(network, endpoint.String())
+	if err != nil {
+		return 0, err
+	}
+	defer conn.Close()
+	udp := conn.(*net.UDPConn)
+	raw, err := udp.SyscallConn()
+	if err != nil {
+		return 0, err
+	}
+
+	buf := make([]byte, probeSizes[0])
+	for _, size := range probeSizes {
+		// Skip what the kernel already knows to be too large for this path.
+		if known := knownMTU(raw, ipv6); known > 0 && size > known {
+			continue
+		}
+		payload := buf[:size-headerSize]
+		_, err = udp.Write(payload)
+		if errors.Is(err, unix.EMSGSIZE) {
+			continue
+		} else if err != nil {
+			return 0, err
+		}
+		ok, err := awaitProbe(udp, len(payload), options)
+		if err != nil {
+			return 0, err
+		}
+		if ok {
+			return size, nil
+		}
+	}
+	return 0, ErrNoPath
+}
+
+// awaitProbe waits for the fate of a probe, reporting whether it got through.
+func awaitProbe(conn *net.UDPConn, length int, options Options) (bool, error) {
+	deadline := time.Now().Add(options.Timeout)
+	reply := make([]byte, probeSizes[0])
+	for {
+		if err := conn.SetReadDeadline(deadline); err != nil {
+			return false, err
+		}
+		n, err := conn.Read(reply)
+		var netErr net.Error
+		switch {
+		case err == nil:
+			if n == length {
+				return true, nil
+			}
+			// An echo of an earlier, larger probe that arrived late; keep waiting.
+		case errors.Is(err, unix.EMSGSIZE):
+			// A router on the way sent back "fragmentation needed".
+			return false, nil
+		case errors.As(err, &netErr) && netErr.Timeout():
+			return !options.ExpectEcho, nil
+		case errors.Is(err, unix.ECONNREFUSED):
+			// Nothing is listening, but the probe did get there.
+			return true, nil
+		default:
+			return false, err
+		}
+	}
+}
+
+func knownMTU(raw syscall.RawConn, ipv6 bool) int {
+	mtu := 0
+	raw.Control(func(fd uintptr) {
+		if ipv6 {
+			mtu, _ = unix.GetsockoptInt(int(fd), unix.IPPROTO_IPV6, unix.IPV6_MTU)
+		} else {
+			mtu, _ = unix.GetsockoptInt(int(fd), unix.IPPROTO_IP, unix.IP_MTU)
+		}
+	})
+	return mtu
+}
+
+// TunnelMTU returns the MTU of a tunnel whose packets travel to endpoint over a path with the
+// given MTU, leaving room for the outer headers and clamped to the range tunnels may use.
+func TunnelMTU(pathMTU int, endpoint *net.UDPAddr) int {
+	mtu := pathMTU - ipv4Overhead
+	if endpoint.IP.To4() == nil {
+		mtu = pathMTU - ipv6Overhead
+	}
+	if mtu < MinMTU {
+		return MinMTU
+	}
+	if mtu > MaxMTU {
+		return MaxMTU
+	}
+	return mtu
+}
@@ -0,0 +1,90 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ */
+
+package pmtu
+
+import (
+	"net"
+	"testing"
+	"time"
+)
+
+// responder echoes every datagram whose IP packet would fit in mtu and silently drops the rest,
+// like a path that blackholes anything larger.
+func responder(t *testing.T, mtu int) *net.UDPConn {
+	conn, err := net.ListenUDP("udp4", &net.UDPAddr{IP: net.IPv4(127, 0, 0, 1)})
+	if err != nil {
+		t.Fatal(err)
+	}
+	go func() {
+		buf := make([]byte, 65536)
+		for {
+			n, addr, err := conn.ReadFromUDP(buf)
+			if err != nil {
+				return
+			}
+			if n+20+8 <= mtu {
+				conn.WriteToUDP(buf[:n], addr)
+			}
+		}
+	}()
+	return conn
+}
+
+func TestDiscoverWithEcho(t *testing.T) {
+	for _, mtu := range []int{1500, 1400, 1280} {
+		server := responder(t, mtu)
+		got, err := Discover(server.LocalAddr().(*net.UDPAddr), Options{Timeout: 100 * time.Millisecond, ExpectEcho: true})
+		server.Close()
+		if err != nil {
+			t.Fatal(err)
+		}
+		if got != mtu {
+			t.Errorf("path MTU %d discovered as %d", mtu, got)
+		}
+	}
+}
+
+func TestDiscoverNoPath(t *testing.T) {
+	server := responder(t, 1000)
+	defer server.Close()
+	_, err := Discover(server.LocalAddr().(*net.UDPAddr), Options{Timeout: 20 * time.Millisecond, ExpectEcho: true})
+	if err != ErrNoPath {
+		t.Fatalf("expected ErrNoPath, got %v", err)
+	}
+}
+
+func TestDiscoverWithoutEcho(t *testing.T) {
+	// Loopback never sends "fragmentation needed", so without echoes the largest probe wins.
+	server := responder(t, 0)
+	defer server.Close()
+	got, err := Discover(server.LocalAddr().(*net.UDPAddr), Options{Timeout: 20 * time.Millisecond})
+	if err != nil {
+		t.Fatal(err)
+	}
+	if got != probeSizes[0] {
+		t.Errorf("expected %d, got %d", probeSizes[0], got)
+	}
+}
+
+func TestTunnelMTU(t *testing.T) {
+	v4 := &net.UDPAddr{IP: net.IPv4(192, 0, 2, 1), Port: 51820}
+	v6 := &net.UDPAddr{IP: net.ParseIP("2001:db8::1"), Port: 51820}
+	for _, test := range []struct {
+		path     int
+		endpoint *net.UDPAddr
+		want     int
+	}{
+		{1500, v4, MaxMTU},
+		{1500, v6, 1420},
+		{1400, v4, 1340},
+		{1400, v6, 1320},
+		{1300, v4, MinMTU},
+	} {
+		if got := TunnelMTU(test.path, test.endpoint); got != test.want {
+			t.Errorf("TunnelMTU(%d, %v) = %d, want %d", test.path, test.endpoint, got, test.want)
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ */
+
+// Package probe measures how long a WireGuard handshake with a peer takes, using a throwaway
+// device that never carries any traffic of its own.
+package probe
+
+import (
+	"errors"
+	"io"
+	"os"
+	"strconv"
+	"strings"
+	"sync"
+	"time"
+
+	"golang.zx2c4.com/wireguard/conn"
+	"golang.zx2c4.com/wireguard/device"
+	"golang.zx2c4.com/wireguard/tun"
+)
+
+var ErrTimeout = errors.New("handshake timed out")
+
+// Handshake configures a device with settings, which must describe exactly one peer with an
+// endpoint, brings it up so that it immediately initiates a handshake, and returns the time from
+// bringing the device up until the handshake completed.
+func Handshake(settings string, timeout time.Duration, bind conn.Bind, logger *device.Logger) (time.Duration, error) {
+	dev := device.NewDevice(newNullTUN(), bind, logger)
+	defer dev.Close()
+
+	// A persistent keepalive makes the device send a keepalive, and so initiate a handshake, as
+	// soon as it comes up. The settings are read in place rather than concatenated, so that the
+	// private key they hold is not copied onto the heap.
+	err := dev.IpcSetOperation(io.MultiReader(strings.NewReader(settings), strings.NewReader("persistent_keepalive_interval=1\n")))
+	if err != nil {
+		return 0, err
+	}
+	start := time.Now()
+	err = dev.Up()
+	if err != nil {
+		return 0, err
+	}
+
+	deadline := start.Add(timeout)
+	for {
+		handshake, err := lastHandshake(dev)
+		if err != nil {
+			return 0, err
+		}
+		if !handshake.IsZero() {
+			return handshake.Sub(start), nil
+		}
+		if time.Now().After(deadline) {
+			return 0, ErrTimeout
+		}
+		time.Sleep(2 * time.Millisecond)
+	}
+}
+
+func lastHandshake(dev *device.Device) (time.Time, error) {
+	config, err := dev.IpcGet()
+	if err != nil {
+		return time.Time{}, err
+	}
+	var sec, nsec int64
+	for _, line := range strings.Split(config, "\n") {
+		key, value, ok := strings.Cut(line, "=")
+		if !ok {
+			continue
+		}
+		switch key {
+		case "last_handshake_time_sec":
+			sec, _ = strconv.ParseInt(value, 10, 64)
+		case "last_handshake_time_nsec":
+			nsec, _ = strconv.ParseInt(value, 10, 64)
+		}
+	}
+	if sec == 0 && nsec == 0 {
+		return time.Time{}, nil
+	}
+	return time.Unix(sec, nsec), nil
+}
+
+// ProtectedBind calls Protect with each socket of the wrapped bind as soon as it is opened, before
+// anything is sent on it, so that the caller can keep it out of a VPN.
+type ProtectedBind struct {
+	conn.Bind
+	Protect func(fd int) bool
+}
+
+func (b *ProtectedBind) Open(port uint16) ([]conn.ReceiveFunc, uint16, error) {
+	fns, actualPort, err := b.Bind.Open(port)
+	if err != nil {
+		return nil, 0, err
+	}
+	peek, ok := b.Bind.(conn.PeekLookAtSocketFd)
+	if !ok {
+		return fns, actualPort, nil
+	}
+	for _, lookup := range []func() (int, error){peek.PeekLookAtSocketFd4, peek.PeekLookAtSocketFd6} {
+		fd, err := lookup()
+		if err == nil && fd >= 0 && !b.Protect(fd) {
+			b.Bind.Close()
+			return nil, 0, errors.New("unable to protect socket")
+		}
+	}
+	return fns, actualPort, nil
+}
+
+// nullTUN is a TUN device that never produces a packet and drops everything written to it.
+type nullTUN struct {
+	events    chan tun.Event
+	closed    chan struct{}
+	closeOnce sync.Once
+}
+
+func newNullTUN() *nullTUN {
+	return &nullTUN{events: make(chan tun.Event), closed: make(chan struct{})}
+}
+
+func (t *nullTUN) File() *os.File { return nil }
+
+func (t *nullTUN) Read(bufs [][]byte, sizes []int, offset int) (int, error) {
+	<-t.closed
+	return 0, os.ErrClosed
+}
+
+func (t *nullTUN) Write(bufs [][]byte, offset int) (int, error) { return len(bufs), nil }
+
+func (t *nullTUN) MTU() (int, error) { return device.DefaultMTU, nil }
+
+func (t *nullTUN) Name() (string, error) { return "probe", nil }
+
+func (t *nullTUN) Events() <-chan tun.Event { return t.events }
+
+func (t *nullTUN) BatchSize() int { return 1 }
+
+func (t *nullTUN) Close() error {
+	t.closeOnce.Do(func() {
+		close(t.closed)
+		close(t.events)
+	})
+	return nil
+}
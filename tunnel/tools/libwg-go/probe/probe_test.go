@@ -0,0 +1,93 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ */
+
+package probe
+
+import (
+	"crypto/ecdh"
+	"crypto/rand"
+	"encoding/hex"
+	"fmt"
+	"net"
+	"strings"
+	"testing"
+	"time"
+
+	"golang.zx2c4.com/wireguard/conn"
+	"golang.zx2c4.com/wireguard/device"
+)
+
+func keyPair(t *testing.T) (private, public string) {
+	key, err := ecdh.X25519().GenerateKey(rand.Reader)
+	if err != nil {
+		t.Fatal(err)
+	}
+	return hex.EncodeToString(key.Bytes()), hex.EncodeToString(key.PublicKey().Bytes())
+}
+
+func listenPort(t *testing.T, dev *device.Device) string {
+	config, err := dev.IpcGet()
+	if err != nil {
+		t.Fatal(err)
+	}
+	for _, line := range strings.Split(config, "\n") {
+		if port, ok := strings.CutPrefix(line, "listen_port="); ok {
+			return port
+		}
+	}
+	t.Fatal("no listen port")
+	return ""
+}
+
+func TestHandshake(t *testing.T) {
+	serverPrivate, serverPublic := keyPair(t)
+	clientPrivate, clientPublic := keyPair(t)
+	logger := device.NewLogger(device.LogLevelError, "")
+
+	server := device.NewDevice(newNullTUN(), conn.NewDefaultBind(), logger)
+	defer server.Close()
+	err := server.IpcSet(fmt.Sprintf("private_key=%s\nlisten_port=0\npublic_key=%s\nallowed_ip=10.0.0.2/32\n", serverPrivate, clientPublic))
+	if err != nil {
+		t.Fatal(err)
+	}
+	if err = server.Up(); err != nil {
+		t.Fatal(err)
+	}
+
+	protected := 0
+	bind := &ProtectedBind{Bind: conn.NewDefaultBind(), Protect: func(fd int) bool {
+		protected++
+		return true
+	}}
+	settings := fmt.Sprintf("private_key=%s\npublic_key=%s\nendpoint=127.0.0.1:%s\n", clientPrivate, serverPublic, listenPort(t, server))
+	rtt, err := Handshake(settings, 5*time.Second, bind, logger)
+	if err != nil {
+		t.Fatal(err)
+	}
+	if rtt <= 0 || rtt > 5*time.Second {
+		t.Errorf("implausible round trip %v", rtt)
+	}
+	// Sockets can only be looked at on Android.
+	if _, ok := bind.Bind.(conn.PeekLookAtSocketFd); ok && protected == 0 {
+		t.Error("no socket was protected")
+	}
+}
+
+func TestHandshakeTimeout(t *testing.T) {
+	clientPrivate, _ := keyPair(t)
+	_, silentPublic := keyPair(t)
+	// Nothing ever answers on this socket.
+	silent, err := net.ListenPacket("udp4", "127.0.0.1:0")
+	if err != nil {
+		t.Fatal(err)
+	}
+	defer silent.Close()
+
+	settings := fmt.Sprintf("private_key=%s\npublic_key=%s\nendpoint=%s\n", clientPrivate, silentPublic, silent.LocalAddr())
+	_, err = Handshake(settings, 300*time.Millisecond, conn.NewDefaultBind(), device.NewLogger(device.LogLevelError, ""))
+	if err != ErrTimeout {
+		t.Fatalf("expected timeout, got %v", err)
+	}
+}
@@ -0,0 +1,76 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ */
+
+// Package tuning reports how much memory and how many goroutines the Go runtime inside the
+// library is using, so that the app can decide how tightly to limit it.
+package tuning
+
+import (
+	"runtime"
+	"runtime/debug"
+)
+
+// The limits Trim applies when the system is critically low on memory. They are provisional, not
+// yet backed by measurements on devices: BenchmarkSoak reports the footprint under them next to
+// the untrimmed one, and they should be set from its results.
+const (
+	TrimMemoryLimit = 32 << 20
+	TrimGCPercent   = 25
+)
+
+// Trim tightens the runtime to TrimMemoryLimit and TrimGCPercent, without loosening a limit that
+// is already tighter, and returns what it has freed to the OS. It returns the previous memory
+// limit and GC percentage, so that they can be restored once memory is no longer short.
+func Trim() (memoryLimit int64, gcPercent int) {
+	memoryLimit = debug.SetMemoryLimit(-1)
+	if memoryLimit > TrimMemoryLimit {
+		debug.SetMemoryLimit(TrimMemoryLimit)
+	}
+	gcPercent = debug.SetGCPercent(TrimGCPercent)
+	if gcPercent >= 0 && gcPercent < TrimGCPercent {
+		debug.SetGCPercent(gcPercent)
+	}
+	debug.FreeOSMemory()
+	return memoryLimit, gcPercent
+}
+
+// Metrics is a snapshot of the runtime. Its fields are handed to Java in this order.
+type Metrics struct {
+	// HeapInUse is the memory occupied by heap spans that hold objects, in bytes.
+	HeapInUse int64
+	// Footprint is the memory obtained from the OS and not yet returned to it, in bytes. This
+	// is roughly what the memory limit applies to.
+	Footprint int64
+	// GCCycles is the number of completed collections.
+	GCCycles int64
+	// GCPauseTotal is the time the world has been stopped for collections, in nanoseconds.
+	GCPauseTotal int64
+	Goroutines   int64
+	// MemoryLimit is the soft limit in effect, in bytes.
+	MemoryLimit int64
+}
+
+// Read takes a snapshot of the runtime. It briefly stops the world, so call it at most every
+// few seconds.
+func Read() Metrics {
+	var stats runtime.MemStats
+	runtime.ReadMemStats(&stats)
+	return Metrics{
+		HeapInUse:    int64(stats.HeapInuse),
+		Footprint:    int64(stats.Sys - stats.HeapReleased),
+		GCCycles:     int64(stats.NumGC),
+		GCPauseTotal: int64(stats.PauseTotalNs),
+		Goroutines:   int64(runtime.NumGoroutine()),
+		MemoryLimit:  debug.SetMemoryLimit(-1),
+	}
+}
+
+// Fill copies as many fields of m as fit into out, in declaration order, and returns how many
+// fields there are.
+func (m Metrics) Fill(out []int64) int {
+	values := [...]int64{m.HeapInUse, m.Footprint, m.GCCycles, m.GCPauseTotal, m.Goroutines, m.MemoryLimit}
+	copy(out, values[:])
+	return len(values)
+}
@@ -0,0 +1,176 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ */
+
+package tuning
+
+import (
+	"crypto/ecdh"
+	"crypto/rand"
+	"encoding/hex"
+	"fmt"
+	"math"
+	"net/netip"
+	"runtime/debug"
+	"strings"
+	"sync/atomic"
+	"testing"
+	"time"
+
+	"golang.zx2c4.com/wireguard/conn"
+	"golang.zx2c4.com/wireguard/device"
+	"golang.zx2c4.com/wireguard/tun/tuntest"
+)
+
+func keyPair(tb testing.TB) (private, public string) {
+	key, err := ecdh.X25519().GenerateKey(rand.Reader)
+	if err != nil {
+		tb.Fatal(err)
+	}
+	return hex.EncodeToString(key.Bytes()), hex.EncodeToString(key.PublicKey().Bytes())
+}
+
+func listenPort(tb testing.TB, dev *device.Device) string {
+	config, err := dev.IpcGet()
+	if err != nil {
+		tb.Fatal(err)
+	}
+	for _, line := range strings.Split(config, "\n") {
+		if port, ok := strings.CutPrefix(line, "listen_port="); ok {
+			return port
+		}
+	}
+	tb.Fatal("no listen port")
+	return ""
+}
+
+func newDevice(tb testing.TB, settings string) (*device.Device, *tuntest.ChannelTUN) {
+	channel := tuntest.NewChannelTUN()
+	dev := device.NewDevice(channel.TUN(), conn.NewDefaultBind(), device.NewLogger(device.LogLevelError, ""))
+	tb.Cleanup(dev.Close)
+	if err := dev.IpcSet(settings); err != nil {
+		tb.Fatal(err)
+	}
+	if err := dev.Up(); err != nil {
+		tb.Fatal(err)
+	}
+	return dev, channel
+}
+
+func TestFill(t *testing.T) {
+	m := Read()
+	if m.Footprint < m.HeapInUse || m.Goroutines < 1 || m.MemoryLimit <= 0 {
+		t.Fatalf("implausible metrics %+v", m)
+	}
+	out := make([]int64, 2)
+	if n := m.Fill(out); n != 6 || out[0] != m.HeapInUse || out[1] != m.Footprint {
+		t.Fatalf("Fill = %d, %v", n, out)
+	}
+}
+
+// soakLevels are the limits Trim applies next to the defaults it starts from, so that the
+// footprint under each can be read off one run of BenchmarkSoak.
+var soakLevels = []struct {
+	name      string
+	limit     int64
+	gcPercent int
+}{
+	{"untrimmed", math.MaxInt64, 100},
+	{"trimmed", TrimMemoryLimit, TrimGCPercent},
+}
+
+// BenchmarkSoak pushes b.N packets from one device to another at each trim level, and reports
+// the largest footprint seen next to the limit, along with the collections it took to stay there.
+// Run it with -benchtime=1000000x or more so that the footprint has time to settle.
+func BenchmarkSoak(b *testing.B) {
+	for _, level := range soakLevels {
+		b.Run(level.name, func(b *testing.B) {
+			soak(b, level.limit, level.gcPercent)
+		})
+	}
+}
+
+func soak(b *testing.B, limit int64, gcPercent int) {
+	defer debug.SetMemoryLimit(debug.SetMemoryLimit(limit))
+	defer debug.SetGCPercent(debug.SetGCPercent(gcPercent))
+	// Start from what this level needs, not from what an earlier one left behind.
+	debug.FreeOSMemory()
+
+	senderPrivate, senderPublic := keyPair(b)
+	receiverPrivate, receiverPublic := keyPair(b)
+	receiver, receiverTUN := newDevice(b, fmt.Sprintf("private_key=%s\nlisten_port=0\npublic_key=%s\nallowed_ip=10.0.0.1/32\n",
+		receiverPrivate, senderPublic))
+	_, senderTUN := newDevice(b, fmt.Sprintf("private_key=%s\nlisten_port=0\npublic_key=%s\nallowed_ip=10.0.0.2/32\nendpoint=127.0.0.1:%s\n",
+		senderPrivate, receiverPublic, listenPort(b, receiver)))
+	ping := tuntest.Ping(netip.MustParseAddr("10.0.0.2"), netip.MustParseAddr("10.0.0.1"))
+
+	// The first packets wait for the handshake, so get it out of the way.
+	for warm := false; !warm; {
+		senderTUN.Outbound <- ping
+		select {
+		case <-receiverTUN.Inbound:
+			warm = true
+		case <-time.After(time.Second):
+		}
+	}
+
+	var peak atomic.Int64
+	stop := make(chan struct{})
+	sampled := make(chan struct{})
+	go func() {
+		defer close(sampled)
+		ticker := time.NewTicker(50 * time.Millisecond)
+		defer ticker.Stop()
+		for {
+			if footprint := Read().Footprint; footprint > peak.Load() {
+				peak.Store(footprint)
+			}
+			select {
+			case <-stop:
+				return
+			case <-ticker.C:
+			}
+		}
+	}()
+
+	b.SetBytes(int64(len(ping)))
+	before := Read()
+	b.ResetTimer()
+	go func() {
+		for i := 0; i < b.N; i++ {
+			select {
+			case senderTUN.Outbound <- ping:
+			case <-stop:
+				return
+			}
+		}
+	}()
+	received := 0
+	for idle := false; received < b.N && !idle; {
+		select {
+		case <-receiverTUN.Inbound:
+			received++
+		case <-time.After(time.Second):
+			// Whatever has not arrived by now was dropped on the way.
+			idle = true
+		}
+	}
+	b.StopTimer()
+	close(stop)
+	<-sampled
+	after := Read()
+
+	b.ReportMetric(float64(peak.Load()), "peak-bytes")
+	b.ReportMetric(float64(after.Footprint), "final-bytes")
+	if limit != math.MaxInt64 {
+		b.ReportMetric(float64(limit), "limit-bytes")
+	}
+	b.ReportMetric(float64(after.GCCycles-before.GCCycles), "gc-cycles")
+	b.ReportMetric(float64(after.GCPauseTotal-before.GCPauseTotal)/float64(b.N), "gc-pause-ns/op")
+	b.ReportMetric(float64(b.N-received)/float64(b.N), "loss")
+	// The limit is soft: the runtime may overshoot it a little before the collector catches up.
+	if limit != math.MaxInt64 && peak.Load() > limit+limit/10 {
+		b.Errorf("footprint reached %d bytes, over the limit of %d", peak.Load(), limit)
+	}
+}
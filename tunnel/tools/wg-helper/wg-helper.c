@@ -0,0 +1,492 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ *
+ * A long-lived root helper for the kernel backend. It reads requests from stdin and writes
+ * responses to stdout, and talks to the kernel through WireGuard's generic netlink family, so
+ * the app does not have to start wg for every query and parse its output.
+ *
+ * Every frame starts with its length as a big-endian u32, not counting the length itself.
+ * Requests are followed by a u32 id and a u8 opcode, responses by the id of the request and an
+ * i32 status, which is 0 or a negative errno. All integers are big-endian. The payloads are
+ * documented with each opcode below.
+ */
+
+#include <arpa/inet.h>
+#include <errno.h>
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+
+#include "wireguard.h"
+
+#define MAX_FRAME (1U << 20)
+
+enum {
+	/* Request: empty. Response: empty, or -EPERM if not running as root. */
+	OP_PING = 1,
+	/*
+	 * Request: empty.
+	 * Response: u16 device count, then for each device:
+	 *   u8 name length, name, public key[32], u16 listen port, u16 peer count, then for each peer:
+	 *     public key[32], u8 endpoint family (0, 4 or 6), address[4 or 16] and u16 port unless 0,
+	 *     u64 rx bytes, u64 tx bytes, i64 last handshake seconds, u16 persistent keepalive
+	 */
+	OP_DUMP = 2,
+	/*
+	 * Request: u8 name length, name, u8 device flags, private key[32] if DEV_PRIVATE_KEY,
+	 *   u16 listen port if DEV_LISTEN_PORT, u16 peer count, then for each peer:
+	 *     public key[32], u8 peer flags, preshared key[32] if PEER_PRESHARED_KEY,
+	 *     u8 family, address[4 or 16], u16 port if PEER_ENDPOINT,
+	 *     u16 persistent keepalive if PEER_KEEPALIVE, u16 allowed IP count, then for each:
+	 *       u8 family (4 or 6), address[4 or 16], u8 cidr
+	 * Response: empty.
+	 */
+	OP_SET = 3
+};
+
+enum {
+	DEV_PRIVATE_KEY = 1U << 0,
+	DEV_LISTEN_PORT = 1U << 1,
+	/* Remove the peers that are not in the request, like wg syncconf. */
+	DEV_SYNC_PEERS = 1U << 2
+};
+
+enum {
+	PEER_PRESHARED_KEY = 1U << 0,
+	PEER_ENDPOINT = 1U << 1,
+	PEER_KEEPALIVE = 1U << 2,
+	PEER_REPLACE_ALLOWED_IPS = 1U << 3,
+	PEER_REMOVE = 1U << 4
+};
+
+struct reader {
+	const uint8_t *data;
+	size_t len, pos;
+	bool error;
+};
+
+struct writer {
+	uint8_t *data;
+	size_t len, cap;
+	bool error;
+};
+
+static const uint8_t *get(struct reader *r, size_t len)
+{
+	const uint8_t *p;
+
+	if (r->error || r->len - r->pos < len) {
+		r->error = true;
+		return NULL;
+	}
+	p = r->data + r->pos;
+	r->pos += len;
+	return p;
+}
+
+static uint8_t get_u8(struct reader *r)
+{
+	const uint8_t *p = get(r, 1);
+	return p ? p[0] : 0;
+}
+
+static uint16_t get_u16(struct reader *r)
+{
+	const uint8_t *p = get(r, 2);
+	return p ? (uint16_t)(p[0] << 8 | p[1]) : 0;
+}
+
+static void get_bytes(struct reader *r, void *dst, size_t len)
+{
+	const uint8_t *p = get(r, len);
+	if (p)
+		memcpy(dst, p, len);
+}
+
+static void put(struct writer *w, const void *src, size_t len)
+{
+	if (w->error)
+		return;
+	if (w->cap - w->len < len) {
+		size_t cap = w->cap ? w->cap : 256;
+		uint8_t *data;
+
+		while (cap - w->len < len)
+			cap *= 2;
+		data = realloc(w->data, cap);
+		if (!data) {
+			w->error = true;
+			return;
+		}
+		w->data = data;
+		w->cap = cap;
+	}
+	memcpy(w->data + w->len, src, len);
+	w->len += len;
+}
+
+static void put_u8(struct writer *w, uint8_t v)
+{
+	put(w, &v, 1);
+}
+
+static void put_u16(struct writer *w, uint16_t v)
+{
+	uint8_t b[2] = { v >> 8, v };
+	put(w, b, sizeof(b));
+}
+
+static void put_u32(struct writer *w, uint32_t v)
+{
+	uint8_t b[4] = { v >> 24, v >> 16, v >> 8, v };
+	put(w, b, sizeof(b));
+}
+
+static void put_u64(struct writer *w, uint64_t v)
+{
+	put_u32(w, v >> 32);
+	put_u32(w, v);
+}
+
+/* Clears memory that held keys, in a way that the compiler cannot drop as a dead store. */
+static void wipe(void *p, size_t len)
+{
+	memset(p, 0, len);
+	__asm__ __volatile__("" : : "r"(p) : "memory");
+}
+
+/* Like wg_free_device, but first clears the private key and every pre-shared key. */
+static void free_device(wg_device *device)
+{
+	wg_peer *peer;
+
+	if (!device)
+		return;
+	wg_for_each_peer(device, peer)
+		wipe(peer->preshared_key, sizeof(peer->preshared_key));
+	wipe(device->private_key, sizeof(device->private_key));
+	wg_free_device(device);
+}
+
+static int dump(struct writer *w)
+{
+	char *names, *name;
+	size_t len, count_at;
+	uint16_t count = 0;
+
+	names = wg_list_device_names();
+	if (!names)
+		return -errno;
+	count_at = w->len;
+	put_u16(w, 0);
+	wg_for_each_device_name(names, name, len) {
+		wg_device *device;
+		wg_peer *peer;
+		uint16_t peers = 0;
+		size_t peers_at;
+
+		/* The device may have gone away since it was listed. */
+		if (wg_get_device(&device, name) < 0)
+			continue;
+		put_u8(w, strlen(device->name));
+		put(w, device->name, strlen(device->name));
+		put(w, device->public_key, sizeof(device->public_key));
+		put_u16(w, device->listen_port);
+		peers_at = w->len;
+		put_u16(w, 0);
+		wg_for_each_peer(device, peer) {
+			put(w, peer->public_key, sizeof(peer->public_key));
+			if (peer->endpoint.addr.sa_family == AF_INET) {
+				put_u8(w, 4);
+				put(w, &peer->endpoint.addr4.sin_addr, 4);
+				put_u16(w, ntohs(peer->endpoint.addr4.sin_port));
+			} else if (peer->endpoint.addr.sa_family == AF_INET6) {
+				put_u8(w, 6);
+				put(w, &peer->endpoint.addr6.sin6_addr, 16);
+				put_u16(w, ntohs(peer->endpoint.addr6.sin6_port));
+			} else {
+				put_u8(w, 0);
+			}
+			put_u64(w, peer->rx_bytes);
+			put_u64(w, peer->tx_bytes);
+			put_u64(w, (uint64_t)peer->last_handshake_time.tv_sec);
+			put_u16(w, peer->persistent_keepalive_interval);
+			++peers;
+		}
+		free_device(device);
+		if (!w->error) {
+			w->data[peers_at] = peers >> 8;
+			w->data[peers_at + 1] = peers;
+		}
+		++count;
+	}
+	free(names);
+	if (w->error)
+		return -ENOMEM;
+	w->data[count_at] = count >> 8;
+	w->data[count_at + 1] = count;
+	return 0;
+}
+
+static bool get_address(struct reader *r, uint8_t family, void *v4, void *v6)
+{
+	if (family == 4)
+		get_bytes(r, v4, 4);
+	else if (family == 6)
+		get_bytes(r, v6, 16);
+	else
+		r->error = true;
+	return !r->error;
+}
+
+static wg_peer *read_peer(struct reader *r)
+{
+	wg_peer *peer = calloc(1, sizeof(*peer));
+	uint16_t allowed_ips;
+	uint8_t flags;
+
+	if (!peer)
+		return NULL;
+	get_bytes(r, peer->public_key, sizeof(peer->public_key));
+	peer->flags = WGPEER_HAS_PUBLIC_KEY;
+	flags = get_u8(r);
+	if (flags & PEER_REMOVE)
+		peer->flags |= WGPEER_REMOVE_ME;
+	if (flags & PEER_REPLACE_ALLOWED_IPS)
+		peer->flags |= WGPEER_REPLACE_ALLOWEDIPS;
+	if (flags & PEER_PRESHARED_KEY) {
+		get_bytes(r, peer->preshared_key, sizeof(peer->preshared_key));
+		peer->flags |= WGPEER_HAS_PRESHARED_KEY;
+	}
+	if (flags & PEER_ENDPOINT) {
+		uint8_t family = get_u8(r);
+
+		if (family == 4) {
+			peer->endpoint.addr4.sin_family = AF_INET;
+			get_address(r, family, &peer->endpoint.addr4.sin_addr, NULL);
+			peer->endpoint.addr4.sin_port = htons(get_u16(r));
+		} else {
+			peer->endpoint.addr6.sin6_family = AF_INET6;
+			get_address(r, family, NULL, &peer->endpoint.addr6.sin6_addr);
+			peer->endpoint.addr6.sin6_port = htons(get_u16(r));
+		}
+	}
+	if (flags & PEER_KEEPALIVE) {
+		peer->persistent_keepalive_interval = get_u16(r);
+		peer->flags |= WGPEER_HAS_PERSISTENT_KEEPALIVE_INTERVAL;
+	}
+	allowed_ips = get_u16(r);
+	for (uint16_t i = 0; i < allowed_ips && !r->error; ++i) {
+		wg_allowedip *allowedip = calloc(1, sizeof(*allowedip));
+		uint8_t family;
+
+		if (!allowedip) {
+			r->error = true;
+			break;
+		}
+		if (peer->last_allowedip)
+			peer->last_allowedip->next_allowedip = allowedip;
+		else
+			peer->first_allowedip = allowedip;
+		peer->last_allowedip = allowedip;
+		family = get_u8(r);
+		allowedip->family = family == 4 ? AF_INET : AF_INET6;
+		get_address(r, family, &allowedip->ip4, &allowedip->ip6);
+		allowedip->cidr = get_u8(r);
+	}
+	return peer;
+}
+
+static void append_peer(wg_device *device, wg_peer *peer)
+{
+	if (device->last_peer)
+		device->last_peer->next_peer = peer;
+	else
+		device->first_peer = peer;
+	device->last_peer = peer;
+}
+
+static bool has_peer(wg_device *device, const uint8_t *public_key)
+{
+	wg_peer *peer;
+
+	wg_for_each_peer(device, peer) {
+		if (!memcmp(peer->public_key, public_key, sizeof(peer->public_key)))
+			return true;
+	}
+	return false;
+}
+
+static int set(struct reader *r)
+{
+	wg_device *device = calloc(1, sizeof(*device));
+	uint8_t name_len, flags;
+	uint16_t peers;
+	int ret;
+
+	if (!device)
+		return -ENOMEM;
+	name_len = get_u8(r);
+	if (name_len >= sizeof(device->name)) {
+		ret = -EINVAL;
+		goto out;
+	}
+	get_bytes(r, device->name, name_len);
+	flags = get_u8(r);
+	if (flags & DEV_PRIVATE_KEY) {
+		get_bytes(r, device->private_key, sizeof(device->private_key));
+		device->flags |= WGDEVICE_HAS_PRIVATE_KEY;
+	}
+	if (flags & DEV_LISTEN_PORT) {
+		device->listen_port = get_u16(r);
+		device->flags |= WGDEVICE_HAS_LISTEN_PORT;
+	}
+	peers = get_u16(r);
+	for (uint16_t i = 0; i < peers && !r->error; ++i) {
+		wg_peer *peer = read_peer(r);
+
+		if (!peer) {
+			ret = -ENOMEM;
+			goto out;
+		}
+		append_peer(device, peer);
+	}
+	if (r->error || r->pos != r->len) {
+		ret = -EINVAL;
+		goto out;
+	}
+	if (flags & DEV_SYNC_PEERS) {
+		wg_device *current;
+		wg_peer *peer;
+
+		ret = wg_get_device(&current, device->name);
+		if (ret < 0)
+			goto out;
+		wg_for_each_peer(current, peer) {
+			wg_peer *removed;
+
+			if (has_peer(device, peer->public_key))
+				continue;
+			removed = calloc(1, sizeof(*removed));
+			if (!removed) {
+				free_device(current);
+				ret = -ENOMEM;
+				goto out;
+			}
+			memcpy(removed->public_key, peer->public_key, sizeof(removed->public_key));
+			removed->flags = WGPEER_HAS_PUBLIC_KEY | WGPEER_REMOVE_ME;
+			append_peer(device, removed);
+		}
+		free_device(current);
+	}
+	ret = wg_set_device(device);
+out:
+	free_device(device);
+	return ret;
+}
+
+static bool read_fully(void *buf, size_t len)
+{
+	uint8_t *p = buf;
+
+	while (len) {
+		ssize_t n = read(STDIN_FILENO, p, len);
+
+		if (n < 0 && errno == EINTR)
+			continue;
+		if (n <= 0)
+			return false;
+		p += n;
+		len -= n;
+	}
+	return true;
+}
+
+static bool write_fully(const void *buf, size_t len)
+{
+	const uint8_t *p = buf;
+
+	while (len) {
+		ssize_t n = write(STDOUT_FILENO, p, len);
+
+		if (n < 0 && errno == EINTR)
+			continue;
+		if (n <= 0)
+			return false;
+		p += n;
+		len -= n;
+	}
+	return true;
+}
+
+int main(void)
+{
+	uint8_t *request = NULL;
+	uint32_t request_len = 0;
+	struct writer response = { 0 };
+
+	for (;;) {
+		uint8_t header[4];
+		uint32_t len, id;
+		int status;
+
+		if (!read_fully(header, sizeof(header)))
+			break;
+		len = (uint32_t)header[0] << 24 | header[1] << 16 | header[2] << 8 | header[3];
+		if (len < 5 || len > MAX_FRAME)
+			break;
+		if (request)
+			wipe(request, request_len);
+		free(request);
+		request = malloc(len);
+		request_len = len;
+		if (!request || !read_fully(request, len))
+			break;
+		id = (uint32_t)request[0] << 24 | request[1] << 16 | request[2] << 8 | request[3];
+
+		/* Room for the length, id and status, which are filled in once the payload is known. */
+		response.len = 0;
+		response.error = false;
+		put_u32(&response, 0);
+		put_u32(&response, id);
+		put_u32(&response, 0);
+		switch (request[4]) {
+		case OP_PING:
+			status = geteuid() == 0 ? 0 : -EPERM;
+			break;
+		case OP_DUMP:
+			status = dump(&response);
+			break;
+		case OP_SET: {
+			struct reader r = { .data = request + 5, .len = len - 5 };
+			status = set(&r);
+			break;
+		}
+		default:
+			status = -ENOSYS;
+		}
+		if (response.error)
+			break;
+		if (status < 0)
+			response.len = 12;
+		len = response.len - 4;
+		response.data[0] = len >> 24;
+		response.data[1] = len >> 16;
+		response.data[2] = len >> 8;
+		response.data[3] = len;
+		response.data[8] = (uint32_t)status >> 24;
+		response.data[9] = (uint32_t)status >> 16;
+		response.data[10] = (uint32_t)status >> 8;
+		response.data[11] = (uint32_t)status;
+		if (!write_fully(response.data, response.len))
+			break;
+	}
+	if (request)
+		wipe(request, request_len);
+	free(request);
+	free(response.data);
+	return 0;
+}
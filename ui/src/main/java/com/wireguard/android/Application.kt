@@ -17,7 +17,8 @@ import androidx.datastore.preferences.core.PreferenceDataStoreFactory
 import androidx.datastore.preferences.core.Preferences
 import androidx.datastore.preferences.preferencesDataStoreFile
 import com.google.android.material.color.DynamicColors
-import com.wireguard.android.backend.Backend
+import com.wireguard.android.backend.AsyncBackend
+import com.wireguard.android.backend.BackendCommandQueue
 import com.wireguard.android.backend.GoBackend
 import com.wireguard.android.backend.WgQuickBackend
 import com.wireguard.android.configStore.FileConfigStore
@@ -41,9 +42,10 @@ import java.lang.ref.WeakReference
 import java.util.Locale
 
 class Application : android.app.Application() {
-    private val futureBackend = CompletableDeferred<Backend>()
+    private val futureBackend = CompletableDeferred<AsyncBackend>()
+    private val futureCommandQueue = CompletableDeferred<BackendCommandQueue>()
     private val coroutineScope = CoroutineScope(Job() + Dispatchers.Main.immediate)
-    private var backend: Backend? = null
+    private var backend: AsyncBackend? = null
     private lateinit var rootShell: RootShell
     private lateinit var preferencesDataStore: DataStore<Preferences>
     private lateinit var toolsInstaller: ToolsInstaller
@@ -61,8 +63,8 @@ class Application : android.app.Application() {
         }
     }
 
-    private suspend fun determineBackend(): Backend {
-        var backend: Backend? = null
+    private suspend fun determineBackend(): AsyncBackend {
+        var backend: AsyncBackend? = null
         if (UserKnobs.enableKernelModule.first() && WgQuickBackend.hasKernelSupport()) {
             try {
                 rootShell.start()
@@ -76,7 +78,11 @@ class Application : android.app.Application() {
             }
         }
         if (backend == null) {
-            backend = GoBackend(applicationContext)
+            backend = GoBackend(applicationContext).apply {
+                // Handshakes are logged at debug level, which is too chatty for logcat under load. They are
+                // not kept in the native log buffer either, which would still format each of them.
+                if (!BuildConfig.DEBUG) setLogLevel(Log.INFO)
+            }
             GoBackend.setAlwaysOnCallback { get().applicationScope.launch { get().tunnelManager.restoreState(true) } }
         }
         return backend
@@ -111,6 +117,7 @@ class Application : android.app.Application() {
         coroutineScope.launch(Dispatchers.IO) {
             try {
                 backend = determineBackend()
+                futureCommandQueue.complete(BackendCommandQueue(backend!!))
                 futureBackend.complete(backend!!)
             } catch (e: Throwable) {
                 Log.e(TAG, Log.getStackTraceString(e))
@@ -124,6 +131,12 @@ class Application : android.app.Application() {
         }
     }
 
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        // The Go runtime does not see the system's memory pressure, so pass it on.
+        (backend as? GoBackend)?.onTrimMemory(level)
+    }
+
     override fun onTerminate() {
         coroutineScope.cancel()
         super.onTerminate()
@@ -140,6 +153,8 @@ class Application : android.app.Application() {
 
         suspend fun getBackend() = get().futureBackend.await()
 
+        suspend fun getCommandQueue() = get().futureCommandQueue.await()
+
         fun getRootShell() = get().rootShell
 
         fun getPreferencesDataStore() = get().preferencesDataStore
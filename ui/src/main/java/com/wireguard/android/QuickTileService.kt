@@ -58,14 +58,29 @@ class QuickTileService : TileService() {
             }
             when (val tunnel = tunnel) {
                 null -> {
-                    Log.d(TAG, "No tunnel set, so launching main activity")
-                    val intent = Intent(this@QuickTileService, MainActivity::class.java)
-                    intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK)
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
-                        startActivityAndCollapse(PendingIntent.getActivity(this@QuickTileService, 0, intent, PendingIntent.FLAG_IMMUTABLE))
-                    } else {
-                        @Suppress("DEPRECATION")
-                        startActivityAndCollapse(intent)
+                    unlockAndRun {
+                        applicationScope.launch {
+                            // Nothing has been used yet, so bring up whichever tunnel answers fastest.
+                            val fastest = try {
+                                Application.getTunnelManager().selectFastest()
+                            } catch (e: Throwable) {
+                                Log.d(TAG, "Failed to bring up the fastest tunnel", e)
+                                null
+                            }
+                            if (fastest != null) {
+                                updateTile()
+                                return@launch
+                            }
+                            Log.d(TAG, "No tunnel set, so launching main activity")
+                            val intent = Intent(this@QuickTileService, MainActivity::class.java)
+                            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK)
+                            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+                                startActivityAndCollapse(PendingIntent.getActivity(this@QuickTileService, 0, intent, PendingIntent.FLAG_IMMUTABLE))
+                            } else {
+                                @Suppress("DEPRECATION")
+                                startActivityAndCollapse(intent)
+                            }
+                        }
                     }
                 }
 
@@ -134,6 +149,8 @@ class QuickTileService : TileService() {
         Application.getTunnelManager().addOnPropertyChangedCallback(onTunnelChangedCallback)
         tunnel?.addOnPropertyChangedCallback(onStateChangedCallback)
         updateTile()
+        // The tile is showing, so it may well be tapped next.
+        Application.getTunnelManager().prepareLikelyTunnels()
     }
 
     override fun onStopListening() {
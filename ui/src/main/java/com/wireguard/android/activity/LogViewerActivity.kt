@@ -36,8 +36,10 @@ import androidx.recyclerview.widget.LinearLayoutManager
 import androidx.recyclerview.widget.RecyclerView
 import com.google.android.material.snackbar.Snackbar
 import com.google.android.material.textview.MaterialTextView
+import com.wireguard.android.Application
 import com.wireguard.android.BuildConfig
 import com.wireguard.android.R
+import com.wireguard.android.backend.GoBackend
 import com.wireguard.android.databinding.LogViewerActivityBinding
 import com.wireguard.android.util.DownloadsFileSaver
 import com.wireguard.android.util.ErrorMessages
@@ -46,6 +48,7 @@ import com.wireguard.crypto.KeyPair
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
 import java.io.BufferedReader
 import java.io.FileOutputStream
 import java.io.IOException
@@ -212,12 +215,10 @@ class LogViewerActivity : AppCompatActivity() {
             val MAX_LINES = (1 shl 16) - 1
             val MAX_BUFFERED_LINES = (1 shl 14) - 1
 
-            while (true) {
-                val line = stdout.readLine() ?: break
+            fun addLine(line: String, logLine: LogLine?) {
                 if (rawLogLines.size() >= MAX_LINES)
                     rawLogLines.popFirst()
                 rawLogLines.addLast(line)
-                val logLine = parseLine(line)
                 if (logLine != null) {
                     bufferedLogLines.add(logLine)
                 } else {
@@ -228,6 +229,36 @@ class LogViewerActivity : AppCompatActivity() {
                         priorModified = true
                     }
                 }
+            }
+
+            // The Go backend keeps its debug output out of logcat, so its lines are woven into the
+            // logcat stream by time, and dropped if logcat turns out to have them too.
+            val backend = withTimeoutOrNull(1000) { Application.getBackend() }
+            if (backend == null)
+                Log.w(TAG, "Timed out waiting for the backend, so its buffered log is not shown")
+            val ringLines = ArrayDeque<Pair<String, LogLine>>()
+            (backend as? GoBackend)?.logBuffer?.lineSequence()?.forEach { line ->
+                parseLine(line)?.takeIf { it.time != null }?.let { ringLines.addLast(line to it) }
+            }
+            val ringRawLines = ringLines.mapTo(HashSet()) { it.first }
+
+            fun addRingLines(until: Date?) {
+                while (ringLines.isNotEmpty() && (until == null || !ringLines.first().second.time!!.after(until))) {
+                    val (line, logLine) = ringLines.removeFirst()
+                    addLine(line, logLine)
+                }
+            }
+
+            while (true) {
+                val line = stdout.readLine() ?: break
+                if (ringRawLines.remove(line))
+                    ringLines.removeAll { it.first == line }
+                val logLine = parseLine(line)
+                logLine?.time?.let { addRingLines(it) }
+                addLine(line, logLine)
+                // Once logcat has caught up, everything left in the ring is older than what follows.
+                if (!stdout.ready())
+                    addRingLines(null)
                 val timeNow = System.nanoTime()
                 if (bufferedLogLines.size < MAX_BUFFERED_LINES && (timeNow - timeLastNotify) < timeout && stdout.ready())
                     continue
@@ -21,6 +21,18 @@ interface ConfigStore {
     @Throws(Exception::class)
     fun create(name: String, config: Config): Config
 
+    /**
+     * Create several persistent tunnels at once. Implementations may share the work of making the
+     * batch durable, such as a single directory sync, rather than repeat it for every tunnel. A
+     * failure to create one tunnel does not prevent the others from being created.
+     *
+     * @param configs Configurations for the new tunnels, keyed by tunnel name.
+     * @return For each tunnel, the configuration that was actually saved to persistent storage,
+     * or the reason it could not be created.
+     */
+    fun createAll(configs: Map<String, Config>): Map<String, Result<Config>> =
+        configs.mapValues { (name, config) -> runCatching { create(name, config) } }
+
     /**
      * Delete a persistent tunnel.
      *
@@ -65,4 +77,16 @@ interface ConfigStore {
      */
     @Throws(Exception::class)
     fun save(name: String, config: Config): Config
+
+    /**
+     * Save the configurations for several existing tunnels at once. Implementations may share the
+     * work of making the batch durable, such as a single directory sync, rather than repeat it for
+     * every tunnel. A failure to save one tunnel does not prevent the others from being saved.
+     *
+     * @param configs Updated configuration objects, keyed by tunnel name.
+     * @return For each tunnel, the configuration that was actually saved to persistent storage,
+     * or the reason it could not be saved.
+     */
+    fun saveAll(configs: Map<String, Config>): Map<String, Result<Config>> =
+        configs.mapValues { (name, config) -> runCatching { save(name, config) } }
 }
@@ -5,6 +5,9 @@
 package com.wireguard.android.configStore
 
 import android.content.Context
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
 import android.util.Log
 import com.wireguard.android.R
 import com.wireguard.config.BadConfigException
@@ -15,19 +18,36 @@ import java.io.FileNotFoundException
 import java.io.FileOutputStream
 import java.io.IOException
 import java.nio.charset.StandardCharsets
+import java.util.Collections
 
 /**
  * Configuration store that uses a `wg-quick`-style file for each configured tunnel.
+ *
+ * Files are never written in place. Each configuration is first written to a temporary file,
+ * which is flushed to disk and then atomically renamed over the target, so a crash can only ever
+ * leave the old or the new contents behind. That takes two barriers: the data of each file must
+ * reach the disk before it is renamed, or a crash could leave an empty file in its place, and the
+ * directory must be synced afterwards for the renames themselves to last. A batch still flushes
+ * each of its files, since there is no way to flush only some files of a filesystem together, but
+ * issues all of those flushes before moving anything and shares a single directory sync.
+ *
+ * A failed directory sync does not undo changes that are already visible, so it is logged as a
+ * durability error rather than reported as a failure of those changes.
  */
 class FileConfigStore(private val context: Context) : ConfigStore {
+    private val staging: MutableSet<File> = Collections.synchronizedSet(HashSet())
+
     @Throws(IOException::class)
     override fun create(name: String, config: Config): Config {
-        Log.d(TAG, "Creating configuration for tunnel $name")
-        val file = fileFor(name)
-        if (!file.createNewFile())
-            throw IOException(context.getString(R.string.config_file_exists_error, file.name))
-        FileOutputStream(file, false).use { it.write(config.toWgQuickString().toByteArray(StandardCharsets.UTF_8)) }
-        return config
+        return createAll(mapOf(name to config)).getValue(name).getOrThrow()
+    }
+
+    override fun createAll(configs: Map<String, Config>): Map<String, Result<Config>> {
+        Log.d(TAG, "Creating configuration for tunnels ${configs.keys}")
+        return commit(configs, false) { file ->
+            if (file.exists())
+                throw IOException(context.getString(R.string.config_file_exists_error, file.name))
+        }
     }
 
     @Throws(IOException::class)
@@ -36,10 +56,19 @@ class FileConfigStore(private val context: Context) : ConfigStore {
         val file = fileFor(name)
         if (!file.delete())
             throw IOException(context.getString(R.string.config_delete_error, file.name))
+        syncDirectory(listOf(name))
     }
 
     override fun enumerate(): Set<String> {
-        return context.fileList()
+        val files = context.fileList()
+        // A staged file that no commit owns and that has not been touched for a while was orphaned
+        // by a crash. Anything newer may belong to a commit that has only just created it.
+        val staleBefore = System.currentTimeMillis() - STALE_TEMP_MILLIS
+        files.filter { it.startsWith('.') && it.endsWith(TEMP_SUFFIX) }
+            .map { File(context.filesDir, it) }
+            .filter { !staging.contains(it) && it.lastModified() in 1 until staleBefore }
+            .forEach { it.delete() }
+        return files
             .filter { it.endsWith(".conf") }
             .map { it.substring(0, it.length - ".conf".length) }
             .toSet()
@@ -59,24 +88,135 @@ class FileConfigStore(private val context: Context) : ConfigStore {
         Log.d(TAG, "Renaming configuration for tunnel $name to $replacement")
         val file = fileFor(name)
         val replacementFile = fileFor(replacement)
-        if (!replacementFile.createNewFile()) throw IOException(context.getString(R.string.config_exists_error, replacement))
-        if (!file.renameTo(replacementFile)) {
-            if (!replacementFile.delete()) Log.w(TAG, "Couldn't delete marker file for new name $replacement")
+        // Linking fails if the replacement exists, so the check and the rename are one atomic step.
+        try {
+            Os.link(file.path, replacementFile.path)
+        } catch (e: ErrnoException) {
+            if (e.errno == OsConstants.EEXIST)
+                throw IOException(context.getString(R.string.config_exists_error, replacement), e)
+            throw IOException(context.getString(R.string.config_rename_error, file.name), e)
+        }
+        if (!file.delete()) {
+            if (!replacementFile.delete()) Log.w(TAG, "Couldn't delete new link $replacement")
             throw IOException(context.getString(R.string.config_rename_error, file.name))
         }
+        syncDirectory(listOf(name, replacement))
     }
 
     @Throws(IOException::class)
     override fun save(name: String, config: Config): Config {
-        Log.d(TAG, "Saving configuration for tunnel $name")
-        val file = fileFor(name)
-        if (!file.isFile)
-            throw FileNotFoundException(context.getString(R.string.config_not_found_error, file.name))
-        FileOutputStream(file, false).use { stream -> stream.write(config.toWgQuickString().toByteArray(StandardCharsets.UTF_8)) }
-        return config
+        return saveAll(mapOf(name to config)).getValue(name).getOrThrow()
+    }
+
+    override fun saveAll(configs: Map<String, Config>): Map<String, Result<Config>> {
+        Log.d(TAG, "Saving configuration for tunnels ${configs.keys}")
+        return commit(configs, true) { file ->
+            if (!file.isFile)
+                throw FileNotFoundException(context.getString(R.string.config_not_found_error, file.name))
+        }
+    }
+
+    /**
+     * Writes every configuration to its own temporary file, flushes them all, and only then moves
+     * them into place, finishing with one sync of the directory for the whole batch. New files are
+     * linked rather than renamed into place, so that a concurrently created file is never replaced.
+     */
+    private fun commit(configs: Map<String, Config>, replace: Boolean, check: (File) -> Unit): Map<String, Result<Config>> {
+        val results = HashMap<String, Result<Config>>(configs.size)
+        val staged = ArrayList<StagedFile>(configs.size)
+        try {
+            for ((name, config) in configs) {
+                try {
+                    val file = fileFor(name)
+                    check(file)
+                    staged.add(StagedFile(name, config, file, stage(name, config)))
+                } catch (e: Throwable) {
+                    results[name] = Result.failure(e)
+                }
+            }
+            // Flush only after everything has been written, so the writes can be merged on the way down.
+            val flushed = ArrayList<StagedFile>(staged.size)
+            for (write in staged) {
+                try {
+                    FileInputStream(write.temp).use { it.fd.sync() }
+                    flushed.add(write)
+                } catch (e: Throwable) {
+                    results[write.name] = Result.failure(e)
+                    write.temp.delete()
+                }
+            }
+            val published = ArrayList<String>(flushed.size)
+            for (write in flushed) {
+                try {
+                    publish(write, replace)
+                    published.add(write.name)
+                    results[write.name] = Result.success(write.config)
+                } catch (e: Throwable) {
+                    results[write.name] = Result.failure(e)
+                }
+            }
+            if (published.isNotEmpty())
+                syncDirectory(published)
+        } finally {
+            for (write in staged)
+                staging.remove(write.temp)
+        }
+        return configs.keys.associateWith { results.getValue(it) }
     }
 
+    @Throws(IOException::class)
+    private fun stage(name: String, config: Config): File {
+        val temp = File.createTempFile(".$name.", TEMP_SUFFIX, context.filesDir)
+        staging.add(temp)
+        try {
+            FileOutputStream(temp, false).use { it.write(config.toWgQuickString().toByteArray(StandardCharsets.UTF_8)) }
+        } catch (e: Throwable) {
+            staging.remove(temp)
+            temp.delete()
+            throw e
+        }
+        return temp
+    }
+
+    @Throws(IOException::class)
+    private fun publish(write: StagedFile, replace: Boolean) {
+        try {
+            if (replace) {
+                Os.rename(write.temp.path, write.file.path)
+            } else {
+                Os.link(write.temp.path, write.file.path)
+                write.temp.delete()
+            }
+        } catch (e: ErrnoException) {
+            write.temp.delete()
+            if (e.errno == OsConstants.EEXIST)
+                throw IOException(context.getString(R.string.config_file_exists_error, write.file.name), e)
+            throw IOException(context.getString(R.string.config_save_error, write.name, e.message), e)
+        }
+    }
+
+    /**
+     * Makes the changes to the configurations of [names] durable. They are already visible, so if
+     * that fails, they are logged as a durability error instead of being reported as failed.
+     */
+    private fun syncDirectory(names: Collection<String>) {
+        try {
+            val fd = Os.open(context.filesDir.path, OsConstants.O_RDONLY, 0)
+            try {
+                Os.fsync(fd)
+            } finally {
+                Os.close(fd)
+            }
+        } catch (e: ErrnoException) {
+            Log.e(TAG, "Changes to the configuration of $names may not survive a crash", e)
+        }
+    }
+
+    private class StagedFile(val name: String, val config: Config, val file: File, val temp: File)
+
     companion object {
         private const val TAG = "WireGuard/FileConfigStore"
+        private const val STALE_TEMP_MILLIS = 10 * 60 * 1000L
+        private const val TEMP_SUFFIX = ".tmp"
     }
 }
@@ -38,12 +38,43 @@ class ObservableSortedKeyedArrayList<K, E : Keyed<out K>>(private val comparator
     }
 
     override fun addAll(elements: Collection<E>): Boolean {
-        var didChange = false
+        if (elements.size <= 1) {
+            var didChange = false
+            for (e in elements) {
+                if (add(e))
+                    didChange = true
+            }
+            return didChange
+        }
+        // Check everything first, so that a conflict leaves the list untouched.
+        val added = ArrayList<E>(elements.size)
         for (e in elements) {
-            if (add(e))
-                didChange = true
+            val index = indexOfKey(e.key)
+            if (index >= 0) {
+                if (e === get(index)) continue
+                throw IllegalArgumentException("Element with same key already exists in list")
+            }
+            added.add(e)
+        }
+        if (added.isEmpty()) return false
+        added.sortWith { a, b -> comparator.compare(a.key, b.key) }
+        for (i in 1 until added.size) {
+            require(comparator.compare(added[i - 1].key, added[i].key) != 0) { "Element with same key already exists in list" }
         }
-        return didChange
+        // Merge in place, inserting each run of elements that falls between the same two existing
+        // ones at once, so that observers get one accurate notification per run.
+        var start = 0
+        while (start < added.size) {
+            val index = getInsertionPoint(added[start])
+            var end = start + 1
+            if (index == size)
+                end = added.size
+            else
+                while (end < added.size && comparator.compare(added[end].key, get(index).key) < 0) ++end
+            super.addAll(index, added.subList(start, end))
+            start = end
+        }
+        return true
     }
 
     override fun addAll(index: Int, elements: Collection<E>): Boolean {
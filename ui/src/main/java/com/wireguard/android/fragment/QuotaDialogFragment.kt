@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.fragment
+
+import android.app.Dialog
+import android.os.Bundle
+import android.util.Log
+import android.widget.Toast
+import androidx.fragment.app.DialogFragment
+import androidx.lifecycle.lifecycleScope
+import com.google.android.material.dialog.MaterialAlertDialogBuilder
+import com.wireguard.android.Application
+import com.wireguard.android.R
+import com.wireguard.android.databinding.QuotaDialogFragmentBinding
+import com.wireguard.android.model.QuotaRule
+import com.wireguard.android.util.ErrorMessages
+import kotlinx.coroutines.launch
+
+/**
+ * Dialog that edits the data quota of a tunnel. It shows the first of the tunnel's [QuotaRule]s, and
+ * saving replaces that one, keeping any others; an empty limit removes it.
+ */
+class QuotaDialogFragment : DialogFragment() {
+    private var binding: QuotaDialogFragmentBinding? = null
+    private var existing: List<QuotaRule> = emptyList()
+
+    private fun saveAndDismiss(tunnelName: String) {
+        val binding = binding ?: return
+        val activity = activity ?: return
+        val megabytes = binding.quotaLimitText.text.toString().toLongOrNull()?.takeIf { it in 1..MAX_MEGABYTES }
+        // The spinners list their entries in the order of the enums.
+        val rule = megabytes?.let {
+            QuotaRule(
+                tunnelName,
+                it * BYTES_PER_MEGABYTE,
+                QuotaRule.Period.entries[binding.quotaPeriod.selectedItemPosition],
+                QuotaRule.Direction.entries[binding.quotaDirection.selectedItemPosition],
+                if (binding.quotaDisconnect.isChecked) QuotaRule.Action.DISCONNECT else QuotaRule.Action.NOTIFY
+            )
+        }
+        val rules = listOfNotNull(rule) + existing.drop(1)
+        activity.lifecycleScope.launch {
+            try {
+                val manager = Application.getTunnelManager()
+                val tunnel = manager.getTunnels()[tunnelName] ?: return@launch
+                manager.setQuotaRules(tunnel, rules)
+            } catch (e: Throwable) {
+                Log.e(TAG, Log.getStackTraceString(e))
+                Toast.makeText(activity, ErrorMessages[e], Toast.LENGTH_LONG).show()
+            }
+        }
+        dismiss()
+    }
+
+    private fun show(binding: QuotaDialogFragmentBinding, rule: QuotaRule) {
+        binding.quotaLimitText.setText((rule.limitBytes / BYTES_PER_MEGABYTE).coerceAtLeast(1).toString())
+        binding.quotaPeriod.setSelection(rule.period.ordinal)
+        binding.quotaDirection.setSelection(rule.direction.ordinal)
+        binding.quotaDisconnect.isChecked = rule.action == QuotaRule.Action.DISCONNECT
+    }
+
+    override fun onCreateDialog(savedInstanceState: Bundle?): Dialog {
+        val activity = requireActivity()
+        val tunnelName = requireArguments().getString(KEY_TUNNEL_NAME)!!
+        val binding = QuotaDialogFragmentBinding.inflate(activity.layoutInflater, null, false)
+        this.binding = binding
+        binding.quotaPeriod.setSelection(QuotaRule.Period.MONTH.ordinal)
+        binding.quotaDirection.setSelection(QuotaRule.Direction.BOTH.ordinal)
+        lifecycleScope.launch {
+            val manager = Application.getTunnelManager()
+            val tunnel = manager.getTunnels()[tunnelName] ?: return@launch
+            existing = manager.getQuotaRules(tunnel)
+            // After a configuration change, the views already show what was being edited.
+            if (savedInstanceState == null)
+                existing.firstOrNull()?.let { show(binding, it) }
+        }
+        return MaterialAlertDialogBuilder(activity)
+            .setTitle(getString(R.string.quota_title, tunnelName))
+            .setView(binding.root)
+            .setPositiveButton(R.string.save) { _, _ -> saveAndDismiss(tunnelName) }
+            .setNegativeButton(R.string.cancel) { _, _ -> dismiss() }
+            .create()
+    }
+
+    override fun onDestroy() {
+        binding = null
+        super.onDestroy()
+    }
+
+    companion object {
+        private const val BYTES_PER_MEGABYTE = 1024 * 1024L
+        private const val KEY_TUNNEL_NAME = "tunnel_name"
+        private const val MAX_MEGABYTES = Long.MAX_VALUE / BYTES_PER_MEGABYTE
+        private const val TAG = "WireGuard/QuotaDialogFragment"
+
+        fun newInstance(tunnelName: String): QuotaDialogFragment {
+            val extras = Bundle()
+            extras.putString(KEY_TUNNEL_NAME, tunnelName)
+            val fragment = QuotaDialogFragment()
+            fragment.arguments = extras
+            return fragment
+        }
+    }
+}
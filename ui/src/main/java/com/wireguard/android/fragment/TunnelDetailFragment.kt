@@ -4,6 +4,9 @@
  */
 package com.wireguard.android.fragment
 
+import android.Manifest
+import android.content.pm.PackageManager
+import android.os.Build
 import android.os.Bundle
 import android.view.LayoutInflater
 import android.view.Menu
@@ -11,6 +14,8 @@ import android.view.MenuInflater
 import android.view.MenuItem
 import android.view.View
 import android.view.ViewGroup
+import androidx.activity.result.contract.ActivityResultContracts
+import androidx.core.content.ContextCompat
 import androidx.core.view.MenuProvider
 import androidx.databinding.DataBindingUtil
 import androidx.lifecycle.Lifecycle
@@ -32,8 +37,26 @@ class TunnelDetailFragment : BaseFragment(), MenuProvider {
     private var lastState = Tunnel.State.TOGGLE
     private var timerActive = true
 
+    // Quotas notify when they are reached, so ask for that first; the dialog opens either way.
+    private val notificationPermissionLauncher = registerForActivityResult(ActivityResultContracts.RequestPermission()) {
+        showQuotaDialog()
+    }
+
     override fun onMenuItemSelected(menuItem: MenuItem): Boolean {
-        return false
+        if (menuItem.itemId != R.id.menu_action_quota)
+            return false
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU &&
+            ContextCompat.checkSelfPermission(requireContext(), Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED
+        )
+            notificationPermissionLauncher.launch(Manifest.permission.POST_NOTIFICATIONS)
+        else
+            showQuotaDialog()
+        return true
+    }
+
+    private fun showQuotaDialog() {
+        val tunnel = binding?.tunnel ?: return
+        QuotaDialogFragment.newInstance(tunnel.name).show(parentFragmentManager, null)
     }
 
     override fun onCreateMenu(menu: Menu, menuInflater: MenuInflater) {
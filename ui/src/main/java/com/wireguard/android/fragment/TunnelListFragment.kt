@@ -68,7 +68,7 @@ class TunnelListFragment : BaseFragment() {
                     showSnackbar(message)
                 }
             } else {
-                TunnelImporter.importTunnel(contentResolver, data) { showSnackbar(it) }
+                TunnelImporter.importTunnel(contentResolver, data, { showImportProgress(it) }) { showSnackbar(it) }
             }
         }
     }
@@ -82,6 +82,7 @@ class TunnelListFragment : BaseFragment() {
     }
 
     private val snackbarUpdateShower = SnackbarUpdateShower(this)
+    private var importProgressSnackbar: Snackbar? = null
 
     override fun onViewCreated(view: View, savedInstanceState: Bundle?) {
         super.onViewCreated(view, savedInstanceState)
@@ -136,6 +137,7 @@ class TunnelListFragment : BaseFragment() {
     }
 
     override fun onDestroyView() {
+        importProgressSnackbar = null
         binding = null
         super.onDestroyView()
     }
@@ -194,7 +196,22 @@ class TunnelListFragment : BaseFragment() {
         }
     }
 
+    private fun showImportProgress(count: Int) {
+        val binding = binding ?: return
+        val message = resources.getQuantityString(R.plurals.import_progress, count, count)
+        val snackbar = importProgressSnackbar
+        if (snackbar != null) {
+            snackbar.setText(message)
+            return
+        }
+        importProgressSnackbar = Snackbar.make(binding.mainContainer, message, Snackbar.LENGTH_INDEFINITE)
+            .setAnchorView(binding.createFab)
+            .also { it.show() }
+    }
+
     private fun showSnackbar(message: CharSequence) {
+        importProgressSnackbar?.dismiss()
+        importProgressSnackbar = null
         val binding = binding
         if (binding != null)
             Snackbar.make(binding.mainContainer, message, Snackbar.LENGTH_LONG)
@@ -0,0 +1,213 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.model
+
+import android.Manifest
+import android.app.PendingIntent
+import android.content.Intent
+import android.content.pm.PackageManager
+import android.os.Build
+import android.util.Log
+import androidx.annotation.VisibleForTesting
+import androidx.core.app.NotificationChannelCompat
+import androidx.core.app.NotificationCompat
+import androidx.core.app.NotificationManagerCompat
+import androidx.core.content.ContextCompat
+import com.wireguard.android.Application
+import com.wireguard.android.R
+import com.wireguard.android.activity.MainActivity
+import com.wireguard.android.backend.Statistics
+import com.wireguard.android.backend.TrafficHistory
+import com.wireguard.android.backend.Tunnel
+import com.wireguard.android.util.QuantityFormatter
+import com.wireguard.android.util.UserKnobs
+import com.wireguard.android.util.applicationScope
+import com.wireguard.crypto.Key
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.launch
+import java.io.IOException
+
+/**
+ * Enforces the [QuotaRule]s stored in [UserKnobs.quotaRules].
+ *
+ * Rules are evaluated from the statistics readings that feed [TrafficHistory], which [TunnelManager]
+ * takes at least once a minute for any running tunnel that has rules. Each reading is turned into
+ * a delta per peer, counting the first reading of a session and counters that go backwards as
+ * restarted from zero, and is then added to every rule of the tunnel in constant time. Only when a
+ * rule starts a new period is its usage so far read back from the history, which also carries
+ * usage over across process restarts.
+ */
+class QuotaMonitor(private val trafficHistory: TrafficHistory) {
+    @Volatile
+    private var rules: Map<String, List<RuleState>> = emptyMap()
+    private val baselines = HashMap<String, HashMap<Key, LongArray>>()
+
+    fun onCreate() {
+        applicationScope.launch {
+            UserKnobs.quotaRules.collect { stored -> onRulesChanged(stored.mapNotNull { QuotaRule.parse(it) }) }
+        }
+    }
+
+    @VisibleForTesting
+    @Synchronized
+    internal fun onRulesChanged(parsed: List<QuotaRule>) {
+        val previous = rules.values.flatten().associateBy { it.rule }
+        rules = parsed.map { previous[it] ?: RuleState(it) }.groupBy { it.rule.tunnelName }
+    }
+
+    /**
+     * Returns whether [tunnelName] has any rules to enforce.
+     */
+    fun hasRules(tunnelName: String): Boolean = rules.containsKey(tunnelName)
+
+    /**
+     * Returns the stored rules of [tunnelName].
+     */
+    suspend fun getRules(tunnelName: String): List<QuotaRule> =
+        UserKnobs.quotaRules.first().mapNotNull { QuotaRule.parse(it) }.filter { it.tunnelName == tunnelName }
+
+    /**
+     * Replaces the stored rules of [tunnelName] with [replacement], which may be empty.
+     */
+    suspend fun setRules(tunnelName: String, replacement: Collection<QuotaRule>) {
+        require(replacement.all { it.tunnelName == tunnelName }) { "Rule for another tunnel" }
+        val stored = UserKnobs.quotaRules.first()
+        UserKnobs.setQuotaRules(stored.filter { QuotaRule.parse(it)?.tunnelName != tunnelName }.toSet() + replacement.map { it.toString() })
+    }
+
+    /**
+     * Evaluates the rules of [tunnel] against a statistics reading that has already been recorded
+     * in the traffic history.
+     */
+    fun onStatistics(tunnel: ObservableTunnel, statistics: Statistics, nowEpochMillis: Long) {
+        for (state in evaluate(tunnel.name, statistics, nowEpochMillis))
+            fire(tunnel, state.rule, state.used)
+    }
+
+    /**
+     * Adds a statistics reading to the rules of [tunnelName], returning those it has just exceeded.
+     */
+    @VisibleForTesting
+    @Synchronized
+    internal fun evaluate(tunnelName: String, statistics: Statistics, nowEpochMillis: Long): List<RuleState> {
+        val peers = baselines.getOrPut(tunnelName) { HashMap() }
+        var rx = 0L
+        var tx = 0L
+        for (key in statistics.peers()) {
+            val stats = statistics.peer(key) ?: continue
+            // Counters start from zero with each session, and so do peers that were just added.
+            val last = peers.getOrPut(key) { LongArray(2) }
+            rx += if (stats.rxBytes >= last[0]) stats.rxBytes - last[0] else stats.rxBytes
+            tx += if (stats.txBytes >= last[1]) stats.txBytes - last[1] else stats.txBytes
+            last[0] = stats.rxBytes
+            last[1] = stats.txBytes
+        }
+        return rules[tunnelName]?.filter { it.add(rx, tx, nowEpochMillis) } ?: emptyList()
+    }
+
+    /**
+     * Forgets the last counters seen for [name], which start again from zero once it comes up.
+     */
+    @Synchronized
+    fun onTunnelStateChanged(name: String) {
+        baselines.remove(name)
+    }
+
+    suspend fun onTunnelDeleted(name: String) {
+        synchronized(this) { baselines.remove(name) }
+        val stored = UserKnobs.quotaRules.first()
+        UserKnobs.setQuotaRules(stored.filter { QuotaRule.parse(it)?.tunnelName != name }.toSet())
+    }
+
+    suspend fun onTunnelRenamed(name: String, replacement: String) {
+        synchronized(this) { baselines.remove(name)?.let { baselines[replacement] = it } }
+        val stored = UserKnobs.quotaRules.first()
+        UserKnobs.setQuotaRules(stored.map {
+            val rule = QuotaRule.parse(it)
+            if (rule?.tunnelName == name) rule.copy(tunnelName = replacement).toString() else it
+        }.toSet())
+    }
+
+    private fun fire(tunnel: ObservableTunnel, rule: QuotaRule, used: Long) {
+        Log.i(TAG, "Tunnel ${tunnel.name} reached quota $rule")
+        applicationScope.launch {
+            val context = Application.get()
+            if (rule.action == QuotaRule.Action.DISCONNECT) {
+                try {
+                    Application.getTunnelManager().setTunnelState(tunnel, Tunnel.State.DOWN)
+                } catch (e: Throwable) {
+                    Log.e(TAG, Log.getStackTraceString(e))
+                }
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU &&
+                ContextCompat.checkSelfPermission(context, Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED
+            )
+                return@launch
+            val manager = NotificationManagerCompat.from(context)
+            manager.createNotificationChannel(
+                NotificationChannelCompat.Builder(NOTIFICATION_CHANNEL, NotificationManagerCompat.IMPORTANCE_DEFAULT)
+                    .setName(context.getString(R.string.quota_notification_channel)).build()
+            )
+            val text = context.getString(
+                if (rule.action == QuotaRule.Action.DISCONNECT) R.string.quota_exceeded_disconnected else R.string.quota_exceeded_warning,
+                tunnel.name, QuantityFormatter.formatBytes(used), QuantityFormatter.formatBytes(rule.limitBytes)
+            )
+            val intent = PendingIntent.getActivity(context, 0, Intent(context, MainActivity::class.java), PendingIntent.FLAG_IMMUTABLE)
+            manager.notify(
+                tunnel.name.hashCode(), NotificationCompat.Builder(context, NOTIFICATION_CHANNEL)
+                    .setSmallIcon(R.drawable.ic_tile)
+                    .setContentTitle(context.getString(R.string.quota_exceeded_title))
+                    .setContentText(text)
+                    .setStyle(NotificationCompat.BigTextStyle().bigText(text))
+                    .setContentIntent(intent)
+                    .setAutoCancel(true)
+                    .build()
+            )
+        }
+    }
+
+    internal inner class RuleState(val rule: QuotaRule) {
+        private var periodStart = 0L
+        private var periodEnd = 0L
+        private var fired = false
+        var used = -1L
+            private set
+
+        /**
+         * Adds a delta to the current period, returning whether the rule has just been exceeded.
+         */
+        fun add(rx: Long, tx: Long, nowEpochMillis: Long): Boolean {
+            if (nowEpochMillis >= periodEnd || nowEpochMillis < periodStart) {
+                val (start, end) = rule.period.bounds(nowEpochMillis)
+                periodStart = start
+                periodEnd = end
+                fired = false
+                used = -1
+            }
+            if (used < 0) {
+                // The history already includes this reading, so it replaces the delta.
+                used = try {
+                    val total = trafficHistory.total(rule.tunnelName, null, TrafficHistory.Resolution.HOUR, periodStart, nowEpochMillis + 1)
+                    rule.direction.bytes(total.rxBytes, total.txBytes)
+                } catch (e: IOException) {
+                    Log.e(TAG, Log.getStackTraceString(e))
+                    0
+                }
+            } else {
+                used += rule.direction.bytes(rx, tx)
+            }
+            if (fired || used < rule.limitBytes)
+                return false
+            fired = true
+            return true
+        }
+    }
+
+    companion object {
+        private const val TAG = "WireGuard/QuotaMonitor"
+        private const val NOTIFICATION_CHANNEL = "quota"
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.model
+
+import java.util.Calendar
+
+/**
+ * A budget of [limitBytes] per [period] for the traffic of one tunnel, and what to do once it is
+ * used up. Periods follow the local calendar.
+ */
+data class QuotaRule(val tunnelName: String, val limitBytes: Long, val period: Period, val direction: Direction, val action: Action) {
+    enum class Period(private val field: Int) {
+        DAY(Calendar.DAY_OF_MONTH),
+        WEEK(Calendar.WEEK_OF_YEAR),
+        MONTH(Calendar.MONTH);
+
+        /**
+         * Returns the start of the period containing [epochMillis], and of the one after it.
+         */
+        fun bounds(epochMillis: Long): Pair<Long, Long> {
+            val calendar = Calendar.getInstance()
+            calendar.timeInMillis = epochMillis
+            calendar.set(Calendar.HOUR_OF_DAY, 0)
+            calendar.set(Calendar.MINUTE, 0)
+            calendar.set(Calendar.SECOND, 0)
+            calendar.set(Calendar.MILLISECOND, 0)
+            when (this) {
+                DAY -> {}
+                WEEK -> {
+                    calendar.set(Calendar.DAY_OF_WEEK, calendar.firstDayOfWeek)
+                    if (calendar.timeInMillis > epochMillis)
+                        calendar.add(Calendar.WEEK_OF_YEAR, -1)
+                }
+                MONTH -> calendar.set(Calendar.DAY_OF_MONTH, 1)
+            }
+            val start = calendar.timeInMillis
+            calendar.add(field, 1)
+            return Pair(start, calendar.timeInMillis)
+        }
+    }
+
+    enum class Direction {
+        RX, TX, BOTH;
+
+        fun bytes(rx: Long, tx: Long): Long = when (this) {
+            RX -> rx
+            TX -> tx
+            BOTH -> rx + tx
+        }
+    }
+
+    enum class Action { NOTIFY, DISCONNECT }
+
+    override fun toString() = "$tunnelName/$limitBytes/$period/$direction/$action"
+
+    companion object {
+        /**
+         * Parses a rule as stored in [com.wireguard.android.util.UserKnobs.quotaRules], returning
+         * null if it is malformed.
+         */
+        fun parse(rule: String): QuotaRule? {
+            val parts = rule.split('/')
+            if (parts.size != 5)
+                return null
+            return try {
+                QuotaRule(
+                    parts[0],
+                    parts[1].toLong().takeIf { it > 0 } ?: return null,
+                    Period.valueOf(parts[2]),
+                    Direction.valueOf(parts[3]),
+                    Action.valueOf(parts[4])
+                )
+            } catch (_: IllegalArgumentException) {
+                null
+            }
+        }
+    }
+}
@@ -14,11 +14,19 @@ import androidx.databinding.BaseObservable
 import androidx.databinding.Bindable
 import com.wireguard.android.Application.Companion.get
 import com.wireguard.android.Application.Companion.getBackend
+import com.wireguard.android.Application.Companion.getCommandQueue
 import com.wireguard.android.Application.Companion.getTunnelManager
 import com.wireguard.android.BR
 import com.wireguard.android.R
+import com.wireguard.android.backend.GoBackend
+import com.wireguard.android.backend.HandshakeProbe
+import com.wireguard.android.backend.LatencyProber
 import com.wireguard.android.backend.Statistics
+import com.wireguard.android.backend.TrafficHistory
 import com.wireguard.android.backend.Tunnel
+import com.wireguard.android.backend.TunnelEvent
+import com.wireguard.android.backend.WgQuickBackend
+import com.wireguard.android.backend.WgQuickTransaction
 import com.wireguard.android.configStore.ConfigStore
 import com.wireguard.android.databinding.ObservableSortedKeyedArrayList
 import com.wireguard.android.util.ErrorMessages
@@ -30,9 +38,14 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.async
 import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.collectLatest
 import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.future.await
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
+import java.io.File
+import java.io.IOException
 
 /**
  * Maintains and mediates changes to the set of available WireGuard tunnels,
@@ -43,6 +56,13 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
     private val tunnelMap: ObservableSortedKeyedArrayList<String, ObservableTunnel> = ObservableSortedKeyedArrayList(TunnelComparator)
     private var haveLoaded = false
 
+    /**
+     * Persistent traffic history of every tunnel, fed from each statistics reading.
+     */
+    val trafficHistory = TrafficHistory(File(context.noBackupFilesDir, "traffic"))
+    private val quotaMonitor = QuotaMonitor(trafficHistory)
+    private val latencyProber by lazy { LatencyProber(HandshakeProbe(context), MAX_PROBES, PROBE_CACHE_MILLIS) }
+
     private fun addToList(name: String, config: Config?, state: Tunnel.State): ObservableTunnel {
         val tunnel = ObservableTunnel(this, name, config, state)
         tunnelMap.add(tunnel)
@@ -59,6 +79,32 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
         addToList(name, withContext(Dispatchers.IO) { configStore.create(name, config!!) }, Tunnel.State.DOWN)
     }
 
+    /**
+     * Create several tunnels as one transaction: the configurations are committed to the store as
+     * a single batch, and all of the new tunnels are then added to the list at once.
+     *
+     * @return For each requested name, the new tunnel or the reason it could not be created.
+     */
+    suspend fun createAll(configs: Map<String, Config>): Map<String, Result<ObservableTunnel>> = withContext(Dispatchers.Main.immediate) {
+        val results = HashMap<String, Result<ObservableTunnel>>(configs.size)
+        val accepted = LinkedHashMap<String, Config>(configs.size)
+        for ((name, config) in configs) {
+            if (Tunnel.isNameInvalid(name))
+                results[name] = Result.failure(IllegalArgumentException(context.getString(R.string.tunnel_error_invalid_name)))
+            else if (tunnelMap.containsKey(name))
+                results[name] = Result.failure(IllegalArgumentException(context.getString(R.string.tunnel_error_already_exists, name)))
+            else
+                accepted[name] = config
+        }
+        val stored = withContext(Dispatchers.IO) { configStore.createAll(accepted) }
+        val created = ArrayList<ObservableTunnel>(stored.size)
+        for ((name, result) in stored) {
+            results[name] = result.map { config -> ObservableTunnel(this@TunnelManager, name, config, Tunnel.State.DOWN).also { created.add(it) } }
+        }
+        tunnelMap.addAll(created)
+        configs.keys.associateWith { results.getValue(it) }
+    }
+
     suspend fun delete(tunnel: ObservableTunnel) = withContext(Dispatchers.Main.immediate) {
         val originalState = tunnel.state
         val wasLastUsed = tunnel == lastUsedTunnel
@@ -68,14 +114,16 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
         tunnelMap.remove(tunnel)
         try {
             if (originalState == Tunnel.State.UP)
-                withContext(Dispatchers.IO) { getBackend().setState(tunnel, Tunnel.State.DOWN, null) }
+                getCommandQueue().setState(tunnel, Tunnel.State.DOWN, null).await()
             try {
                 withContext(Dispatchers.IO) { configStore.delete(tunnel.name) }
             } catch (e: Throwable) {
                 if (originalState == Tunnel.State.UP)
-                    withContext(Dispatchers.IO) { getBackend().setState(tunnel, Tunnel.State.UP, tunnel.config) }
+                    getCommandQueue().setState(tunnel, Tunnel.State.UP, tunnel.config).await()
                 throw e
             }
+            withContext(Dispatchers.IO) { trafficHistory.delete(tunnel.name) }
+            quotaMonitor.onTunnelDeleted(tunnel.name)
         } catch (e: Throwable) {
             // Failure, put the tunnel back.
             tunnelMap.add(tunnel)
@@ -98,14 +146,74 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
         tunnel.onConfigChanged(withContext(Dispatchers.IO) { configStore.load(tunnel.name) })!!
     }
 
+    /**
+     * Read a tunnel's configuration straight from the store, without caching it in the tunnel.
+     * This is meant for bulk operations that only need each configuration briefly.
+     */
+    suspend fun loadTunnelConfig(tunnel: ObservableTunnel): Config = withContext(Dispatchers.IO) {
+        configStore.load(tunnel.name)
+    }
+
+    suspend fun getQuotaRules(tunnel: ObservableTunnel): List<QuotaRule> = quotaMonitor.getRules(tunnel.name)
+
+    suspend fun setQuotaRules(tunnel: ObservableTunnel, rules: Collection<QuotaRule>) = quotaMonitor.setRules(tunnel.name, rules)
+
     fun onCreate() {
+        quotaMonitor.onCreate()
+        pollQuotas()
         applicationScope.launch {
             try {
-                onTunnelsLoaded(withContext(Dispatchers.IO) { configStore.enumerate() }, withContext(Dispatchers.IO) { getBackend().runningTunnelNames })
+                onTunnelsLoaded(withContext(Dispatchers.IO) { configStore.enumerate() }, getBackend().runningTunnelNamesAsync.await())
             } catch (e: Throwable) {
                 Log.e(TAG, Log.getStackTraceString(e))
             }
         }
+        applicationScope.launch {
+            val backend = getBackend() as? GoBackend ?: return@launch
+            backend.addEventListener { event -> applicationScope.launch { onTunnelEvent(event) } }
+        }
+    }
+
+    /**
+     * Reads the statistics of every running tunnel that has quota rules at least every [QUOTA_POLL_MILLIS], so that
+     * the rules are enforced while nothing else is reading them, such as when the app is in the background. Nothing
+     * is polled while there are no rules at all.
+     */
+    private fun pollQuotas() {
+        applicationScope.launch {
+            UserKnobs.quotaRules.collectLatest { stored ->
+                if (stored.isEmpty())
+                    return@collectLatest
+                while (true) {
+                    delay(QUOTA_POLL_MILLIS)
+                    withContext(Dispatchers.Main.immediate) {
+                        for (tunnel in tunnelMap.filter { it.state == Tunnel.State.UP && quotaMonitor.hasRules(it.name) }) {
+                            try {
+                                getTunnelStatistics(tunnel)
+                            } catch (e: Throwable) {
+                                Log.e(TAG, Log.getStackTraceString(e))
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Brings a tunnel up to date as soon as its device reports a change, instead of waiting for the next refresh.
+     */
+    private suspend fun onTunnelEvent(event: TunnelEvent) {
+        val tunnel = tunnelMap[event.tunnelName] ?: return
+        try {
+            when (event.type) {
+                TunnelEvent.Type.DEVICE_UP, TunnelEvent.Type.DEVICE_DOWN -> getTunnelState(tunnel)
+                TunnelEvent.Type.HANDSHAKE_COMPLETED, TunnelEvent.Type.ENDPOINT_CHANGED -> getTunnelStatistics(tunnel)
+                TunnelEvent.Type.HANDSHAKE_FAILED -> Log.i(TAG, "Handshake of ${event.tunnelName} did not complete (${event.detail})")
+            }
+        } catch (e: Throwable) {
+            Log.e(TAG, Log.getStackTraceString(e))
+        }
     }
 
     private fun onTunnelsLoaded(present: Iterable<String>, running: Collection<String>) {
@@ -118,13 +226,40 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
             haveLoaded = true
             restoreState(true)
             tunnels.complete(tunnelMap)
+            prepareLikelyTunnels()
+        }
+    }
+
+    /**
+     * Prepares the tunnels most likely to be brought up next, [lastUsedTunnel] and the ones to be restored, in the
+     * background. Their configurations get loaded and the backend resolves and serializes them ahead of time, so that
+     * toggling them from the quick tile or restoring them goes straight to establishing the VPN. Only [GoBackend] has
+     * anything to prepare.
+     */
+    fun prepareLikelyTunnels() {
+        applicationScope.launch {
+            try {
+                val backend = getBackend() as? GoBackend ?: return@launch
+                val restore = UserKnobs.runningTunnels.first()
+                val candidates = LinkedHashSet<ObservableTunnel>()
+                lastUsedTunnel?.let { candidates.add(it) }
+                tunnelMap.filterTo(candidates) { restore.contains(it.name) }
+                for (tunnel in candidates) {
+                    if (tunnel.state == Tunnel.State.UP)
+                        continue
+                    val config = tunnel.getConfigAsync()
+                    withContext(Dispatchers.IO) { backend.prepare(tunnel, config) }
+                }
+            } catch (e: Throwable) {
+                Log.e(TAG, Log.getStackTraceString(e))
+            }
         }
     }
 
     private fun refreshTunnelStates() {
         applicationScope.launch {
             try {
-                val running = withContext(Dispatchers.IO) { getBackend().runningTunnelNames }
+                val running = getBackend().runningTunnelNamesAsync.await()
                 for (tunnel in tunnelMap)
                     tunnel.onStateChanged(if (running.contains(tunnel.name)) Tunnel.State.UP else Tunnel.State.DOWN)
             } catch (e: Throwable) {
@@ -138,6 +273,11 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
             return
         val previouslyRunning = UserKnobs.runningTunnels.first()
         if (previouslyRunning.isEmpty()) return
+        val backend = getBackend()
+        if (backend is WgQuickBackend) {
+            restoreStateTransaction(backend, previouslyRunning)
+            return
+        }
         withContext(Dispatchers.IO) {
             try {
                 tunnelMap.filter { previouslyRunning.contains(it.name) }.map { async(Dispatchers.IO + SupervisorJob()) { setTunnelState(it, Tunnel.State.UP) } }
@@ -148,15 +288,58 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
         }
     }
 
+    /**
+     * Brings up all of [previouslyRunning] with a single [WgQuickTransaction], so that restoring many tunnels costs one
+     * exchange with the root shell rather than one per tunnel. If any of them fails to come up, none of them stay up.
+     * Each tunnel that does come up is accounted for as with [setTunnelState].
+     */
+    private suspend fun restoreStateTransaction(backend: WgQuickBackend, previouslyRunning: Set<String>) = withContext(Dispatchers.Main.immediate) {
+        val restoring = tunnelMap.filter { previouslyRunning.contains(it.name) && it.state != Tunnel.State.UP }
+        if (restoring.isEmpty()) return@withContext
+        try {
+            val operations = restoring.map { WgQuickTransaction.Operation(it, Tunnel.State.UP, it.getConfigAsync()) }
+            withContext(Dispatchers.IO) {
+                for (tunnel in restoring) {
+                    try {
+                        trafficHistory.startSession(tunnel.name)
+                    } catch (e: IOException) {
+                        Log.e(TAG, Log.getStackTraceString(e))
+                    }
+                }
+            }
+            val results = getCommandQueue().submit { backend.apply(WgQuickTransaction(operations)) }.await()
+            for (result in results) {
+                val tunnel = result.operation.tunnel as ObservableTunnel
+                if (result.status != WgQuickTransaction.Status.APPLIED) {
+                    Log.w(TAG, "Unable to restore ${tunnel.name}: ${result.status} (${result.exitCode})")
+                    continue
+                }
+                // Every one of them was down before, whatever the backend has told the tunnel since.
+                quotaMonitor.onTunnelStateChanged(tunnel.name)
+                tunnel.onStateChanged(Tunnel.State.UP)
+                lastUsedTunnel = tunnel
+            }
+        } catch (e: Throwable) {
+            Log.e(TAG, Log.getStackTraceString(e))
+            // Whatever happened, find out what is actually running.
+            for (tunnel in restoring) {
+                try {
+                    getTunnelState(tunnel)
+                } catch (e: Throwable) {
+                    Log.e(TAG, Log.getStackTraceString(e))
+                }
+            }
+        }
+        saveState()
+    }
+
     suspend fun saveState() {
         UserKnobs.setRunningTunnels(tunnelMap.filter { it.state == Tunnel.State.UP }.map { it.name }.toSet())
     }
 
     suspend fun setTunnelConfig(tunnel: ObservableTunnel, config: Config): Config = withContext(Dispatchers.Main.immediate) {
-        tunnel.onConfigChanged(withContext(Dispatchers.IO) {
-            getBackend().setState(tunnel, tunnel.state, config)
-            configStore.save(tunnel.name, config)
-        })!!
+        getCommandQueue().setConfig(tunnel, config).await()
+        tunnel.onConfigChanged(withContext(Dispatchers.IO) { configStore.save(tunnel.name, config) })!!.also { if (tunnel == lastUsedTunnel) prepareLikelyTunnels() }
     }
 
     suspend fun setTunnelName(tunnel: ObservableTunnel, name: String): String = withContext(Dispatchers.Main.immediate) {
@@ -175,11 +358,19 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
         var newName: String? = null
         try {
             if (originalState == Tunnel.State.UP)
-                withContext(Dispatchers.IO) { getBackend().setState(tunnel, Tunnel.State.DOWN, null) }
-            withContext(Dispatchers.IO) { configStore.rename(tunnel.name, name) }
+                getCommandQueue().setState(tunnel, Tunnel.State.DOWN, null).await()
+            withContext(Dispatchers.IO) {
+                configStore.rename(tunnel.name, name)
+                try {
+                    trafficHistory.rename(tunnel.name, name)
+                } catch (e: IOException) {
+                    Log.e(TAG, Log.getStackTraceString(e))
+                }
+            }
+            quotaMonitor.onTunnelRenamed(tunnel.name, name)
             newName = tunnel.onNameChanged(name)
             if (originalState == Tunnel.State.UP)
-                withContext(Dispatchers.IO) { getBackend().setState(tunnel, Tunnel.State.UP, tunnel.config) }
+                getCommandQueue().setState(tunnel, Tunnel.State.UP, tunnel.config).await()
         } catch (e: Throwable) {
             throwable = e
             // On failure, we don't know what state the tunnel might be in. Fix that.
@@ -197,13 +388,33 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
     suspend fun setTunnelState(tunnel: ObservableTunnel, state: Tunnel.State): Tunnel.State = withContext(Dispatchers.Main.immediate) {
         var newState = tunnel.state
         var throwable: Throwable? = null
+        // Take a final reading before going down, since the counters are gone afterwards, and start
+        // a new session before coming up, since the counters start again from zero.
+        if (tunnel.state == Tunnel.State.UP && state != Tunnel.State.UP) {
+            try {
+                val statistics = getBackend().getStatisticsAsync(tunnel).await()
+                withContext(Dispatchers.IO) { recordTraffic(tunnel, statistics) }
+            } catch (e: Throwable) {
+                Log.e(TAG, Log.getStackTraceString(e))
+            }
+        } else if (tunnel.state != Tunnel.State.UP && state == Tunnel.State.UP) {
+            try {
+                withContext(Dispatchers.IO) { trafficHistory.startSession(tunnel.name) }
+            } catch (e: IOException) {
+                Log.e(TAG, Log.getStackTraceString(e))
+            }
+        }
         try {
-            newState = withContext(Dispatchers.IO) { getBackend().setState(tunnel, state, tunnel.getConfigAsync()) }
+            newState = getCommandQueue().setState(tunnel, state, tunnel.getConfigAsync()).await()
             if (newState == Tunnel.State.UP)
                 lastUsedTunnel = tunnel
+            else if (tunnel == lastUsedTunnel)
+                prepareLikelyTunnels()
         } catch (e: Throwable) {
             throwable = e
         }
+        if (newState != tunnel.state)
+            quotaMonitor.onTunnelStateChanged(tunnel.name)
         tunnel.onStateChanged(newState)
         saveState()
         if (throwable != null)
@@ -240,15 +451,50 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
         }
     }
 
+    /**
+     * Measures the handshake latency of each of [candidates] and brings the fastest one up.
+     * Tunnels that are already running are never probed, since a probe would make the server
+     * switch to it, but may still win on an earlier measurement.
+     *
+     * @return The tunnel that was chosen, or null if none of them could be reached.
+     */
+    suspend fun selectFastest(candidates: Collection<ObservableTunnel>? = null): ObservableTunnel? = withContext(Dispatchers.Main.immediate) {
+        val tunnels = candidates ?: getTunnels()
+        val configs = HashMap<String, Config>(tunnels.size)
+        for (tunnel in tunnels)
+            configs[tunnel.name] = tunnel.getConfigAsync()
+        val running = tunnels.filter { it.state == Tunnel.State.UP }.map { it.name }.toSet()
+        val fastest = withContext(Dispatchers.IO) { latencyProber.fastest(configs, PROBE_TIMEOUT_MILLIS, running) }
+        val tunnel = fastest?.let { tunnelMap[it] } ?: return@withContext null
+        setTunnelState(tunnel, Tunnel.State.UP)
+        tunnel
+    }
+
     suspend fun getTunnelState(tunnel: ObservableTunnel): Tunnel.State = withContext(Dispatchers.Main.immediate) {
-        tunnel.onStateChanged(withContext(Dispatchers.IO) { getBackend().getState(tunnel) })
+        tunnel.onStateChanged(getBackend().getStateAsync(tunnel).await())
     }
 
     suspend fun getTunnelStatistics(tunnel: ObservableTunnel): Statistics = withContext(Dispatchers.Main.immediate) {
-        tunnel.onStatisticsChanged(withContext(Dispatchers.IO) { getBackend().getStatistics(tunnel) })!!
+        val statistics = getBackend().getStatisticsAsync(tunnel).await()
+        withContext(Dispatchers.IO) { recordTraffic(tunnel, statistics) }
+        tunnel.onStatisticsChanged(statistics)!!
+    }
+
+    private fun recordTraffic(tunnel: ObservableTunnel, statistics: Statistics) {
+        val now = System.currentTimeMillis()
+        try {
+            trafficHistory.record(tunnel.name, statistics, now)
+        } catch (e: IOException) {
+            Log.e(TAG, Log.getStackTraceString(e))
+        }
+        quotaMonitor.onStatistics(tunnel, statistics, now)
     }
 
     companion object {
         private const val TAG = "WireGuard/TunnelManager"
+        private const val MAX_PROBES = 4
+        private const val PROBE_CACHE_MILLIS = 5 * 60 * 1000L
+        private const val PROBE_TIMEOUT_MILLIS = 3000
+        private const val QUOTA_POLL_MILLIS = 60 * 1000L
     }
 }
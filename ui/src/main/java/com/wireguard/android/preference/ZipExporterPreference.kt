@@ -15,17 +15,12 @@ import com.wireguard.android.util.AdminKnobs
 import com.wireguard.android.util.BiometricAuthenticator
 import com.wireguard.android.util.DownloadsFileSaver
 import com.wireguard.android.util.ErrorMessages
+import com.wireguard.android.util.TunnelExporter
 import com.wireguard.android.util.activity
 import com.wireguard.android.util.lifecycleScope
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.SupervisorJob
-import kotlinx.coroutines.async
-import kotlinx.coroutines.awaitAll
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
-import java.nio.charset.StandardCharsets
-import java.util.zip.ZipEntry
-import java.util.zip.ZipOutputStream
 
 /**
  * Preference implementing a button that asynchronously exports config zips.
@@ -36,11 +31,10 @@ class ZipExporterPreference(context: Context, attrs: AttributeSet?) : Preference
 
     private fun exportZip() {
         lifecycleScope.launch {
-            val tunnels = Application.getTunnelManager().getTunnels()
+            val tunnels = Application.getTunnelManager().getTunnels().toList()
             try {
                 exportedFilePath = withContext(Dispatchers.IO) {
-                    val configs = tunnels.map { async(SupervisorJob()) { it.getConfigAsync() } }.awaitAll()
-                    if (configs.isEmpty()) {
+                    if (tunnels.isEmpty()) {
                         throw IllegalArgumentException(context.getString(R.string.no_tunnels_error))
                     }
                     val outputFile = downloadsFileSaver.save("wireguard-export.zip", "application/zip", true)
@@ -51,13 +45,7 @@ class ZipExporterPreference(context: Context, attrs: AttributeSet?) : Preference
                         return@withContext null
                     }
                     try {
-                        ZipOutputStream(outputFile.outputStream).use { zip ->
-                            for (i in configs.indices) {
-                                zip.putNextEntry(ZipEntry(tunnels[i].name + ".conf"))
-                                zip.write(configs[i].toWgQuickString().toByteArray(StandardCharsets.UTF_8))
-                            }
-                            zip.closeEntry()
-                        }
+                        TunnelExporter.exportZip(tunnels, outputFile.outputStream)
                     } catch (e: Throwable) {
                         outputFile.delete()
                         throw e
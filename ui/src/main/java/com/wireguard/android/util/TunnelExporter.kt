@@ -0,0 +1,83 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.util
+
+import com.wireguard.android.Application
+import com.wireguard.android.model.ObservableTunnel
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.OutputStream
+import java.nio.charset.StandardCharsets
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+object TunnelExporter {
+    /**
+     * Compression level that stores entries without deflating them at all.
+     */
+    const val STORED = -2
+
+    /**
+     * Writes the configs of [tunnels] into a zip archive on [output], one entry per tunnel, in
+     * the order given. Configs are loaded and serialized in parallel, but only a small window of
+     * them is in flight at any time; each one is streamed into the archive as soon as its turn
+     * comes and then dropped, so exports never hold every config in memory at once.
+     *
+     * @param compressionLevel A [Deflater] level from 0 to 9, [Deflater.DEFAULT_COMPRESSION], or
+     * [STORED].
+     */
+    suspend fun exportZip(tunnels: Collection<ObservableTunnel>, output: OutputStream, compressionLevel: Int = Deflater.DEFAULT_COMPRESSION) = coroutineScope {
+        require(compressionLevel == STORED || compressionLevel == Deflater.DEFAULT_COMPRESSION || compressionLevel in Deflater.NO_COMPRESSION..Deflater.BEST_COMPRESSION) {
+            "Invalid compression level $compressionLevel"
+        }
+        val window = Runtime.getRuntime().availableProcessors().coerceIn(1, MAX_SERIALIZE_WORKERS)
+        val pending = Channel<Deferred<ZipConfigEntry>>(window)
+        launch {
+            try {
+                for (tunnel in tunnels) {
+                    pending.send(async(Dispatchers.Default) {
+                        val config = Application.getTunnelManager().loadTunnelConfig(tunnel)
+                        ZipConfigEntry(tunnel.name + ".conf", config.toWgQuickString().toByteArray(StandardCharsets.UTF_8))
+                    })
+                }
+            } finally {
+                pending.close()
+            }
+        }
+        withContext(Dispatchers.IO) {
+            ZipOutputStream(output).use { zip ->
+                if (compressionLevel != STORED)
+                    zip.setLevel(compressionLevel)
+                for (deferred in pending) {
+                    val file = deferred.await()
+                    val entry = ZipEntry(file.name)
+                    if (compressionLevel == STORED) {
+                        val crc = CRC32()
+                        crc.update(file.bytes)
+                        entry.method = ZipEntry.STORED
+                        entry.size = file.bytes.size.toLong()
+                        entry.compressedSize = file.bytes.size.toLong()
+                        entry.crc = crc.value
+                    }
+                    zip.putNextEntry(entry)
+                    zip.write(file.bytes)
+                    zip.closeEntry()
+                }
+            }
+        }
+    }
+
+    private class ZipConfigEntry(val name: String, val bytes: ByteArray)
+
+    private const val MAX_SERIALIZE_WORKERS = 8
+}
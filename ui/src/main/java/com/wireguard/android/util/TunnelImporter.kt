@@ -15,22 +15,25 @@ import com.wireguard.android.R
 import com.wireguard.android.fragment.ConfigNamingDialogFragment
 import com.wireguard.android.model.ObservableTunnel
 import com.wireguard.config.Config
-import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.SupervisorJob
-import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
-import java.io.BufferedReader
 import java.io.ByteArrayInputStream
-import java.io.InputStreamReader
+import java.io.InputStream
 import java.nio.charset.StandardCharsets
-import java.util.zip.ZipEntry
 import java.util.zip.ZipInputStream
 
 object TunnelImporter {
-    suspend fun importTunnel(contentResolver: ContentResolver, uri: Uri, messageCallback: (CharSequence) -> Unit) = withContext(Dispatchers.IO) {
+    suspend fun importTunnel(
+        contentResolver: ContentResolver,
+        uri: Uri,
+        progressCallback: (Int) -> Unit = {},
+        messageCallback: (CharSequence) -> Unit
+    ) = withContext(Dispatchers.IO) {
         val context = Application.get().applicationContext
-        val futureTunnels = ArrayList<Deferred<ObservableTunnel>>()
         val throwables = ArrayList<Throwable>()
         try {
             val columns = arrayOf(OpenableColumns.DISPLAY_NAME)
@@ -43,7 +46,7 @@ object TunnelImporter {
             if (name.isEmpty()) {
                 name = Uri.decode(uri.lastPathSegment)
             }
-            var idx = name.lastIndexOf('/')
+            val idx = name.lastIndexOf('/')
             if (idx >= 0) {
                 require(idx < name.length - 1) { context.getString(R.string.illegal_filename_error, name) }
                 name = name.substring(idx + 1)
@@ -55,58 +58,90 @@ object TunnelImporter {
                 require(isZip) { context.getString(R.string.bad_extension_error) }
             }
 
-            if (isZip) {
-                ZipInputStream(contentResolver.openInputStream(uri)).use { zip ->
-                    val reader = BufferedReader(InputStreamReader(zip, StandardCharsets.UTF_8))
-                    var entry: ZipEntry?
+            val tunnels = if (isZip)
+                importZip(contentResolver.openInputStream(uri)!!, throwables, progressCallback)
+            else
+                listOf(Application.getTunnelManager().create(name, Config.parse(contentResolver.openInputStream(uri)!!)))
+            if (tunnels.isEmpty())
+                require(throwables.isNotEmpty()) { context.getString(R.string.no_configs_error) }
+            withContext(Dispatchers.Main.immediate) { onTunnelImportFinished(tunnels, throwables, messageCallback) }
+        } catch (e: Throwable) {
+            withContext(Dispatchers.Main.immediate) { onTunnelImportFinished(emptyList(), listOf(e), messageCallback) }
+        }
+    }
+
+    /**
+     * Imports every config in a zip as a three stage pipeline: a single reader inflates entries
+     * into memory, a bounded pool of workers parses them in parallel, and all of the parsed
+     * tunnels are then committed together with [com.wireguard.android.model.TunnelManager.createAll].
+     * Entries are put back in archive order before they are committed, so that when several have
+     * the same name, the first one always wins. Failures are collected per entry into [throwables],
+     * and [progressCallback] is told on the main thread how many entries have been parsed, after
+     * every entry unless the main thread falls behind, in which case only the latest count is kept.
+     */
+    private suspend fun importZip(stream: InputStream, throwables: MutableCollection<Throwable>, progressCallback: (Int) -> Unit): List<ObservableTunnel> = coroutineScope {
+        val context = Application.get().applicationContext
+        val workerCount = Runtime.getRuntime().availableProcessors().coerceIn(1, MAX_PARSE_WORKERS)
+        val entries = Channel<ZipConfigEntry>(workerCount * 2)
+        val parsed = Channel<ParsedConfig>(workerCount * 2)
+        val progress = Channel<Int>(Channel.CONFLATED)
+
+        launch(Dispatchers.Main.immediate) {
+            for (count in progress)
+                progressCallback(count)
+        }
+
+        launch(Dispatchers.IO) {
+            try {
+                var index = 0
+                ZipInputStream(stream).use { zip ->
                     while (true) {
-                        entry = zip.nextEntry ?: break
-                        name = entry.name
-                        idx = name.lastIndexOf('/')
+                        val entry = zip.nextEntry ?: break
+                        var name = entry.name
+                        val idx = name.lastIndexOf('/')
                         if (idx >= 0) {
-                            if (idx >= name.length - 1) {
+                            if (idx >= name.length - 1)
                                 continue
-                            }
-                            name = name.substring(name.lastIndexOf('/') + 1)
+                            name = name.substring(idx + 1)
                         }
-                        if (name.lowercase().endsWith(".conf")) {
-                            name = name.substring(0, name.length - ".conf".length)
-                        } else {
+                        if (!name.lowercase().endsWith(".conf"))
                             continue
-                        }
-                        try {
-                            Config.parse(reader)
-                        } catch (e: Throwable) {
-                            throwables.add(e)
-                            null
-                        }?.let {
-                            val nameCopy = name
-                            futureTunnels.add(async(SupervisorJob()) { Application.getTunnelManager().create(nameCopy, it) })
-                        }
+                        entries.send(ZipConfigEntry(index++, name.substring(0, name.length - ".conf".length), zip.readBytes()))
                     }
                 }
-            } else {
-                futureTunnels.add(async(SupervisorJob()) { Application.getTunnelManager().create(name, Config.parse(contentResolver.openInputStream(uri)!!)) })
+            } finally {
+                entries.close()
             }
+        }
 
-            if (futureTunnels.isEmpty()) {
-                if (throwables.size == 1) {
-                    throw throwables[0]
-                } else {
-                    require(throwables.isNotEmpty()) { context.getString(R.string.no_configs_error) }
-                }
-            }
-            val tunnels = futureTunnels.mapNotNull {
-                try {
-                    it.await()
-                } catch (e: Throwable) {
-                    throwables.add(e)
-                    null
-                }
+        val workers = List(workerCount) {
+            launch(Dispatchers.Default) {
+                for (entry in entries)
+                    parsed.send(ParsedConfig(entry.index, entry.name, runCatching { Config.parse(ByteArrayInputStream(entry.bytes)) }))
             }
-            withContext(Dispatchers.Main.immediate) { onTunnelImportFinished(tunnels, throwables, messageCallback) }
-        } catch (e: Throwable) {
-            withContext(Dispatchers.Main.immediate) { onTunnelImportFinished(emptyList(), listOf(e), messageCallback) }
+        }
+        launch {
+            workers.joinAll()
+            parsed.close()
+        }
+
+        val results = ArrayList<ParsedConfig>()
+        for (result in parsed) {
+            results.add(result)
+            progress.trySend(results.size)
+        }
+        progress.close()
+        results.sortBy { it.index }
+        val configs = LinkedHashMap<String, Config>()
+        for (result in results) {
+            result.config.onSuccess { config ->
+                if (configs.putIfAbsent(result.name, config) != null)
+                    throwables.add(IllegalArgumentException(context.getString(R.string.tunnel_error_already_exists, result.name)))
+            }.onFailure { throwables.add(it) }
+        }
+
+        Application.getTunnelManager().createAll(configs).values.mapNotNull { result ->
+            result.onFailure { throwables.add(it) }.getOrNull()
         }
     }
 
@@ -148,5 +183,10 @@ object TunnelImporter {
         messageCallback(message)
     }
 
+    private class ZipConfigEntry(val index: Int, val name: String, val bytes: ByteArray)
+
+    private class ParsedConfig(val index: Int, val name: String, val config: Result<Config>)
+
+    private const val MAX_PARSE_WORKERS = 8
     private const val TAG = "WireGuard/TunnelImporter"
 }
\ No newline at end of file
@@ -118,4 +118,19 @@ object UserKnobs {
                 it[UPDATER_NEWER_VERSION_CONSENTED] = newerVersionConsented
         }
     }
+
+    private val QUOTA_RULES = stringSetPreferencesKey("quota_rules")
+    val quotaRules: Flow<Set<String>>
+        get() = Application.getPreferencesDataStore().data.map {
+            it[QUOTA_RULES] ?: emptySet()
+        }
+
+    suspend fun setQuotaRules(quotaRules: Set<String>) {
+        Application.getPreferencesDataStore().edit {
+            if (quotaRules.isEmpty())
+                it.remove(QUOTA_RULES)
+            else
+                it[QUOTA_RULES] = quotaRules
+        }
+    }
 }
@@ -86,7 +86,7 @@ class InterfaceProxy : BaseObservable, Parcelable {
         excludedApplications.addAll(other.excludedApplications)
         includedApplications.addAll(other.includedApplications)
         listenPort = other.listenPort.map { it.toString() }.orElse("")
-        mtu = other.mtu.map { it.toString() }.orElse("")
+        mtu = if (other.isMtuAuto) "auto" else other.mtu.map { it.toString() }.orElse("")
         val keyPair = other.keyPair
         privateKey = keyPair.privateKey.toBase64()
     }
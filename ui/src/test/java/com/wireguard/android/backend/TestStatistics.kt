@@ -0,0 +1,17 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend
+
+import com.wireguard.crypto.Key
+
+/**
+ * Builds a [Statistics] reading, whose constructor only the backends in this package may use.
+ */
+fun statisticsOf(peer: Key, rxBytes: Long, txBytes: Long): Statistics {
+    val statistics = Statistics()
+    statistics.add(peer, rxBytes, txBytes, 0)
+    return statistics
+}
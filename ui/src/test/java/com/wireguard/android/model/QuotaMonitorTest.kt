@@ -0,0 +1,96 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.model
+
+import com.wireguard.android.backend.TrafficHistory
+import com.wireguard.android.backend.statisticsOf
+import com.wireguard.crypto.KeyPair
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+import java.util.TimeZone
+
+class QuotaMonitorTest {
+    private val peer = KeyPair().publicKey
+    private val timeZone = TimeZone.getDefault()
+    private lateinit var directory: File
+    private lateinit var history: TrafficHistory
+    private lateinit var monitor: QuotaMonitor
+
+    @Before
+    fun setUp() {
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"))
+        directory = Files.createTempDirectory("quota").toFile()
+        history = TrafficHistory(directory)
+        monitor = QuotaMonitor(history)
+        monitor.onRulesChanged(listOf(RULE))
+    }
+
+    @After
+    fun tearDown() {
+        history.close()
+        directory.deleteRecursively()
+        TimeZone.setDefault(timeZone)
+    }
+
+    /**
+     * Feeds a reading through the history and then the monitor, as [TunnelManager] does.
+     */
+    private fun read(rx: Long, tx: Long, nowEpochMillis: Long): List<QuotaRule> {
+        val statistics = statisticsOf(peer, rx, tx)
+        history.record(RULE.tunnelName, statistics, nowEpochMillis)
+        return monitor.evaluate(RULE.tunnelName, statistics, nowEpochMillis).map { it.rule }
+    }
+
+    private fun reconnect() {
+        history.startSession(RULE.tunnelName)
+        monitor.onTunnelStateChanged(RULE.tunnelName)
+    }
+
+    @Test
+    fun counts_the_first_reading_after_a_reconnect_in_full() {
+        reconnect()
+        assertEquals(emptyList<QuotaRule>(), read(100, 0, NOW))
+        assertEquals(emptyList<QuotaRule>(), read(300, 0, NOW + MINUTE))
+        // The new session overtakes the old counters before its first reading.
+        reconnect()
+        assertEquals(emptyList<QuotaRule>(), read(400, 0, NOW + 2 * MINUTE))
+        assertEquals(emptyList<QuotaRule>(), read(400, 250, NOW + 3 * MINUTE))
+        assertEquals(listOf(RULE), read(400, 310, NOW + 4 * MINUTE))
+        assertEquals(emptyList<QuotaRule>(), read(500, 310, NOW + 5 * MINUTE))
+    }
+
+    @Test
+    fun carries_usage_over_from_the_history() {
+        // An earlier process recorded most of the budget already.
+        history.record(RULE.tunnelName, statisticsOf(peer, 600, 0), NOW)
+        monitor = QuotaMonitor(history)
+        monitor.onRulesChanged(listOf(RULE))
+        assertEquals(emptyList<QuotaRule>(), read(900, 0, NOW + MINUTE))
+        assertEquals(listOf(RULE), read(1100, 0, NOW + 2 * MINUTE))
+    }
+
+    @Test
+    fun starts_again_with_each_period() {
+        val lateNight = NOW + DAY - 30 * MINUTE
+        assertEquals(emptyList<QuotaRule>(), read(900, 0, lateNight))
+        assertEquals(listOf(RULE), read(1100, 0, lateNight + MINUTE))
+        // Only what was used after midnight counts against the next day.
+        assertEquals(emptyList<QuotaRule>(), read(1300, 0, NOW + DAY + MINUTE))
+        assertEquals(emptyList<QuotaRule>(), read(2000, 0, NOW + DAY + 2 * MINUTE))
+        assertEquals(listOf(RULE), read(2200, 0, NOW + DAY + 3 * MINUTE))
+    }
+
+    companion object {
+        private const val MINUTE = 60_000L
+        private const val DAY = 24 * 60 * MINUTE
+        private const val NOW = 20_000 * DAY
+        private val RULE = QuotaRule("wg0", 1000, QuotaRule.Period.DAY, QuotaRule.Direction.BOTH, QuotaRule.Action.NOTIFY)
+    }
+}
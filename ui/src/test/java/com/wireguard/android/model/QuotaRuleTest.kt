@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2017-2025 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.model
+
+import com.wireguard.android.model.QuotaRule.Period
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Test
+import java.util.Calendar
+import java.util.Locale
+import java.util.TimeZone
+
+class QuotaRuleTest {
+    private val locale = Locale.getDefault()
+    private val timeZone = TimeZone.getDefault()
+
+    @Before
+    fun setUp() {
+        Locale.setDefault(Locale.US)
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"))
+    }
+
+    @After
+    fun tearDown() {
+        Locale.setDefault(locale)
+        TimeZone.setDefault(timeZone)
+    }
+
+    @Test
+    fun parses_what_it_prints() {
+        val rule = QuotaRule("wg0", 5_000_000_000, Period.MONTH, QuotaRule.Direction.BOTH, QuotaRule.Action.DISCONNECT)
+        assertEquals("wg0/5000000000/MONTH/BOTH/DISCONNECT", rule.toString())
+        assertEquals(rule, QuotaRule.parse(rule.toString()))
+    }
+
+    @Test
+    fun rejects_malformed_rules() {
+        for (stored in listOf(
+            "", "wg0/1000/DAY/RX", "wg0/1000/DAY/RX/NOTIFY/extra", "wg0/0/DAY/RX/NOTIFY", "wg0/-1/DAY/RX/NOTIFY",
+            "wg0/lots/DAY/RX/NOTIFY", "wg0/1000/YEAR/RX/NOTIFY", "wg0/1000/DAY/UP/NOTIFY", "wg0/1000/DAY/RX/BLOCK"
+        ))
+            assertNull(stored, QuotaRule.parse(stored))
+    }
+
+    @Test
+    fun bounds_follow_the_calendar() {
+        // A Thursday in a leap year.
+        val now = utc(2024, Calendar.FEBRUARY, 29, 13)
+        assertEquals(Pair(utc(2024, Calendar.FEBRUARY, 29), utc(2024, Calendar.MARCH, 1)), Period.DAY.bounds(now))
+        assertEquals(Pair(utc(2024, Calendar.FEBRUARY, 25), utc(2024, Calendar.MARCH, 3)), Period.WEEK.bounds(now))
+        assertEquals(Pair(utc(2024, Calendar.FEBRUARY, 1), utc(2024, Calendar.MARCH, 1)), Period.MONTH.bounds(now))
+        // A Wednesday whose week started in the year before.
+        val newYear = utc(2025, Calendar.JANUARY, 1, 8)
+        assertEquals(Pair(utc(2024, Calendar.DECEMBER, 29), utc(2025, Calendar.JANUARY, 5)), Period.WEEK.bounds(newYear))
+        assertEquals(Pair(utc(2024, Calendar.DECEMBER, 1), utc(2025, Calendar.JANUARY, 1)), Period.MONTH.bounds(newYear - 1))
+    }
+
+    @Test
+    fun periods_are_contiguous() {
+        val now = utc(2024, Calendar.FEBRUARY, 29, 13)
+        for (period in Period.entries) {
+            val (start, end) = period.bounds(now)
+            assertEquals(Pair(start, end), period.bounds(start))
+            assertEquals(Pair(start, end), period.bounds(end - 1))
+            assertEquals(end, period.bounds(end).first)
+        }
+    }
+
+    private fun utc(year: Int, month: Int, day: Int, hour: Int = 0): Long {
+        val calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"))
+        calendar.clear()
+        calendar.set(year, month, day, hour, 0)
+        return calendar.timeInMillis
+    }
+}